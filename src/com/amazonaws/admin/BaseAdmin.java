@@ -14,19 +14,22 @@ import com.amazonaws.services.simpledb.model.Item;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 
+import com.amazonaws.tvm.DomainPartitioner;
 import com.amazonaws.tvm.MissingParameterException;
 
 public class BaseAdmin {
 	
 	protected final static String AWSAccessKeyID = "AWS_ACCESS_KEY_ID";	
 	protected final static String AWSSecretKey = "AWS_SECRET_KEY";
+	protected final static String Partitions = "Partitions";
+	protected final static String ConsistentRead = "ConsistentRead";
 	
 	protected AmazonSimpleDBClient sdb;
 	
 	public BaseAdmin( String awsAccessKeyID, String awsSecretKey ) {
 		this.sdb = new AmazonSimpleDBClient( new BasicAWSCredentials( awsAccessKeyID, awsSecretKey ) );
 		if ( null != this.sdb )
-			this.sdb.setEndpoint( "sdb.amazonaws.com" );
+			this.sdb.setEndpoint( getEnv( "SimpleDBEndpoint", "sdb.amazonaws.com" ) );
 	}
 	
 	protected Attribute findAttributeInList( String attributeName, List<Attribute> attributes ) {
@@ -41,7 +44,7 @@ public class BaseAdmin {
 
 	protected int getDomainCount( String domainName ) {
 		SelectResult result = null;
-		SelectRequest sr = new SelectRequest( "select count(*) from `" + domainName + "`", Boolean.TRUE );
+		SelectRequest sr = new SelectRequest( "select count(*) from `" + domainName + "`", getConsistentRead() );
 		result = this.sdb.select( sr );
         
 		if ( result != null && result.getItems() != null ) {
@@ -52,6 +55,23 @@ public class BaseAdmin {
         }    
 	}
 
+	protected int getDomainCount( DomainPartitioner partitioner ) {
+		int count = 0;
+		for ( String domainName : partitioner.getDomains() ) {
+			count += this.getDomainCount( domainName );
+		}
+		return count;
+	}
+
+	protected boolean doesDomainExist( DomainPartitioner partitioner ) {
+		for ( String domainName : partitioner.getDomains() ) {
+			if ( !this.doesDomainExist( domainName ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	protected boolean doesDomainExist( String domainName ) {
 		try {
 			List<String> domains = this.getAllDomains();
@@ -87,4 +107,31 @@ public class BaseAdmin {
 		return value;
 	}
 	
+	/**
+	 * The partition layout of a logical domain, taken from the optional -DPartitions=<count> argument.
+	 */
+	protected static DomainPartitioner getPartitioner( String domainName ) {
+		return new DomainPartitioner( domainName, getIntEnv( Partitions, 1 ) );
+	}
+	
+	protected static String getEnv( String name, String defaultValue ) {
+		String value = System.getProperty( name );
+		return ( null == value || value.length() == 0 ) ? defaultValue : value;
+	}
+	
+	/**
+	 * Reports may use eventually consistent reads with -DConsistentRead=false, which are cheaper but may miss the latest writes.
+	 */
+	protected static Boolean getConsistentRead() {
+		return Boolean.valueOf( getEnv( ConsistentRead, "true" ) );
+	}
+	
+	protected static int getIntEnv( String name, int defaultValue ) {
+		String value = System.getProperty( name );
+		if ( null == value || value.length() == 0 ) {
+			return defaultValue;
+		}
+		return Integer.parseInt( value );
+	}
+	
 }
@@ -17,7 +17,7 @@ public class CountDevices extends BaseAdmin {
 				return;
 			}
 			
-			if ( !obj.doesDomainExist( deviceDomain ) ) {
+			if ( !obj.doesDomainExist( getPartitioner( deviceDomain ) ) ) {
 				System.err.println( "Invalid user domain : " + deviceDomain );
 				return;
 			}
@@ -26,7 +26,7 @@ public class CountDevices extends BaseAdmin {
 			
 		}
 		catch ( MissingParameterException e ) {
-			System.out.println( "Usage:java CountDevices -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DDeviceDomain=<domain_name>" );
+			System.out.println( "Usage:java CountDevices -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DDeviceDomain=<domain_name> [-DPartitions=<count>] [-DConsistentRead=false]" );
 			System.out.println( e.getMessage() );
 		}
 	}
@@ -39,7 +39,7 @@ public class CountDevices extends BaseAdmin {
 	 * Returns the list of usernames stored in the identity domain.
 	 */
 	public int countDevices( String deviceDomain ) {
-        return super.getDomainCount( deviceDomain );
+        return super.getDomainCount( getPartitioner( deviceDomain ) );
 	}
 	
 }
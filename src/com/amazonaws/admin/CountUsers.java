@@ -17,7 +17,7 @@ public class CountUsers extends BaseAdmin {
 				return;
 			}
 			
-			if ( !obj.doesDomainExist( userDomain ) ) {
+			if ( !obj.doesDomainExist( getPartitioner( userDomain ) ) ) {
 				System.err.println( "Invalid user domain : " + userDomain );
 				return;
 			}
@@ -26,7 +26,7 @@ public class CountUsers extends BaseAdmin {
 			
 		}
 		catch ( MissingParameterException e ) {
-			System.out.println( "Usage:java CountUsers -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name>" );
+			System.out.println( "Usage:java CountUsers -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> [-DPartitions=<count>] [-DConsistentRead=false]" );
 			System.out.println( e.getMessage() );
 		}
 	}
@@ -39,7 +39,7 @@ public class CountUsers extends BaseAdmin {
 	 * Returns the list of usernames stored in the identity domain.
 	 */
 	public int countUsers( String userDomain ) {
-        return super.getDomainCount( userDomain );
+        return super.getDomainCount( getPartitioner( userDomain ) );
 	}
 	
 }
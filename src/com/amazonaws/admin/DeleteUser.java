@@ -1,6 +1,11 @@
 
 package com.amazonaws.admin;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
 import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
 import com.amazonaws.tvm.MissingParameterException;
 
@@ -24,7 +29,7 @@ public class DeleteUser extends BaseAdmin {
 				return;
 			}
 			
-			if ( !obj.doesDomainExist( userDomain ) ) {
+			if ( !obj.doesDomainExist( getPartitioner( userDomain ) ) ) {
 				System.err.println( "Invalid user domain : " + userDomain );
 				return;
 			}
@@ -32,9 +37,15 @@ public class DeleteUser extends BaseAdmin {
 			obj.deleteUser( username, userDomain );
 			System.out.println( "User deleted successfully" );
 			
+			String revocationFile = getEnv( "RevocationFile", null );
+			if ( null != revocationFile ) {
+				revoke( username, revocationFile );
+				System.out.println( "Session tickets revoked in " + revocationFile );
+			}
+			
 		}
 		catch ( MissingParameterException e ) {
-			System.out.println( "Usage:java DeleteUser -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> <username_to_be_deleted>" );
+			System.out.println( "Usage:java DeleteUser -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> [-DPartitions=<count>] [-DRevocationFile=<ticket_revocation_file>] <username_to_be_deleted>" );
 			System.out.println( e.getMessage() );
 		}
 	}
@@ -44,10 +55,36 @@ public class DeleteUser extends BaseAdmin {
 	}
 	
 	/**
-	 * Deletes the specified username from the identity domain.
+	 * Deletes the specified username from the identity domain. Running Token Vending Machine instances keep serving their cached copy of the
+	 * user record until it expires (see Configuration.RECORD_CACHE_TTL_SECONDS).
 	 */
 	public void deleteUser( String username, String domain ) {
-		DeleteAttributesRequest dar = new DeleteAttributesRequest( domain, username );
+		DeleteAttributesRequest dar = new DeleteAttributesRequest( getPartitioner( domain ).getDomain( username ), username );
 		this.sdb.deleteAttributes( dar );
 	}
+	
+	/**
+	 * Appends the username to the TICKET_REVOCATION_FILE of the Token Vending Machine, so the session tickets the user still holds are
+	 * rejected.
+	 */
+	public static void revoke( String username, String revocationFile ) {
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter( new FileOutputStream( revocationFile, true ), "UTF-8" );
+			writer.write( username + "\n" );
+		}
+		catch ( IOException exception ) {
+			System.err.println( "Unable to update " + revocationFile + " : " + exception.getMessage() );
+		}
+		finally {
+			if ( null != writer ) {
+				try {
+					writer.close();
+				}
+				catch ( IOException exception ) {
+					// ignore
+				}
+			}
+		}
+	}
 }
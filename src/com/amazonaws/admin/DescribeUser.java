@@ -29,7 +29,7 @@ public class DescribeUser extends BaseAdmin {
 				return;
 			}
 			
-			if ( !obj.doesDomainExist( userDomain ) ) {
+			if ( !obj.doesDomainExist( getPartitioner( userDomain ) ) ) {
 				System.err.println( "Invalid user domain : " + userDomain );
 				return;
 			}
@@ -38,7 +38,7 @@ public class DescribeUser extends BaseAdmin {
 			
 		}
 		catch ( MissingParameterException e ) {
-			System.out.println( "Usage:java DescribeUser -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> <username_to_be_described>" );
+			System.out.println( "Usage:java DescribeUser -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> [-DPartitions=<count>] [-DConsistentRead=false] <username_to_be_described>" );
 			System.out.println( e.getMessage() );
 		}
 	}
@@ -52,7 +52,7 @@ public class DescribeUser extends BaseAdmin {
 	 */
 	public void describeUser( String username, String userDomain ) {
 		SelectResult result = null;
-		SelectRequest sr = new SelectRequest( "select * from `" + userDomain + "`", Boolean.TRUE );
+		SelectRequest sr = new SelectRequest( "select * from `" + getPartitioner( userDomain ).getDomain( username ) + "`", getConsistentRead() );
 		result = this.sdb.select( sr );
 		
 		List<Item> list = result.getItems();
@@ -23,7 +23,7 @@ public class ListUsers extends BaseAdmin {
 				return;
 			}
 			
-			if ( !obj.doesDomainExist( userDomain ) ) {
+			if ( !obj.doesDomainExist( getPartitioner( userDomain ) ) ) {
 				System.err.println( "Invalid user domain : " + userDomain );
 				return;
 			}
@@ -33,7 +33,7 @@ public class ListUsers extends BaseAdmin {
             }            			
 		}
 		catch ( MissingParameterException e ) {
-			System.out.println( "Usage:java CountUsers -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name>" );
+			System.out.println( "Usage:java CountUsers -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DUserDomain=<domain_name> [-DPartitions=<count>] [-DConsistentRead=false]" );
 			System.out.println( e.getMessage() );
 		}
 	}
@@ -48,18 +48,20 @@ public class ListUsers extends BaseAdmin {
 	public List<String> listUsers( String userDomain ) {
 		List<String> users = new ArrayList<String>( 1000 );
 		
-		SelectResult result = null;
-		do {
-			SelectRequest sr = new SelectRequest( "select * from `" + userDomain + "`", Boolean.TRUE );
-            sr.setNextToken( (result == null ) ? null : result.getNextToken() );
-            
-			result = this.sdb.select( sr );            
-			
-			for ( Item item : result.getItems() ) {
-				users.add( item.getName() );
+		for ( String domain : getPartitioner( userDomain ).getDomains() ) {
+			SelectResult result = null;
+			do {
+				SelectRequest sr = new SelectRequest( "select * from `" + domain + "`", getConsistentRead() );
+	            sr.setNextToken( (result == null ) ? null : result.getNextToken() );
+	            
+				result = this.sdb.select( sr );            
+				
+				for ( Item item : result.getItems() ) {
+					users.add( item.getName() );
+				}
 			}
+			while ( result != null && result.getNextToken() != null );
 		}
-		while ( result != null && result.getNextToken() != null );
 		
 		return users;
 	}
@@ -0,0 +1,132 @@
+
+package com.amazonaws.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.model.UpdateCondition;
+import com.amazonaws.tvm.DomainPartitioner;
+import com.amazonaws.tvm.MissingParameterException;
+
+/**
+ * Moves the items of a logical domain from one partition count to another. Run it while the Token Vending Machine is deployed with the new count
+ * in USERS_DOMAIN_PARTITIONS / DEVICE_DOMAIN_PARTITIONS and the old count in USERS_DOMAIN_PREVIOUS_PARTITIONS / DEVICE_DOMAIN_PREVIOUS_PARTITIONS,
+ * so reads fall back to the old layout until the move is complete. Afterwards the previous partition setting can be removed.
+ */
+public class ReshardDomain extends BaseAdmin {
+	
+	/**
+	 * Every user and device item carries this attribute. An item is only copied if its target doesnot have it yet, so a newer write made by
+	 * the Token Vending Machine is never overwritten by the copy.
+	 */
+	private final static String MARKER_ATTRIBUTE = "userid";
+	
+	public static void main( String[] args ) {
+		try {
+			String awsAccessKeyID = getEnv( AWSAccessKeyID );
+			String awsSecretKey = getEnv( AWSSecretKey );
+			String domain = getEnv( "Domain" );
+			int fromPartitions = Integer.parseInt( getEnv( "FromPartitions" ) );
+			int toPartitions = Integer.parseInt( getEnv( "ToPartitions" ) );
+			int delayMillis = getIntEnv( "DelayMillis", 0 );
+			
+			ReshardDomain obj = new ReshardDomain( awsAccessKeyID, awsSecretKey );
+			if ( null == obj.sdb ) {
+				System.err.println( "Unable to connect to SimpleDB" );
+				return;
+			}
+			
+			DomainPartitioner from = new DomainPartitioner( domain, fromPartitions );
+			if ( !obj.doesDomainExist( from ) ) {
+				System.err.println( "Invalid domain : " + domain + " with " + fromPartitions + " partitions" );
+				return;
+			}
+			
+			int moved = obj.reshard( from, new DomainPartitioner( domain, toPartitions ), delayMillis );
+			System.out.println( "Items moved = " + moved );
+		}
+		catch ( MissingParameterException e ) {
+			System.out.println( "Usage:java ReshardDomain -DAWSAccessKeyID=<access_key> -DAWSSecretKey=<secret_key> -DDomain=<domain_name> -DFromPartitions=<count> -DToPartitions=<count> [-DDelayMillis=<pause_between_items>]" );
+			System.out.println( e.getMessage() );
+		}
+	}
+	
+	public ReshardDomain( String awsAccessKeyID, String awsSecretKey ) {
+		super( awsAccessKeyID, awsSecretKey );
+	}
+	
+	/**
+	 * Copies every item whose partition changes into its new domain and then deletes it from the old one.
+	 * 
+	 * @return the number of items moved
+	 */
+	public int reshard( DomainPartitioner from, DomainPartitioner to, int delayMillis ) {
+		for ( String domainName : to.getDomains() ) {
+			if ( !this.doesDomainExist( domainName ) ) {
+				this.sdb.createDomain( new CreateDomainRequest( domainName ) );
+			}
+		}
+		
+		int moved = 0;
+		for ( String sourceDomain : from.getDomains() ) {
+			SelectResult result = null;
+			do {
+				SelectRequest sr = new SelectRequest( "select * from `" + sourceDomain + "`", Boolean.TRUE );
+				sr.setNextToken( ( result == null ) ? null : result.getNextToken() );
+				result = this.sdb.select( sr );
+				
+				for ( Item item : result.getItems() ) {
+					String targetDomain = to.getDomain( item.getName() );
+					if ( targetDomain.equals( sourceDomain ) ) {
+						continue;
+					}
+					
+					this.copyItem( item, targetDomain );
+					this.sdb.deleteAttributes( new DeleteAttributesRequest( sourceDomain, item.getName() ) );
+					moved++;
+					
+					if ( delayMillis > 0 ) {
+						try {
+							Thread.sleep( delayMillis );
+						}
+						catch ( InterruptedException exception ) {
+							Thread.currentThread().interrupt();
+							return moved;
+						}
+					}
+				}
+			}
+			while ( result.getNextToken() != null );
+		}
+		
+		return moved;
+	}
+	
+	private void copyItem( Item item, String targetDomain ) {
+		List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>( item.getAttributes().size() );
+		for ( Attribute attribute : item.getAttributes() ) {
+			attributes.add( new ReplaceableAttribute( attribute.getName(), attribute.getValue(), Boolean.FALSE ) );
+		}
+		
+		try {
+			UpdateCondition absent = new UpdateCondition( MARKER_ATTRIBUTE, null, Boolean.FALSE );
+			this.sdb.putAttributes( new PutAttributesRequest( targetDomain, item.getName(), attributes, absent ) );
+		}
+		catch ( AmazonServiceException exception ) {
+			if ( !"ConditionalCheckFailed".equals( exception.getErrorCode() ) ) {
+				throw exception;
+			}
+			System.out.println( "Skipping " + item.getName() + ", a newer copy already exists in " + targetDomain );
+		}
+	}
+	
+}
@@ -16,7 +16,6 @@
 package com.amazonaws.tvm;
 
 import java.security.AlgorithmParameters;
-import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
@@ -25,19 +24,32 @@ import javax.crypto.spec.SecretKeySpec;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
+import com.amazonaws.tvm.jfr.CryptoEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+
 public class AESEncryption {
 	
 	public static final String ENCRYPTION_ALGORITHM = "AES/CBC/PKCS5Padding";
 	
 	public static String wrap( String clearText, String key ) throws Exception {
-		byte[] iv = getIv();
-		
-		byte[] cipherText = encrypt( clearText, key, iv );
-		byte[] wrapped = new byte[ iv.length + cipherText.length ];
-		System.arraycopy( iv, 0, wrapped, 0, iv.length );
-		System.arraycopy( cipherText, 0, wrapped, 16, cipherText.length );
-		
-		return new String( Base64.encodeBase64( wrapped ) );
+		Tracer.Span span = Tracer.startSpan( "aes.wrap" );
+		CryptoEvent event = FlightEvents.ENABLED ? new CryptoEvent() : null;
+		try {
+			byte[] iv = getIv();
+			
+			byte[] cipherText = encrypt( clearText, key, iv );
+			byte[] wrapped = new byte[ iv.length + cipherText.length ];
+			System.arraycopy( iv, 0, wrapped, 0, iv.length );
+			System.arraycopy( cipherText, 0, wrapped, 16, cipherText.length );
+			
+			return new String( Base64.encodeBase64( wrapped ) );
+		}
+		finally {
+			span.end();
+			if ( null != event ) {
+				event.finish( "aes.wrap", clearText.length() );
+			}
+		}
 	}
 	
 	public static byte[] encrypt( String clearText, String key, byte[] iv ) throws Exception {
@@ -53,9 +65,6 @@ public class AESEncryption {
 	}
 	
 	private static byte[] getIv() throws Exception {
-		byte[] iv = new byte[ 16 ];
-		new SecureRandom().nextBytes( iv );
-		
-		return iv;
+		return RandomPool.next128();
 	}
 }
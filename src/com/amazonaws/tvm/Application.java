@@ -0,0 +1,256 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A mobile app served by this Token Vending Machine. Each app has its own SimpleDB domains, policy template and session duration, while client
+ * pools, caches and threads are shared by all apps. The apps are listed in APPS, and the one a request belongs to is chosen by the first
+ * segment of the path info (e.g. /gettoken/myapp), then by host name, and otherwise is the first app listed. Code running for a request finds
+ * its app through current().
+ */
+public class Application {
+	
+	private static final String DEFAULT_POLICY_FILE = "/TokenVendingMachinePolicy.json";
+	
+	private static final Map<String, Application> APPLICATIONS = loadApplications();
+	
+	private static final Application DEFAULT = APPLICATIONS.values().iterator().next();
+	
+	private static final String OWNED_DOMAINS = listOwnedDomains();
+	
+	private static final ThreadLocal<Application> CURRENT = new ThreadLocal<Application>();
+	
+	private final String name;
+	
+	private final String usersDomain;
+	
+	private final String deviceDomain;
+	
+	private final DomainPartitioner userDomains;
+	
+	private final DomainPartitioner previousUserDomains;
+	
+	private final DomainPartitioner deviceDomains;
+	
+	private final DomainPartitioner previousDeviceDomains;
+	
+	private final int sessionDuration;
+	
+	private final String policyFile;
+	
+	private final List<String> hostNames;
+	
+	private volatile String policyTemplate;
+	
+	private Application( String name ) {
+		this.name = name;
+		this.usersDomain = Configuration.getAppProperty( name, "USERS_DOMAIN", "TokenVendingMachine_" + name + "_USERS" );
+		this.deviceDomain = Configuration.getAppProperty( name, "DEVICE_DOMAIN", "TokenVendingMachine_" + name + "_DEVICES" );
+		this.sessionDuration = Integer.parseInt( Configuration.getAppProperty( name, "SESSION_DURATION", Configuration.SESSION_DURATION ) );
+		this.policyFile = Configuration.getAppProperty( name, "POLICY_FILE", DEFAULT_POLICY_FILE );
+		
+		List<String> names = new ArrayList<String>();
+		for ( String hostName : Configuration.getAppProperty( name, "HOSTNAMES", "" ).split( "," ) ) {
+			if ( !Utilities.isEmpty( hostName ) ) {
+				names.add( hostName.trim().toLowerCase() );
+			}
+		}
+		this.hostNames = Collections.unmodifiableList( names );
+		
+		this.userDomains = new DomainPartitioner( this.usersDomain, Configuration.USERS_DOMAIN_PARTITIONS );
+		this.previousUserDomains = ( Configuration.USERS_DOMAIN_PREVIOUS_PARTITIONS > 0 ) ? new DomainPartitioner( this.usersDomain,
+				Configuration.USERS_DOMAIN_PREVIOUS_PARTITIONS ) : null;
+		this.deviceDomains = new DomainPartitioner( this.deviceDomain, Configuration.DEVICE_DOMAIN_PARTITIONS );
+		this.previousDeviceDomains = ( Configuration.DEVICE_DOMAIN_PREVIOUS_PARTITIONS > 0 ) ? new DomainPartitioner( this.deviceDomain,
+				Configuration.DEVICE_DOMAIN_PREVIOUS_PARTITIONS ) : null;
+	}
+	
+	/**
+	 * @return the app of the request being processed by this thread, the first app listed in APPS if there is none
+	 */
+	public static Application current() {
+		Application application = CURRENT.get();
+		return ( null == application ) ? DEFAULT : application;
+	}
+	
+	/**
+	 * Makes the app current for this thread.
+	 * 
+	 * @return the app that was current before, to be restored once done
+	 */
+	public static Application attach( Application application ) {
+		Application previous = CURRENT.get();
+		if ( null == application ) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set( application );
+		}
+		return previous;
+	}
+	
+	/**
+	 * @return the app the request is addressed to
+	 */
+	public static Application forRequest( HttpServletRequest request ) {
+		if ( APPLICATIONS.size() == 1 ) {
+			return DEFAULT;
+		}
+		
+		String pathInfo = request.getPathInfo();
+		if ( null != pathInfo && pathInfo.length() > 1 ) {
+			int end = pathInfo.indexOf( '/', 1 );
+			Application application = APPLICATIONS.get( pathInfo.substring( 1, ( end < 0 ) ? pathInfo.length() : end ).toLowerCase() );
+			if ( null != application ) {
+				return application;
+			}
+		}
+		
+		String serverName = RoutingFilter.getServerName( request );
+		if ( null != serverName ) {
+			serverName = serverName.toLowerCase();
+			for ( Application application : APPLICATIONS.values() ) {
+				if ( application.hostNames.contains( serverName ) ) {
+					return application;
+				}
+			}
+		}
+		
+		return DEFAULT;
+	}
+	
+	/**
+	 * @param name
+	 *            Name of the app, empty for the default app
+	 * @return the app, null if there is none of that name
+	 */
+	public static Application forName( String name ) {
+		if ( Utilities.isEmpty( name ) ) {
+			return DEFAULT;
+		}
+		return APPLICATIONS.get( name.toLowerCase() );
+	}
+	
+	public static Collection<Application> getApplications() {
+		return APPLICATIONS.values();
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public String getUsersDomain() {
+		return this.usersDomain;
+	}
+	
+	public String getDeviceDomain() {
+		return this.deviceDomain;
+	}
+	
+	public DomainPartitioner getUserDomains() {
+		return this.userDomains;
+	}
+	
+	/**
+	 * @return the user domain layout being resharded away from, null if there is none
+	 */
+	public DomainPartitioner getPreviousUserDomains() {
+		return this.previousUserDomains;
+	}
+	
+	public DomainPartitioner getDeviceDomains() {
+		return this.deviceDomains;
+	}
+	
+	/**
+	 * @return the device domain layout being resharded away from, null if there is none
+	 */
+	public DomainPartitioner getPreviousDeviceDomains() {
+		return this.previousDeviceDomains;
+	}
+	
+	/**
+	 * @return the duration, in seconds, of the session credentials handed out for this app
+	 */
+	public int getSessionDuration() {
+		return this.sessionDuration;
+	}
+	
+	/**
+	 * @return the policy template of this app with the placeholders not yet replaced
+	 */
+	public String getPolicyTemplate() {
+		if ( null == this.policyTemplate ) {
+			this.policyTemplate = DEFAULT_POLICY_FILE.equals( this.policyFile ) ? Utilities.getRawPolicyFile() : Utilities.getRawPolicyFile(
+					this.policyFile );
+		}
+		return this.policyTemplate;
+	}
+	
+	/**
+	 * @return the ARNs of the user and device domains of every app, and of their partitions, as quoted JSON strings separated by commas. The
+	 *         policy templates deny them all, so credentials handed out for one app cannot read the password hashes and device keys of another.
+	 */
+	public static String getOwnedDomainResources() {
+		return OWNED_DOMAINS;
+	}
+	
+	/**
+	 * Qualifies a key of a cache shared by all apps, so entries of different apps never collide.
+	 */
+	public String key( String key ) {
+		return ( this == DEFAULT ) ? key : this.name + '\u0000' + key;
+	}
+	
+	private static Map<String, Application> loadApplications() {
+		Map<String, Application> applications = new LinkedHashMap<String, Application>();
+		for ( String name : Configuration.APPS ) {
+			String appName = name.toLowerCase();
+			applications.put( appName, new Application( appName ) );
+		}
+		return Collections.unmodifiableMap( applications );
+	}
+	
+	private static String listOwnedDomains() {
+		Set<String> domains = new LinkedHashSet<String>();
+		for ( Application application : APPLICATIONS.values() ) {
+			domains.add( application.usersDomain );
+			domains.add( application.deviceDomain );
+		}
+		
+		StringBuilder resources = new StringBuilder();
+		for ( String domain : domains ) {
+			if ( resources.length() > 0 ) {
+				resources.append( ',' );
+			}
+			resources.append( "\"arn:aws:sdb:" ).append( Configuration.SIMPLEDB_REGION ).append( ':' ).append( Configuration.AWS_ACCOUNT_ID )
+					.append( ":domain/" ).append( domain ).append( "*\"" );
+		}
+		return resources.toString();
+	}
+	
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of requests of one endpoint that are processed concurrently, with a bounded queue in front. How long a queued request may
+ * wait follows CoDel: while the queue drains within the target delay at least once per interval, requests may wait up to the interval. Once
+ * even the shortest wait of an interval exceeded the target the queue is standing, the endpoint is overloaded and requests only wait up to the
+ * target delay, so excess requests are rejected quickly instead of building latency for everyone.
+ */
+public class Bulkhead {
+	
+	private final String name;
+	
+	private final int priority;
+	
+	private final int maxQueue;
+	
+	private final long targetMillis;
+	
+	private final long intervalMillis;
+	
+	private final Semaphore permits;
+	
+	private final AtomicInteger queued = new AtomicInteger();
+	
+	private final AtomicInteger active = new AtomicInteger();
+	
+	private long intervalStart = System.currentTimeMillis();
+	
+	private long minWaitMillis = Long.MAX_VALUE;
+	
+	private volatile boolean overloaded = false;
+	
+	private volatile long lastWaitAt = System.currentTimeMillis();
+	
+	/**
+	 * @param name
+	 *            Name the metrics are published under
+	 * @param priority
+	 *            Lower values are more important, see LoadSheddingFilter
+	 * @param maxConcurrent
+	 *            Requests processed at the same time
+	 * @param maxQueue
+	 *            Requests waiting for a permit
+	 * @param targetMillis
+	 *            Acceptable standing queue delay
+	 * @param intervalMillis
+	 *            Window over which the minimum queue delay is observed, also the longest a request waits while the endpoint is not overloaded
+	 */
+	public Bulkhead( String name, int priority, int maxConcurrent, int maxQueue, long targetMillis, long intervalMillis ) {
+		this.name = name;
+		this.priority = priority;
+		this.maxQueue = maxQueue;
+		this.targetMillis = targetMillis;
+		this.intervalMillis = Math.max( targetMillis, intervalMillis );
+		this.permits = new Semaphore( Math.max( 1, maxConcurrent ), true );
+		
+		String prefix = "bulkhead." + name + ".";
+		Metrics.registerGauge( prefix + "active", new Metrics.Gauge() {
+			public long getValue() {
+				return Bulkhead.this.active.get();
+			}
+		} );
+		Metrics.registerGauge( prefix + "queued", new Metrics.Gauge() {
+			public long getValue() {
+				return Bulkhead.this.queued.get();
+			}
+		} );
+		Metrics.registerGauge( prefix + "overloaded", new Metrics.Gauge() {
+			public long getValue() {
+				return Bulkhead.this.isOverloaded() ? 1 : 0;
+			}
+		} );
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public int getPriority() {
+		return this.priority;
+	}
+	
+	/**
+	 * @return true if the queue of this endpoint is standing. An endpoint that has seen no requests for two intervals is not overloaded.
+	 */
+	public boolean isOverloaded() {
+		return this.overloaded && System.currentTimeMillis() - this.lastWaitAt < 2 * this.intervalMillis;
+	}
+	
+	/**
+	 * Waits for a permit. Every successful call must be followed by release.
+	 * 
+	 * @return true if a permit was acquired, false if the request should be rejected
+	 */
+	public boolean acquire() throws InterruptedException {
+		// Unlike tryAcquire() a timed try never barges ahead of queued requests
+		if ( this.permits.tryAcquire( 0, TimeUnit.MILLISECONDS ) ) {
+			// Only a request that found nobody waiting tells that the queue drained
+			if ( this.queued.get() == 0 ) {
+				this.recordWait( 0 );
+			}
+			this.active.incrementAndGet();
+			return true;
+		}
+		
+		if ( this.queued.incrementAndGet() > this.maxQueue ) {
+			this.queued.decrementAndGet();
+			return false;
+		}
+		
+		long start = System.currentTimeMillis();
+		boolean acquired;
+		try {
+			acquired = this.permits.tryAcquire( this.overloaded ? this.targetMillis : this.intervalMillis, TimeUnit.MILLISECONDS );
+		}
+		finally {
+			this.queued.decrementAndGet();
+		}
+		
+		this.recordWait( System.currentTimeMillis() - start );
+		if ( acquired ) {
+			this.active.incrementAndGet();
+		}
+		return acquired;
+	}
+	
+	public void release() {
+		this.active.decrementAndGet();
+		this.permits.release();
+	}
+	
+	private synchronized void recordWait( long waitMillis ) {
+		long now = System.currentTimeMillis();
+		this.lastWaitAt = now;
+		this.minWaitMillis = Math.min( this.minWaitMillis, waitMillis );
+		if ( now - this.intervalStart >= this.intervalMillis ) {
+			this.overloaded = this.minWaitMillis > this.targetMillis;
+			this.minWaitMillis = Long.MAX_VALUE;
+			this.intervalStart = now;
+		}
+	}
+	
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+/**
+ * Stops calls to a dependency that keeps failing. After a number of consecutive failures the breaker opens and calls are rejected without being
+ * attempted. Once the open period has passed a single trial call is let through, its outcome closes the breaker or opens it again.
+ */
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final int failureThreshold;
+	
+	private final long openMillis;
+	
+	private State state = State.CLOSED;
+	
+	private int consecutiveFailures;
+	
+	private long openedAt;
+	
+	private boolean trialInFlight;
+	
+	/**
+	 * @param failureThreshold
+	 *            Consecutive failures that open the breaker
+	 * @param openMillis
+	 *            How long the breaker stays open before a trial call is allowed
+	 */
+	public CircuitBreaker( int failureThreshold, long openMillis ) {
+		this.failureThreshold = Math.max( 1, failureThreshold );
+		this.openMillis = openMillis;
+	}
+	
+	/**
+	 * @return true if a call may be attempted now. Every permitted call must report its outcome through recordSuccess, recordFailure or
+	 *         recordAbandoned.
+	 */
+	public synchronized boolean allowRequest() {
+		switch ( this.state ) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if ( System.currentTimeMillis() - this.openedAt < this.openMillis ) {
+					return false;
+				}
+				this.state = State.HALF_OPEN;
+				this.trialInFlight = true;
+				return true;
+			default:
+				if ( this.trialInFlight ) {
+					return false;
+				}
+				this.trialInFlight = true;
+				return true;
+		}
+	}
+	
+	public synchronized void recordSuccess() {
+		this.consecutiveFailures = 0;
+		this.trialInFlight = false;
+		this.state = State.CLOSED;
+	}
+	
+	public synchronized void recordFailure() {
+		this.trialInFlight = false;
+		if ( this.state == State.HALF_OPEN || ++this.consecutiveFailures >= this.failureThreshold ) {
+			this.state = State.OPEN;
+			this.openedAt = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Reports a permitted call that ended without telling anything about the dependency, e.g. because another dependency it used was unavailable.
+	 * The state is kept, only a half open breaker lets the next trial call through.
+	 */
+	public synchronized void recordAbandoned() {
+		this.trialInFlight = false;
+	}
+	
+	public synchronized State getState() {
+		return this.state;
+	}
+	
+	/**
+	 * @return seconds until a trial call will be allowed, 0 if the breaker is not open
+	 */
+	public synchronized int getRetryAfterSeconds() {
+		if ( this.state != State.OPEN ) {
+			return 0;
+		}
+		long remaining = this.openMillis - ( System.currentTimeMillis() - this.openedAt );
+		return (int) Math.max( 1, ( remaining + 999 ) / 1000 );
+	}
+	
+}
@@ -15,6 +15,9 @@
 
 package com.amazonaws.tvm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -40,7 +43,7 @@ public class Configuration {
 	public static final String AWS_SECRET_KEY = System.getProperty( "AWS_SECRET_KEY" );
 	
 	/**
-	 * The AWS Account Id for the AWS account from which to generate sessions.
+	 * The AWS Account Id for the AWS account from which to generate sessions. Looked up with the access key unless set explicitly.
 	 */
 	public static final String AWS_ACCOUNT_ID = getAWSAccountID();
 	
@@ -49,20 +52,39 @@ public class Configuration {
 	 */
 	public static final String APP_NAME = getAppName();
 	
+	/**
+	 * The apps served by this Token Vending Machine, comma separated. Requests that name no app are served for the first one. Each app can be
+	 * configured with the properties &lt;app&gt;.HOSTNAMES, &lt;app&gt;.USERS_DOMAIN, &lt;app&gt;.DEVICE_DOMAIN, &lt;app&gt;.SESSION_DURATION and
+	 * &lt;app&gt;.POLICY_FILE (a class path resource). When several apps are served, every policy file must deny sdb:* on __TVM_DOMAINS__,
+	 * which lists the user and device domains of all apps, or no credentials are handed out for that app. Default is APP_NAME.
+	 */
+	public static final List<String> APPS = getListProperty( "APPS", APP_NAME );
+	
 	/**
 	 * The duration for which the session is valid. Default is 24 hours = 86400 secs
 	 */
 	public static final String SESSION_DURATION = "86400";
 	
 	/**
-	 * The SimpleDB endpoint to connect to.
+	 * The SimpleDB region the user domain is stored. Default is us-east-1.
+	 */
+	public static final String SIMPLEDB_REGION = getProperty( "SIMPLEDB_REGION", "us-east-1" );
+	
+	/**
+	 * The SimpleDB endpoints to connect to, comma separated. They must all serve SIMPLEDB_REGION. Default is the regional endpoint.
+	 */
+	public static final List<String> SIMPLEDB_ENDPOINTS = getListProperty( "SIMPLEDB_ENDPOINTS", getDefaultSimpleDBEndpoint() );
+	
+	/**
+	 * The SimpleDB endpoint to connect to, the first of SIMPLEDB_ENDPOINTS.
 	 */
-	public static final String SIMPLEDB_ENDPOINT = "sdb.amazonaws.com";
+	public static final String SIMPLEDB_ENDPOINT = SIMPLEDB_ENDPOINTS.get( 0 );
 	
 	/**
-	 * The SimpleDB region the user domain is stored.
+	 * The STS endpoints to request federation tokens from, comma separated. Credentials issued by any STS endpoint are valid everywhere, so
+	 * the fastest healthy one is used. Default is the regional endpoint of SIMPLEDB_REGION followed by the global endpoint.
 	 */
-	public static final String SIMPLEDB_REGION = "us-east-1";
+	public static final List<String> STS_ENDPOINTS = getListProperty( "STS_ENDPOINTS", getDefaultSTSEndpoints() );
 	
 	/**
 	 * The name of the SimpleDB Domain used to store user info if using the custome authentication mechanisms.
@@ -74,6 +96,408 @@ public class Configuration {
 	 */
 	public static final String DEVICE_DOMAIN = getDeviceDomain();
 	
+	/**
+	 * The number of SimpleDB Domains the user info is spread over. Default is 1, which keeps everything in USERS_DOMAIN.
+	 */
+	public static final int USERS_DOMAIN_PARTITIONS = getIntProperty( "USERS_DOMAIN_PARTITIONS", 1 );
+	
+	/**
+	 * The number of SimpleDB Domains the device info is spread over. Default is 1, which keeps everything in DEVICE_DOMAIN.
+	 */
+	public static final int DEVICE_DOMAIN_PARTITIONS = getIntProperty( "DEVICE_DOMAIN_PARTITIONS", 1 );
+	
+	/**
+	 * While the ReshardDomain tool migrates the user domains, the partition count being migrated from. Default is 0, no migration in progress.
+	 */
+	public static final int USERS_DOMAIN_PREVIOUS_PARTITIONS = getIntProperty( "USERS_DOMAIN_PREVIOUS_PARTITIONS", 0 );
+	
+	/**
+	 * While the ReshardDomain tool migrates the device domains, the partition count being migrated from. Default is 0, no migration in progress.
+	 */
+	public static final int DEVICE_DOMAIN_PREVIOUS_PARTITIONS = getIntProperty( "DEVICE_DOMAIN_PREVIOUS_PARTITIONS", 0 );
+	
+	/**
+	 * The number of seconds a user or device record may be served from memory before it is read from SimpleDB again. Writes only invalidate the
+	 * cache of the instance that made them, so this is also how long another instance may keep using e.g. a device key replaced by a login
+	 * there. Default is 60 secs, capped at 300 secs so that changes made outside this instance (e.g. by the admin tools) are picked up quickly.
+	 */
+	public static final long RECORD_CACHE_TTL_SECONDS = Math.min( getLongProperty( "RECORD_CACHE_TTL_SECONDS", 60L ), 300L );
+	
+	/**
+	 * The maximum number of user and device records kept in memory, per record type. Zero disables the cache.
+	 */
+	public static final int RECORD_CACHE_MAX_ENTRIES = getIntProperty( "RECORD_CACHE_MAX_ENTRIES", 10000 );
+	
+	/**
+	 * How long, in milliseconds, a request waits for an identical SimpleDB or STS call already in flight for another request. Default is 10 secs.
+	 */
+	public static final long SINGLE_FLIGHT_TIMEOUT_MILLIS = getLongProperty( "SINGLE_FLIGHT_TIMEOUT_MILLIS", 10000L );
+	
+	/**
+	 * The number of attempts made for a SimpleDB or STS call that fails because the service is unavailable or throttling. Default is 3.
+	 */
+	public static final int RETRY_MAX_ATTEMPTS = getIntProperty( "RETRY_MAX_ATTEMPTS", 3 );
+	
+	/**
+	 * The smallest delay, in milliseconds, before retrying a failed call. Default is 50 ms.
+	 */
+	public static final long RETRY_BASE_DELAY_MILLIS = getLongProperty( "RETRY_BASE_DELAY_MILLIS", 50L );
+	
+	/**
+	 * The largest delay, in milliseconds, before retrying a failed call. Default is 1000 ms.
+	 */
+	public static final long RETRY_MAX_DELAY_MILLIS = getLongProperty( "RETRY_MAX_DELAY_MILLIS", 1000L );
+	
+	/**
+	 * The number of retries per dependency that can be made in a burst. The budget refills by one retry for every ten calls. Default is 10.
+	 */
+	public static final int RETRY_BUDGET = getIntProperty( "RETRY_BUDGET", 10 );
+	
+	/**
+	 * The number of consecutive failed calls after which calls to SimpleDB or STS are rejected without being attempted. Default is 5.
+	 */
+	public static final int BREAKER_FAILURE_THRESHOLD = getIntProperty( "BREAKER_FAILURE_THRESHOLD", 5 );
+	
+	/**
+	 * How long, in milliseconds, calls are rejected before a trial call is let through again. Default is 30 secs.
+	 */
+	public static final long BREAKER_OPEN_MILLIS = getLongProperty( "BREAKER_OPEN_MILLIS", 30000L );
+	
+	/**
+	 * Whether a slow SimpleDB GetAttributes is hedged with a second identical request, the first response being used. Default is false.
+	 */
+	public static final boolean HEDGED_READS = Boolean.parseBoolean( getProperty( "HEDGED_READS", "false" ) );
+	
+	/**
+	 * The percentile of recent GetAttributes latencies after which the read is hedged. Default is 95.
+	 */
+	public static final int HEDGE_PERCENTILE = getIntProperty( "HEDGE_PERCENTILE", 95 );
+	
+	/**
+	 * The smallest delay, in milliseconds, before a read is hedged. Default is 5 ms.
+	 */
+	public static final long HEDGE_MIN_DELAY_MILLIS = getLongProperty( "HEDGE_MIN_DELAY_MILLIS", 5L );
+	
+	/**
+	 * The largest delay, in milliseconds, before a read is hedged. Also used until enough latencies have been observed. Default is 500 ms.
+	 */
+	public static final long HEDGE_MAX_DELAY_MILLIS = getLongProperty( "HEDGE_MAX_DELAY_MILLIS", 500L );
+	
+	/**
+	 * The number of hedged reads allowed per hundred reads. Default is 5.
+	 */
+	public static final int HEDGE_BUDGET_PERCENT = getIntProperty( "HEDGE_BUDGET_PERCENT", 5 );
+	
+	/**
+	 * The number of hedged reads that may be in flight at once, further hedges are skipped. Default is 16.
+	 */
+	public static final int HEDGE_MAX_IN_FLIGHT = getIntProperty( "HEDGE_MAX_IN_FLIGHT", 16 );
+	
+	/**
+	 * Read consistency per kind of SimpleDB read, as comma separated operation=policy pairs overriding the defaults of ReadConsistency, e.g.
+	 * "user.read=consistent,device.read=eventual". The policy is consistent, eventual or fallback. Default is empty, the defaults apply.
+	 */
+	public static final String READ_CONSISTENCY = getProperty( "READ_CONSISTENCY", "" );
+	
+	/**
+	 * The number of milliseconds the outcome of a consistent user or device read stands. Within it a record is not read consistently again
+	 * because a signature didnot match or an eventually consistent read missed it, so bad signatures or unknown UIDs sent over and over cost
+	 * no extra reads. Default is 1000 ms.
+	 */
+	public static final long READ_CONFIRM_MILLIS = getLongProperty( "READ_CONFIRM_MILLIS", 1000L );
+	
+	/**
+	 * Path of the local write-ahead journal for user and device writes. When set, a write is acknowledged once it is durable in the journal and
+	 * applied to SimpleDB in the background. The file must be on local disk and used by a single instance. Default is empty, writes go straight
+	 * to SimpleDB.
+	 */
+	public static final String WRITE_JOURNAL_FILE = getProperty( "WRITE_JOURNAL_FILE", "" );
+	
+	/**
+	 * The size of the write-ahead journal in bytes. Writes fail with 503 while it is full of writes not yet applied. Default is 64 MB.
+	 */
+	public static final int WRITE_JOURNAL_BYTES = getIntProperty( "WRITE_JOURNAL_BYTES", 64 * 1024 * 1024 );
+	
+	/**
+	 * The maximum number of journaled writes applied to SimpleDB in one batch call. SimpleDB accepts at most 25. Default is 25.
+	 */
+	public static final int WRITE_JOURNAL_BATCH_SIZE = Math.min( getIntProperty( "WRITE_JOURNAL_BATCH_SIZE", 25 ), 25 );
+	
+	/**
+	 * Whether the request handling code is exercised with synthetic data when the servlets are initialized. Default is true.
+	 */
+	public static final boolean WARMUP_ENABLED = Boolean.parseBoolean( getProperty( "WARMUP_ENABLED", "true" ) );
+	
+	/**
+	 * The longest time, in milliseconds, the warm-up may take. Default is 15 secs.
+	 */
+	public static final long WARMUP_MAX_MILLIS = getLongProperty( "WARMUP_MAX_MILLIS", 15000L );
+	
+	/**
+	 * The maximum number of open HTTP connections per SimpleDB or STS client. Raise it along with the request concurrency. Default is 50.
+	 */
+	public static final int SDK_MAX_CONNECTIONS = getIntProperty( "SDK_MAX_CONNECTIONS", 50 );
+	
+	/**
+	 * The port the standalone server listens on. Default is 8080.
+	 */
+	public static final int STANDALONE_PORT = getIntProperty( "STANDALONE_PORT", 8080 );
+	
+	/**
+	 * The number of request threads of the standalone server when virtual threads are not available. Default is 200.
+	 */
+	public static final int STANDALONE_THREADS = getIntProperty( "STANDALONE_THREADS", 200 );
+	
+	/**
+	 * Whether the standalone server offers /refreshstream, where a device keeps a server-sent events stream open and is pushed new credentials
+	 * before its current ones expire. Default is false.
+	 */
+	public static final boolean STREAM_ENABLED = Boolean.parseBoolean( getProperty( "STREAM_ENABLED", "false" ) );
+	
+	/**
+	 * The maximum number of open credential streams, further devices are answered with 503 and keep polling /gettoken. Default is 10000.
+	 */
+	public static final int STREAM_MAX_CONNECTIONS = getIntProperty( "STREAM_MAX_CONNECTIONS", 10000 );
+	
+	/**
+	 * How long, in seconds, before the pushed credentials expire the next ones are pushed at the latest. Default is 600 seconds.
+	 */
+	public static final int STREAM_REFRESH_LEAD_SECONDS = getIntProperty( "STREAM_REFRESH_LEAD_SECONDS", 600 );
+	
+	/**
+	 * The window, in seconds, before that deadline over which refreshes are spread at random, so devices that connected together are not
+	 * refreshed together. Default is 3600 seconds.
+	 */
+	public static final int STREAM_REFRESH_JITTER_SECONDS = getIntProperty( "STREAM_REFRESH_JITTER_SECONDS", 3600 );
+	
+	/**
+	 * The interval, in seconds, of the keep-alive comments sent on idle streams, which also detect closed connections. Default is 60 seconds.
+	 */
+	public static final int STREAM_HEARTBEAT_SECONDS = getIntProperty( "STREAM_HEARTBEAT_SECONDS", 60 );
+	
+	/**
+	 * The delay, in seconds, before a failed refresh is retried. A stream is closed after three failed refreshes in a row. Default is 30 seconds.
+	 */
+	public static final int STREAM_RETRY_SECONDS = getIntProperty( "STREAM_RETRY_SECONDS", 30 );
+	
+	/**
+	 * The port of the binary protocol listener of the standalone server, for gateways refreshing credentials of many devices over a few
+	 * persistent connections. The listener is plain TCP, so it refuses device registration, whose key is only served over HTTPS. Default is
+	 * 0, no binary listener.
+	 */
+	public static final int BINARY_PORT = getIntProperty( "BINARY_PORT", 0 );
+	
+	/**
+	 * The maximum number of open binary protocol connections, further connections are closed right away. Default is 1000.
+	 */
+	public static final int BINARY_MAX_CONNECTIONS = getIntProperty( "BINARY_MAX_CONNECTIONS", 1000 );
+	
+	/**
+	 * The maximum number of pipelined requests of one binary protocol connection being processed at a time. Reading from the connection pauses
+	 * while it has that many. Default is 64.
+	 */
+	public static final int BINARY_MAX_IN_FLIGHT = getIntProperty( "BINARY_MAX_IN_FLIGHT", 64 );
+	
+	/**
+	 * The largest binary protocol request frame accepted, in bytes. A connection sending a larger one is closed. Default is 8192.
+	 */
+	public static final int BINARY_MAX_FRAME_BYTES = getIntProperty( "BINARY_MAX_FRAME_BYTES", 8192 );
+	
+	/**
+	 * Whether requests are traced. Default is true.
+	 */
+	public static final boolean TRACING_ENABLED = Boolean.parseBoolean( getProperty( "TRACING_ENABLED", "true" ) );
+	
+	/**
+	 * The share of requests whose traces are exported, between 0 and 1. Requests sampled by the caller, failed and slow requests are always
+	 * exported. Default is 0.01.
+	 */
+	public static final double TRACE_SAMPLE_RATE = getDoubleProperty( "TRACE_SAMPLE_RATE", 0.01 );
+	
+	/**
+	 * The duration, in milliseconds, from which a request is considered slow and its trace always exported. Default is 1000 ms.
+	 */
+	public static final long TRACE_SLOW_MILLIS = getLongProperty( "TRACE_SLOW_MILLIS", 1000L );
+	
+	/**
+	 * The file traces are written to. Default is traces.jsonl in the working directory.
+	 */
+	public static final String TRACE_FILE = getProperty( "TRACE_FILE", "traces.jsonl" );
+	
+	/**
+	 * The size, in bytes, after which the trace file is rotated. Default is 10 MB.
+	 */
+	public static final long TRACE_FILE_MAX_BYTES = getLongProperty( "TRACE_FILE_MAX_BYTES", 10L * 1024 * 1024 );
+	
+	/**
+	 * The number of rotated trace files kept. Default is 5.
+	 */
+	public static final int TRACE_FILE_COUNT = getIntProperty( "TRACE_FILE_COUNT", 5 );
+	
+	/**
+	 * Whether Token Vending Machine events are emitted to JDK Flight Recorder, on runtimes that have it. Events only cost anything while a
+	 * recording that enables them is running. Default is true.
+	 */
+	public static final boolean JFR_EVENTS = Boolean.parseBoolean( getProperty( "JFR_EVENTS", "true" ) );
+	
+	/**
+	 * The number of random values kept ready for new user ids, device keys and encryption IVs. Default is 4096.
+	 */
+	public static final int RANDOM_POOL_SIZE = getIntProperty( "RANDOM_POOL_SIZE", 4096 );
+	
+	/**
+	 * The file the shapes and timings of requests are recorded to, for replay by com.amazonaws.tvm.local.TrafficReplay. Parameter values are
+	 * not recorded. Default is empty, nothing is recorded.
+	 */
+	public static final String CAPTURE_FILE = getProperty( "CAPTURE_FILE", "" );
+	
+	/**
+	 * Whether SimpleDB and STS are replaced by the in-memory stand-ins of com.amazonaws.tvm.local, for performance tests. Default is false.
+	 */
+	public static final boolean LOCAL_STANDINS = Boolean.parseBoolean( getProperty( "LOCAL_STANDINS", "false" ) );
+	
+	/**
+	 * The time, in milliseconds, every call to a local stand-in takes. Default is 0.
+	 */
+	public static final long LOCAL_LATENCY_MILLIS = getLongProperty( "LOCAL_LATENCY_MILLIS", 0L );
+	
+	/**
+	 * The memory, in bytes, outside the Java heap used to cache device records instead of the heap cache of RECORD_CACHE_MAX_ENTRIES records.
+	 * Each device takes 256 bytes. Default is 0, device records are cached on the heap.
+	 */
+	public static final long DEVICE_CACHE_OFF_HEAP_BYTES = getLongProperty( "DEVICE_CACHE_OFF_HEAP_BYTES", 0L );
+	
+	/**
+	 * The number of seconds federation credentials obtained for a user are handed out again to further token requests of that user, instead of
+	 * calling STS. Capped at half of SESSION_DURATION so that reused credentials stay valid for at least as long. Default is 0, every token
+	 * request gets new credentials.
+	 */
+	public static final long CREDENTIALS_CACHE_SECONDS = Math.min( getLongProperty( "CREDENTIALS_CACHE_SECONDS", 0L ),
+			Long.parseLong( SESSION_DURATION ) / 2 );
+	
+	/**
+	 * The memory, in bytes, outside the Java heap used to cache federation credentials when CREDENTIALS_CACHE_SECONDS is set. Each user takes
+	 * 4 KB. Default is 64 MB.
+	 */
+	public static final long CREDENTIALS_CACHE_OFF_HEAP_BYTES = getLongProperty( "CREDENTIALS_CACHE_OFF_HEAP_BYTES", 64L * 1024 * 1024 );
+	
+	/**
+	 * The remaining lifetime, in seconds, above which a token request carrying the accessKey of credentials already issued to the same device
+	 * is answered with 304 Not Modified instead of new credentials. Default is 0, every token request gets new credentials.
+	 */
+	public static final long CONDITIONAL_REFRESH_SECONDS = getLongProperty( "CONDITIONAL_REFRESH_SECONDS", 0L );
+	
+	/**
+	 * The memory, in bytes, outside the Java heap used to remember the credentials issued to each device when CONDITIONAL_REFRESH_SECONDS is
+	 * set. Each device takes 256 bytes. Default is 16 MB.
+	 */
+	public static final long ISSUED_CREDENTIALS_OFF_HEAP_BYTES = getLongProperty( "ISSUED_CREDENTIALS_OFF_HEAP_BYTES", 16L * 1024 * 1024 );
+	
+	/**
+	 * Whether the Token Vending Machine runs in Anonymous mode, where any device can register at /registerdevice and get tokens without a user
+	 * account. Default is false, Identity mode.
+	 */
+	public static final boolean ANONYMOUS_MODE = Boolean.parseBoolean( getProperty( "ANONYMOUS_MODE", "false" ) );
+	
+	/**
+	 * Comma separated master secrets the device keys of Anonymous mode are derived from. New keys are derived from the first one. To rotate,
+	 * put a new secret first and remove the old one after ANONYMOUS_KEY_EPOCHS epochs. Required in Anonymous mode.
+	 */
+	public static final String ANONYMOUS_MASTER_KEYS = getProperty( "ANONYMOUS_MASTER_KEYS", "" );
+	
+	/**
+	 * The length, in seconds, of an epoch of Anonymous mode device keys. Default is 604800, one week.
+	 */
+	public static final long ANONYMOUS_KEY_EPOCH_SECONDS = getLongProperty( "ANONYMOUS_KEY_EPOCH_SECONDS", 7L * 24 * 60 * 60 );
+	
+	/**
+	 * The number of epochs an Anonymous mode device key is accepted for, including the one it was handed out in. Devices register again once
+	 * their key is rejected. Default is 2.
+	 */
+	public static final int ANONYMOUS_KEY_EPOCHS = getIntProperty( "ANONYMOUS_KEY_EPOCHS", 2 );
+	
+	/**
+	 * Whether /registerdevice hands out keys to requests that did not arrive over HTTPS, for local testing only. Anyone on the path can read a
+	 * key sent over plain HTTP and decrypt the tokens of that device. Default is false.
+	 */
+	public static final boolean ANONYMOUS_REGISTER_OVER_HTTP = Boolean.parseBoolean( getProperty( "ANONYMOUS_REGISTER_OVER_HTTP", "false" ) );
+	
+	/**
+	 * The federated user all devices get tokens for in Anonymous mode. Default is anonymous.
+	 */
+	public static final String ANONYMOUS_USERNAME = getProperty( "ANONYMOUS_USERNAME", "anonymous" );
+	
+	/**
+	 * Comma separated server secrets that session tickets are encrypted and authenticated with. Login hands out tickets under the first one,
+	 * and tickets under any listed secret are accepted. Default is empty, no tickets are handed out.
+	 */
+	public static final String TICKET_KEYS = getProperty( "TICKET_KEYS", "" );
+	
+	/**
+	 * The number of seconds a session ticket is accepted for after login. A ticket carries the device key it was issued with and is only
+	 * accepted while that is still the key of the device record. Once the device logs in again, the old ticket is rejected by every instance
+	 * within RECORD_CACHE_TTL_SECONDS, when its cached record has been read again. List the user in TICKET_REVOCATION_FILE to stop tickets
+	 * right away. Default is 86400, one day.
+	 */
+	public static final long TICKET_LIFETIME_SECONDS = getLongProperty( "TICKET_LIFETIME_SECONDS", 24L * 60 * 60 );
+	
+	/**
+	 * A file listing one username per line whose session tickets are rejected, e.g. deleted users. Changes are picked up within 10 seconds.
+	 * Default is empty, no tickets are revoked.
+	 */
+	public static final String TICKET_REVOCATION_FILE = getProperty( "TICKET_REVOCATION_FILE", "" );
+	
+	/**
+	 * The address, as host:port, other nodes and the load balancer reach this node at. It must appear in the ring members exactly as written
+	 * there. Default is empty, no routing hints are given.
+	 */
+	public static final String RING_SELF = getProperty( "RING_SELF", "" );
+	
+	/**
+	 * The nodes of the deployment as comma separated host:port, used when neither RING_NODES_FILE nor RING_MEMBERSHIP is set. Default is
+	 * RING_SELF alone.
+	 */
+	public static final String RING_NODES = getProperty( "RING_NODES", RING_SELF );
+	
+	/**
+	 * A file listing the nodes of the deployment, one host:port per line, e.g. kept up to date by an auto scaling hook. Default is empty.
+	 */
+	public static final String RING_NODES_FILE = getProperty( "RING_NODES_FILE", "" );
+	
+	/**
+	 * The class, implementing com.amazonaws.tvm.HashRing.Membership, the nodes of the deployment are read from instead of RING_NODES or
+	 * RING_NODES_FILE. Default is empty.
+	 */
+	public static final String RING_MEMBERSHIP = getProperty( "RING_MEMBERSHIP", "" );
+	
+	/**
+	 * The number of seconds between reads of the ring members. Default is 30.
+	 */
+	public static final long RING_REFRESH_SECONDS = getLongProperty( "RING_REFRESH_SECONDS", 30L );
+	
+	/**
+	 * The number of points each node is placed at on the ring. More points spread the keys more evenly. Default is 160.
+	 */
+	public static final int RING_VIRTUAL_NODES = getIntProperty( "RING_VIRTUAL_NODES", 160 );
+	
+	/**
+	 * Whether requests that reach a node other than their owner are forwarded to the owner. Default is false, they are served where they
+	 * arrive.
+	 */
+	public static final boolean RING_FORWARD = Boolean.parseBoolean( getProperty( "RING_FORWARD", "false" ) );
+	
+	/**
+	 * The connect and read timeout, in milliseconds, of a forwarded request. Default is 1000.
+	 */
+	public static final int RING_FORWARD_TIMEOUT_MILLIS = getIntProperty( "RING_FORWARD_TIMEOUT_MILLIS", 1000 );
+	
+	/**
+	 * @return the value of the property &lt;app&gt;.&lt;name&gt;, defaultValue if it is not set
+	 */
+	public static String getAppProperty( String app, String name, String defaultValue ) {
+		return getProperty( app + "." + name, defaultValue );
+	}
+	
 	private static String getAppName() {
 		String param1 = System.getProperty( "PARAM1" );
 		return ( Utilities.isEmpty( param1 ) ) ? "MyMobileAppName".toLowerCase() : param1.toLowerCase();
@@ -87,7 +511,78 @@ public class Configuration {
 		return "TokenVendingMachine_" + APP_NAME + "_DEVICES";
 	}
 	
+	private static String getDefaultSimpleDBEndpoint() {
+		return ( "us-east-1".equals( SIMPLEDB_REGION ) ) ? "sdb.amazonaws.com" : "sdb." + SIMPLEDB_REGION + ".amazonaws.com";
+	}
+	
+	private static String getDefaultSTSEndpoints() {
+		return ( "us-east-1".equals( SIMPLEDB_REGION ) ) ? "sts.amazonaws.com" : "sts." + SIMPLEDB_REGION + ".amazonaws.com,sts.amazonaws.com";
+	}
+	
+	private static String getProperty( String name, String defaultValue ) {
+		String value = System.getProperty( name );
+		return ( Utilities.isEmpty( value ) ) ? defaultValue : value.trim();
+	}
+	
+	private static List<String> getListProperty( String name, String defaultValue ) {
+		List<String> values = splitList( getProperty( name, defaultValue ) );
+		if ( values.isEmpty() ) {
+			log.warning( "No values given for " + name + ". Using default " + defaultValue );
+			values = splitList( defaultValue );
+		}
+		return Collections.unmodifiableList( values );
+	}
+	
+	private static List<String> splitList( String list ) {
+		List<String> values = new ArrayList<String>();
+		for ( String value : list.split( "," ) ) {
+			if ( !Utilities.isEmpty( value.trim() ) ) {
+				values.add( value.trim() );
+			}
+		}
+		return values;
+	}
+	
+	private static int getIntProperty( String name, int defaultValue ) {
+		return (int) getLongProperty( name, defaultValue );
+	}
+	
+	private static double getDoubleProperty( String name, double defaultValue ) {
+		String value = System.getProperty( name );
+		if ( Utilities.isEmpty( value ) ) {
+			return defaultValue;
+		}
+		
+		try {
+			return Double.parseDouble( value.trim() );
+		}
+		catch ( NumberFormatException exception ) {
+			log.warning( "Invalid value for " + name + " : " + value + ". Using default " + defaultValue );
+			return defaultValue;
+		}
+	}
+	
+	private static long getLongProperty( String name, long defaultValue ) {
+		String value = System.getProperty( name );
+		if ( Utilities.isEmpty( value ) ) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong( value.trim() );
+		}
+		catch ( NumberFormatException exception ) {
+			log.warning( "Invalid value for " + name + " : " + value + ". Using default " + defaultValue );
+			return defaultValue;
+		}
+	}
+	
 	private static String getAWSAccountID() {
+		String configured = System.getProperty( "AWS_ACCOUNT_ID" );
+		if ( !Utilities.isEmpty( configured ) ) {
+			return configured.trim();
+		}
+		
 		try {
 			String accessKey = AWS_ACCESS_KEY_ID;
 			String secretKey = AWS_SECRET_KEY;
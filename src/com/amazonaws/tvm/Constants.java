@@ -42,6 +42,7 @@ public class Constants {
 		messages.put( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Server Error" );
 		messages.put( HttpServletResponse.SC_OK, "Success" );
 		messages.put( HttpServletResponse.SC_REQUEST_TIMEOUT, "Timestamp not valid" );
+		messages.put( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable" );
 	}
 	
 	public static String getMsg( int errorCode ) {
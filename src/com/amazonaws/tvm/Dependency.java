@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Guards the calls made to one backend service. Calls are rejected right away while the circuit breaker is open, failures caused by the service
+ * being unavailable or throttling are retried with jittered backoff within the retry budget, and a call that cannot be completed is reported as
+ * a ServiceUnavailableException. Errors caused by the request itself are passed on unchanged and are not retried. Any other failure counts
+ * against the breaker without being retried, except a ServiceUnavailableException of another dependency, which is passed on and leaves the
+ * breaker as it is.
+ * 
+ * Metrics are published under "dependency.&lt;name&gt;.", breaker_state being the ordinal of CircuitBreaker.State (0 closed, 1 open, 2 half open).
+ */
+public class Dependency {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private final String name;
+	
+	private final String prefix;
+	
+	private final CircuitBreaker breaker;
+	
+	private final RetryPolicy retryPolicy;
+	
+	/**
+	 * Creates a dependency using the retry and circuit breaker settings from the Configuration.
+	 */
+	public Dependency( String name ) {
+		this( name, new CircuitBreaker( Configuration.BREAKER_FAILURE_THRESHOLD, Configuration.BREAKER_OPEN_MILLIS ), new RetryPolicy(
+				Configuration.RETRY_MAX_ATTEMPTS, Configuration.RETRY_BASE_DELAY_MILLIS, Configuration.RETRY_MAX_DELAY_MILLIS, Configuration.RETRY_BUDGET ) );
+	}
+	
+	public Dependency( String name, CircuitBreaker breaker, RetryPolicy retryPolicy ) {
+		this.name = name;
+		this.prefix = "dependency." + name + ".";
+		this.breaker = breaker;
+		this.retryPolicy = retryPolicy;
+		
+		Metrics.registerGauge( this.prefix + "breaker_state", new Metrics.Gauge() {
+			public long getValue() {
+				return Dependency.this.breaker.getState().ordinal();
+			}
+		} );
+		Metrics.registerGauge( this.prefix + "retry_tokens", new Metrics.Gauge() {
+			public long getValue() {
+				return (long) Dependency.this.retryPolicy.getAvailableTokens();
+			}
+		} );
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public CircuitBreaker getBreaker() {
+		return this.breaker;
+	}
+	
+	/**
+	 * @param call
+	 *            The backend call, each attempt invokes it again
+	 * @return the result of the first successful attempt
+	 * @throws ServiceUnavailableException
+	 *             if the breaker is open or the service stayed unavailable for all permitted attempts
+	 */
+	public <T> T call( Callable<T> call ) {
+		Metrics.increment( this.prefix + "calls" );
+		if ( !this.breaker.allowRequest() ) {
+			Metrics.increment( this.prefix + "rejected" );
+			throw new ServiceUnavailableException( this.name + " circuit is open", null, this.breaker.getRetryAfterSeconds() );
+		}
+		this.retryPolicy.recordCall();
+		
+		long delayMillis = 0;
+		for ( int attempt = 1;; attempt++ ) {
+			RuntimeException failure;
+			try {
+				T result = call.call();
+				this.breaker.recordSuccess();
+				return result;
+			}
+			catch ( ServiceUnavailableException exception ) {
+				// Raised by another dependency the call used, it says nothing about this one
+				this.breaker.recordAbandoned();
+				throw exception;
+			}
+			catch ( Exception exception ) {
+				if ( isUnavailable( exception ) ) {
+					this.breaker.recordFailure();
+					Metrics.increment( this.prefix + "failures" );
+					failure = (RuntimeException) exception;
+				}
+				else if ( isRejected( exception ) ) {
+					// The service answered, the request itself was at fault
+					this.breaker.recordSuccess();
+					throw (AmazonServiceException) exception;
+				}
+				else {
+					// Not an answer of the service, so no evidence that it is healthy
+					this.breaker.recordFailure();
+					Metrics.increment( this.prefix + "failures" );
+					throw ( exception instanceof RuntimeException ) ? (RuntimeException) exception : new RuntimeException( exception );
+				}
+			}
+			catch ( Error error ) {
+				// Counted as a failure so that a half open breaker gets the outcome of its trial call and does not stay shut
+				this.breaker.recordFailure();
+				Metrics.increment( this.prefix + "failures" );
+				throw error;
+			}
+			
+			if ( attempt >= this.retryPolicy.getMaxAttempts() ) {
+				throw this.giveUp( "unavailable after " + attempt + " attempts", failure );
+			}
+			if ( !this.retryPolicy.tryAcquireRetry() ) {
+				Metrics.increment( this.prefix + "retry_budget_exhausted" );
+				throw this.giveUp( "retry budget exhausted", failure );
+			}
+			
+			delayMillis = this.retryPolicy.nextDelay( delayMillis );
+			try {
+				Thread.sleep( delayMillis );
+			}
+			catch ( InterruptedException exception ) {
+				Thread.currentThread().interrupt();
+				throw this.giveUp( "interrupted while backing off", failure );
+			}
+			
+			if ( !this.breaker.allowRequest() ) {
+				Metrics.increment( this.prefix + "rejected" );
+				throw this.giveUp( "circuit opened", failure );
+			}
+			Metrics.increment( this.prefix + "retries" );
+		}
+	}
+	
+	private ServiceUnavailableException giveUp( String reason, RuntimeException failure ) {
+		log.warning( this.name + " " + reason + " : " + failure.getMessage() );
+		return new ServiceUnavailableException( this.name + " " + reason, failure, Math.max( 1, this.breaker.getRetryAfterSeconds() ) );
+	}
+	
+	/**
+	 * @return true if the exception means the service could not handle the request right now, as opposed to rejecting the request itself
+	 */
+	public static boolean isUnavailable( Exception exception ) {
+		if ( exception instanceof AmazonServiceException ) {
+			AmazonServiceException serviceException = (AmazonServiceException) exception;
+			String errorCode = serviceException.getErrorCode();
+			return serviceException.getErrorType() == AmazonServiceException.ErrorType.Service || serviceException.getStatusCode() == 503
+					|| "Throttling".equals( errorCode ) || "ThrottlingException".equals( errorCode ) || "RequestThrottled".equals( errorCode )
+					|| "ServiceUnavailable".equals( errorCode );
+		}
+		// No response at all, e.g. connection refused or timed out
+		return exception instanceof AmazonClientException;
+	}
+	
+	/**
+	 * @return true if the service answered and rejected the request itself, which shows the service is working
+	 */
+	private static boolean isRejected( Exception exception ) {
+		return exception instanceof AmazonServiceException
+				&& ( (AmazonServiceException) exception ).getErrorType() == AmazonServiceException.ErrorType.Client;
+	}
+	
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads the items of a logical SimpleDB domain over a number of physical domains. Item names are routed by a stable hash so every instance and
+ * the admin tools agree on where an item lives. With a single partition the logical domain name is used unchanged.
+ */
+public class DomainPartitioner {
+	
+	private static final ExecutorService SCANS = Executors.newCachedThreadPool( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+			Thread thread = new Thread( runnable, "DomainPartitioner-scan" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+	
+	private final String baseDomain;
+	
+	private final List<String> domains;
+	
+	/**
+	 * @param baseDomain
+	 *            Name of the logical domain
+	 * @param partitions
+	 *            Number of physical domains, values below 1 are treated as 1
+	 */
+	public DomainPartitioner( String baseDomain, int partitions ) {
+		this.baseDomain = baseDomain;
+		
+		List<String> names = new ArrayList<String>();
+		if ( partitions <= 1 ) {
+			names.add( baseDomain );
+		}
+		else {
+			for ( int i = 0; i < partitions; i++ ) {
+				names.add( baseDomain + "_" + i );
+			}
+		}
+		this.domains = Collections.unmodifiableList( names );
+	}
+	
+	public String getBaseDomain() {
+		return this.baseDomain;
+	}
+	
+	/**
+	 * @return all physical domain names of this logical domain
+	 */
+	public List<String> getDomains() {
+		return this.domains;
+	}
+	
+	public int getPartitionCount() {
+		return this.domains.size();
+	}
+	
+	/**
+	 * @param itemName
+	 *            The item name, e.g. username or UID
+	 * @return the physical domain that stores the item
+	 */
+	public String getDomain( String itemName ) {
+		if ( this.domains.size() == 1 ) {
+			return this.domains.get( 0 );
+		}
+		return this.domains.get( partitionOf( itemName, this.domains.size() ) );
+	}
+	
+	/**
+	 * Runs the task against every physical domain in parallel and returns the results in domain order.
+	 * 
+	 * @param task
+	 *            The work to do for a single domain
+	 * @return list of task results, one per domain
+	 * @throws Exception
+	 *             the first failure reported by any of the tasks
+	 */
+	public <T> List<T> forEachDomain( final DomainTask<T> task ) throws Exception {
+		List<T> results = new ArrayList<T>( this.domains.size() );
+		if ( this.domains.size() == 1 ) {
+			results.add( task.run( this.domains.get( 0 ) ) );
+			return results;
+		}
+		
+		final Tracer.Context context = Tracer.currentContext();
+		List<Future<T>> futures = new ArrayList<Future<T>>( this.domains.size() );
+		for ( final String domain : this.domains ) {
+			futures.add( SCANS.submit( new Callable<T>() {
+				public T call() throws Exception {
+					Tracer.Context previous = Tracer.attach( context );
+					try {
+						return task.run( domain );
+					}
+					finally {
+						Tracer.attach( previous );
+					}
+				}
+			} ) );
+		}
+		
+		try {
+			for ( Future<T> future : futures ) {
+				results.add( future.get() );
+			}
+		}
+		catch ( ExecutionException exception ) {
+			for ( Future<T> future : futures ) {
+				future.cancel( true );
+			}
+			
+			Throwable cause = exception.getCause();
+			throw ( cause instanceof Exception ) ? (Exception) cause : exception;
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Stable mapping from item name to partition index, based on the MD5 digest of the UTF-8 item name.
+	 */
+	public static int partitionOf( String itemName, int partitions ) {
+		try {
+			byte[] digest = MessageDigest.getInstance( "MD5" ).digest( itemName.getBytes( Constants.ENCODING_FORMAT ) );
+			int hash = ( ( digest[ 0 ] & 0xff ) << 24 ) | ( ( digest[ 1 ] & 0xff ) << 16 ) | ( ( digest[ 2 ] & 0xff ) << 8 ) | ( digest[ 3 ] & 0xff );
+			return ( hash & 0x7fffffff ) % partitions;
+		}
+		catch ( Exception exception ) {
+			throw new IllegalStateException( "Unable to hash item name", exception );
+		}
+	}
+	
+	/**
+	 * Work done against a single physical domain.
+	 */
+	public interface DomainTask<T> {
+		
+		T run( String domain ) throws Exception;
+	}
+	
+}
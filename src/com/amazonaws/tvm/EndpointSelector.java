@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses between equivalent service endpoints. Every call reports its latency or failure back, and the healthy endpoint with the lowest
+ * smoothed latency is preferred. A small share of calls goes to the other healthy endpoints so their latency estimates stay current. An endpoint
+ * that fails repeatedly is skipped for a cool-down period.
+ */
+public class EndpointSelector {
+	
+	/** Weight of the newest sample in the smoothed latency */
+	private static final double SMOOTHING = 0.2;
+	
+	/** Share of calls sent to an endpoint other than the fastest */
+	private static final double EXPLORATION = 0.05;
+	
+	private static final int FAILURES_BEFORE_UNHEALTHY = 3;
+	
+	private static final long UNHEALTHY_MILLIS = 30 * 1000L;
+	
+	private final List<Endpoint> endpoints;
+	
+	private final Random random = new Random();
+	
+	public EndpointSelector( List<String> names ) {
+		if ( names.isEmpty() ) {
+			throw new IllegalArgumentException( "At least one endpoint is required" );
+		}
+		
+		List<Endpoint> list = new ArrayList<Endpoint>( names.size() );
+		for ( String name : names ) {
+			list.add( new Endpoint( name ) );
+		}
+		this.endpoints = Collections.unmodifiableList( list );
+	}
+	
+	/**
+	 * @return the endpoint the next call should use
+	 */
+	public String select() {
+		if ( this.endpoints.size() == 1 ) {
+			return this.endpoints.get( 0 ).name;
+		}
+		
+		long now = System.currentTimeMillis();
+		List<Endpoint> healthy = new ArrayList<Endpoint>( this.endpoints.size() );
+		Endpoint fastest = null;
+		Endpoint recovering = null;
+		for ( Endpoint endpoint : this.endpoints ) {
+			if ( endpoint.isHealthy( now ) ) {
+				healthy.add( endpoint );
+				if ( null == fastest || endpoint.getLatency() < fastest.getLatency() ) {
+					fastest = endpoint;
+				}
+			}
+			else if ( null == recovering || endpoint.getUnhealthyUntil() < recovering.getUnhealthyUntil() ) {
+				recovering = endpoint;
+			}
+		}
+		
+		if ( null == fastest ) {
+			// Nothing healthy, try the endpoint closest to the end of its cool-down
+			return recovering.name;
+		}
+		
+		if ( healthy.size() > 1 && this.random.nextDouble() < EXPLORATION ) {
+			return healthy.get( this.random.nextInt( healthy.size() ) ).name;
+		}
+		return fastest.name;
+	}
+	
+	public void recordSuccess( String name, long elapsedNanos ) {
+		Endpoint endpoint = this.find( name );
+		if ( null != endpoint ) {
+			endpoint.recordSuccess( elapsedNanos );
+		}
+	}
+	
+	public void recordFailure( String name ) {
+		Endpoint endpoint = this.find( name );
+		if ( null != endpoint ) {
+			endpoint.recordFailure( System.currentTimeMillis() );
+		}
+	}
+	
+	public List<String> getEndpoints() {
+		List<String> names = new ArrayList<String>( this.endpoints.size() );
+		for ( Endpoint endpoint : this.endpoints ) {
+			names.add( endpoint.name );
+		}
+		return names;
+	}
+	
+	/**
+	 * @return the smoothed latency of the endpoint in microseconds, 0 if it has not been measured yet
+	 */
+	public long getLatencyMicros( String name ) {
+		Endpoint endpoint = this.find( name );
+		return ( null == endpoint ) ? 0L : (long) ( endpoint.getLatency() / 1000 );
+	}
+	
+	public boolean isHealthy( String name ) {
+		Endpoint endpoint = this.find( name );
+		return null != endpoint && endpoint.isHealthy( System.currentTimeMillis() );
+	}
+	
+	private Endpoint find( String name ) {
+		for ( Endpoint endpoint : this.endpoints ) {
+			if ( endpoint.name.equals( name ) ) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+	
+	private static class Endpoint {
+		
+		final String name;
+		
+		private double latencyNanos;
+		
+		private int consecutiveFailures;
+		
+		private long unhealthyUntil;
+		
+		Endpoint( String name ) {
+			this.name = name;
+		}
+		
+		synchronized double getLatency() {
+			return this.latencyNanos;
+		}
+		
+		synchronized long getUnhealthyUntil() {
+			return this.unhealthyUntil;
+		}
+		
+		synchronized boolean isHealthy( long now ) {
+			return now >= this.unhealthyUntil;
+		}
+		
+		synchronized void recordSuccess( long elapsedNanos ) {
+			this.latencyNanos = ( this.latencyNanos == 0 ) ? elapsedNanos : ( SMOOTHING * elapsedNanos + ( 1 - SMOOTHING ) * this.latencyNanos );
+			this.consecutiveFailures = 0;
+			this.unhealthyUntil = 0;
+		}
+		
+		synchronized void recordFailure( long now ) {
+			if ( ++this.consecutiveFailures >= FAILURES_BEFORE_UNHEALTHY ) {
+				this.unhealthyUntil = now + UNHEALTHY_MILLIS;
+			}
+		}
+	}
+	
+}
@@ -20,6 +20,7 @@ import static com.amazonaws.tvm.Utilities.encode;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.amazonaws.tvm.anonymous.AnonymousTokenVendingMachine;
 import com.amazonaws.tvm.identity.IdentityTokenVendingMachine;
 
 /**
@@ -32,20 +33,43 @@ public class GetTokenServlet extends RootServlet {
 		log.info( "processing request" );
 		try {
 			
-			IdentityTokenVendingMachine identityTokenVendingMachine = new IdentityTokenVendingMachine(); 
+			TokenVendingMachine tokenVendingMachine = Configuration.ANONYMOUS_MODE ? new AnonymousTokenVendingMachine()
+					: new IdentityTokenVendingMachine();
 			
 			String uid = super.getRequiredParameter( request, "uid" );
 			String signature = super.getRequiredParameter( request, "signature" );
 			String timestamp = super.getRequiredParameter( request, "timestamp" );
+			String ticket = request.getParameter( "ticket" );
 			
-			int responseCode = identityTokenVendingMachine.validateTokenRequest( uid, signature, timestamp );
+			int responseCode;
+			Tracer.Span span = Tracer.startSpan( "validateTokenRequest" );
+			try {
+				if ( tokenVendingMachine instanceof IdentityTokenVendingMachine && !Utilities.isEmpty( ticket ) ) {
+					responseCode = ( (IdentityTokenVendingMachine) tokenVendingMachine ).validateTicketRequest( uid, ticket, signature, timestamp );
+				}
+				else {
+					responseCode = tokenVendingMachine.validateTokenRequest( uid, signature, timestamp );
+				}
+				span.setAttribute( "result", responseCode );
+			}
+			finally {
+				span.end();
+			}
 			if ( responseCode != HttpServletResponse.SC_OK ) {
 				log.severe( "Error validating token request for UID : " + encode( uid ) );
 				super.sendErrorResponse( responseCode, response );
 				return null;
 			}
 			
-			String data = identityTokenVendingMachine.getToken( uid );
+			long expiration = IssuedCredentials.getUnexpiredExpiration( uid, request.getParameter( "accessKey" ) );
+			if ( expiration > 0 ) {
+				log.info( "Credentials of UID : " + encode( uid ) + " still valid, skipping refresh" );
+				Metrics.increment( "gettoken.not_modified" );
+				sendNotModifiedResponse( response, expiration );
+				return null;
+			}
+			
+			String data = tokenVendingMachine.getToken( uid );
 			
 			if ( null == data ) {
 				log.severe( "Error generating session credentials for UID : " + encode( uid ) );
@@ -61,4 +85,14 @@ public class GetTokenServlet extends RootServlet {
 		
 		return null;
 	}
+	
+	/**
+	 * Tells the device to keep its credentials, with their expiration as epoch milliseconds and the seconds left as hints for its next refresh.
+	 */
+	private static void sendNotModifiedResponse( HttpServletResponse response, long expiration ) {
+		response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+		response.setDateHeader( "Expires", System.currentTimeMillis() );
+		response.setHeader( "X-Credentials-Expiration", String.valueOf( expiration ) );
+		response.setHeader( "X-Credentials-Expires-In", String.valueOf( ( expiration - System.currentTimeMillis() ) / 1000L ) );
+	}
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Consistent hash ring of the Token Vending Machine nodes of a deployment. Every node is placed on the ring at a number of virtual points, and a
+ * UID or username belongs to the node of the first point at or after its hash. When a node joins or leaves only the keys next to its points
+ * move, so the caches of the other nodes stay warm. RoutingFilter uses the ring to tell the load balancer which node a request belongs to.
+ * <p>
+ * The members are read from a Membership every RING_REFRESH_SECONDS. The built-in one reads RING_NODES_FILE when set and RING_NODES otherwise;
+ * RING_MEMBERSHIP names a class implementing Membership to use instead.
+ */
+public class HashRing {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static HashRing instance;
+	
+	private static boolean initialized;
+	
+	private final int virtualNodes;
+	
+	private volatile Points points = new Points( new long[ 0 ], new String[ 0 ], Collections.<String> emptyList() );
+	
+	/**
+	 * Source of the current members of the ring.
+	 */
+	public interface Membership {
+		
+		/**
+		 * @return the nodes of the deployment as host:port
+		 */
+		List<String> getNodes() throws Exception;
+	}
+	
+	/**
+	 * @return the ring of this deployment, null if RING_SELF is not set
+	 */
+	public synchronized static HashRing getInstance() {
+		if ( !initialized ) {
+			initialized = true;
+			if ( !Utilities.isEmpty( Configuration.RING_SELF ) ) {
+				instance = new HashRing( Configuration.RING_VIRTUAL_NODES );
+				instance.follow( newMembership(), Configuration.RING_REFRESH_SECONDS );
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * @param virtualNodes
+	 *            Number of points each node is placed at
+	 */
+	public HashRing( int virtualNodes ) {
+		this.virtualNodes = Math.max( 1, virtualNodes );
+		
+		Metrics.registerGauge( "ring.nodes", new Metrics.Gauge() {
+			public long getValue() {
+				return points.nodes.size();
+			}
+		} );
+	}
+	
+	/**
+	 * Replaces the members of the ring.
+	 * 
+	 * @return true if the members changed
+	 */
+	public boolean setNodes( Collection<String> nodes ) {
+		List<String> sorted = new ArrayList<String>( new TreeSet<String>( nodes ) );
+		if ( sorted.equals( this.points.nodes ) ) {
+			return false;
+		}
+		
+		Point[] ring = new Point[ sorted.size() * this.virtualNodes ];
+		int count = 0;
+		for ( String node : sorted ) {
+			for ( int i = 0; i < this.virtualNodes; i++ ) {
+				ring[ count++ ] = new Point( hash( node + "#" + i ), node );
+			}
+		}
+		Arrays.sort( ring );
+		
+		long[] hashes = new long[ ring.length ];
+		String[] owners = new String[ ring.length ];
+		for ( int i = 0; i < ring.length; i++ ) {
+			hashes[ i ] = ring[ i ].hash;
+			owners[ i ] = ring[ i ].node;
+		}
+		
+		this.points = new Points( hashes, owners, Collections.unmodifiableList( sorted ) );
+		Metrics.increment( "ring.membership_changes" );
+		log.info( "Hash ring members : " + sorted );
+		return true;
+	}
+	
+	public List<String> getNodes() {
+		return this.points.nodes;
+	}
+	
+	/**
+	 * @return the node the key belongs to, null if the ring is empty
+	 */
+	public String getOwner( String key ) {
+		Points current = this.points;
+		if ( current.hashes.length == 0 ) {
+			return null;
+		}
+		
+		int index = Arrays.binarySearch( current.hashes, hash( key ) );
+		if ( index < 0 ) {
+			index = -index - 1;
+		}
+		return current.owners[ ( index == current.hashes.length ) ? 0 : index ];
+	}
+	
+	/**
+	 * Reads the members now and then every refreshSeconds on a daemon thread. A membership that fails keeps the previous members.
+	 */
+	public void follow( final Membership membership, long refreshSeconds ) {
+		this.refresh( membership );
+		if ( refreshSeconds <= 0 ) {
+			return;
+		}
+		
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "HashRing-membership" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				refresh( membership );
+			}
+		}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS );
+	}
+	
+	private void refresh( Membership membership ) {
+		try {
+			List<String> nodes = membership.getNodes();
+			if ( nodes.isEmpty() ) {
+				log.warning( "Hash ring membership returned no nodes, keeping " + this.points.nodes );
+				return;
+			}
+			this.setNodes( nodes );
+		}
+		catch ( Exception exception ) {
+			Metrics.increment( "ring.membership_errors" );
+			log.log( Level.WARNING, "Unable to read hash ring members, keeping " + this.points.nodes, exception );
+		}
+	}
+	
+	/**
+	 * 64 bits of the MD5 digest of the UTF-8 key. MD5 spreads similar keys such as node#0 and node#1 evenly over the ring.
+	 */
+	static long hash( String key ) {
+		try {
+			byte[] digest = MessageDigest.getInstance( "MD5" ).digest( key.getBytes( Constants.ENCODING_FORMAT ) );
+			long hash = 0;
+			for ( int i = 0; i < 8; i++ ) {
+				hash = ( hash << 8 ) | ( digest[ i ] & 0xff );
+			}
+			return hash;
+		}
+		catch ( Exception exception ) {
+			throw new IllegalStateException( "Unable to hash key", exception );
+		}
+	}
+	
+	private static Membership newMembership() {
+		if ( !Utilities.isEmpty( Configuration.RING_MEMBERSHIP ) ) {
+			try {
+				return (Membership) Class.forName( Configuration.RING_MEMBERSHIP ).getDeclaredConstructor().newInstance();
+			}
+			catch ( Exception exception ) {
+				throw new IllegalStateException( "Unable to create hash ring membership " + Configuration.RING_MEMBERSHIP, exception );
+			}
+		}
+		
+		if ( !Utilities.isEmpty( Configuration.RING_NODES_FILE ) ) {
+			return new Membership() {
+				public List<String> getNodes() throws Exception {
+					return readNodes( new File( Configuration.RING_NODES_FILE ) );
+				}
+			};
+		}
+		
+		return new Membership() {
+			public List<String> getNodes() {
+				return parseNodes( Configuration.RING_NODES );
+			}
+		};
+	}
+	
+	/**
+	 * Reads one host:port per line, lines starting with # are ignored.
+	 */
+	private static List<String> readNodes( File file ) throws Exception {
+		List<String> nodes = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), Constants.ENCODING_FORMAT ) );
+		try {
+			String line;
+			while ( null != ( line = reader.readLine() ) ) {
+				line = line.trim();
+				if ( line.length() > 0 && !line.startsWith( "#" ) ) {
+					nodes.add( line );
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return nodes;
+	}
+	
+	private static List<String> parseNodes( String nodes ) {
+		List<String> values = new ArrayList<String>();
+		for ( String node : nodes.split( "," ) ) {
+			if ( !Utilities.isEmpty( node ) ) {
+				values.add( node.trim() );
+			}
+		}
+		return values;
+	}
+	
+	private static class Point implements Comparable<Point> {
+		
+		final long hash;
+		
+		final String node;
+		
+		Point( long hash, String node ) {
+			this.hash = hash;
+			this.node = node;
+		}
+		
+		public int compareTo( Point other ) {
+			return ( this.hash < other.hash ) ? -1 : ( ( this.hash == other.hash ) ? this.node.compareTo( other.node ) : 1 );
+		}
+	}
+	
+	/**
+	 * An immutable snapshot of the ring, replaced as a whole when the members change.
+	 */
+	private static class Points {
+		
+		final long[] hashes;
+		
+		final String[] owners;
+		
+		final List<String> nodes;
+		
+		Points( long[] hashes, String[] owners, List<String> nodes ) {
+			this.hashes = hashes;
+			this.owners = owners;
+			this.nodes = nodes;
+		}
+	}
+	
+}
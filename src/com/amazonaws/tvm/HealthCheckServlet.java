@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers load balancer health checks. Reports HTTP 503 until the warm-up has completed, so an instance only receives traffic once it is warm.
+ */
+public class HealthCheckServlet extends RootServlet {
+	
+	/**
+	 * Load balancer probes arrive every few seconds and say nothing about token traffic, so they are not instrumented
+	 */
+	@Override
+	protected boolean isInstrumented() {
+		return false;
+	}
+	
+	@Override
+	protected String processRequest( HttpServletRequest request, HttpServletResponse response ) throws Exception {
+		if ( WarmUp.isReady() ) {
+			super.sendOKResponse( response, Constants.getMsg( HttpServletResponse.SC_OK ) );
+		}
+		else {
+			super.sendErrorResponse( HttpServletResponse.SC_SERVICE_UNAVAILABLE, response );
+		}
+		return null;
+	}
+	
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a second copy of an idempotent call when the first one is slow, and returns whichever response arrives first. The delay before the
+ * second copy follows a percentile of the recently observed latencies, so only the slowest calls are hedged. Hedges are paid from a budget that
+ * every call adds a fraction of a token to, keeping the extra load within the configured share of the traffic.
+ * 
+ * Both copies run on bounded pools while the caller waits for the first successful response, so a slow copy never holds the caller up, even
+ * when it blocks in a socket read that ignores interrupts. The first copies use at most SDK_MAX_CONNECTIONS threads, more could not get a
+ * connection anyway; when they are all busy the call runs on the caller without a hedge. Hedges use at most HEDGE_MAX_IN_FLIGHT threads and
+ * are skipped rather than queued. The copy that loses is cancelled. The latencies of both copies are sampled, winners and losers alike.
+ * 
+ * Metrics are published under "hedge.&lt;name&gt;.".
+ */
+public class HedgedCall {
+	
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+			Thread thread = new Thread( runnable, "HedgedCall" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	};
+	
+	/** Runs the first copies, a call runs on the caller rather than queued when every thread is busy */
+	private static final ThreadPoolExecutor CALLS = new ThreadPoolExecutor( 0, Math.max( 1, Configuration.SDK_MAX_CONNECTIONS ), 60L,
+			TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DAEMONS );
+	
+	/** Runs the hedges, a hedge is skipped rather than queued when every thread is busy */
+	private static final ThreadPoolExecutor HEDGES = new ThreadPoolExecutor( 0, Math.max( 1, Configuration.HEDGE_MAX_IN_FLIGHT ), 60L,
+			TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DAEMONS );
+	
+	/** Latencies kept to compute the percentile from */
+	private static final int SAMPLES = 1024;
+	
+	/** Samples required before any call is hedged */
+	private static final int MIN_SAMPLES = 100;
+	
+	/** The delay is recomputed after this many new samples */
+	private static final int RECOMPUTE_INTERVAL = 64;
+	
+	/** Hedges that can be sent in a burst */
+	private static final double MAX_TOKENS = 10;
+	
+	private final String prefix;
+	
+	private final double percentile;
+	
+	private final long minDelayMillis;
+	
+	private final long maxDelayMillis;
+	
+	private final double tokensPerCall;
+	
+	private final long[] latencies = new long[ SAMPLES ];
+	
+	private int sampleCount;
+	
+	private long delayMillis;
+	
+	private double tokens = MAX_TOKENS;
+	
+	/**
+	 * @param name
+	 *            Name the metrics are published under
+	 * @param percentile
+	 *            Percentile of recent latencies after which the call is hedged, e.g. 95
+	 * @param minDelayMillis
+	 *            Smallest delay before hedging
+	 * @param maxDelayMillis
+	 *            Largest delay before hedging
+	 * @param budgetPercent
+	 *            Hedges allowed per hundred calls
+	 */
+	public HedgedCall( String name, double percentile, long minDelayMillis, long maxDelayMillis, double budgetPercent ) {
+		this.prefix = "hedge." + name + ".";
+		this.percentile = Math.min( 100, Math.max( 0, percentile ) );
+		this.minDelayMillis = Math.max( 1, minDelayMillis );
+		this.maxDelayMillis = Math.max( this.minDelayMillis, maxDelayMillis );
+		this.tokensPerCall = budgetPercent / 100;
+		this.delayMillis = this.maxDelayMillis;
+		
+		Metrics.registerGauge( this.prefix + "delay_millis", new Metrics.Gauge() {
+			public long getValue() {
+				return HedgedCall.this.getDelayMillis();
+			}
+		} );
+	}
+	
+	/**
+	 * @param call
+	 *            The call, must be safe to run twice concurrently
+	 * @return the first successful response, or the first failure if every copy failed
+	 */
+	public <T> T call( final Callable<T> call ) throws Exception {
+		this.addToken();
+		final Race<T> race = new Race<T>();
+		
+		Future<?> primary;
+		try {
+			primary = CALLS.submit( this.copy( call, race, false ) );
+		}
+		catch ( RejectedExecutionException exception ) {
+			Metrics.increment( this.prefix + "inline" );
+			long start = System.nanoTime();
+			try {
+				return call.call();
+			}
+			finally {
+				this.recordLatency( System.nanoTime() - start );
+			}
+		}
+		
+		Future<?> hedge = null;
+		try {
+			synchronized ( race ) {
+				long remaining = TimeUnit.MILLISECONDS.toNanos( this.getDelayMillis() );
+				long deadline = System.nanoTime() + remaining;
+				while ( !race.isOver( 1 ) && remaining > 0 ) {
+					TimeUnit.NANOSECONDS.timedWait( race, remaining );
+					remaining = deadline - System.nanoTime();
+				}
+			}
+			
+			hedge = this.hedge( call, race );
+			int copies = ( null == hedge ) ? 1 : 2;
+			synchronized ( race ) {
+				while ( !race.isOver( copies ) ) {
+					race.wait();
+				}
+				if ( race.succeeded ) {
+					if ( race.hedgeWon ) {
+						Metrics.increment( this.prefix + "won" );
+					}
+					return race.result;
+				}
+				if ( race.failure instanceof Error ) {
+					throw (Error) race.failure;
+				}
+				throw (Exception) race.failure;
+			}
+		}
+		finally {
+			// the loser is of no use anymore, free its thread where the call honours interrupts
+			primary.cancel( true );
+			if ( null != hedge ) {
+				hedge.cancel( true );
+			}
+		}
+	}
+	
+	public synchronized long getDelayMillis() {
+		return this.delayMillis;
+	}
+	
+	/**
+	 * Sends the hedge unless the budget is spent or every hedging thread is busy.
+	 * 
+	 * @return the hedge, null if none was sent
+	 */
+	private <T> Future<?> hedge( Callable<T> call, Race<T> race ) {
+		synchronized ( race ) {
+			if ( race.isOver( 1 ) ) {
+				return null;
+			}
+		}
+		if ( !this.tryAcquireHedge() ) {
+			return null;
+		}
+		
+		try {
+			Future<?> hedge = HEDGES.submit( this.copy( call, race, true ) );
+			Metrics.increment( this.prefix + "sent" );
+			return hedge;
+		}
+		catch ( RejectedExecutionException exception ) {
+			Metrics.increment( this.prefix + "rejected" );
+			return null;
+		}
+	}
+	
+	/**
+	 * @return one copy of the call, reporting its outcome to the race
+	 */
+	private <T> Runnable copy( final Callable<T> call, final Race<T> race, final boolean isHedge ) {
+		return new Runnable() {
+			public void run() {
+				T result = null;
+				Throwable failure = null;
+				long start = System.nanoTime();
+				try {
+					result = call.call();
+				}
+				catch ( Throwable throwable ) {
+					// an Error too must end the race, or the caller would wait forever
+					failure = throwable;
+				}
+				HedgedCall.this.recordLatency( System.nanoTime() - start );
+				race.finish( result, failure, isHedge );
+			}
+		};
+	}
+	
+	private synchronized boolean tryAcquireHedge() {
+		if ( this.tokens < 1 ) {
+			Metrics.increment( this.prefix + "budget_exhausted" );
+			return false;
+		}
+		this.tokens -= 1;
+		return true;
+	}
+	
+	private synchronized void addToken() {
+		this.tokens = Math.min( MAX_TOKENS, this.tokens + this.tokensPerCall );
+	}
+	
+	private synchronized void recordLatency( long elapsedNanos ) {
+		this.latencies[ this.sampleCount % SAMPLES ] = elapsedNanos;
+		this.sampleCount++;
+		
+		if ( this.sampleCount >= MIN_SAMPLES && this.sampleCount % RECOMPUTE_INTERVAL == 0 ) {
+			long[] sorted = Arrays.copyOf( this.latencies, Math.min( this.sampleCount, SAMPLES ) );
+			Arrays.sort( sorted );
+			long value = sorted[ (int) Math.min( sorted.length - 1, Math.floor( sorted.length * this.percentile / 100 ) ) ];
+			this.delayMillis = Math.min( this.maxDelayMillis, Math.max( this.minDelayMillis, TimeUnit.NANOSECONDS.toMillis( value ) ) );
+		}
+	}
+	
+	/**
+	 * Outcome of the copies of one call, guarded by its own monitor.
+	 */
+	private static class Race<T> {
+		
+		int finished;
+		
+		boolean succeeded;
+		
+		boolean hedgeWon;
+		
+		T result;
+		
+		Throwable failure;
+		
+		/**
+		 * @return true once a copy succeeded or all of the copies sent failed
+		 */
+		boolean isOver( int copies ) {
+			return this.succeeded || this.finished >= copies;
+		}
+		
+		synchronized void finish( T result, Throwable failure, boolean isHedge ) {
+			this.finished++;
+			if ( null == failure ) {
+				if ( !this.succeeded ) {
+					this.succeeded = true;
+					this.hedgeWon = isHedge;
+					this.result = result;
+				}
+			}
+			else if ( null == this.failure ) {
+				this.failure = failure;
+			}
+			this.notifyAll();
+		}
+	}
+	
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+
+/**
+ * Remembers which credentials were issued to which device and until when, so a device asking for a token while its current credentials still
+ * last more than CONDITIONAL_REFRESH_SECONDS can be told to keep them. That saves the STS call and the encryption of a new token.
+ * 
+ * Records are keyed by app, device and access key id, so credentials shared by several users or devices, e.g. from the credential cache or
+ * in Anonymous mode, are only recognized for the devices they were handed to. Records are kept off the heap and lost on restart, after which
+ * the next token request of every device is answered in full again.
+ */
+public class IssuedCredentials {
+	
+	private static final OffHeapStore ISSUED = ( Configuration.CONDITIONAL_REFRESH_SECONDS > 0 ) ? new OffHeapStore( "issued",
+			Configuration.ISSUED_CREDENTIALS_OFF_HEAP_BYTES, 256, longestSessionMillis() ) : null;
+	
+	public static boolean isEnabled() {
+		return null != ISSUED;
+	}
+	
+	/**
+	 * Remembers that the credentials were handed to the device.
+	 */
+	public static void record( String uid, Credentials credentials ) {
+		if ( null == ISSUED || null == credentials || null == credentials.getExpiration() ) {
+			return;
+		}
+		ISSUED.put( key( uid, credentials.getAccessKeyId() ), String.valueOf( credentials.getExpiration().getTime() ) );
+	}
+	
+	/**
+	 * @param uid
+	 *            Unique device identifier
+	 * @param accessKeyId
+	 *            Access key id of the credentials the device holds
+	 * @return the expiration time of those credentials in milliseconds, if they were issued to the device by this node and last more than
+	 *         CONDITIONAL_REFRESH_SECONDS, otherwise 0
+	 */
+	public static long getUnexpiredExpiration( String uid, String accessKeyId ) {
+		if ( null == ISSUED || Utilities.isEmpty( accessKeyId ) ) {
+			return 0L;
+		}
+		
+		String[] values = ISSUED.get( key( uid, accessKeyId ) );
+		if ( null == values ) {
+			return 0L;
+		}
+		
+		long expiration = Long.parseLong( values[ 0 ] );
+		return ( expiration - System.currentTimeMillis() > Configuration.CONDITIONAL_REFRESH_SECONDS * 1000L ) ? expiration : 0L;
+	}
+	
+	private static String key( String uid, String accessKeyId ) {
+		return Application.current().key( uid + "\u0000" + accessKeyId );
+	}
+	
+	private static long longestSessionMillis() {
+		long longest = 0;
+		for ( Application application : Application.getApplications() ) {
+			longest = Math.max( longest, application.getSessionDuration() );
+		}
+		return longest * 1000L;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gives the endpoint it is mapped to its own Bulkhead and rejects requests with HTTP 503 and Retry-After when the endpoint is overloaded.
+ * Declare one filter per endpoint with its name as init parameter. The other parameters are read from the class path resource
+ * LoadShedding.properties as &lt;name&gt;.&lt;parameter&gt;, so web.xml and the standalone server share the same limits; an init parameter
+ * overrides the resource. The parameters are:
+ * 
+ * <ul>
+ * <li>name : name the metrics are published under</li>
+ * <li>priority : lower values are more important. While any more important endpoint is overloaded part of the requests of this one are rejected</li>
+ * <li>yieldPercent : share of the requests rejected while yielding to a more important endpoint, default 50. The rest still go through the
+ * bulkhead of this endpoint, so it keeps serving at a reduced rate rather than going dark during a long spike elsewhere</li>
+ * <li>maxConcurrent : requests processed at the same time</li>
+ * <li>maxQueue : requests waiting for a permit</li>
+ * <li>targetMillis : acceptable standing queue delay, default 5</li>
+ * <li>intervalMillis : window of the queue delay observations, default 100</li>
+ * <li>retryAfterSeconds : Retry-After sent with rejections, default 1</li>
+ * </ul>
+ */
+public class LoadSheddingFilter implements Filter {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/**
+	 * The bulkheads of all endpoints, shared so that less important endpoints can yield to more important ones
+	 */
+	private static final List<Bulkhead> BULKHEADS = new CopyOnWriteArrayList<Bulkhead>();
+	
+	/** The filters by endpoint name, so requests arriving by other means than HTTP go through the same admission */
+	private static final ConcurrentMap<String, LoadSheddingFilter> ENDPOINTS = new ConcurrentHashMap<String, LoadSheddingFilter>();
+	
+	private static final String LIMITS_RESOURCE = "/LoadShedding.properties";
+	
+	private static final Properties LIMITS = loadLimits();
+	
+	private Bulkhead bulkhead;
+	
+	private int retryAfterSeconds;
+	
+	private int yieldPercent;
+	
+	/** Requests seen while yielding, spreads the rejections evenly over them */
+	private final AtomicLong yielding = new AtomicLong();
+	
+	public void init( FilterConfig config ) throws ServletException {
+		try {
+			String name = getParameter( config, null, "name", config.getFilterName() );
+			int priority = Integer.parseInt( getParameter( config, name, "priority", "0" ) );
+			int maxConcurrent = Integer.parseInt( getParameter( config, name, "maxConcurrent", "64" ) );
+			int maxQueue = Integer.parseInt( getParameter( config, name, "maxQueue", "128" ) );
+			long targetMillis = Long.parseLong( getParameter( config, name, "targetMillis", "5" ) );
+			long intervalMillis = Long.parseLong( getParameter( config, name, "intervalMillis", "100" ) );
+			
+			this.bulkhead = new Bulkhead( name, priority, maxConcurrent, maxQueue, targetMillis, intervalMillis );
+			this.retryAfterSeconds = Integer.parseInt( getParameter( config, name, "retryAfterSeconds", "1" ) );
+			this.yieldPercent = Math.min( 100, Math.max( 0, Integer.parseInt( getParameter( config, name, "yieldPercent", "50" ) ) ) );
+		}
+		catch ( NumberFormatException exception ) {
+			throw new ServletException( "Invalid load shedding parameter for " + config.getFilterName(), exception );
+		}
+		BULKHEADS.add( this.bulkhead );
+		ENDPOINTS.put( this.bulkhead.getName(), this );
+	}
+	
+	public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
+		if ( !this.admit() ) {
+			this.reject( (HttpServletResponse) response );
+			return;
+		}
+		
+		try {
+			chain.doFilter( request, response );
+		}
+		finally {
+			this.release();
+		}
+	}
+	
+	public void destroy() {
+		BULKHEADS.remove( this.bulkhead );
+		ENDPOINTS.remove( this.bulkhead.getName(), this );
+	}
+	
+	/**
+	 * @param name
+	 *            The name the filter was configured with, e.g. gettoken
+	 * @return the filter of the endpoint, null if there is none
+	 */
+	public static LoadSheddingFilter forEndpoint( String name ) {
+		return ENDPOINTS.get( name );
+	}
+	
+	/**
+	 * Waits for a permit of this endpoint, giving way to more important endpoints that are overloaded. Every successful call must be followed
+	 * by release.
+	 * 
+	 * @return true if the request may be processed, false if it is rejected
+	 */
+	public boolean admit() {
+		boolean acquired = false;
+		try {
+			acquired = !this.isYielding() && this.bulkhead.acquire();
+		}
+		catch ( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if ( !acquired ) {
+			Metrics.increment( "bulkhead." + this.bulkhead.getName() + ".rejected" );
+		}
+		return acquired;
+	}
+	
+	public void release() {
+		this.bulkhead.release();
+	}
+	
+	/**
+	 * @return true if this request should give way because an endpoint more important than this one is overloaded. Only yieldPercent of the
+	 *         requests arriving meanwhile give way.
+	 */
+	private boolean isYielding() {
+		for ( Bulkhead other : BULKHEADS ) {
+			if ( other.getPriority() < this.bulkhead.getPriority() && other.isOverloaded() ) {
+				if ( this.yielding.getAndIncrement() % 100 < this.yieldPercent ) {
+					Metrics.increment( "bulkhead." + this.bulkhead.getName() + ".yielded" );
+					return true;
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	private void reject( HttpServletResponse response ) throws ServletException {
+		try {
+			response.setIntHeader( "Retry-After", this.retryAfterSeconds );
+			RootServlet.sendErrorResponse( HttpServletResponse.SC_SERVICE_UNAVAILABLE, response );
+		}
+		catch ( Exception exception ) {
+			throw new ServletException( exception );
+		}
+	}
+	
+	/**
+	 * @return the init parameter, else the limit of the endpoint in LoadShedding.properties, else the default value
+	 */
+	private static String getParameter( FilterConfig config, String endpoint, String name, String defaultValue ) {
+		String value = config.getInitParameter( name );
+		if ( ( null == value || value.trim().length() == 0 ) && null != endpoint ) {
+			value = LIMITS.getProperty( endpoint + "." + name );
+		}
+		return ( null == value || value.trim().length() == 0 ) ? defaultValue : value.trim();
+	}
+	
+	private static Properties loadLimits() {
+		Properties limits = new Properties();
+		InputStream in = LoadSheddingFilter.class.getResourceAsStream( LIMITS_RESOURCE );
+		if ( null == in ) {
+			log.warning( LIMITS_RESOURCE + " not found, load shedding uses its defaults" );
+			return limits;
+		}
+		try {
+			limits.load( in );
+		}
+		catch ( IOException exception ) {
+			log.log( Level.WARNING, "Unable to read " + LIMITS_RESOURCE + ", load shedding uses its defaults", exception );
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch ( IOException exception ) {
+				// ignore
+			}
+		}
+		return limits;
+	}
+	
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters and gauges, published by the MetricsServlet. Counters only ever grow, gauges are read when a snapshot is taken.
+ */
+public class Metrics {
+	
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+	
+	private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+	
+	public static void increment( String name ) {
+		add( name, 1 );
+	}
+	
+	public static void add( String name, long delta ) {
+		AtomicLong counter = COUNTERS.get( name );
+		if ( null == counter ) {
+			AtomicLong created = new AtomicLong();
+			counter = COUNTERS.putIfAbsent( name, created );
+			if ( null == counter ) {
+				counter = created;
+			}
+		}
+		counter.addAndGet( delta );
+	}
+	
+	/**
+	 * Registers a gauge, replacing any gauge registered earlier under the same name.
+	 */
+	public static void registerGauge( String name, Gauge gauge ) {
+		GAUGES.put( name, gauge );
+	}
+	
+	/**
+	 * @return the current value of every counter and gauge, sorted by name
+	 */
+	public static Map<String, Long> snapshot() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for ( Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet() ) {
+			values.put( entry.getKey(), entry.getValue().get() );
+		}
+		for ( Map.Entry<String, Gauge> entry : GAUGES.entrySet() ) {
+			values.put( entry.getKey(), entry.getValue().getValue() );
+		}
+		return values;
+	}
+	
+	/**
+	 * A value sampled when metrics are published.
+	 */
+	public interface Gauge {
+		
+		long getValue();
+	}
+	
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Publishes the Metrics as plain text, one "name value" pair per line.
+ */
+public class MetricsServlet extends RootServlet {
+	
+	/**
+	 * Scrapes are not part of the workload
+	 */
+	@Override
+	protected boolean isInstrumented() {
+		return false;
+	}
+	
+	@Override
+	protected String processRequest( HttpServletRequest request, HttpServletResponse response ) throws Exception {
+		StringBuilder data = new StringBuilder();
+		for ( Map.Entry<String, Long> entry : Metrics.snapshot().entrySet() ) {
+			if ( data.length() > 0 ) {
+				data.append( '\n' );
+			}
+			data.append( entry.getKey() ).append( ' ' ).append( entry.getValue() );
+		}
+		
+		super.sendOKResponse( response, data.toString() );
+		return null;
+	}
+	
+}
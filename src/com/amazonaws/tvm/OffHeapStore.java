@@ -0,0 +1,473 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.tvm.jfr.CacheEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+
+/**
+ * Bounded cache of small string records kept outside the Java heap, for caches large enough to lengthen garbage collection pauses. Each
+ * record occupies a fixed size slot of a direct buffer, holding the UTF-8 key followed by the length prefixed UTF-8 values. The heap only holds
+ * arrays of primitives: a hash index from key hash to slot, and the hash, expiry and reference bit of every slot. Records expire after a fixed
+ * time to live and, once the cache is full, the slot to reuse is chosen by the clock algorithm. A slot is overwritten with zeros as soon as
+ * its record is invalidated, expired or evicted, so no stale key material lingers in memory.
+ * 
+ * Like RecordCache the store is split into independently locked segments.
+ * 
+ * The slots live in direct ByteBuffers rather than memory segments. MemorySegment and Arena are only final from Java 22, while the Token
+ * Vending Machine runs on Java 17 and later, and reaching them through reflection would put a reflective call on every slot access. The buffers
+ * are allocated once and kept for the life of the store, so the deterministic release of an Arena would gain nothing here.
+ */
+public class OffHeapStore {
+	
+	private static final int SEGMENT_COUNT = 16;
+	
+	private final int slotBytes;
+	
+	private final long timeToLiveMillis;
+	
+	private final Segment[] segments = new Segment[ SEGMENT_COUNT ];
+	
+	private final String name;
+	
+	private final String prefix;
+	
+	/**
+	 * @param name
+	 *            Name of the store, metrics are published as offheap.&lt;name&gt;.*
+	 * @param maximumBytes
+	 *            Off-heap memory used by the store
+	 * @param slotBytes
+	 *            Size of a slot, at most 32767 bytes, larger records are not stored
+	 * @param timeToLiveMillis
+	 *            How long a record may be served after it was stored
+	 */
+	public OffHeapStore( String name, long maximumBytes, int slotBytes, long timeToLiveMillis ) {
+		if ( slotBytes < 8 || slotBytes > Short.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Slot size must be between 8 and " + Short.MAX_VALUE + " bytes" );
+		}
+		
+		this.slotBytes = slotBytes;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.name = "offheap." + name;
+		this.prefix = this.name + ".";
+		
+		int slotsPerSegment = (int) Math.min( Integer.MAX_VALUE / slotBytes, Math.max( 1, maximumBytes / slotBytes / SEGMENT_COUNT ) );
+		for ( int i = 0; i < SEGMENT_COUNT; i++ ) {
+			this.segments[ i ] = new Segment( slotsPerSegment, slotBytes );
+		}
+		
+		final long capacityBytes = (long) slotsPerSegment * slotBytes * SEGMENT_COUNT;
+		Metrics.registerGauge( this.prefix + "capacity_bytes", new Metrics.Gauge() {
+			public long getValue() {
+				return capacityBytes;
+			}
+		} );
+		Metrics.registerGauge( this.prefix + "entries", new Metrics.Gauge() {
+			public long getValue() {
+				return OffHeapStore.this.size();
+			}
+		} );
+	}
+	
+	/**
+	 * @return the values stored for key, null if absent or expired
+	 */
+	public String[] get( String key ) {
+		if ( null == key ) {
+			return null;
+		}
+		
+		CacheEvent event = FlightEvents.ENABLED ? new CacheEvent() : null;
+		byte[] keyBytes = toBytes( key );
+		long hash = hash( keyBytes );
+		Segment segment = this.segmentFor( hash );
+		String[] values;
+		synchronized ( segment ) {
+			values = segment.get( hash, keyBytes, System.currentTimeMillis() );
+		}
+		Metrics.increment( this.prefix + ( ( null == values ) ? "misses" : "hits" ) );
+		if ( null != event ) {
+			event.finish( this.name, null != values );
+		}
+		return values;
+	}
+	
+	/**
+	 * Stores the values for key, replacing any previous record.
+	 * 
+	 * @param values
+	 *            The values, any of which may be null
+	 * @return false if the record doesnot fit into a slot and was not stored
+	 */
+	public boolean put( String key, String... values ) {
+		return this.store( key, -1L, values );
+	}
+	
+	/**
+	 * Same as put, except that nothing is stored if the key may have been invalidated since the stamp was taken. As in RecordCache,
+	 * invalidations are counted per segment.
+	 * 
+	 * @param stamp
+	 *            The stamp taken before the record was read
+	 * @return false if the record was not stored
+	 */
+	public boolean putIfCurrent( String key, long stamp, String... values ) {
+		return this.store( key, stamp, values );
+	}
+	
+	/**
+	 * @param stamp
+	 *            The stamp the segment must still have, -1 to store unconditionally
+	 */
+	private boolean store( String key, long stamp, String... values ) {
+		if ( null == key ) {
+			return false;
+		}
+		
+		byte[] keyBytes = toBytes( key );
+		byte[][] valueBytes = new byte[ values.length ][];
+		int length = 4 + keyBytes.length;
+		for ( int i = 0; i < values.length; i++ ) {
+			valueBytes[ i ] = ( null == values[ i ] ) ? null : toBytes( values[ i ] );
+			length += 2 + ( ( null == valueBytes[ i ] ) ? 0 : valueBytes[ i ].length );
+		}
+		
+		long hash = hash( keyBytes );
+		Segment segment = this.segmentFor( hash );
+		if ( length > this.slotBytes || keyBytes.length > Short.MAX_VALUE ) {
+			this.invalidate( key );
+			Metrics.increment( this.prefix + "too_large" );
+			return false;
+		}
+		
+		boolean evicted;
+		synchronized ( segment ) {
+			if ( stamp >= 0 && stamp != segment.invalidations ) {
+				return false;
+			}
+			evicted = segment.put( hash, keyBytes, valueBytes, length, System.currentTimeMillis() + this.timeToLiveMillis );
+		}
+		if ( evicted ) {
+			Metrics.increment( this.prefix + "evictions" );
+		}
+		return true;
+	}
+	
+	public void invalidate( String key ) {
+		if ( null == key ) {
+			return;
+		}
+		
+		byte[] keyBytes = toBytes( key );
+		long hash = hash( keyBytes );
+		Segment segment = this.segmentFor( hash );
+		synchronized ( segment ) {
+			segment.remove( hash, keyBytes );
+			segment.invalidations++;
+		}
+	}
+	
+	/**
+	 * @return the stamp to pass to putIfCurrent for a record about to be read from the store
+	 */
+	public long stamp( String key ) {
+		Segment segment = this.segmentFor( hash( toBytes( key ) ) );
+		synchronized ( segment ) {
+			return segment.invalidations;
+		}
+	}
+	
+	/**
+	 * @return the number of records held, including expired ones not yet removed
+	 */
+	public int size() {
+		int size = 0;
+		for ( Segment segment : this.segments ) {
+			synchronized ( segment ) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+	
+	private Segment segmentFor( long hash ) {
+		return this.segments[ (int) ( hash >>> 60 ) & ( SEGMENT_COUNT - 1 ) ];
+	}
+	
+	private static byte[] toBytes( String value ) {
+		try {
+			return value.getBytes( Constants.ENCODING_FORMAT );
+		}
+		catch ( UnsupportedEncodingException exception ) {
+			throw new IllegalStateException( exception );
+		}
+	}
+	
+	private static String toString( byte[] bytes ) {
+		try {
+			return new String( bytes, Constants.ENCODING_FORMAT );
+		}
+		catch ( UnsupportedEncodingException exception ) {
+			throw new IllegalStateException( exception );
+		}
+	}
+	
+	/**
+	 * 64-bit FNV-1a with the MurmurHash3 finalizer, so the high bits choosing the segment are as well mixed as the low ones. Never 0 since 0
+	 * marks a free slot.
+	 */
+	private static long hash( byte[] bytes ) {
+		long hash = 0xcbf29ce484222325L;
+		for ( byte b : bytes ) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return ( hash == 0 ) ? 1 : hash;
+	}
+	
+	/**
+	 * Slots of one segment. A slot holds the key length (2 bytes), the key, the value count (2 bytes) and each value as its length (2 bytes, -1
+	 * for null) followed by its bytes.
+	 */
+	private static class Segment {
+		
+		final ByteBuffer memory;
+		
+		final int slotBytes;
+		
+		/** Key hash of the record in each slot, 0 for a free slot */
+		final long[] hashes;
+		
+		final long[] expiresAt;
+		
+		/** Bytes used in each slot, zeroed when the slot is freed */
+		final int[] lengths;
+		
+		/** Clock reference bits */
+		final boolean[] referenced;
+		
+		/** Linear probing table of slot number + 1, 0 for an empty position */
+		final int[] index;
+		
+		final int[] freeSlots;
+		
+		int freeCount;
+		
+		int hand;
+		
+		int size;
+		
+		/** Number of invalidations */
+		long invalidations;
+		
+		Segment( int slots, int slotBytes ) {
+			this.memory = ByteBuffer.allocateDirect( slots * slotBytes );
+			this.slotBytes = slotBytes;
+			this.hashes = new long[ slots ];
+			this.expiresAt = new long[ slots ];
+			this.lengths = new int[ slots ];
+			this.referenced = new boolean[ slots ];
+			this.index = new int[ Integer.highestOneBit( Math.max( 2, slots ) * 2 - 1 ) << 1 ];
+			this.freeSlots = new int[ slots ];
+			for ( int i = 0; i < slots; i++ ) {
+				this.freeSlots[ i ] = slots - 1 - i;
+			}
+			this.freeCount = slots;
+		}
+		
+		String[] get( long hash, byte[] key, long now ) {
+			int position = this.find( hash, key );
+			if ( position < 0 ) {
+				return null;
+			}
+			
+			int slot = this.index[ position ] - 1;
+			if ( now > this.expiresAt[ slot ] ) {
+				this.free( position );
+				return null;
+			}
+			
+			this.referenced[ slot ] = true;
+			int offset = slot * this.slotBytes + 2 + key.length;
+			String[] values = new String[ this.memory.getShort( offset ) ];
+			offset += 2;
+			for ( int i = 0; i < values.length; i++ ) {
+				short length = this.memory.getShort( offset );
+				offset += 2;
+				if ( length >= 0 ) {
+					byte[] bytes = new byte[ length ];
+					this.memory.position( offset );
+					this.memory.get( bytes );
+					values[ i ] = OffHeapStore.toString( bytes );
+					offset += length;
+				}
+			}
+			return values;
+		}
+		
+		/**
+		 * @return true if another record was evicted to make room
+		 */
+		boolean put( long hash, byte[] key, byte[][] values, int length, long expiresAt ) {
+			boolean evicted = false;
+			int position = this.find( hash, key );
+			int slot;
+			if ( position >= 0 ) {
+				slot = this.index[ position ] - 1;
+				this.zero( slot );
+			}
+			else {
+				if ( this.freeCount == 0 ) {
+					this.evict();
+					evicted = true;
+				}
+				slot = this.freeSlots[ --this.freeCount ];
+				this.insert( hash, slot );
+				this.size++;
+			}
+			
+			int offset = slot * this.slotBytes;
+			this.memory.position( offset );
+			this.memory.putShort( (short) key.length );
+			this.memory.put( key );
+			this.memory.putShort( (short) values.length );
+			for ( byte[] value : values ) {
+				if ( null == value ) {
+					this.memory.putShort( (short) -1 );
+				}
+				else {
+					this.memory.putShort( (short) value.length );
+					this.memory.put( value );
+				}
+			}
+			
+			this.hashes[ slot ] = hash;
+			this.expiresAt[ slot ] = expiresAt;
+			this.lengths[ slot ] = length;
+			this.referenced[ slot ] = false;
+			return evicted;
+		}
+		
+		void remove( long hash, byte[] key ) {
+			int position = this.find( hash, key );
+			if ( position >= 0 ) {
+				this.free( position );
+			}
+		}
+		
+		/**
+		 * Frees the first slot found by the clock hand that was not referenced since the hand last passed it.
+		 */
+		private void evict() {
+			while ( this.referenced[ this.hand ] ) {
+				this.referenced[ this.hand ] = false;
+				this.hand = ( this.hand + 1 ) % this.hashes.length;
+			}
+			
+			int victim = this.hand;
+			this.hand = ( this.hand + 1 ) % this.hashes.length;
+			for ( int position = this.home( this.hashes[ victim ] );; position = ( position + 1 ) & ( this.index.length - 1 ) ) {
+				if ( this.index[ position ] == victim + 1 ) {
+					this.free( position );
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * @return the index position of the record, -1 if absent
+		 */
+		private int find( long hash, byte[] key ) {
+			int mask = this.index.length - 1;
+			for ( int position = this.home( hash ); this.index[ position ] != 0; position = ( position + 1 ) & mask ) {
+				int slot = this.index[ position ] - 1;
+				if ( this.hashes[ slot ] == hash && this.keyEquals( slot, key ) ) {
+					return position;
+				}
+			}
+			return -1;
+		}
+		
+		private void insert( long hash, int slot ) {
+			int mask = this.index.length - 1;
+			int position = this.home( hash );
+			while ( this.index[ position ] != 0 ) {
+				position = ( position + 1 ) & mask;
+			}
+			this.index[ position ] = slot + 1;
+		}
+		
+		/**
+		 * Zeroes the slot at the index position, returns it to the free list and closes the gap in the probe sequence by shifting later entries
+		 * back.
+		 */
+		private void free( int position ) {
+			int slot = this.index[ position ] - 1;
+			this.zero( slot );
+			this.hashes[ slot ] = 0;
+			this.expiresAt[ slot ] = 0;
+			this.referenced[ slot ] = false;
+			this.freeSlots[ this.freeCount++ ] = slot;
+			this.size--;
+			
+			int mask = this.index.length - 1;
+			this.index[ position ] = 0;
+			for ( int next = ( position + 1 ) & mask; this.index[ next ] != 0; next = ( next + 1 ) & mask ) {
+				int home = this.home( this.hashes[ this.index[ next ] - 1 ] );
+				if ( ( ( next - home ) & mask ) >= ( ( next - position ) & mask ) ) {
+					this.index[ position ] = this.index[ next ];
+					this.index[ next ] = 0;
+					position = next;
+				}
+			}
+		}
+		
+		private void zero( int slot ) {
+			int offset = slot * this.slotBytes;
+			for ( int i = 0; i < this.lengths[ slot ]; i++ ) {
+				this.memory.put( offset + i, (byte) 0 );
+			}
+			this.lengths[ slot ] = 0;
+		}
+		
+		private boolean keyEquals( int slot, byte[] key ) {
+			int offset = slot * this.slotBytes;
+			if ( this.memory.getShort( offset ) != key.length ) {
+				return false;
+			}
+			for ( int i = 0; i < key.length; i++ ) {
+				if ( this.memory.get( offset + 2 + i ) != key[ i ] ) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private int home( long hash ) {
+			return (int) ( hash ^ ( hash >>> 32 ) ) & ( this.index.length - 1 );
+		}
+	}
+	
+}
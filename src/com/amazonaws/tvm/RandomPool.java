@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Source of the random 128-bit values used for user ids, device keys and encryption IVs. Values are drawn from a set of independently seeded
+ * DRBGs, one picked per thread, so callers neither wait for system entropy nor contend on a single generator. A background thread keeps a
+ * lock-free pool of values filled, and a caller finding the pool empty draws from its generator directly.
+ */
+public class RandomPool {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/** Size in bytes of the values handed out */
+	private static final int VALUE_BYTES = 16;
+	
+	private static final int SEED_BYTES = 32;
+	
+	/** Number of values a generator produces before it is reseeded */
+	private static final int RESEED_INTERVAL = 1 << 16;
+	
+	private static final long REFILL_PAUSE_MILLIS = 1000L;
+	
+	/** Only used to seed the generators; nextBytes reads the non-blocking system source */
+	private static final SecureRandom SEEDER = new SecureRandom();
+	
+	private static final Stripe[] STRIPES = createStripes( Runtime.getRuntime().availableProcessors() );
+	
+	private static final int CAPACITY = Math.max( 1, Configuration.RANDOM_POOL_SIZE );
+	
+	private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<byte[]>();
+	
+	private static final AtomicInteger SIZE = new AtomicInteger();
+	
+	private static final Thread REFILLER = new Thread( "RandomPool-refill" ) {
+		@Override
+		public void run() {
+			refill();
+		}
+	};
+	
+	static {
+		REFILLER.setDaemon( true );
+		REFILLER.start();
+		
+		Metrics.registerGauge( "random.pool_size", new Metrics.Gauge() {
+			public long getValue() {
+				return SIZE.get();
+			}
+		} );
+	}
+	
+	/**
+	 * @return 16 fresh random bytes, never handed out before
+	 */
+	public static byte[] next128() {
+		byte[] value = POOL.poll();
+		if ( null == value ) {
+			Metrics.increment( "random.pool_empty" );
+			LockSupport.unpark( REFILLER );
+			return generate();
+		}
+		
+		if ( SIZE.decrementAndGet() < CAPACITY / 2 ) {
+			LockSupport.unpark( REFILLER );
+		}
+		return value;
+	}
+	
+	/**
+	 * Fills the array from the generator of the calling thread, bypassing the pool.
+	 */
+	public static void nextBytes( byte[] bytes ) {
+		stripe().nextBytes( bytes );
+	}
+	
+	private static byte[] generate() {
+		byte[] value = new byte[ VALUE_BYTES ];
+		stripe().nextBytes( value );
+		return value;
+	}
+	
+	private static Stripe stripe() {
+		return STRIPES[ (int) ( Thread.currentThread().getId() & ( STRIPES.length - 1 ) ) ];
+	}
+	
+	private static void refill() {
+		while ( true ) {
+			while ( SIZE.get() < CAPACITY ) {
+				POOL.offer( generate() );
+				SIZE.incrementAndGet();
+			}
+			LockSupport.parkNanos( RandomPool.class, TimeUnit.MILLISECONDS.toNanos( REFILL_PAUSE_MILLIS ) );
+		}
+	}
+	
+	/**
+	 * @return one stripe per processor, rounded up to a power of two so a thread id maps to a stripe with a mask
+	 */
+	private static Stripe[] createStripes( int processors ) {
+		int count = Integer.highestOneBit( Math.max( 1, processors ) );
+		if ( count < processors ) {
+			count <<= 1;
+		}
+		
+		Stripe[] stripes = new Stripe[ count ];
+		for ( int i = 0; i < count; i++ ) {
+			stripes[ i ] = new Stripe();
+		}
+		log.info( "Random pool uses " + count + " " + stripes[ 0 ].generator.getAlgorithm() + " generators" );
+		return stripes;
+	}
+	
+	/**
+	 * @return the SP 800-90A DRBG where the runtime provides one, otherwise SHA1PRNG
+	 */
+	private static SecureRandom newGenerator() {
+		try {
+			return SecureRandom.getInstance( "DRBG" );
+		}
+		catch ( NoSuchAlgorithmException exception ) {
+			try {
+				return SecureRandom.getInstance( "SHA1PRNG" );
+			}
+			catch ( NoSuchAlgorithmException unavailable ) {
+				return new SecureRandom();
+			}
+		}
+	}
+	
+	private static byte[] seed() {
+		byte[] seed = new byte[ SEED_BYTES ];
+		SEEDER.nextBytes( seed );
+		return seed;
+	}
+	
+	private static class Stripe {
+		
+		final SecureRandom generator = newGenerator();
+		
+		private int produced;
+		
+		Stripe() {
+			this.generator.setSeed( seed() );
+		}
+		
+		synchronized void nextBytes( byte[] bytes ) {
+			if ( ++this.produced >= RESEED_INTERVAL ) {
+				this.generator.setSeed( seed() );
+				this.produced = 0;
+			}
+			this.generator.nextBytes( bytes );
+		}
+	}
+	
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.logging.Logger;
+
+/**
+ * Read consistency policy of one kind of SimpleDB read. A consistent read always sees the latest write but costs more and is slower, an
+ * eventually consistent read may miss a write made within about the last second. With the fallback policy the read is eventually consistent and
+ * repeated consistently when it finds nothing, or when the record it found doesnot match what the client proved, e.g. its signature. User and
+ * device records rarely change after registration, so most reads are answered by the cheaper read.
+ * 
+ * The policies can be changed with READ_CONSISTENCY. Every read is counted in the metrics as consistency.&lt;operation&gt;.consistent, .hit or
+ * .miss, a record that didnot match as .mismatch and every repeated read as .fallback.
+ */
+public class ReadConsistency {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	public static final String CONSISTENT = "consistent";
+	
+	public static final String EVENTUAL = "eventual";
+	
+	public static final String FALLBACK = "fallback";
+	
+	/** Password hash and userid lookups at login */
+	public static final ReadConsistency USER_READ = new ReadConsistency( "user.read", FALLBACK );
+	
+	/** Username check at registration, so a username is never registered twice */
+	public static final ReadConsistency USER_EXISTS = new ReadConsistency( "user.exists", CONSISTENT );
+	
+	/** Password check, including the one right after the user was registered */
+	public static final ReadConsistency USER_VERIFY = new ReadConsistency( "user.verify", CONSISTENT );
+	
+	/** Username lookup by userid */
+	public static final ReadConsistency USER_SELECT = new ReadConsistency( "user.select", FALLBACK );
+	
+	/** Listing of all users */
+	public static final ReadConsistency USER_LIST = new ReadConsistency( "user.list", EVENTUAL );
+	
+	/** Device key and userid lookups at token requests and device registration */
+	public static final ReadConsistency DEVICE_READ = new ReadConsistency( "device.read", FALLBACK );
+	
+	/** Key check right after the key was stored, e.g. when it is regenerated at login */
+	public static final ReadConsistency DEVICE_VERIFY = new ReadConsistency( "device.verify", CONSISTENT );
+	
+	/** Listing of all devices */
+	public static final ReadConsistency DEVICE_LIST = new ReadConsistency( "device.list", EVENTUAL );
+	
+	private final String name;
+	
+	private final String policy;
+	
+	private final String consistentMetric;
+	
+	private final String hitMetric;
+	
+	private final String missMetric;
+	
+	private final String mismatchMetric;
+	
+	private final String fallbackMetric;
+	
+	private ReadConsistency( String name, String defaultPolicy ) {
+		this.name = name;
+		this.policy = configuredPolicy( name, defaultPolicy );
+		this.consistentMetric = "consistency." + name + ".consistent";
+		this.hitMetric = "consistency." + name + ".hit";
+		this.missMetric = "consistency." + name + ".miss";
+		this.mismatchMetric = "consistency." + name + ".mismatch";
+		this.fallbackMetric = "consistency." + name + ".fallback";
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public String getPolicy() {
+		return this.policy;
+	}
+	
+	/**
+	 * @return the consistent read flag for the first read
+	 */
+	public Boolean getConsistentRead() {
+		return Boolean.valueOf( CONSISTENT.equals( this.policy ) );
+	}
+	
+	/**
+	 * Counts the outcome of the first read.
+	 * 
+	 * @param found
+	 *            Whether the read found the record
+	 * @return true if the read should be repeated consistently
+	 */
+	public boolean retryOnMiss( boolean found ) {
+		if ( CONSISTENT.equals( this.policy ) ) {
+			Metrics.increment( this.consistentMetric );
+			return false;
+		}
+		
+		Metrics.increment( found ? this.hitMetric : this.missMetric );
+		return !found && this.fallback();
+	}
+	
+	/**
+	 * Counts a record that was found but doesnot match what the client proved. The record may have been read eventually consistent or served
+	 * from a cache before it was last written.
+	 * 
+	 * @return true if the record should be read again consistently
+	 */
+	public boolean retryOnMismatch() {
+		Metrics.increment( this.mismatchMetric );
+		return this.fallback();
+	}
+	
+	private boolean fallback() {
+		if ( !FALLBACK.equals( this.policy ) ) {
+			return false;
+		}
+		Metrics.increment( this.fallbackMetric );
+		return true;
+	}
+	
+	/**
+	 * @return the policy READ_CONSISTENCY sets for the operation, the default if it sets none
+	 */
+	private static String configuredPolicy( String name, String defaultPolicy ) {
+		for ( String entry : Configuration.READ_CONSISTENCY.split( "," ) ) {
+			int separator = entry.indexOf( '=' );
+			if ( separator < 0 || !name.equals( entry.substring( 0, separator ).trim() ) ) {
+				continue;
+			}
+			
+			String policy = entry.substring( separator + 1 ).trim().toLowerCase();
+			if ( CONSISTENT.equals( policy ) || EVENTUAL.equals( policy ) || FALLBACK.equals( policy ) ) {
+				return policy;
+			}
+			log.warning( "Unknown read consistency " + policy + " for " + name + ". Using default " + defaultPolicy );
+		}
+		return defaultPolicy;
+	}
+	
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.tvm.jfr.CacheEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+
+/**
+ * Bounded in-memory cache for records read from the store. Entries expire after a fixed time to live and the least recently used entries are
+ * evicted once the cache is full. The cache is split into independently locked segments so concurrent requests rarely contend.
+ * 
+ * Invalidation only reaches the cache of this instance, other instances keep serving their copy until it expires. A read that started before an
+ * invalidation must not put its result back, so readers take a stamp before reading the store and store the result with putIfCurrent.
+ */
+public class RecordCache<V> {
+	
+	private static final int SEGMENT_COUNT = 16;
+	
+	private final String name;
+	
+	private final List<Segment<V>> segments;
+	
+	private final long timeToLiveNanos;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param name
+	 *            Name of the cache, as reported in Flight Recorder events
+	 * @param maximumSize
+	 *            Maximum number of entries held by the cache, zero disables caching
+	 * @param timeToLiveMillis
+	 *            How long an entry may be served after it was stored
+	 */
+	public RecordCache( String name, int maximumSize, long timeToLiveMillis ) {
+		this.name = name;
+		this.timeToLiveNanos = timeToLiveMillis * 1000L * 1000L;
+		this.segments = new ArrayList<Segment<V>>( SEGMENT_COUNT );
+		
+		int segmentSize = ( maximumSize <= 0 ) ? 0 : Math.max( 1, maximumSize / SEGMENT_COUNT );
+		for ( int i = 0; i < SEGMENT_COUNT; i++ ) {
+			this.segments.add( new Segment<V>( segmentSize ) );
+		}
+	}
+	
+	/**
+	 * @return the cached value for key, null if absent or expired
+	 */
+	public V get( String key ) {
+		if ( null == key ) {
+			return null;
+		}
+		
+		CacheEvent event = FlightEvents.ENABLED ? new CacheEvent() : null;
+		V value = this.lookup( key );
+		if ( null != event ) {
+			event.finish( this.name, null != value );
+		}
+		return value;
+	}
+	
+	private V lookup( String key ) {
+		Segment<V> segment = this.segmentFor( key );
+		synchronized ( segment ) {
+			Entry<V> entry = segment.get( key );
+			if ( null == entry ) {
+				this.misses.incrementAndGet();
+				return null;
+			}
+			
+			if ( System.nanoTime() - entry.expiresAt > 0 ) {
+				segment.remove( key );
+				this.misses.incrementAndGet();
+				return null;
+			}
+			
+			this.hits.incrementAndGet();
+			return entry.value;
+		}
+	}
+	
+	public void put( String key, V value ) {
+		if ( null == key || null == value ) {
+			return;
+		}
+		
+		Segment<V> segment = this.segmentFor( key );
+		if ( segment.capacity == 0 ) {
+			return;
+		}
+		
+		synchronized ( segment ) {
+			segment.put( key, new Entry<V>( value, System.nanoTime() + this.timeToLiveNanos ) );
+		}
+	}
+	
+	/**
+	 * @return the stamp to pass to putIfCurrent for a value about to be read from the store
+	 */
+	public long stamp( String key ) {
+		Segment<V> segment = this.segmentFor( key );
+		synchronized ( segment ) {
+			return segment.invalidations;
+		}
+	}
+	
+	/**
+	 * Stores the value unless the key may have been invalidated since the stamp was taken. Invalidations are counted per segment, so an
+	 * invalidation of another key of the segment also prevents the put.
+	 * 
+	 * @param stamp
+	 *            The stamp taken before the value was read
+	 */
+	public void putIfCurrent( String key, V value, long stamp ) {
+		if ( null == key || null == value ) {
+			return;
+		}
+		
+		Segment<V> segment = this.segmentFor( key );
+		if ( segment.capacity == 0 ) {
+			return;
+		}
+		
+		synchronized ( segment ) {
+			if ( segment.invalidations == stamp ) {
+				segment.put( key, new Entry<V>( value, System.nanoTime() + this.timeToLiveNanos ) );
+			}
+		}
+	}
+	
+	public void invalidate( String key ) {
+		if ( null == key ) {
+			return;
+		}
+		
+		Segment<V> segment = this.segmentFor( key );
+		synchronized ( segment ) {
+			segment.remove( key );
+			segment.invalidations++;
+		}
+	}
+	
+	public void invalidateAll() {
+		for ( Segment<V> segment : this.segments ) {
+			synchronized ( segment ) {
+				segment.clear();
+				segment.invalidations++;
+			}
+		}
+	}
+	
+	public long getHitCount() {
+		return this.hits.get();
+	}
+	
+	public long getMissCount() {
+		return this.misses.get();
+	}
+	
+	private Segment<V> segmentFor( String key ) {
+		int hash = key.hashCode();
+		hash ^= ( hash >>> 16 );
+		return this.segments.get( hash & ( SEGMENT_COUNT - 1 ) );
+	}
+	
+	private static class Entry<V> {
+		
+		final V value;
+		
+		final long expiresAt;
+		
+		Entry( V value, long expiresAt ) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private static class Segment<V> extends LinkedHashMap<String, Entry<V>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		final int capacity;
+		
+		/** Number of invalidations, guarded by the segment lock */
+		long invalidations;
+		
+		Segment( int capacity ) {
+			super( 16, 0.75f, true );
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, Entry<V>> eldest ) {
+			return this.size() > this.capacity;
+		}
+	}
+	
+}
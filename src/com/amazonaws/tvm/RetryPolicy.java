@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed call is retried. Delays follow decorrelated jitter: each delay is drawn between the base delay and three
+ * times the previous delay, capped at the maximum delay. Retries are paid from a budget that every original call adds a fraction of a token to,
+ * so while a dependency is failing retries stay a small share of the traffic instead of multiplying it.
+ */
+public class RetryPolicy {
+	
+	/** Tokens a single original call adds to the budget */
+	private static final double TOKENS_PER_CALL = 0.1;
+	
+	private final int maxAttempts;
+	
+	private final long baseDelayMillis;
+	
+	private final long maxDelayMillis;
+	
+	private final double maxTokens;
+	
+	private final Random random = new Random();
+	
+	private double tokens;
+	
+	/**
+	 * @param maxAttempts
+	 *            Attempts per call, including the first one
+	 * @param baseDelayMillis
+	 *            Smallest delay before a retry
+	 * @param maxDelayMillis
+	 *            Largest delay before a retry
+	 * @param maxTokens
+	 *            Retries that can be made in a burst, the budget starts full
+	 */
+	public RetryPolicy( int maxAttempts, long baseDelayMillis, long maxDelayMillis, int maxTokens ) {
+		this.maxAttempts = Math.max( 1, maxAttempts );
+		this.baseDelayMillis = Math.max( 1, baseDelayMillis );
+		this.maxDelayMillis = Math.max( this.baseDelayMillis, maxDelayMillis );
+		this.maxTokens = maxTokens;
+		this.tokens = maxTokens;
+	}
+	
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+	
+	/**
+	 * Credits the budget for an original call.
+	 */
+	public synchronized void recordCall() {
+		this.tokens = Math.min( this.maxTokens, this.tokens + TOKENS_PER_CALL );
+	}
+	
+	/**
+	 * @return true if the budget allows one more retry, which is then paid for
+	 */
+	public synchronized boolean tryAcquireRetry() {
+		if ( this.tokens < 1 ) {
+			return false;
+		}
+		this.tokens -= 1;
+		return true;
+	}
+	
+	public synchronized double getAvailableTokens() {
+		return this.tokens;
+	}
+	
+	/**
+	 * @param previousDelayMillis
+	 *            The delay before the previous retry, 0 before the first retry
+	 * @return the delay before the next retry
+	 */
+	public long nextDelay( long previousDelayMillis ) {
+		long upper = Math.min( this.maxDelayMillis, Math.max( this.baseDelayMillis, previousDelayMillis ) * 3 );
+		if ( upper <= this.baseDelayMillis ) {
+			return this.baseDelayMillis;
+		}
+		return this.baseDelayMillis + (long) ( this.random.nextDouble() * ( upper - this.baseDelayMillis ) );
+	}
+	
+}
@@ -25,19 +25,56 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.amazonaws.tvm.jfr.FlightEvents;
+import com.amazonaws.tvm.jfr.RequestEvent;
+
 public abstract class RootServlet extends HttpServlet {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	
 	protected abstract String processRequest( HttpServletRequest request, HttpServletResponse response ) throws Exception;
 	
-	public void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException, ServletException {
+	/**
+	 * The first servlet to be initialized runs the warm-up, the others wait for it to complete.
+	 */
+	@Override
+	public void init() throws ServletException {
+		FlightEvents.register();
+		WarmUp.run();
+	}
+	
+	/**
+	 * @return false for servlets whose requests are not traced, recorded as JFR events or captured, e.g. health checks and static files
+	 */
+	protected boolean isInstrumented() {
+		return true;
+	}
+	
+	public void doGet( HttpServletRequest request, HttpServletResponse httpResponse ) throws IOException, ServletException {
+		long startNanos = System.nanoTime();
+		boolean instrumented = this.isInstrumented();
+		RequestEvent event = ( instrumented && FlightEvents.ENABLED ) ? new RequestEvent() : null;
+		Tracer.Span span = instrumented ? Tracer.startTrace( this.getClass().getSimpleName(), request.getHeader( "traceparent" ) ) : Tracer.noTrace();
+		span.setAttribute( "http.method", request.getMethod() ).setAttribute( "http.target", request.getRequestURI() );
+		
+		String traceId = Tracer.currentTraceId();
+		if ( null != traceId ) {
+			httpResponse.setHeader( "X-Trace-Id", traceId );
+		}
+		
+		Application application = Application.forRequest( request );
+		Application previous = Application.attach( application );
+		span.setAttribute( "app", application.getName() );
+		
+		StatusCapturingResponse response = new StatusCapturingResponse( httpResponse );
+		Exception failure = null;
 		try {
 			String forwardTo = null;
 			try {
 				forwardTo = this.processRequest( request, response );
 			}
 			catch ( Exception exception ) {
+				failure = exception;
 				this.handleException( request, response, exception );
 			}
 			
@@ -47,8 +84,29 @@ public abstract class RootServlet extends HttpServlet {
 			}
 		}
 		catch ( Exception exception ) {
+			failure = exception;
+			response.setStatus( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
 			throw new ServletException( exception );
 		}
+		finally {
+			span.setAttribute( "http.status_code", response.getStatus() );
+			if ( response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR ) {
+				if ( null == failure ) {
+					span.setError( "HTTP " + response.getStatus() );
+				}
+				else {
+					span.setError( failure );
+				}
+			}
+			Tracer.endTrace( span );
+			if ( null != event ) {
+				event.finish( this.getClass().getSimpleName(), application.getName(), response.getStatus(), traceId );
+			}
+			if ( instrumented ) {
+				TrafficCapture.record( request, startNanos, response.getStatus(), System.nanoTime() - startNanos );
+			}
+			Application.attach( previous );
+		}
 	}
 	
 	public void doPost( HttpServletRequest request, HttpServletResponse response ) throws IOException, ServletException {
@@ -60,6 +118,14 @@ public abstract class RootServlet extends HttpServlet {
 			log.warning( "Missing input parameter. Setting Http status code " + HttpServletResponse.SC_BAD_REQUEST );
 			this.sendErrorResponse( HttpServletResponse.SC_BAD_REQUEST, response );
 		}
+		else if ( exception instanceof com.amazonaws.tvm.ServiceUnavailableException ) {
+			int retryAfterSeconds = ( (ServiceUnavailableException) exception ).getRetryAfterSeconds();
+			if ( retryAfterSeconds > 0 ) {
+				response.setIntHeader( "Retry-After", retryAfterSeconds );
+			}
+			log.warning( "Backend unavailable: [" + exception.getMessage() + "] Setting Http status code " + HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+			this.sendErrorResponse( HttpServletResponse.SC_SERVICE_UNAVAILABLE, response );
+		}
 		else {
 			log.severe( "Unexpected exception: [" + exception.getMessage() + "] Setting Http status code " + HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
 			this.sendErrorResponse( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response );
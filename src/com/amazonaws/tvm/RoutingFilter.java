@@ -0,0 +1,252 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tells the load balancer which node of the HashRing a request belongs to, so that each device and user keeps hitting the node whose caches
+ * hold its records. The owner of the uid parameter, or of the username parameter if there is none, is returned in the X-TVM-Route header and
+ * the TVM_ROUTE cookie for the balancer to use for affinity. With RING_FORWARD a request that reached another node is passed on to its owner,
+ * and served locally if the owner cannot be reached. Requests without either parameter pass through unchanged.
+ * 
+ * A forwarded request carries the host name it was sent to in X-Forwarded-Host, which the owner uses in place of its own, see getServerName,
+ * so it selects the same app and salts passwords the same way. Apart from hop-by-hop headers, request and response headers are passed on as
+ * they are.
+ */
+public class RoutingFilter implements Filter {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	public static final String ROUTE_HEADER = "X-TVM-Route";
+	
+	public static final String ROUTE_COOKIE = "TVM_ROUTE";
+	
+	/** Set on forwarded requests so that they are never forwarded again */
+	public static final String FORWARDED_HEADER = "X-TVM-Forwarded-By";
+	
+	/** Host name the client sent a forwarded request to */
+	public static final String FORWARDED_HOST_HEADER = "X-Forwarded-Host";
+	
+	/** Headers that only concern one connection or are set for the forwarded request itself, compared in lower case */
+	private static final Set<String> NOT_FORWARDED = new HashSet<String>( Arrays.asList( "connection", "keep-alive", "proxy-authenticate",
+			"proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "host", "content-length", "content-type", "traceparent",
+			FORWARDED_HEADER.toLowerCase(), FORWARDED_HOST_HEADER.toLowerCase(), "x-forwarded-for" ) );
+	
+	public void init( FilterConfig config ) throws ServletException {
+		HashRing.getInstance();
+	}
+	
+	public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
+		HashRing ring = HashRing.getInstance();
+		String key = ( null == ring ) ? null : getRoutingKey( request );
+		String owner = ( null == key ) ? null : ring.getOwner( key );
+		if ( null == owner ) {
+			chain.doFilter( request, response );
+			return;
+		}
+		
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		httpResponse.setHeader( ROUTE_HEADER, owner );
+		httpResponse.addHeader( "Set-Cookie", ROUTE_COOKIE + "=" + owner + "; Path=/" );
+		
+		if ( owner.equals( Configuration.RING_SELF ) ) {
+			Metrics.increment( "ring.local" );
+			chain.doFilter( request, response );
+			return;
+		}
+		
+		Metrics.increment( "ring.misrouted" );
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if ( Configuration.RING_FORWARD && null == httpRequest.getHeader( FORWARDED_HEADER ) && this.forward( owner, httpRequest, httpResponse ) ) {
+			return;
+		}
+		chain.doFilter( request, response );
+	}
+	
+	public void destroy() {
+	}
+	
+	/**
+	 * @return the host name the client sent the request to, which for a request forwarded by another node is the one it received it on
+	 */
+	public static String getServerName( HttpServletRequest request ) {
+		if ( null != request.getHeader( FORWARDED_HEADER ) && !Utilities.isEmpty( request.getHeader( FORWARDED_HOST_HEADER ) ) ) {
+			return request.getHeader( FORWARDED_HOST_HEADER ).trim();
+		}
+		return request.getServerName();
+	}
+	
+	/**
+	 * Sends the request to its owner as a form POST and copies the answer into the response once it has been read in full. The forward is
+	 * traced on its own, the owner continues that trace.
+	 * 
+	 * @return true if the owner answered, false if the request still has to be served
+	 */
+	private boolean forward( String owner, HttpServletRequest request, HttpServletResponse response ) {
+		Tracer.Span span = Tracer.startTrace( "ring.forward", request.getHeader( "traceparent" ) ).setAttribute( "owner", owner );
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL( "http://" + owner + request.getRequestURI() ).openConnection();
+			connection.setConnectTimeout( Configuration.RING_FORWARD_TIMEOUT_MILLIS );
+			connection.setReadTimeout( Configuration.RING_FORWARD_TIMEOUT_MILLIS );
+			connection.setInstanceFollowRedirects( false );
+			connection.setDoOutput( true );
+			connection.setRequestMethod( "POST" );
+			for ( Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements(); ) {
+				String name = (String) names.nextElement();
+				if ( !NOT_FORWARDED.contains( name.toLowerCase() ) ) {
+					for ( Enumeration<?> values = request.getHeaders( name ); values.hasMoreElements(); ) {
+						connection.addRequestProperty( name, (String) values.nextElement() );
+					}
+				}
+			}
+			connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded; charset=UTF-8" );
+			connection.setRequestProperty( FORWARDED_HEADER, Configuration.RING_SELF );
+			connection.setRequestProperty( FORWARDED_HOST_HEADER, getServerName( request ) );
+			connection.setRequestProperty( "X-Forwarded-For", request.getRemoteAddr() );
+			String traceparent = ( null == Tracer.currentTraceparent() ) ? request.getHeader( "traceparent" ) : Tracer.currentTraceparent();
+			if ( null != traceparent ) {
+				connection.setRequestProperty( "traceparent", traceparent );
+			}
+			
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write( encodeParameters( request ).getBytes( Constants.ENCODING_FORMAT ) );
+			}
+			finally {
+				out.close();
+			}
+			
+			// the owner's answer is read in full first, a failure part way must leave the response untouched for the local fallback
+			int status = connection.getResponseCode();
+			byte[] body = readFully( ( status >= HttpServletResponse.SC_BAD_REQUEST ) ? connection.getErrorStream() : connection.getInputStream() );
+			
+			response.setStatus( status );
+			for ( Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet() ) {
+				// the status line is listed under a null name
+				if ( null == header.getKey() || NOT_FORWARDED.contains( header.getKey().toLowerCase() ) ) {
+					continue;
+				}
+				boolean first = true;
+				for ( String value : header.getValue() ) {
+					if ( first ) {
+						response.setHeader( header.getKey(), value );
+						first = false;
+					}
+					else {
+						response.addHeader( header.getKey(), value );
+					}
+				}
+			}
+			if ( null != connection.getContentType() ) {
+				response.setContentType( connection.getContentType() );
+			}
+			try {
+				response.getOutputStream().write( body );
+			}
+			catch ( IOException exception ) {
+				// the response is committed, serving the request again would only add to it
+				span.setError( exception );
+				log.log( Level.FINE, "Unable to send the answer of " + owner + " to the client", exception );
+				return true;
+			}
+			
+			span.setAttribute( "http.status_code", status );
+			Metrics.increment( "ring.forwarded" );
+			return true;
+		}
+		catch ( IOException exception ) {
+			span.setError( exception );
+			Metrics.increment( "ring.forward_failed" );
+			log.log( Level.WARNING, "Unable to forward request to " + owner + ", serving it locally", exception );
+			return false;
+		}
+		finally {
+			if ( null != connection ) {
+				connection.disconnect();
+			}
+			Tracer.endTrace( span );
+		}
+	}
+	
+	/**
+	 * @return the remaining bytes of the stream, which is closed, none if the stream is null
+	 */
+	private static byte[] readFully( InputStream in ) throws IOException {
+		if ( null == in ) {
+			return new byte[ 0 ];
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( 1024 );
+			byte[] buffer = new byte[ 4096 ];
+			int length;
+			while ( ( length = in.read( buffer ) ) != -1 ) {
+				bytes.write( buffer, 0, length );
+			}
+			return bytes.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private static String getRoutingKey( ServletRequest request ) {
+		String uid = request.getParameter( "uid" );
+		if ( !Utilities.isEmpty( uid ) ) {
+			return uid;
+		}
+		String username = request.getParameter( "username" );
+		return Utilities.isEmpty( username ) ? null : username;
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private static String encodeParameters( ServletRequest request ) {
+		StringBuilder form = new StringBuilder();
+		for ( Map.Entry<String, String[]> entry : ( (Map<String, String[]>) request.getParameterMap() ).entrySet() ) {
+			for ( String value : entry.getValue() ) {
+				if ( form.length() > 0 ) {
+					form.append( '&' );
+				}
+				form.append( Utilities.encode( entry.getKey() ) ).append( '=' ).append( Utilities.encode( value ) );
+			}
+		}
+		return form.toString();
+	}
+	
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+/**
+ * Thrown when a backend dependency cannot serve the request in time. Reported to the client as HTTP 503.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int retryAfterSeconds;
+	
+	public ServiceUnavailableException( String message, Throwable cause ) {
+		this( message, cause, 0 );
+	}
+	
+	/**
+	 * @param retryAfterSeconds
+	 *            Seconds the client should wait before trying again, 0 if unknown
+	 */
+	public ServiceUnavailableException( String message, Throwable cause, int retryAfterSeconds ) {
+		super( message, cause );
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	public int getRetryAfterSeconds() {
+		return this.retryAfterSeconds;
+	}
+}
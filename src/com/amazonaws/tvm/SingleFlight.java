@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key. The first caller runs the call on its own thread, callers arriving while it is in flight wait for
+ * and share its result or failure instead of issuing a duplicate backend request.
+ */
+public class SingleFlight<V> {
+	
+	private final ConcurrentMap<String, FutureTask<V>> calls = new ConcurrentHashMap<String, FutureTask<V>>();
+	
+	private final long timeoutMillis;
+	
+	private final AtomicLong shared = new AtomicLong();
+	
+	/**
+	 * @param timeoutMillis
+	 *            How long a caller waits for a call started by another thread
+	 */
+	public SingleFlight( long timeoutMillis ) {
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Runs call, or joins the call already in flight for key.
+	 * 
+	 * @param key
+	 *            Identifies calls that return the same result, null disables coalescing
+	 * @param call
+	 *            The backend call
+	 * @return the result of the call
+	 * @throws ServiceUnavailableException
+	 *             if the call in flight didnot complete within the timeout
+	 */
+	public V execute( String key, Callable<V> call ) {
+		if ( null == key ) {
+			return this.await( this.run( new FutureTask<V>( call ) ), false );
+		}
+		
+		FutureTask<V> task = new FutureTask<V>( call );
+		FutureTask<V> inFlight = this.calls.putIfAbsent( key, task );
+		if ( null == inFlight ) {
+			try {
+				this.run( task );
+			}
+			finally {
+				this.calls.remove( key, task );
+			}
+			return this.await( task, false );
+		}
+		
+		this.shared.incrementAndGet();
+		return this.await( inFlight, true );
+	}
+	
+	/**
+	 * @return the number of callers that were served by a call issued by another thread
+	 */
+	public long getSharedCount() {
+		return this.shared.get();
+	}
+	
+	private FutureTask<V> run( FutureTask<V> task ) {
+		task.run();
+		return task;
+	}
+	
+	private V await( FutureTask<V> task, boolean bounded ) {
+		try {
+			return bounded ? task.get( this.timeoutMillis, TimeUnit.MILLISECONDS ) : task.get();
+		}
+		catch ( ExecutionException exception ) {
+			Throwable cause = exception.getCause();
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException( cause );
+		}
+		catch ( TimeoutException exception ) {
+			throw new ServiceUnavailableException( "Timed out waiting for in-flight call", exception );
+		}
+		catch ( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException( "Interrupted waiting for in-flight call", exception );
+		}
+	}
+	
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Serves the files of a web application directory, e.g. the style sheets, from memory. Every file is also published under a name carrying a
+ * hash of its content, which pages link to through getUrl and which is cached by browsers indefinitely. Requests for the plain name must be
+ * revalidated, and both are answered with 304 when the ETag matches. A gzip variant of every file is prepared when the servlet starts.
+ */
+public class StaticResourceServlet extends RootServlet {
+	
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	
+	private static final String REVALIDATE = "public, max-age=0, must-revalidate";
+	
+	/** Length of the content hash in published file names */
+	private static final int HASH_LENGTH = 12;
+	
+	/**
+	 * Fingerprinted URL of every file served, keyed by its plain URL relative to the web application root, e.g. css/styles.css
+	 */
+	private static final Map<String, String> URLS = new ConcurrentHashMap<String, String>();
+	
+	/**
+	 * Files keyed by both plain and fingerprinted path info, e.g. /styles.css and /styles.0123456789ab.css
+	 */
+	private final Map<String, Resource> resources = new HashMap<String, Resource>();
+	
+	/**
+	 * @param path
+	 *            The plain URL of a file relative to the web application root, e.g. css/styles.css
+	 * @return the fingerprinted URL of the file, or path itself if the file is not served by a StaticResourceServlet
+	 */
+	public static String getUrl( String path ) {
+		String url = URLS.get( path );
+		return ( null == url ) ? path : url;
+	}
+	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		
+		String directory = super.getServletParameter( this, "directory" );
+		Set<?> paths = this.getServletContext().getResourcePaths( directory + "/" );
+		if ( null == paths ) {
+			log.warning( "No static resources found in " + directory );
+			return;
+		}
+		
+		try {
+			for ( Object path : paths ) {
+				String name = path.toString();
+				if ( name.endsWith( "/" ) ) {
+					continue;
+				}
+				
+				Resource resource = this.load( name );
+				String fileName = name.substring( name.lastIndexOf( '/' ) );
+				int extension = fileName.lastIndexOf( '.' );
+				String fingerprinted = ( extension > 0 ) ? fileName.substring( 0, extension ) + "." + resource.hash + fileName.substring( extension )
+						: fileName + "." + resource.hash;
+				
+				this.resources.put( fileName, resource );
+				this.resources.put( fingerprinted, resource );
+				URLS.put( name.substring( 1 ), directory.substring( 1 ) + fingerprinted );
+			}
+		}
+		catch ( Exception exception ) {
+			throw new ServletException( exception );
+		}
+	}
+	
+	/**
+	 * Static files are neither traced nor captured, replaying them would only skew the request mix
+	 */
+	@Override
+	protected boolean isInstrumented() {
+		return false;
+	}
+	
+	@Override
+	protected String processRequest( HttpServletRequest request, HttpServletResponse response ) throws Exception {
+		String pathInfo = request.getPathInfo();
+		Resource resource = ( null == pathInfo ) ? null : this.resources.get( pathInfo );
+		if ( null == resource ) {
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return null;
+		}
+		
+		boolean gzip = null != resource.gzipped && acceptsGzip( request.getHeader( "Accept-Encoding" ) );
+		String etag = "\"" + resource.hash + ( gzip ? "-gz" : "" ) + "\"";
+		
+		response.setHeader( "ETag", etag );
+		response.setHeader( "Vary", "Accept-Encoding" );
+		response.setHeader( "Cache-Control", pathInfo.contains( resource.hash ) ? IMMUTABLE : REVALIDATE );
+		
+		String ifNoneMatch = request.getHeader( "If-None-Match" );
+		if ( null != ifNoneMatch && ( ifNoneMatch.contains( etag ) || ifNoneMatch.trim().equals( "*" ) ) ) {
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+			return null;
+		}
+		
+		byte[] content = gzip ? resource.gzipped : resource.content;
+		response.setStatus( HttpServletResponse.SC_OK );
+		response.setContentType( resource.contentType );
+		if ( gzip ) {
+			response.setHeader( "Content-Encoding", "gzip" );
+		}
+		response.setContentLength( content.length );
+		
+		ServletOutputStream out = response.getOutputStream();
+		try {
+			out.write( content );
+		}
+		finally {
+			out.close();
+		}
+		return null;
+	}
+	
+	private Resource load( String path ) throws Exception {
+		InputStream in = this.getServletContext().getResourceAsStream( path );
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[ 4096 ];
+			int read;
+			while ( ( read = in.read( buffer ) ) != -1 ) {
+				content.write( buffer, 0, read );
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		String contentType = this.getServletContext().getMimeType( path );
+		if ( null == contentType ) {
+			contentType = "application/octet-stream";
+		}
+		else if ( contentType.startsWith( "text/" ) ) {
+			contentType += "; charset=UTF-8";
+		}
+		
+		return new Resource( content.toByteArray(), contentType );
+	}
+	
+	/**
+	 * @return true unless the client didnot list gzip or explicitly refused it with q=0
+	 */
+	static boolean acceptsGzip( String acceptEncoding ) {
+		if ( null == acceptEncoding ) {
+			return false;
+		}
+		for ( String coding : acceptEncoding.toLowerCase().split( "," ) ) {
+			String[] parts = coding.trim().split( ";" );
+			if ( "gzip".equals( parts[ 0 ].trim() ) ) {
+				return !( parts.length > 1 && parts[ 1 ].replace( " ", "" ).matches( "q=0(\\.0*)?" ) );
+			}
+		}
+		return false;
+	}
+	
+	private static class Resource {
+		
+		final byte[] content;
+		
+		/** Compressed content, null if compression doesnot make the file smaller */
+		final byte[] gzipped;
+		
+		final String contentType;
+		
+		final String hash;
+		
+		Resource( byte[] content, String contentType ) throws Exception {
+			this.content = content;
+			this.contentType = contentType;
+			this.hash = new String( Hex.encodeHex( MessageDigest.getInstance( "SHA-256" ).digest( content ) ) ).substring( 0, HASH_LENGTH );
+			
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream( compressed );
+			gzip.write( content );
+			gzip.close();
+			this.gzipped = ( compressed.size() < content.length ) ? compressed.toByteArray() : null;
+		}
+	}
+	
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Remembers the status code set on the wrapped response, which the servlet API before 3.0 doesnot expose.
+ */
+public class StatusCapturingResponse extends HttpServletResponseWrapper {
+	
+	private int status = HttpServletResponse.SC_OK;
+	
+	public StatusCapturingResponse( HttpServletResponse response ) {
+		super( response );
+	}
+	
+	public int getStatus() {
+		return this.status;
+	}
+	
+	@Override
+	public void setStatus( int status ) {
+		this.status = status;
+		super.setStatus( status );
+	}
+	
+	@Override
+	public void sendError( int status ) throws IOException {
+		this.status = status;
+		super.sendError( status );
+	}
+	
+	@Override
+	public void sendError( int status, String message ) throws IOException {
+		this.status = status;
+		super.sendError( status, message );
+	}
+	
+	@Override
+	public void sendRedirect( String location ) throws IOException {
+		this.status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+		super.sendRedirect( location );
+	}
+	
+}
@@ -15,35 +15,83 @@
 
 package com.amazonaws.tvm;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
 import com.amazonaws.services.securitytoken.model.Credentials;
 import com.amazonaws.services.securitytoken.model.GetFederationTokenRequest;
 import com.amazonaws.services.securitytoken.model.GetFederationTokenResult;
+import com.amazonaws.tvm.jfr.FederationEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+import com.amazonaws.tvm.local.LocalSecurityTokenService;
 
 public class TemporaryCredentialManagement {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	
-	public static Credentials getTemporaryCredentials( String username ) {
+	/**
+	 * Federation calls in flight, keyed by app and username. Devices of the same user refreshing at the same time share one STS call.
+	 */
+	private static final SingleFlight<Credentials> FEDERATION_CALLS = new SingleFlight<Credentials>( Configuration.SINGLE_FLIGHT_TIMEOUT_MILLIS );
+	
+	/**
+	 * Recently issued credentials keyed by app and username, kept outside the heap. Only used when CREDENTIALS_CACHE_SECONDS is set.
+	 */
+	private static final OffHeapStore CREDENTIALS = ( Configuration.CREDENTIALS_CACHE_SECONDS > 0 ) ? new OffHeapStore( "credentials",
+			Configuration.CREDENTIALS_CACHE_OFF_HEAP_BYTES, 4096, Configuration.CREDENTIALS_CACHE_SECONDS * 1000L ) : null;
+	
+	/**
+	 * Chooses the STS endpoint for each federation call.
+	 */
+	private static final EndpointSelector STS_ENDPOINTS = new EndpointSelector( Configuration.STS_ENDPOINTS );
+	
+	/**
+	 * Retries and circuit breaker for federation calls.
+	 */
+	private static final Dependency STS = new Dependency( "sts" );
+	
+	/**
+	 * One STS client per endpoint, shared by all requests.
+	 */
+	private static Map<String, AWSSecurityTokenService> stsClients;
+	
+	public static Credentials getTemporaryCredentials( final String username ) {
 		if ( ( Configuration.AWS_ACCESS_KEY_ID == null ) || ( Configuration.AWS_SECRET_KEY == null ) || username == null ) {
 			return null;
 		}
 		else {
+			final Application application = Application.current();
+			final String key = application.key( username );
+			Credentials cached = getCachedCredentials( key );
+			if ( null != cached ) {
+				return cached;
+			}
+			
 			try {
-				BasicAWSCredentials creds = new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY );
-				AWSSecurityTokenServiceClient sts = new AWSSecurityTokenServiceClient( creds );
-				
-				GetFederationTokenRequest getFederationTokenRequest = new GetFederationTokenRequest();
-				getFederationTokenRequest.setName( username );
-				getFederationTokenRequest.setPolicy( TemporaryCredentialManagement.getPolicyObject( username ) );
-				getFederationTokenRequest.setDurationSeconds( new Integer( Configuration.SESSION_DURATION ) );
-				
-				GetFederationTokenResult getFederationTokenResult = sts.getFederationToken( getFederationTokenRequest );
-				return getFederationTokenResult.getCredentials();
+				return FEDERATION_CALLS.execute( key, new Callable<Credentials>() {
+					public Credentials call() throws Exception {
+						Credentials credentials = getFederationToken( application, username );
+						if ( null != CREDENTIALS && null != credentials
+								&& application.getSessionDuration() >= 2 * Configuration.CREDENTIALS_CACHE_SECONDS ) {
+							CREDENTIALS.put( key, credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken(),
+									String.valueOf( credentials.getExpiration().getTime() ) );
+						}
+						return credentials;
+					}
+				} );
+			}
+			catch ( ServiceUnavailableException exception ) {
+				throw exception;
 			}
 			catch ( Exception exception ) {
 				log.log( Level.SEVERE, "Exception during getTemporaryCredentials", exception );
@@ -52,14 +100,101 @@ public class TemporaryCredentialManagement {
 		}
 	}
 	
-	protected static String getPolicyObject( String username ) throws Exception {
+	private static Credentials getCachedCredentials( String key ) {
+		String[] values = ( null == CREDENTIALS ) ? null : CREDENTIALS.get( key );
+		if ( null == values ) {
+			return null;
+		}
+		
+		return new Credentials().withAccessKeyId( values[ 0 ] ).withSecretAccessKey( values[ 1 ] ).withSessionToken( values[ 2 ] ).withExpiration(
+				new Date( Long.parseLong( values[ 3 ] ) ) );
+	}
+	
+	private static Credentials getFederationToken( final Application application, String username ) throws Exception {
+		final GetFederationTokenRequest getFederationTokenRequest = new GetFederationTokenRequest();
+		getFederationTokenRequest.setName( username );
+		getFederationTokenRequest.setPolicy( TemporaryCredentialManagement.getPolicyObject( application, username ) );
+		getFederationTokenRequest.setDurationSeconds( application.getSessionDuration() );
+		
+		return STS.call( new Callable<Credentials>() {
+			public Credentials call() {
+				return requestFederationToken( application, getFederationTokenRequest );
+			}
+		} );
+	}
+	
+	private static Credentials requestFederationToken( Application application, GetFederationTokenRequest getFederationTokenRequest ) {
+		String endpoint = STS_ENDPOINTS.select();
+		Tracer.Span span = Tracer.startSpan( "sts.GetFederationToken" ).setAttribute( "endpoint", endpoint );
+		FederationEvent event = FlightEvents.ENABLED ? new FederationEvent() : null;
+		String errorCode = null;
+		long start = System.nanoTime();
+		try {
+			GetFederationTokenResult getFederationTokenResult = getSTSClient( endpoint ).getFederationToken( getFederationTokenRequest );
+			STS_ENDPOINTS.recordSuccess( endpoint, System.nanoTime() - start );
+			return getFederationTokenResult.getCredentials();
+		}
+		catch ( AmazonServiceException exception ) {
+			errorCode = exception.getErrorCode();
+			span.setError( exception );
+			if ( exception.getErrorType() == AmazonServiceException.ErrorType.Client ) {
+				STS_ENDPOINTS.recordSuccess( endpoint, System.nanoTime() - start );
+			}
+			else {
+				STS_ENDPOINTS.recordFailure( endpoint );
+			}
+			throw exception;
+		}
+		catch ( AmazonClientException exception ) {
+			errorCode = exception.getClass().getSimpleName();
+			span.setError( exception );
+			STS_ENDPOINTS.recordFailure( endpoint );
+			throw exception;
+		}
+		finally {
+			span.end();
+			if ( null != event ) {
+				Integer duration = getFederationTokenRequest.getDurationSeconds();
+				event.finish( endpoint, application.getName(), ( null == duration ) ? 0 : duration.intValue(), errorCode );
+			}
+		}
+	}
+	
+	private synchronized static AWSSecurityTokenService getSTSClient( String endpoint ) {
+		if ( null == stsClients && Configuration.LOCAL_STANDINS ) {
+			stsClients = new HashMap<String, AWSSecurityTokenService>();
+			for ( String name : STS_ENDPOINTS.getEndpoints() ) {
+				stsClients.put( name, LocalSecurityTokenService.getInstance() );
+			}
+			log.warning( "STS replaced by the local stand-in" );
+		}
+		else if ( null == stsClients ) {
+			BasicAWSCredentials creds = new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY );
+			ClientConfiguration clientConfiguration = new ClientConfiguration();
+			clientConfiguration.setMaxErrorRetry( 0 );
+			clientConfiguration.setMaxConnections( Configuration.SDK_MAX_CONNECTIONS );
+			stsClients = new HashMap<String, AWSSecurityTokenService>();
+			for ( String name : STS_ENDPOINTS.getEndpoints() ) {
+				AWSSecurityTokenServiceClient sts = new AWSSecurityTokenServiceClient( creds, clientConfiguration );
+				sts.setEndpoint( name );
+				stsClients.put( name, sts );
+			}
+		}
+		return stsClients.get( endpoint );
+	}
+	
+	protected static String getPolicyObject( Application application, String username ) throws Exception {
         // Ensure the username is valid to prevent injection attacks.
         if ( !Utilities.isValidUsername( username ) ) {
             throw new Exception( "Invalid Username" );
         }
+        else if ( Application.getApplications().size() > 1 && !application.getPolicyTemplate().contains( "__TVM_DOMAINS__" ) ) {
+            // Without it the credentials of this app could read the user and device domains of the others.
+            throw new Exception( "Policy of app " + application.getName() + " does not deny __TVM_DOMAINS__" );
+        }
         else {
-    		return Utilities.getRawPolicyFile().replaceAll( "__USERNAME__", username ).replaceAll( "__REGION__", Configuration.SIMPLEDB_REGION ).replaceAll( "__ACCOUNT_ID__", Configuration.AWS_ACCOUNT_ID )
-	    			.replaceAll( "__USERS_DOMAIN__", Configuration.USERS_DOMAIN ).replaceAll( "__DEVICE_DOMAIN__", Configuration.DEVICE_DOMAIN );
+    		return application.getPolicyTemplate().replace( "__TVM_DOMAINS__", Application.getOwnedDomainResources() ).replaceAll( "__USERNAME__", username ).replaceAll( "__REGION__", Configuration.SIMPLEDB_REGION ).replaceAll( "__ACCOUNT_ID__", Configuration.AWS_ACCOUNT_ID )
+	    			.replaceAll( "__USERS_DOMAIN__", application.getUsersDomain() ).replaceAll( "__DEVICE_DOMAIN__", application.getDeviceDomain() );
         }
 	}
 	
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes traces on a background thread to a local file, one OTLP/JSON ExportTraceServiceRequest per line as written by the OpenTelemetry
+ * collector file exporter. The file is rotated once it exceeds the maximum size, keeping a fixed number of older files. Traces arriving while
+ * the queue is full are dropped and counted.
+ */
+public class TraceExporter {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static final int QUEUE_CAPACITY = 10000;
+	
+	private static final byte[] NEWLINE = { '\n' };
+	
+	private static final int SPAN_KIND_INTERNAL = 1;
+	
+	private static final int SPAN_KIND_SERVER = 2;
+	
+	private final File file;
+	
+	private final long maxBytes;
+	
+	private final int fileCount;
+	
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>( QUEUE_CAPACITY );
+	
+	private OutputStream out;
+	
+	private long written;
+	
+	/**
+	 * @param fileName
+	 *            The file traces are written to
+	 * @param maxBytes
+	 *            Size after which the file is rotated
+	 * @param fileCount
+	 *            Number of rotated files kept, named fileName.1 (newest) to fileName.fileCount
+	 */
+	public TraceExporter( String fileName, long maxBytes, int fileCount ) {
+		this.file = new File( fileName );
+		this.maxBytes = maxBytes;
+		this.fileCount = fileCount;
+		
+		Thread writer = new Thread( "TraceExporter" ) {
+			@Override
+			public void run() {
+				TraceExporter.this.drain();
+			}
+		};
+		writer.setDaemon( true );
+		writer.start();
+	}
+	
+	public void export( String traceId, List<Tracer.Span> spans ) {
+		if ( this.queue.offer( toJson( traceId, spans ) ) ) {
+			Metrics.increment( "tracing.exported" );
+		}
+		else {
+			Metrics.increment( "tracing.dropped" );
+		}
+	}
+	
+	private void drain() {
+		while ( true ) {
+			try {
+				String line = this.queue.take();
+				this.write( line.getBytes( Constants.ENCODING_FORMAT ) );
+				
+				// Flush once the burst has been written
+				if ( this.queue.isEmpty() && null != this.out ) {
+					this.out.flush();
+				}
+			}
+			catch ( InterruptedException exception ) {
+				return;
+			}
+			catch ( IOException exception ) {
+				log.log( Level.WARNING, "Exception writing traces to " + this.file, exception );
+				this.close();
+			}
+		}
+	}
+	
+	private void write( byte[] line ) throws IOException {
+		if ( null != this.out && this.written + line.length + 1 > this.maxBytes ) {
+			this.close();
+			this.rotate();
+		}
+		if ( null == this.out ) {
+			this.out = new FileOutputStream( this.file, true );
+			this.written = this.file.length();
+		}
+		
+		this.out.write( line );
+		this.out.write( NEWLINE );
+		this.written += line.length + 1;
+	}
+	
+	private void rotate() {
+		new File( this.file.getPath() + "." + this.fileCount ).delete();
+		for ( int i = this.fileCount - 1; i >= 1; i-- ) {
+			new File( this.file.getPath() + "." + i ).renameTo( new File( this.file.getPath() + "." + ( i + 1 ) ) );
+		}
+		if ( this.fileCount > 0 ) {
+			this.file.renameTo( new File( this.file.getPath() + ".1" ) );
+		}
+		else {
+			this.file.delete();
+		}
+	}
+	
+	private void close() {
+		if ( null != this.out ) {
+			try {
+				this.out.close();
+			}
+			catch ( IOException exception ) {
+				log.warning( "Error closing trace file" );
+			}
+			this.out = null;
+		}
+	}
+	
+	static String toJson( String traceId, List<Tracer.Span> spans ) {
+		StringBuilder json = new StringBuilder( 256 + spans.size() * 256 );
+		json.append( "{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":" );
+		appendString( json, "tvm-" + Configuration.APP_NAME );
+		json.append( "}}]},\"scopeSpans\":[{\"scope\":{\"name\":\"com.amazonaws.tvm\"},\"spans\":[" );
+		
+		for ( int i = 0; i < spans.size(); i++ ) {
+			Tracer.Span span = spans.get( i );
+			if ( i > 0 ) {
+				json.append( ',' );
+			}
+			json.append( "{\"traceId\":\"" ).append( traceId ).append( "\",\"spanId\":\"" ).append( span.spanId ).append( '"' );
+			if ( null != span.parentSpanId ) {
+				json.append( ",\"parentSpanId\":\"" ).append( span.parentSpanId ).append( '"' );
+			}
+			json.append( ",\"name\":" );
+			appendString( json, span.name );
+			json.append( ",\"kind\":" ).append( span.isRoot() ? SPAN_KIND_SERVER : SPAN_KIND_INTERNAL );
+			json.append( ",\"startTimeUnixNano\":\"" ).append( span.startEpochNanos ).append( "\",\"endTimeUnixNano\":\"" ).append(
+					span.getEndEpochNanos() ).append( '"' );
+			
+			json.append( ",\"attributes\":[" );
+			synchronized ( span.attributes ) {
+				boolean first = true;
+				for ( Map.Entry<String, Object> attribute : span.attributes.entrySet() ) {
+					if ( !first ) {
+						json.append( ',' );
+					}
+					first = false;
+					json.append( "{\"key\":" );
+					appendString( json, attribute.getKey() );
+					Object value = attribute.getValue();
+					if ( value instanceof Number ) {
+						json.append( ",\"value\":{\"intValue\":\"" ).append( ( (Number) value ).longValue() ).append( "\"}}" );
+					}
+					else if ( value instanceof Boolean ) {
+						json.append( ",\"value\":{\"boolValue\":" ).append( value ).append( "}}" );
+					}
+					else {
+						json.append( ",\"value\":{\"stringValue\":" );
+						appendString( json, String.valueOf( value ) );
+						json.append( "}}" );
+					}
+				}
+			}
+			json.append( ']' );
+			
+			if ( null != span.error ) {
+				json.append( ",\"status\":{\"code\":2,\"message\":" );
+				appendString( json, span.error );
+				json.append( '}' );
+			}
+			json.append( '}' );
+		}
+		
+		json.append( "]}]}]}" );
+		return json.toString();
+	}
+	
+	private static void appendString( StringBuilder json, String value ) {
+		json.append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch ( c ) {
+				case '"':
+					json.append( "\\\"" );
+					break;
+				case '\\':
+					json.append( "\\\\" );
+					break;
+				case '\n':
+					json.append( "\\n" );
+					break;
+				case '\r':
+					json.append( "\\r" );
+					break;
+				case '\t':
+					json.append( "\\t" );
+					break;
+				default:
+					if ( c < 0x20 ) {
+						json.append( String.format( "\\u%04x", (int) c ) );
+					}
+					else {
+						json.append( c );
+					}
+			}
+		}
+		json.append( '"' );
+	}
+	
+}
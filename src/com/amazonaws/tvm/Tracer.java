@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Lightweight request tracing. A trace is started per request and spans are opened around the interesting steps. Spans of the current request
+ * are found through a thread local, work handed to another thread carries the trace along with currentContext and attach.
+ * 
+ * All spans of a request are kept in memory until it completes. The trace is then exported if it was sampled, either by the caller through the
+ * W3C traceparent header or at TRACE_SAMPLE_RATE, or if it failed or took longer than TRACE_SLOW_MILLIS. Spans started while no trace is
+ * active cost nothing.
+ */
+public class Tracer {
+	
+	private static final ThreadLocal<Context> CURRENT = new ThreadLocal<Context>();
+	
+	private static final Random RANDOM = new Random();
+	
+	private static final Span NOOP = new Span( null, null, null, null );
+	
+	private static final TraceExporter EXPORTER = Configuration.TRACING_ENABLED ? new TraceExporter( Configuration.TRACE_FILE,
+			Configuration.TRACE_FILE_MAX_BYTES, Configuration.TRACE_FILE_COUNT ) : null;
+	
+	/**
+	 * Starts the trace of a request on the current thread and opens its root span.
+	 * 
+	 * @param name
+	 *            Name of the root span
+	 * @param traceparent
+	 *            The W3C traceparent header of the request, may be null
+	 * @return the root span, ending it with endTrace completes the trace
+	 */
+	public static Span startTrace( String name, String traceparent ) {
+		if ( null == EXPORTER ) {
+			return NOOP;
+		}
+		
+		String traceId = null;
+		String parentSpanId = null;
+		boolean sampled = RANDOM.nextDouble() < Configuration.TRACE_SAMPLE_RATE;
+		if ( null != traceparent ) {
+			String[] parts = traceparent.trim().split( "-" );
+			if ( parts.length == 4 && parts[ 1 ].matches( "[0-9a-f]{32}" ) && parts[ 2 ].matches( "[0-9a-f]{16}" ) ) {
+				traceId = parts[ 1 ];
+				parentSpanId = parts[ 2 ];
+				sampled |= parts[ 3 ].endsWith( "1" );
+			}
+		}
+		
+		Trace trace = new Trace( ( null == traceId ) ? randomHex( 16 ) : traceId, sampled );
+		Span root = new Span( trace, name, parentSpanId, null );
+		CURRENT.set( new Context( trace, root ) );
+		return root;
+	}
+	
+	/**
+	 * @return a root span that records nothing, for requests that are not traced at all
+	 */
+	public static Span noTrace() {
+		return NOOP;
+	}
+	
+	/**
+	 * Ends the root span and hands the trace to the exporter if it is kept.
+	 */
+	public static void endTrace( Span root ) {
+		CURRENT.remove();
+		if ( root == NOOP ) {
+			return;
+		}
+		
+		root.end();
+		Trace trace = root.trace;
+		long elapsedMillis = ( root.endNanos - root.startNanos ) / 1000000;
+		if ( trace.sampled || trace.failed || elapsedMillis >= Configuration.TRACE_SLOW_MILLIS ) {
+			EXPORTER.export( trace.traceId, trace.getSpans() );
+		}
+	}
+	
+	/**
+	 * Opens a span as child of the current span.
+	 * 
+	 * @param name
+	 *            Name of the span, e.g. simpledb.GetAttributes
+	 * @return the span, which must be ended
+	 */
+	public static Span startSpan( String name ) {
+		Context context = CURRENT.get();
+		if ( null == context ) {
+			return NOOP;
+		}
+		
+		Span span = new Span( context.trace, name, context.span.spanId, context );
+		CURRENT.set( new Context( context.trace, span ) );
+		return span;
+	}
+	
+	/**
+	 * @return the trace id of the request on the current thread, null if it is not traced
+	 */
+	public static String currentTraceId() {
+		Context context = CURRENT.get();
+		return ( null == context ) ? null : context.trace.traceId;
+	}
+	
+	/**
+	 * @return the W3C traceparent header continuing the current span in another process, null if the current thread is not traced
+	 */
+	public static String currentTraceparent() {
+		Context context = CURRENT.get();
+		return ( null == context ) ? null : "00-" + context.trace.traceId + "-" + context.span.spanId + ( context.trace.sampled ? "-01" : "-00" );
+	}
+	
+	/**
+	 * @return the trace position of the current thread, to be attached to a thread working on behalf of it
+	 */
+	public static Context currentContext() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Makes context the trace position of the current thread.
+	 * 
+	 * @return the previous position, to be restored with another attach once the work is done
+	 */
+	public static Context attach( Context context ) {
+		Context previous = CURRENT.get();
+		if ( null == context ) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set( context );
+		}
+		return previous;
+	}
+	
+	private static String randomHex( int bytes ) {
+		StringBuilder hex = new StringBuilder( bytes * 2 );
+		for ( int i = 0; i < bytes; i++ ) {
+			int value = RANDOM.nextInt( 256 );
+			hex.append( Character.forDigit( value >> 4, 16 ) ).append( Character.forDigit( value & 0xf, 16 ) );
+		}
+		return hex.toString();
+	}
+	
+	/**
+	 * The trace and the span work on the current thread belongs to.
+	 */
+	public static class Context {
+		
+		final Trace trace;
+		
+		final Span span;
+		
+		Context( Trace trace, Span span ) {
+			this.trace = trace;
+			this.span = span;
+		}
+	}
+	
+	static class Trace {
+		
+		final String traceId;
+		
+		final boolean sampled;
+		
+		volatile boolean failed;
+		
+		private final List<Span> spans = new ArrayList<Span>();
+		
+		Trace( String traceId, boolean sampled ) {
+			this.traceId = traceId;
+			this.sampled = sampled;
+		}
+		
+		synchronized void add( Span span ) {
+			this.spans.add( span );
+		}
+		
+		synchronized List<Span> getSpans() {
+			return new ArrayList<Span>( this.spans );
+		}
+	}
+	
+	/**
+	 * A timed step of a request.
+	 */
+	public static class Span {
+		
+		final Trace trace;
+		
+		final String name;
+		
+		final String spanId;
+		
+		final String parentSpanId;
+		
+		final long startEpochNanos;
+		
+		final long startNanos;
+		
+		long endNanos;
+		
+		String error;
+		
+		final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		
+		private final Context previous;
+		
+		Span( Trace trace, String name, String parentSpanId, Context previous ) {
+			this.trace = trace;
+			this.name = name;
+			this.spanId = ( null == trace ) ? null : randomHex( 8 );
+			this.parentSpanId = parentSpanId;
+			this.previous = previous;
+			this.startEpochNanos = System.currentTimeMillis() * 1000000;
+			this.startNanos = System.nanoTime();
+		}
+		
+		public Span setAttribute( String key, Object value ) {
+			if ( null != this.trace ) {
+				synchronized ( this.attributes ) {
+					this.attributes.put( key, value );
+				}
+			}
+			return this;
+		}
+		
+		/**
+		 * Marks the span, and with it the trace, as failed.
+		 */
+		public Span setError( Throwable throwable ) {
+			return this.setError( throwable.getClass().getSimpleName() + ": " + throwable.getMessage() );
+		}
+		
+		public Span setError( String message ) {
+			if ( null != this.trace ) {
+				this.error = message;
+				this.trace.failed = true;
+			}
+			return this;
+		}
+		
+		/**
+		 * Ends the span and makes its parent the current span again.
+		 */
+		public void end() {
+			if ( null == this.trace || this.endNanos != 0 ) {
+				return;
+			}
+			
+			this.endNanos = System.nanoTime();
+			this.trace.add( this );
+			if ( null != this.previous && CURRENT.get() != null && CURRENT.get().span == this ) {
+				CURRENT.set( this.previous );
+			}
+		}
+		
+		/**
+		 * @return true for the span covering the whole request
+		 */
+		boolean isRoot() {
+			return null == this.previous;
+		}
+		
+		long getEndEpochNanos() {
+			return this.startEpochNanos + ( this.endNanos - this.startNanos );
+		}
+	}
+	
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Records the shape and timing of every request to CAPTURE_FILE, so real traffic can be replayed by com.amazonaws.tvm.local.TrafficReplay.
+ * Parameter values are never recorded. For each request the file holds:
+ * <ul>
+ * <li>the servlet path and method</li>
+ * <li>the name and length of each parameter. Only the names the servlets read are kept, any other parameter is recorded as "other" with the
+ * lengths added up, so clients cannot grow the name table with made-up names</li>
+ * <li>the offset of the timestamp parameter from the server clock</li>
+ * <li>the response status</li>
+ * <li>the handling time</li>
+ * <li>the time since the previous request arrived</li>
+ * </ul>
+ * 
+ * Records are written by a background thread in a compact binary format. Names are written once and referred to by index after that, and
+ * numbers are variable length. A file starts with the magic number and format version. Requests arriving while the queue is full are not
+ * recorded and are counted as capture.dropped.
+ */
+public class TrafficCapture {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static final int MAGIC = 0x54564d43;
+	
+	private static final int VERSION = 1;
+	
+	private static final int QUEUE_CAPACITY = 10000;
+	
+	private static final int FLAG_POST = 1;
+	
+	private static final int FLAG_TIMESTAMP_SKEW = 2;
+	
+	/** Parameter names recorded as they are */
+	private static final Set<String> PARAMETERS = new HashSet<String>( Arrays.asList( "uid", "username", "timestamp", "signature", "ticket",
+			"accessKey", "password" ) );
+	
+	/** Name recorded in place of any other parameter */
+	private static final String OTHER = "other";
+	
+	private static final TrafficCapture INSTANCE = Utilities.isEmpty( Configuration.CAPTURE_FILE ) ? null : new TrafficCapture(
+			Configuration.CAPTURE_FILE );
+	
+	private final String fileName;
+	
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>( QUEUE_CAPACITY );
+	
+	private TrafficCapture( String fileName ) {
+		this.fileName = fileName;
+		
+		Thread writer = new Thread( "TrafficCapture" ) {
+			@Override
+			public void run() {
+				TrafficCapture.this.drain();
+			}
+		};
+		writer.setDaemon( true );
+		writer.start();
+		log.info( "Capturing traffic to " + fileName );
+	}
+	
+	public static boolean isEnabled() {
+		return null != INSTANCE;
+	}
+	
+	/**
+	 * Queues the shape of a handled request for writing. Does nothing unless capture is enabled.
+	 * 
+	 * @param request
+	 *            The request
+	 * @param arrivalNanos
+	 *            System.nanoTime() when the request arrived
+	 * @param status
+	 *            The response status
+	 * @param elapsedNanos
+	 *            Time taken to handle the request
+	 */
+	public static void record( HttpServletRequest request, long arrivalNanos, int status, long elapsedNanos ) {
+		if ( null == INSTANCE ) {
+			return;
+		}
+		
+		String endpoint = request.getServletPath();
+		Record record = new Record( Utilities.isEmpty( endpoint ) ? request.getRequestURI() : endpoint, "POST".equalsIgnoreCase( request
+				.getMethod() ), status, elapsedNanos / 1000 );
+		record.arrivalMicros = arrivalNanos / 1000;
+		
+		Enumeration<?> names = request.getParameterNames();
+		while ( names.hasMoreElements() ) {
+			String name = (String) names.nextElement();
+			String value = request.getParameter( name );
+			int length = ( null == value ) ? 0 : value.length();
+			if ( PARAMETERS.contains( name ) ) {
+				record.parameters.put( name, length );
+			}
+			else {
+				Integer other = record.parameters.get( OTHER );
+				record.parameters.put( OTHER, ( null == other ) ? length : other + length );
+			}
+		}
+		
+		String timestamp = request.getParameter( "timestamp" );
+		if ( null != timestamp ) {
+			try {
+				long requestMillis = System.currentTimeMillis() - elapsedNanos / 1000000;
+				record.timestampSkewSeconds = (int) ( ( new DateUtils().parseIso8601Date( timestamp ).getTime() - requestMillis ) / 1000 );
+			}
+			catch ( ParseException exception ) {
+				// Unparseable timestamps are replayed as such
+			}
+		}
+		
+		if ( !INSTANCE.queue.offer( record ) ) {
+			Metrics.increment( "capture.dropped" );
+		}
+	}
+	
+	/**
+	 * Reads all records of a capture file.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not a capture file; a record cut short at the end of the file is ignored
+	 */
+	public static List<Record> read( String fileName ) throws IOException {
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( fileName ) ) );
+		try {
+			if ( in.readInt() != MAGIC || in.readUnsignedByte() != VERSION ) {
+				throw new IOException( fileName + " is not a version " + VERSION + " capture file" );
+			}
+			
+			List<Record> records = new ArrayList<Record>();
+			List<String> names = new ArrayList<String>();
+			long arrivalMicros = 0;
+			while ( true ) {
+				long interArrivalMicros;
+				try {
+					interArrivalMicros = unZigZag( readVarLong( in ) );
+				}
+				catch ( EOFException exception ) {
+					return records;
+				}
+				
+				try {
+					arrivalMicros += interArrivalMicros;
+					String endpoint = readName( in, names );
+					int flags = in.readUnsignedByte();
+					Map<String, Integer> parameters = new LinkedHashMap<String, Integer>();
+					for ( long count = readVarLong( in ); count > 0; count-- ) {
+						parameters.put( readName( in, names ), (int) readVarLong( in ) );
+					}
+					Integer timestampSkewSeconds = ( ( flags & FLAG_TIMESTAMP_SKEW ) == 0 ) ? null : (int) unZigZag( readVarLong( in ) );
+					int status = (int) readVarLong( in );
+					
+					Record record = new Record( endpoint, ( flags & FLAG_POST ) != 0, status, readVarLong( in ) );
+					record.parameters.putAll( parameters );
+					record.timestampSkewSeconds = timestampSkewSeconds;
+					record.arrivalMicros = arrivalMicros;
+					records.add( record );
+				}
+				catch ( EOFException exception ) {
+					log.warning( "Ignoring incomplete last record of " + fileName );
+					return records;
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private static String readName( DataInputStream in, List<String> names ) throws IOException {
+		int index = (int) readVarLong( in );
+		if ( index == names.size() ) {
+			names.add( in.readUTF() );
+		}
+		else if ( index > names.size() ) {
+			throw new IOException( "Malformed name reference in capture file" );
+		}
+		return names.get( index );
+	}
+	
+	private void drain() {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( this.fileName ) ) );
+			out.writeInt( MAGIC );
+			out.writeByte( VERSION );
+			
+			Map<String, Integer> names = new HashMap<String, Integer>();
+			long previousArrivalMicros = -1;
+			while ( true ) {
+				Record record = this.queue.take();
+				long interArrivalMicros = ( previousArrivalMicros < 0 ) ? 0 : record.arrivalMicros - previousArrivalMicros;
+				previousArrivalMicros = record.arrivalMicros;
+				
+				// Records are queued as requests complete, so a request may have arrived before the previous one
+				writeVarLong( out, zigZag( interArrivalMicros ) );
+				writeName( out, names, record.endpoint );
+				out.writeByte( ( record.post ? FLAG_POST : 0 ) | ( ( null == record.timestampSkewSeconds ) ? 0 : FLAG_TIMESTAMP_SKEW ) );
+				writeVarLong( out, record.parameters.size() );
+				for ( Map.Entry<String, Integer> parameter : record.parameters.entrySet() ) {
+					writeName( out, names, parameter.getKey() );
+					writeVarLong( out, parameter.getValue() );
+				}
+				if ( null != record.timestampSkewSeconds ) {
+					writeVarLong( out, zigZag( record.timestampSkewSeconds ) );
+				}
+				writeVarLong( out, record.status );
+				writeVarLong( out, record.latencyMicros );
+				Metrics.increment( "capture.recorded" );
+				
+				// Flush once the burst has been written
+				if ( this.queue.isEmpty() ) {
+					out.flush();
+				}
+			}
+		}
+		catch ( InterruptedException exception ) {
+			return;
+		}
+		catch ( IOException exception ) {
+			log.log( Level.WARNING, "Exception writing captured traffic to " + this.fileName + ", capture stopped", exception );
+		}
+		finally {
+			if ( null != out ) {
+				try {
+					out.close();
+				}
+				catch ( IOException ignored ) {
+					// Nothing more to write
+				}
+			}
+		}
+	}
+	
+	private static void writeName( DataOutputStream out, Map<String, Integer> names, String name ) throws IOException {
+		Integer index = names.get( name );
+		if ( null == index ) {
+			writeVarLong( out, names.size() );
+			out.writeUTF( name );
+			names.put( name, names.size() );
+		}
+		else {
+			writeVarLong( out, index );
+		}
+	}
+	
+	private static void writeVarLong( DataOutputStream out, long value ) throws IOException {
+		while ( ( value & ~0x7fL ) != 0 ) {
+			out.writeByte( (int) ( ( value & 0x7f ) | 0x80 ) );
+			value >>>= 7;
+		}
+		out.writeByte( (int) value );
+	}
+	
+	private static long readVarLong( DataInputStream in ) throws IOException {
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (long) ( b & 0x7f ) << shift;
+			if ( ( b & 0x80 ) == 0 ) {
+				return value;
+			}
+		}
+		throw new IOException( "Malformed number in capture file" );
+	}
+	
+	private static long zigZag( long value ) {
+		return ( value << 1 ) ^ ( value >> 63 );
+	}
+	
+	private static long unZigZag( long value ) {
+		return ( value >>> 1 ) ^ -( value & 1 );
+	}
+	
+	/**
+	 * The recorded shape of one request.
+	 */
+	public static class Record {
+		
+		private final String endpoint;
+		
+		private final boolean post;
+		
+		private final Map<String, Integer> parameters = new LinkedHashMap<String, Integer>();
+		
+		private Integer timestampSkewSeconds;
+		
+		private final int status;
+		
+		private final long latencyMicros;
+		
+		private long arrivalMicros;
+		
+		Record( String endpoint, boolean post, int status, long latencyMicros ) {
+			this.endpoint = endpoint;
+			this.post = post;
+			this.status = status;
+			this.latencyMicros = latencyMicros;
+		}
+		
+		/**
+		 * @return the servlet path, e.g. /gettoken
+		 */
+		public String getEndpoint() {
+			return this.endpoint;
+		}
+		
+		public boolean isPost() {
+			return this.post;
+		}
+		
+		/**
+		 * @return parameter name to value length, in request order
+		 */
+		public Map<String, Integer> getParameters() {
+			return Collections.unmodifiableMap( this.parameters );
+		}
+		
+		/**
+		 * @return seconds the timestamp parameter was ahead of the server clock, null if there was none or it couldnot be parsed
+		 */
+		public Integer getTimestampSkewSeconds() {
+			return this.timestampSkewSeconds;
+		}
+		
+		public int getStatus() {
+			return this.status;
+		}
+		
+		public long getLatencyMicros() {
+			return this.latencyMicros;
+		}
+		
+		/**
+		 * @return arrival time relative to the first recorded request, in microseconds
+		 */
+		public long getArrivalMicros() {
+			return this.arrivalMicros;
+		}
+	}
+	
+}
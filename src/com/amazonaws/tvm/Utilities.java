@@ -18,7 +18,6 @@ package com.amazonaws.tvm;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.security.SecureRandom;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.logging.Level;
@@ -34,12 +33,13 @@ import org.apache.commons.codec.binary.Hex;
 import com.amazonaws.services.securitytoken.model.Credentials;
 import com.amazonaws.util.DateUtils;
 import com.amazonaws.util.HttpUtils;
+import com.amazonaws.tvm.jfr.CryptoEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
 
 public class Utilities {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	private static String RAW_POLICY_OBJECT = null;
-	private static SecureRandom RANDOM = new SecureRandom();
 	
 	public static String prepareJsonResponseForTokens( Credentials sessionCredentials, String key ) throws Exception {
 		
@@ -56,10 +56,17 @@ public class Utilities {
 	}
 	
 	public static String prepareJsonResponseForKey( String data, String key ) throws Exception {
+		return prepareJsonResponseForKey( data, null, key );
+	}
+	
+	public static String prepareJsonResponseForKey( String data, String ticket, String key ) throws Exception {
 		
 		StringBuilder responseBody = new StringBuilder();
 		responseBody.append( "{" );
 		responseBody.append( "\tkey: \"" ).append( data ).append( "\"" );
+		if ( null != ticket ) {
+			responseBody.append( ",\tticket: \"" ).append( ticket ).append( "\"" );
+		}
 		responseBody.append( "}" );
 		
 		// Encrypting the response
@@ -67,6 +74,7 @@ public class Utilities {
 	}
 	
 	public static String sign( String content, String key ) {
+		CryptoEvent event = FlightEvents.ENABLED ? new CryptoEvent() : null;
 		try {
 			byte[] data = content.getBytes( Constants.ENCODING_FORMAT );
 			Mac mac = Mac.getInstance( Constants.SIGNATURE_METHOD );
@@ -77,11 +85,16 @@ public class Utilities {
 		catch ( Exception exception ) {
 			log.log( Level.SEVERE, "Exception during sign", exception );
 		}
+		finally {
+			if ( null != event ) {
+				event.finish( "hmac.sign", content.length() );
+			}
+		}
 		return null;
 	}
 	
 	public static String getSaltedPassword( String username, String endPointUri, String password ) {
-		return sign( ( username + Configuration.APP_NAME + endPointUri.toLowerCase() ), password );
+		return sign( ( username + Application.current().getName() + endPointUri.toLowerCase() ), password );
 	}
 	
 	public static String base64( String data ) throws UnsupportedEncodingException {
@@ -94,7 +107,7 @@ public class Utilities {
 			return null;
 		}
 		else {
-            String endpoint = request.getServerName().toLowerCase();
+            String endpoint = RoutingFilter.getServerName( request ).toLowerCase();
 			log.info( "Endpoint : " + encode( endpoint ) );
 			return endpoint;
 		}
@@ -128,7 +141,7 @@ public class Utilities {
 	}
 	
     public static String generateRandomString() {
-		byte[] randomBytes = RANDOM.generateSeed( 16 );
+		byte[] randomBytes = RandomPool.next128();
 		String randomString = new String( Hex.encodeHex( randomBytes ) );
 		return randomString;
 	}
@@ -170,36 +183,48 @@ public class Utilities {
 	public static String getRawPolicyFile() {
 		
 		if ( RAW_POLICY_OBJECT == null ) {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream( 8196 );
-			InputStream in = null;
+			RAW_POLICY_OBJECT = getRawPolicyFile( "/TokenVendingMachinePolicy.json" );
+		}
+		
+		return RAW_POLICY_OBJECT;
+	}
+	
+	/**
+	 * @param resource
+	 *            Class path resource of the policy template
+	 * @return the policy template, empty if it cannot be read
+	 */
+	public static String getRawPolicyFile( String resource ) {
+		String policy;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream( 8196 );
+		InputStream in = null;
+		try {
+			in = Utilities.class.getResourceAsStream( resource );
+			byte[] buffer = new byte[ 1024 ];
+			int length = 0;
+			while ( ( length = in.read( buffer ) ) != -1 ) {
+				baos.write( buffer, 0, length );
+			}
+			
+			policy = baos.toString();
+		}
+		catch ( Exception exception ) {
+			log.log( Level.SEVERE, "Unable to load policy object.", exception );
+			policy = "";
+		}
+		finally {
 			try {
-				in = Utilities.class.getResourceAsStream( "/TokenVendingMachinePolicy.json" );
-				byte[] buffer = new byte[ 1024 ];
-				int length = 0;
-				while ( ( length = in.read( buffer ) ) != -1 ) {
-					baos.write( buffer, 0, length );
-				}
-				
-				RAW_POLICY_OBJECT = baos.toString();
+				baos.close();
+				in.close();
 			}
 			catch ( Exception exception ) {
-				log.log( Level.SEVERE, "Unable to load policy object.", exception );
-				RAW_POLICY_OBJECT = "";
-			}
-			finally {
-				try {
-					baos.close();
-					in.close();
-				}
-				catch ( Exception exception ) {
-					log.log( Level.SEVERE, "Unable to close streams.", exception );
-				}
-				in = null;
-				baos = null;
+				log.log( Level.SEVERE, "Unable to close streams.", exception );
 			}
+			in = null;
+			baos = null;
 		}
 		
-		return RAW_POLICY_OBJECT;
+		return policy;
 	}
 	
 	/**
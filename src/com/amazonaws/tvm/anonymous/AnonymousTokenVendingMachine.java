@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.anonymous;
+
+import static com.amazonaws.tvm.Utilities.encode;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_REQUEST_TIMEOUT;
+import static javax.servlet.http.HttpServletResponse.SC_UNAUTHORIZED;
+
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.IssuedCredentials;
+import com.amazonaws.tvm.RandomPool;
+import com.amazonaws.tvm.TemporaryCredentialManagement;
+import com.amazonaws.tvm.TokenVendingMachine;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Utilities;
+
+/**
+ * This class implements functions for Anonymous mode. Anybody can register a device and get tokens for it. Device keys are derived from a master
+ * secret by DeviceKeyDerivation rather than stored, so neither registration nor token requests read or write SimpleDB. All devices share the
+ * federated user ANONYMOUS_USERNAME.
+ * 
+ * As the key of a UID can be derived again at any time, registration never hands out the key of a UID a device may already use. It appends a
+ * random suffix to the requested UID and returns the key of that new UID, which the device uses from then on. Seeing a UID in a token request
+ * therefore gives nobody its key, registering the same UID again yields a different one.
+ */
+public class AnonymousTokenVendingMachine implements TokenVendingMachine {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/** Longest UID a device may ask for, leaving room for the separator and the 32 hex digits of the suffix */
+	private static final int MAX_REQUESTED_UID_LENGTH = 128 - 33;
+	
+	private final DeviceKeyDerivation keys = DeviceKeyDerivation.getInstance();
+	
+	/** The device and key of the last token request validated by this instance */
+	private String validatedUid;
+	
+	private String validatedKey;
+	
+	/**
+	 * Checks the UID of a device that registers. There is nothing to store, the key is derived again when the device asks for tokens.
+	 * 
+	 * @param uid
+	 *            Unique device identifier, 1 to 95 letters, digits, underscores (_), hyphens (-) or periods (.)
+	 * @param key
+	 *            Ignored, the key is derived by the Token Vending Machine and returned by getKey
+	 * @return status code indicating if the registration was successful or not
+	 */
+	public int registerDevice( String uid, String key ) throws Exception {
+		if ( !isValidUID( uid ) ) {
+			log.warning( "UID : " + encode( uid ) + " not valid. Setting Http status code " + SC_BAD_REQUEST );
+			return SC_BAD_REQUEST;
+		}
+		return SC_OK;
+	}
+	
+	/**
+	 * Users donot register in Anonymous mode.
+	 */
+	public int registerUser( String username, String password, String endpoint ) throws Exception {
+		return SC_BAD_REQUEST;
+	}
+	
+	/**
+	 * Verify if the token request is valid. The timestamp is checked to see it falls within the valid timestamp window and the signature is
+	 * matched against the keys the device may hold. No store is read.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @param signature
+	 *            HMAC-SHA256 signature derived from key and timestamp
+	 * @param timestamp
+	 *            Timestamp of the request in ISO8601 format
+	 * @return status code indicating if token request is valid or not
+	 */
+	public int validateTokenRequest( String uid, String signature, String timestamp ) throws Exception {
+		if ( !Utilities.isTimestampValid( timestamp ) ) {
+			log.warning( "Timestamp : " + encode( timestamp ) + " not valid. Setting Http status code " + SC_REQUEST_TIMEOUT );
+			return SC_REQUEST_TIMEOUT;
+		}
+		
+		String key = this.keys.findKey( uid, timestamp, signature );
+		if ( null == key ) {
+			log.warning( "Client signature doesnot match any key of the device. Setting Http status code " + SC_UNAUTHORIZED );
+			return SC_UNAUTHORIZED;
+		}
+		
+		this.validatedUid = uid;
+		this.validatedKey = key;
+		return SC_OK;
+	}
+	
+	/**
+	 * Generate tokens for given UID, encrypted with the key the device signed its request with.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @return encrypted tokens as JSON object
+	 */
+	public String getToken( String uid ) throws Exception {
+		String key = uid.equals( this.validatedUid ) ? this.validatedKey : this.keys.getKey( uid );
+		
+		Credentials sessionCredentials = TemporaryCredentialManagement.getTemporaryCredentials( Configuration.ANONYMOUS_USERNAME );
+		if ( null == sessionCredentials ) {
+			return null;
+		}
+		
+		log.info( "Generating session tokens for UID : " + encode( uid ) );
+		String data = Utilities.prepareJsonResponseForTokens( sessionCredentials, key );
+		IssuedCredentials.record( uid, sessionCredentials );
+		return data;
+	}
+	
+	/**
+	 * @return seconds until the key of the last validated token request stops being accepted, 0 if no request was validated
+	 */
+	public long getValidatedKeyLifetimeSeconds() {
+		return ( null == this.validatedKey ) ? 0L : this.keys.getKeyLifetimeSeconds( this.validatedUid, this.validatedKey );
+	}
+	
+	/**
+	 * There is no login in Anonymous mode.
+	 */
+	public int validateLoginRequest( String username, String uid, String signature, String timestamp ) throws Exception {
+		return SC_BAD_REQUEST;
+	}
+	
+	/**
+	 * Hands out a new UID made of the registered one and a random suffix, with its key and the seconds the key stays valid for. The key is not
+	 * encrypted as the device has no secret yet, so it must only be served over HTTPS.
+	 * 
+	 * @param username
+	 *            Ignored in Anonymous mode
+	 * @param uid
+	 *            The UID the device registered
+	 * @return UID and key as JSON object
+	 */
+	public String getKey( String username, String uid ) throws Exception {
+		String deviceUid = uid + "." + new String( Hex.encodeHex( RandomPool.next128() ) );
+		StringBuilder responseBody = new StringBuilder();
+		responseBody.append( "{" );
+		responseBody.append( "\tuid: \"" ).append( deviceUid ).append( "\"," );
+		responseBody.append( "\tkey: \"" ).append( this.keys.getKey( deviceUid ) ).append( "\"," );
+		responseBody.append( "\texpiresIn: \"" ).append( this.keys.getKeyLifetimeSeconds() ).append( "\"" );
+		responseBody.append( "}" );
+		return responseBody.toString();
+	}
+	
+	private static boolean isValidUID( String uid ) {
+		int length = uid.length();
+		if ( length < 1 || length > MAX_REQUESTED_UID_LENGTH ) {
+			return false;
+		}
+		
+		for ( int i = 0; i < length; i++ ) {
+			char c = uid.charAt( i );
+			if ( !Character.isLetterOrDigit( c ) && '_' != c && '-' != c && '.' != c ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.anonymous;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.jfr.CryptoEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+
+/**
+ * Derives the key of a device from a master secret instead of storing it. The key of a UID in a given epoch is the first 128 bits of
+ * HMAC-SHA256( master, uid + ":" + epoch ), hex encoded like the random keys of Identity mode. New keys are derived from the first master secret
+ * in the current epoch. A key stays valid for a number of epochs, and keys derived from any of the configured master secrets are accepted, so a
+ * master secret is rotated by putting the new one first and removing the old one once its keys have expired.
+ */
+public class DeviceKeyDerivation {
+	
+	private static DeviceKeyDerivation instance;
+	
+	private final List<SecretKeySpec> masterKeys;
+	
+	private final long epochMillis;
+	
+	private final int epochs;
+	
+	/** One initialized Mac per master secret and thread, so deriving a key never contends */
+	private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>() {
+		@Override
+		protected Mac[] initialValue() {
+			try {
+				Mac[] values = new Mac[ masterKeys.size() ];
+				for ( int i = 0; i < values.length; i++ ) {
+					values[ i ] = Mac.getInstance( Constants.SIGNATURE_METHOD );
+					values[ i ].init( masterKeys.get( i ) );
+				}
+				return values;
+			}
+			catch ( Exception exception ) {
+				throw new IllegalStateException( "Unable to initialize " + Constants.SIGNATURE_METHOD, exception );
+			}
+		}
+	};
+	
+	public synchronized static DeviceKeyDerivation getInstance() {
+		if ( null == instance ) {
+			instance = new DeviceKeyDerivation( Configuration.ANONYMOUS_MASTER_KEYS, Configuration.ANONYMOUS_KEY_EPOCH_SECONDS,
+					Configuration.ANONYMOUS_KEY_EPOCHS );
+		}
+		return instance;
+	}
+	
+	/**
+	 * @param masterKeys
+	 *            Comma separated master secrets, the one new keys are derived from first
+	 * @param epochSeconds
+	 *            Length of an epoch in seconds
+	 * @param epochs
+	 *            Number of epochs a key is valid for, including the one it was derived in
+	 */
+	public DeviceKeyDerivation( String masterKeys, long epochSeconds, int epochs ) {
+		List<SecretKeySpec> keys = new ArrayList<SecretKeySpec>();
+		for ( String masterKey : masterKeys.split( "," ) ) {
+			if ( !Utilities.isEmpty( masterKey ) ) {
+				try {
+					keys.add( new SecretKeySpec( masterKey.trim().getBytes( Constants.ENCODING_FORMAT ), Constants.SIGNATURE_METHOD ) );
+				}
+				catch ( Exception exception ) {
+					throw new IllegalStateException( "Unable to encode master secret", exception );
+				}
+			}
+		}
+		
+		if ( keys.isEmpty() ) {
+			throw new IllegalArgumentException( "At least one master secret is required" );
+		}
+		if ( epochSeconds <= 0 || epochs <= 0 ) {
+			throw new IllegalArgumentException( "Epoch length and count must be positive" );
+		}
+		
+		this.masterKeys = Collections.unmodifiableList( keys );
+		this.epochMillis = epochSeconds * 1000L;
+		this.epochs = epochs;
+	}
+	
+	/**
+	 * @return the key handed out to the device now
+	 */
+	public String getKey( String uid ) {
+		return this.derive( 0, uid, this.currentEpoch() );
+	}
+	
+	/**
+	 * Finds the valid key the device signed the content with. Keys of the current epoch and master secret are tried first, so only devices
+	 * that registered before a rotation or an epoch change cost more than one derivation.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @param content
+	 *            The signed content, i.e. the timestamp of the request
+	 * @param signature
+	 *            HMAC-SHA256 signature sent by the device
+	 * @return the key that produces the signature, null if there is none
+	 */
+	public String findKey( String uid, String content, String signature ) {
+		long epoch = this.currentEpoch();
+		for ( int i = 0; i < this.epochs; i++ ) {
+			for ( int master = 0; master < this.masterKeys.size(); master++ ) {
+				String key = this.derive( master, uid, epoch - i );
+				if ( Utilities.slowStringComparison( signature, Utilities.sign( content, key ) ) ) {
+					return key;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return seconds until the key handed out now stops being accepted
+	 */
+	public long getKeyLifetimeSeconds() {
+		long now = System.currentTimeMillis();
+		long expires = ( now / this.epochMillis + this.epochs ) * this.epochMillis;
+		return ( expires - now ) / 1000L;
+	}
+	
+	/**
+	 * @param uid
+	 *            Unique device identifier
+	 * @param key
+	 *            A key of the device, e.g. the one returned by findKey
+	 * @return seconds until the key stops being accepted, 0 if it is not accepted any more
+	 */
+	public long getKeyLifetimeSeconds( String uid, String key ) {
+		long now = System.currentTimeMillis();
+		long epoch = now / this.epochMillis;
+		for ( int i = 0; i < this.epochs; i++ ) {
+			for ( int master = 0; master < this.masterKeys.size(); master++ ) {
+				if ( key.equals( this.derive( master, uid, epoch - i ) ) ) {
+					return ( ( epoch - i + this.epochs ) * this.epochMillis - now ) / 1000L;
+				}
+			}
+		}
+		return 0L;
+	}
+	
+	private long currentEpoch() {
+		return System.currentTimeMillis() / this.epochMillis;
+	}
+	
+	private String derive( int master, String uid, long epoch ) {
+		CryptoEvent event = FlightEvents.ENABLED ? new CryptoEvent() : null;
+		try {
+			byte[] digest = this.macs.get()[ master ].doFinal( ( uid + ":" + epoch ).getBytes( Constants.ENCODING_FORMAT ) );
+			return new String( Hex.encodeHex( digest ) ).substring( 0, 32 );
+		}
+		catch ( Exception exception ) {
+			throw new IllegalStateException( "Unable to derive device key", exception );
+		}
+		finally {
+			if ( null != event ) {
+				event.finish( "key.derive", uid.length() );
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.anonymous;
+
+import static com.amazonaws.tvm.Utilities.encode;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.MissingParameterException;
+import com.amazonaws.tvm.RootServlet;
+
+/**
+ * Registers a device in Anonymous mode and responds with its new UID and derived key. The key travels unencrypted, so requests that did not
+ * arrive over HTTPS, directly or through a load balancer setting X-Forwarded-Proto, are answered with HTTP 403 unless
+ * ANONYMOUS_REGISTER_OVER_HTTP is set. Answers HTTP 404 in Identity mode.
+ */
+public class RegisterDeviceServlet extends RootServlet {
+	
+	@Override
+	protected String processRequest( HttpServletRequest request, HttpServletResponse response ) throws Exception {
+		if ( !Configuration.ANONYMOUS_MODE ) {
+			super.sendErrorResponse( HttpServletResponse.SC_NOT_FOUND, response );
+			return null;
+		}
+		
+		if ( !isSecure( request ) && !Configuration.ANONYMOUS_REGISTER_OVER_HTTP ) {
+			log.warning( "Device registration over plain HTTP refused. Setting Http status code " + HttpServletResponse.SC_FORBIDDEN );
+			super.sendErrorResponse( HttpServletResponse.SC_FORBIDDEN, response );
+			return null;
+		}
+		
+		try {
+			AnonymousTokenVendingMachine anonymousTokenVendingMachine = new AnonymousTokenVendingMachine();
+			
+			String uid = super.getRequiredParameter( request, "uid" );
+			
+			int responseCode = anonymousTokenVendingMachine.registerDevice( uid, null );
+			if ( responseCode != HttpServletResponse.SC_OK ) {
+				super.sendErrorResponse( responseCode, response );
+				return null;
+			}
+			
+			log.info( "Device : " + encode( uid ) + " registered" );
+			super.sendOKResponse( response, anonymousTokenVendingMachine.getKey( null, uid ) );
+		}
+		catch ( MissingParameterException exception ) {
+			super.sendErrorResponse( HttpServletResponse.SC_BAD_REQUEST, response );
+		}
+		return null;
+	}
+	
+	private static boolean isSecure( HttpServletRequest request ) {
+		return request.isSecure() || "https".equalsIgnoreCase( request.getHeader( "X-Forwarded-Proto" ) );
+	}
+	
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.binary;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.LoadSheddingFilter;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+
+/**
+ * Alternative listener for device fleets that keep a connection open and send many small requests. Every message is a frame made of a 4 byte
+ * big-endian length followed by that many bytes.
+ * 
+ * <pre>
+ * request  : int requestId, byte operation, fields as DataOutput.writeUTF strings (see BinaryRequestHandler)
+ * response : int requestId, short status, payload
+ * </pre>
+ * 
+ * Requests may be pipelined. They are run on the executor as soon as they are read, so responses come back in completion order and are matched
+ * to their request by id. The status is the HTTP status code the servlet would have answered with. A single selector thread does all socket I/O;
+ * reading from a connection pauses while BINARY_MAX_IN_FLIGHT of its requests are still running. A frame that is too long or too short closes
+ * the connection.
+ * 
+ * Each request goes through the LoadSheddingFilter of the HTTP endpoint it stands for before it is handled, so binary and HTTP requests share
+ * the same bulkheads and priorities. A request that is shed is answered with status 503.
+ */
+public class BinaryProtocolServer {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/** Request id and operation */
+	private static final int MIN_FRAME_BYTES = 5;
+	
+	private final Executor executor;
+	
+	private final BinaryRequestHandler handler = new BinaryRequestHandler();
+	
+	private final Selector selector;
+	
+	private final ServerSocketChannel serverChannel;
+	
+	private final Set<Connection> connections = Collections.newSetFromMap( new ConcurrentHashMap<Connection, Boolean>() );
+	
+	/** Connections whose interest set must be updated by the selector thread */
+	private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+	
+	private Thread thread;
+	
+	private volatile boolean running;
+	
+	/**
+	 * @param port
+	 *            Port to listen on
+	 * @param executor
+	 *            Runs the decoded requests, normally the one the HTTP endpoints use
+	 */
+	public BinaryProtocolServer( int port, Executor executor ) throws IOException {
+		this.executor = executor;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress( true );
+		this.serverChannel.socket().bind( new InetSocketAddress( port ) );
+		this.serverChannel.configureBlocking( false );
+		this.serverChannel.register( this.selector, SelectionKey.OP_ACCEPT );
+		
+		Metrics.registerGauge( "binary.connections", new Metrics.Gauge() {
+			public long getValue() {
+				return connections.size();
+			}
+		} );
+	}
+	
+	public int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+	
+	public synchronized void start() {
+		this.running = true;
+		this.thread = new Thread( new Runnable() {
+			public void run() {
+				select();
+			}
+		}, "BinaryProtocolServer-selector" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+		log.info( "Binary protocol listening on port " + this.getPort() );
+	}
+	
+	public synchronized void stop() {
+		this.running = false;
+		this.selector.wakeup();
+		if ( null != this.thread ) {
+			try {
+				this.thread.join( 5000 );
+			}
+			catch ( InterruptedException exception ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private void select() {
+		while ( this.running ) {
+			try {
+				this.selector.select();
+				
+				Connection connection;
+				while ( null != ( connection = this.pending.poll() ) ) {
+					connection.resume();
+				}
+				
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( !key.isValid() ) {
+						continue;
+					}
+					
+					if ( key.isAcceptable() ) {
+						this.accept();
+						continue;
+					}
+					
+					connection = (Connection) key.attachment();
+					try {
+						if ( key.isReadable() ) {
+							connection.read();
+						}
+						if ( key.isValid() && key.isWritable() ) {
+							connection.write();
+						}
+					}
+					catch ( IOException exception ) {
+						connection.close();
+					}
+				}
+			}
+			catch ( IOException exception ) {
+				log.log( Level.WARNING, "Binary protocol selector failed", exception );
+			}
+		}
+		
+		for ( Connection connection : new ArrayList<Connection>( this.connections ) ) {
+			connection.close();
+		}
+		try {
+			this.serverChannel.close();
+			this.selector.close();
+		}
+		catch ( IOException exception ) {
+			log.log( Level.WARNING, "Unable to close binary protocol listener", exception );
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = this.serverChannel.accept();
+		if ( null == channel ) {
+			return;
+		}
+		if ( this.connections.size() >= Configuration.BINARY_MAX_CONNECTIONS ) {
+			Metrics.increment( "binary.rejected" );
+			channel.close();
+			return;
+		}
+		
+		channel.configureBlocking( false );
+		channel.socket().setTcpNoDelay( true );
+		Connection connection = new Connection( channel );
+		this.connections.add( connection );
+		Metrics.increment( "binary.opened" );
+	}
+	
+	/**
+	 * State of a single client connection. Only the selector thread touches the channel and the read buffer; workers hand their responses over
+	 * through the write queue.
+	 */
+	private class Connection {
+		
+		private final SocketChannel channel;
+		
+		private final SelectionKey key;
+		
+		/** Kept in write mode between reads */
+		private final ByteBuffer in = ByteBuffer.allocate( 4 + Configuration.BINARY_MAX_FRAME_BYTES );
+		
+		private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		
+		private final AtomicInteger inFlight = new AtomicInteger();
+		
+		Connection( SocketChannel channel ) throws IOException {
+			this.channel = channel;
+			this.key = channel.register( selector, SelectionKey.OP_READ, this );
+		}
+		
+		void read() throws IOException {
+			if ( this.channel.read( this.in ) < 0 ) {
+				this.close();
+				return;
+			}
+			this.dispatch();
+		}
+		
+		/**
+		 * Hands every complete frame in the read buffer to the executor, as long as the in-flight limit allows.
+		 */
+		private void dispatch() {
+			this.in.flip();
+			try {
+				while ( this.in.remaining() >= 4 && this.inFlight.get() < Configuration.BINARY_MAX_IN_FLIGHT ) {
+					int length = this.in.getInt( this.in.position() );
+					if ( length < MIN_FRAME_BYTES || length > Configuration.BINARY_MAX_FRAME_BYTES ) {
+						Metrics.increment( "binary.bad_frame" );
+						this.close();
+						return;
+					}
+					if ( this.in.remaining() < 4 + length ) {
+						break;
+					}
+					
+					this.in.getInt();
+					byte[] frame = new byte[ length ];
+					this.in.get( frame );
+					if ( !this.submit( frame ) ) {
+						this.close();
+						return;
+					}
+				}
+			}
+			finally {
+				this.in.compact();
+			}
+			this.updateInterest();
+		}
+		
+		private boolean submit( final byte[] frame ) {
+			final LoadSheddingFilter shedding = LoadSheddingFilter.forEndpoint( BinaryRequestHandler.getEndpoint( frame ) );
+			this.inFlight.incrementAndGet();
+			try {
+				executor.execute( new Runnable() {
+					public void run() {
+						ByteBuffer response;
+						if ( null == shedding ) {
+							response = handler.handle( frame );
+						}
+						else if ( shedding.admit() ) {
+							try {
+								response = handler.handle( frame );
+							}
+							finally {
+								shedding.release();
+							}
+						}
+						else {
+							response = handler.reject( frame, HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+						}
+						out.add( response );
+						inFlight.decrementAndGet();
+						pending.add( Connection.this );
+						selector.wakeup();
+					}
+				} );
+				return true;
+			}
+			catch ( RejectedExecutionException exception ) {
+				this.inFlight.decrementAndGet();
+				Metrics.increment( "binary.rejected" );
+				return false;
+			}
+		}
+		
+		void write() throws IOException {
+			ByteBuffer buffer;
+			while ( null != ( buffer = this.out.peek() ) ) {
+				this.channel.write( buffer );
+				if ( buffer.hasRemaining() ) {
+					// Socket buffer is full, wait for OP_WRITE
+					return;
+				}
+				this.out.poll();
+			}
+			this.updateInterest();
+		}
+		
+		/**
+		 * Called on the selector thread after a request completed: frames held back by the in-flight limit are dispatched and the response is
+		 * written.
+		 */
+		void resume() {
+			if ( !this.key.isValid() ) {
+				return;
+			}
+			if ( this.in.position() > 0 ) {
+				this.dispatch();
+			}
+			try {
+				this.write();
+			}
+			catch ( IOException exception ) {
+				this.close();
+			}
+		}
+		
+		private void updateInterest() {
+			if ( !this.key.isValid() ) {
+				return;
+			}
+			int ops = ( this.inFlight.get() < Configuration.BINARY_MAX_IN_FLIGHT ) ? SelectionKey.OP_READ : 0;
+			if ( !this.out.isEmpty() ) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			this.key.interestOps( ops );
+		}
+		
+		void close() {
+			if ( connections.remove( this ) ) {
+				Metrics.increment( "binary.closed" );
+			}
+			this.key.cancel();
+			try {
+				this.channel.close();
+			}
+			catch ( IOException exception ) {
+				// Nothing left to do with this connection
+			}
+		}
+	}
+	
+}
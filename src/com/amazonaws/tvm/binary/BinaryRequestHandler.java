@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.binary;
+
+import static com.amazonaws.tvm.Utilities.encode;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.tvm.Application;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.IssuedCredentials;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.ServiceUnavailableException;
+import com.amazonaws.tvm.TokenVendingMachine;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Tracer;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.anonymous.AnonymousTokenVendingMachine;
+import com.amazonaws.tvm.identity.IdentityTokenVendingMachine;
+import com.amazonaws.tvm.jfr.FlightEvents;
+import com.amazonaws.tvm.jfr.RequestEvent;
+
+/**
+ * Decodes a binary protocol request, runs it through the same token vending machine logic as the servlets and encodes the response. See
+ * BinaryProtocolServer for the framing.
+ */
+class BinaryRequestHandler {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/** Fields: app, uid, timestamp, signature, ticket, accessKey. Ticket and accessKey may be empty */
+	static final byte GET_TOKEN = 1;
+	
+	/** Fields: app, username, uid, timestamp, signature */
+	static final byte LOGIN = 2;
+	
+	/**
+	 * Fields: app, uid. Always refused with 403: the anonymous device key is returned unencrypted and the binary listener is plain TCP, so
+	 * devices register over HTTPS at /registerdevice.
+	 */
+	static final byte REGISTER_DEVICE = 3;
+	
+	private static final String[] OPERATION_NAMES = { null, "GetToken", "Login", "RegisterDevice" };
+	
+	/** Names of the LoadSheddingFilter of the HTTP endpoint each operation stands for, refused operations need none */
+	private static final String[] ENDPOINTS = { null, "gettoken", "login", null };
+	
+	private static final byte[] EMPTY = new byte[ 0 ];
+	
+	/**
+	 * @param frame
+	 *            The request frame without its length prefix
+	 * @return the response frame, ready to be written
+	 */
+	ByteBuffer handle( byte[] frame ) {
+		RequestEvent event = FlightEvents.ENABLED ? new RequestEvent() : null;
+		Metrics.increment( "binary.requests" );
+		
+		int requestId = 0;
+		Reply reply;
+		String operationName = "Unknown";
+		Application application = null;
+		Application previous = Application.attach( null );
+		Tracer.Span span = null;
+		try {
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( frame ) );
+			requestId = in.readInt();
+			byte operation = in.readByte();
+			if ( operation > 0 && operation < OPERATION_NAMES.length ) {
+				operationName = OPERATION_NAMES[ operation ];
+			}
+			
+			span = Tracer.startTrace( "Binary" + operationName, null );
+			application = Application.forName( in.readUTF() );
+			if ( null == application ) {
+				reply = new Reply( HttpServletResponse.SC_NOT_FOUND );
+			}
+			else {
+				Application.attach( application );
+				span.setAttribute( "app", application.getName() );
+				reply = this.execute( operation, in );
+			}
+		}
+		catch ( IOException exception ) {
+			// Truncated or malformed fields
+			reply = new Reply( HttpServletResponse.SC_BAD_REQUEST );
+		}
+		catch ( ServiceUnavailableException exception ) {
+			log.warning( "Backend unavailable: [" + exception.getMessage() + "] Setting status code " + HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+			reply = new Reply( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+		}
+		catch ( Exception exception ) {
+			log.log( Level.SEVERE, "Unexpected exception handling binary " + operationName, exception );
+			reply = new Reply( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+		}
+		finally {
+			Application.attach( previous );
+		}
+		
+		if ( reply.status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR ) {
+			Metrics.increment( "binary.errors" );
+		}
+		if ( null != span ) {
+			span.setAttribute( "status", reply.status );
+			if ( reply.status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR ) {
+				span.setError( Constants.getMsg( reply.status ) );
+			}
+			Tracer.endTrace( span );
+		}
+		if ( null != event ) {
+			event.finish( "Binary" + operationName, ( null == application ) ? null : application.getName(), reply.status, null );
+		}
+		
+		return toFrame( requestId, reply );
+	}
+	
+	/**
+	 * @return the response frame answering the request with the status and no payload
+	 */
+	ByteBuffer reject( byte[] frame, int status ) {
+		Metrics.increment( "binary.requests" );
+		Metrics.increment( "binary.shed" );
+		return toFrame( ByteBuffer.wrap( frame ).getInt( 0 ), new Reply( status ) );
+	}
+	
+	/**
+	 * @return the name of the HTTP endpoint the request stands for, null if the operation is unknown
+	 */
+	static String getEndpoint( byte[] frame ) {
+		byte operation = frame[ 4 ];
+		return ( operation > 0 && operation < ENDPOINTS.length ) ? ENDPOINTS[ operation ] : null;
+	}
+	
+	private static ByteBuffer toFrame( int requestId, Reply reply ) {
+		ByteBuffer response = ByteBuffer.allocate( 10 + reply.payload.length );
+		response.putInt( 6 + reply.payload.length ).putInt( requestId ).putShort( (short) reply.status ).put( reply.payload );
+		response.flip();
+		return response;
+	}
+	
+	private Reply execute( byte operation, DataInputStream in ) throws Exception {
+		switch ( operation ) {
+			case GET_TOKEN:
+				return this.getToken( in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF() );
+			case LOGIN:
+				return this.login( in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF() );
+			case REGISTER_DEVICE:
+				return this.registerDevice( in.readUTF() );
+			default:
+				return new Reply( HttpServletResponse.SC_BAD_REQUEST );
+		}
+	}
+	
+	/**
+	 * Same as /gettoken. The encrypted credentials are sent as raw bytes instead of Base64, a 304 carries their expiration in epoch milliseconds.
+	 */
+	private Reply getToken( String uid, String timestamp, String signature, String ticket, String accessKey ) throws Exception {
+		if ( Utilities.isEmpty( uid ) || Utilities.isEmpty( timestamp ) || Utilities.isEmpty( signature ) ) {
+			return new Reply( HttpServletResponse.SC_BAD_REQUEST );
+		}
+		
+		TokenVendingMachine tokenVendingMachine = Configuration.ANONYMOUS_MODE ? new AnonymousTokenVendingMachine()
+				: new IdentityTokenVendingMachine();
+		int responseCode;
+		if ( tokenVendingMachine instanceof IdentityTokenVendingMachine && !Utilities.isEmpty( ticket ) ) {
+			responseCode = ( (IdentityTokenVendingMachine) tokenVendingMachine ).validateTicketRequest( uid, ticket, signature, timestamp );
+		}
+		else {
+			responseCode = tokenVendingMachine.validateTokenRequest( uid, signature, timestamp );
+		}
+		if ( responseCode != HttpServletResponse.SC_OK ) {
+			log.warning( "Error validating binary token request for UID : " + encode( uid ) );
+			return new Reply( responseCode );
+		}
+		
+		long expiration = IssuedCredentials.getUnexpiredExpiration( uid, accessKey );
+		if ( expiration > 0 ) {
+			Metrics.increment( "gettoken.not_modified" );
+			return new Reply( HttpServletResponse.SC_NOT_MODIFIED, ByteBuffer.allocate( 8 ).putLong( expiration ).array() );
+		}
+		
+		return this.encrypted( tokenVendingMachine.getToken( uid ) );
+	}
+	
+	/**
+	 * Same as /login, the encrypted key is sent as raw bytes instead of Base64.
+	 */
+	private Reply login( String username, String uid, String timestamp, String signature ) throws Exception {
+		if ( Utilities.isEmpty( username ) || Utilities.isEmpty( uid ) || Utilities.isEmpty( timestamp ) || Utilities.isEmpty( signature ) ) {
+			return new Reply( HttpServletResponse.SC_BAD_REQUEST );
+		}
+		
+		IdentityTokenVendingMachine identityTokenVendingMachine = new IdentityTokenVendingMachine();
+		int responseCode = identityTokenVendingMachine.validateLoginRequest( username, uid, signature, timestamp );
+		if ( responseCode != HttpServletResponse.SC_OK ) {
+			log.warning( "Error validating binary login request for username : " + encode( username ) );
+			return new Reply( responseCode );
+		}
+		
+		return this.encrypted( identityTokenVendingMachine.getKey( username, uid ) );
+	}
+	
+	/**
+	 * The key document of /registerdevice is the only secret the device has, and it is not encrypted. It must not cross a plain TCP connection.
+	 */
+	private Reply registerDevice( String uid ) {
+		Metrics.increment( "binary.register_refused" );
+		return new Reply( Configuration.ANONYMOUS_MODE ? HttpServletResponse.SC_FORBIDDEN : HttpServletResponse.SC_NOT_FOUND );
+	}
+	
+	private Reply encrypted( String data ) {
+		if ( null == data ) {
+			return new Reply( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+		}
+		return new Reply( HttpServletResponse.SC_OK, Base64.decodeBase64( data ) );
+	}
+	
+	private static class Reply {
+		
+		final int status;
+		
+		final byte[] payload;
+		
+		Reply( int status ) {
+			this( status, EMPTY );
+		}
+		
+		Reply( int status, byte[] payload ) {
+			this.status = status;
+			this.payload = payload;
+		}
+	}
+	
+}
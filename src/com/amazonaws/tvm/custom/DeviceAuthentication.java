@@ -16,14 +16,17 @@
 package com.amazonaws.tvm.custom;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
 import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
@@ -35,8 +38,15 @@ import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.tvm.Application;
 import com.amazonaws.tvm.Configuration;
 import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.DomainPartitioner;
+import com.amazonaws.tvm.OffHeapStore;
+import com.amazonaws.tvm.ReadConsistency;
+import com.amazonaws.tvm.RecordCache;
+import com.amazonaws.tvm.ServiceUnavailableException;
+import com.amazonaws.tvm.SingleFlight;
 import com.amazonaws.tvm.TokenVendingMachineLogger;
 
 /**
@@ -46,12 +56,12 @@ public class DeviceAuthentication {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	
-	private final AmazonSimpleDBClient sdb;
+	private final StoreClient sdb;
 	
 	/**
-	 * Constant for the Domain name used to store the identities.
+	 * The apps whose identity domains are known to exist, so the check runs once per app and instance rather than once per request.
 	 */
-	private final static String IDENTITY_DOMAIN = Configuration.DEVICE_DOMAIN;
+	private static final Set<String> domainsCreated = Collections.synchronizedSet( new HashSet<String>() );
 	
 	/**
 	 * Constant for the key attribute.
@@ -64,63 +74,227 @@ public class DeviceAuthentication {
 	private final static String USERID = "userid";
 	
 	/**
-	 * Constant select expression used to list all the identities stored in the Domain.
+	 * Device records keyed by app and UID, shared by all requests.
 	 */
-	private final static String SELECT_DEVICE_EXPRESSION = "select * from " + IDENTITY_DOMAIN;
+	private final static RecordCache<Map<String, String>> DEVICES = new RecordCache<Map<String, String>>( "devices",
+			Configuration.RECORD_CACHE_MAX_ENTRIES, Configuration.RECORD_CACHE_TTL_SECONDS * 1000L );
+	
+	/**
+	 * Replaces DEVICES when DEVICE_CACHE_OFF_HEAP_BYTES is set, holding the key and userid of each device outside the heap.
+	 */
+	private final static OffHeapStore OFF_HEAP_DEVICES = ( Configuration.DEVICE_CACHE_OFF_HEAP_BYTES > 0 ) ? new OffHeapStore( "devices",
+			Configuration.DEVICE_CACHE_OFF_HEAP_BYTES, 256, Configuration.RECORD_CACHE_TTL_SECONDS * 1000L ) : null;
+	
+	/**
+	 * Whether the latest consistent read of a device found it, keyed by app and UID. Entries live for READ_CONFIRM_MILLIS.
+	 */
+	private final static RecordCache<Boolean> CONFIRMED_DEVICES = new RecordCache<Boolean>( "devices.confirmed",
+			Configuration.RECORD_CACHE_MAX_ENTRIES, Configuration.READ_CONFIRM_MILLIS );
+	
+	/**
+	 * Device reads in flight, keyed by app and UID.
+	 */
+	private final static SingleFlight<Map<String, String>> DEVICE_READS = new SingleFlight<Map<String, String>>( Configuration.SINGLE_FLIGHT_TIMEOUT_MILLIS );
 	
 	/**
 	 * Looks up domain name and creates one if it doesnot exist
 	 */
 	public DeviceAuthentication() {
-		this.sdb = new AmazonSimpleDBClient( new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY ) );
+		this.sdb = StoreClient.getInstance();
 		
-		if ( !this.doesDomainExist( IDENTITY_DOMAIN ) ) {
-			this.createIdentityDomain();
+		if ( !domainsCreated.contains( Application.current().getName() ) ) {
+			this.createMissingDomains();
 		}
 	}
 	
 	/**
 	 * @return the list of device ID (UID) stored in the identity domain.
 	 */
-	public List<String> listDevices() {
-		List<String> users = new ArrayList<String>( 1000 );
+	public List<String> listDevices() throws Exception {
+		DomainPartitioner.DomainTask<List<String>> select = new DomainPartitioner.DomainTask<List<String>>() {
+			public List<String> run( String domain ) {
+				List<String> uids = new ArrayList<String>();
+				SelectResult result = null;
+				do {
+					SelectRequest sr = new SelectRequest( "select * from `" + domain + "`", ReadConsistency.DEVICE_LIST.getConsistentRead() );
+					sr.setNextToken( ( result == null ) ? null : result.getNextToken() );
+					result = sdb.select( sr );
+					
+					for ( Item item : result.getItems() ) {
+						uids.add( item.getName() );
+					}
+				}
+				while ( result.getNextToken() != null );
+				return uids;
+			}
+		};
 		
-		SelectResult result = null;
-		SelectRequest sr = new SelectRequest( SELECT_DEVICE_EXPRESSION, Boolean.TRUE );
-		result = this.sdb.select( sr );
+		LinkedHashSet<String> users = new LinkedHashSet<String>( 1000 );
+		for ( List<String> uids : identityDomains().forEachDomain( select ) ) {
+			users.addAll( uids );
+		}
+		if ( null != previousIdentityDomains() ) {
+			for ( List<String> uids : previousIdentityDomains().forEachDomain( select ) ) {
+				users.addAll( uids );
+			}
+		}
 		
-		for ( Item item : result.getItems() ) {
-			users.add( item.getName() );
+		return new ArrayList<String>( users );
+	}
+	
+	/**
+	 * Returns device attributes for given device ID (UID). The record may be served from the cache of this instance, so a key regenerated through
+	 * another instance is only seen here once the cached record expires after RECORD_CACHE_TTL_SECONDS.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @return unmodifiable map of attributes for the given uid, shared with other callers
+	 */
+	public Map<String, String> getDevice( final String uid ) {
+		Map<String, String> cached = getCachedDevice( uid );
+		if ( null != cached ) {
+			return cached;
+		}
+		if ( Boolean.FALSE.equals( CONFIRMED_DEVICES.get( Application.current().key( uid ) ) ) ) {
+			// Read consistently and not found moments ago
+			return Collections.emptyMap();
 		}
 		
-		return users;
+		return DEVICE_READS.execute( Application.current().key( uid ), new Callable<Map<String, String>>() {
+			public Map<String, String> call() {
+				return readDevice( uid, ReadConsistency.DEVICE_READ );
+			}
+		} );
 	}
 	
 	/**
-	 * Returns device attributes for given device ID (UID)
+	 * Reads the key of the device consistently, bypassing the cache. Used after the cached or eventually consistent key didnot match, as the
+	 * device may have logged in and got a new key since. The cached record is replaced once the read returns. A device read consistently
+	 * within the last READ_CONFIRM_MILLIS is not read again, the key already checked is current.
 	 * 
 	 * @param uid
 	 *            Unique device identifier
+	 * @return key associated with UID, null if not found or already confirmed
+	 */
+	public String getConfirmedKey( String uid ) {
+		if ( null != CONFIRMED_DEVICES.get( Application.current().key( uid ) ) ) {
+			return null;
+		}
+		return this.readDevice( uid, Boolean.TRUE ).get( KEY );
+	}
+	
+	/**
+	 * Reads the device with the consistency of the operation, repeating the read consistently if the policy says so.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @param consistency
+	 *            The read consistency policy of the calling operation
 	 * @return list of attributes for the given uid
 	 */
-	public Map<String, String> getDevice( String uid ) {
-		
-		Map<String, String> result = new HashMap<String, String>();
+	private Map<String, String> readDevice( String uid, ReadConsistency consistency ) {
+		Map<String, String> result = this.readDevice( uid, consistency.getConsistentRead() );
+		if ( consistency.retryOnMiss( !result.isEmpty() ) && null == CONFIRMED_DEVICES.get( Application.current().key( uid ) ) ) {
+			result = this.readDevice( uid, Boolean.TRUE );
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads device attributes for given device ID (UID) from the identity domain and refreshes the cached record. The outcome of a consistent
+	 * read is remembered for READ_CONFIRM_MILLIS, and a device it doesnot find is dropped from the cache.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @param consistentRead
+	 *            Whether the read is consistent
+	 * @return list of attributes for the given uid
+	 */
+	private Map<String, String> readDevice( String uid, Boolean consistentRead ) {
+		// Taken before the read, so a record read before a concurrent invalidation is not cached
+		long stamp = deviceStamp( uid );
+		long confirmStamp = CONFIRMED_DEVICES.stamp( Application.current().key( uid ) );
 		
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, uid ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> list = this.sdb.getAttributes( gar ).getAttributes();
+		List<Attribute> list = null;
+		for ( String domain : this.getDomainsFor( uid ) ) {
+			GetAttributesRequest gar = new GetAttributesRequest( domain, uid ).withConsistentRead( consistentRead );
+			list = this.sdb.getAttributes( gar ).getAttributes();
+			if ( null != list && !list.isEmpty() ) {
+				break;
+			}
+		}
 		
-		if ( null == list || list.isEmpty() ) {
-			return result;
+		boolean found = null != list && !list.isEmpty();
+		if ( Boolean.TRUE.equals( consistentRead ) ) {
+			CONFIRMED_DEVICES.putIfCurrent( Application.current().key( uid ), Boolean.valueOf( found ), confirmStamp );
+		}
+		if ( !found ) {
+			if ( Boolean.TRUE.equals( consistentRead ) ) {
+				dropCachedDevice( uid );
+			}
+			return Collections.emptyMap();
 		}
 		
+		Map<String, String> result = new HashMap<String, String>();
 		for ( Attribute attribute : list ) {
 			result.put( attribute.getName(), attribute.getValue() );
 		}
 		
+		result = Collections.unmodifiableMap( result );
+		cacheDevice( uid, result, stamp );
 		return result;
 	}
 	
+	private static Map<String, String> getCachedDevice( String uid ) {
+		if ( null == OFF_HEAP_DEVICES ) {
+			return DEVICES.get( Application.current().key( uid ) );
+		}
+		
+		String[] values = OFF_HEAP_DEVICES.get( Application.current().key( uid ) );
+		if ( null == values ) {
+			return null;
+		}
+		
+		Map<String, String> device = new HashMap<String, String>();
+		if ( null != values[ 0 ] ) {
+			device.put( KEY, values[ 0 ] );
+		}
+		if ( null != values[ 1 ] ) {
+			device.put( USERID, values[ 1 ] );
+		}
+		return Collections.unmodifiableMap( device );
+	}
+	
+	private static long deviceStamp( String uid ) {
+		if ( null == OFF_HEAP_DEVICES ) {
+			return DEVICES.stamp( Application.current().key( uid ) );
+		}
+		return OFF_HEAP_DEVICES.stamp( Application.current().key( uid ) );
+	}
+	
+	private static void cacheDevice( String uid, Map<String, String> device, long stamp ) {
+		if ( null == OFF_HEAP_DEVICES ) {
+			DEVICES.putIfCurrent( Application.current().key( uid ), device, stamp );
+		}
+		else {
+			OFF_HEAP_DEVICES.putIfCurrent( Application.current().key( uid ), stamp, device.get( KEY ), device.get( USERID ) );
+		}
+	}
+	
+	private static void invalidateDevice( String uid ) {
+		CONFIRMED_DEVICES.invalidate( Application.current().key( uid ) );
+		dropCachedDevice( uid );
+	}
+	
+	private static void dropCachedDevice( String uid ) {
+		if ( null == OFF_HEAP_DEVICES ) {
+			DEVICES.invalidate( Application.current().key( uid ) );
+		}
+		else {
+			OFF_HEAP_DEVICES.invalidate( Application.current().key( uid ) );
+		}
+	}
+	
 	/**
 	 * Attempts to register the UID, Key and userid combination. Returns true if successful, false otherwise. Useful in Identity mode.
 	 * 
@@ -133,6 +307,7 @@ public class DeviceAuthentication {
 	 * @return true if device registration was successful, false otherwise
 	 */
 	public boolean registerDevice( String uid, String key, String userid ) {
+		invalidateDevice( uid );
 		try {
 			String existingUserId = getUserId( uid );
 			if ( null != existingUserId && !existingUserId.equals( userid ) ) {
@@ -141,6 +316,9 @@ public class DeviceAuthentication {
 			this.storeDevice( uid, key, userid );
 			return this.authenticateDevice( uid, key );
 		}
+		catch ( ServiceUnavailableException exception ) {
+			throw exception;
+		}
 		catch ( Exception exception ) {
 			log.log( Level.WARNING, "Exception during registerDevice", exception );
 			return false;
@@ -154,8 +332,11 @@ public class DeviceAuthentication {
 	 *            Unique device identifier
 	 */
 	public void deleteDevice( String uid ) {
-		DeleteAttributesRequest dar = new DeleteAttributesRequest( IDENTITY_DOMAIN, uid );
-		this.sdb.deleteAttributes( dar );
+		for ( String domain : this.getDomainsFor( uid ) ) {
+			DeleteAttributesRequest dar = new DeleteAttributesRequest( domain, uid );
+			this.sdb.deleteAttributes( dar );
+		}
+		invalidateDevice( uid );
 	}
 	
 	/**
@@ -169,11 +350,9 @@ public class DeviceAuthentication {
 	 * @return true if authentication was successful, false otherwise
 	 */
 	public boolean authenticateDevice( String UID, String Key ) {
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, UID ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
-		if ( data != null && !data.isEmpty() ) {
-			Attribute passwordAttribute = this.findAttributeInList( KEY, data );
-			return passwordAttribute.getValue().equals( Key );
+		Map<String, String> device = this.readDevice( UID, ReadConsistency.DEVICE_VERIFY );
+		if ( !device.isEmpty() ) {
+			return Key.equals( device.get( KEY ) );
 		}
 		else {
 			return false;
@@ -201,12 +380,24 @@ public class DeviceAuthentication {
 		attributes.add( useridAttr );
 		
 		try {
-			PutAttributesRequest par = new PutAttributesRequest( IDENTITY_DOMAIN, uid, attributes );
+			List<String> domains = this.getDomainsFor( uid );
+			PutAttributesRequest par = new PutAttributesRequest( domains.get( 0 ), uid, attributes );
 			this.sdb.putAttributes( par );
+			
+			// Drop the copy in the layout being resharded away from so it cannot shadow or overwrite this write
+			for ( String previousDomain : domains.subList( 1, domains.size() ) ) {
+				this.sdb.deleteAttributes( new DeleteAttributesRequest( previousDomain, uid ) );
+			}
+		}
+		catch ( ServiceUnavailableException exception ) {
+			throw exception;
 		}
 		catch ( Exception exception ) {
 			log.log( Level.WARNING, "Exception during storeDevice", exception );
 		}
+		finally {
+			invalidateDevice( uid );
+		}
 	}
 	
 	/**
@@ -240,15 +431,7 @@ public class DeviceAuthentication {
 			return null;
 		}
 		
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, UID ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
-		if ( data != null && !data.isEmpty() ) {
-			Attribute keyAttribute = this.findAttributeInList( KEY, data );
-			return keyAttribute.getValue();
-		}
-		else {
-			return null;
-		}
+		return this.getDevice( UID ).get( KEY );
 	}
 	
 	/**
@@ -263,22 +446,69 @@ public class DeviceAuthentication {
 			return null;
 		}
 		
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, UID ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
-		if ( data != null && !data.isEmpty() ) {
-			Attribute keyAttribute = this.findAttributeInList( USERID, data );
-			return keyAttribute.getValue();
+		return this.getDevice( UID ).get( USERID );
+	}
+	
+	/**
+	 * Used to create an Identity Domain. This function only needs to be called once per domain.
+	 */
+	protected void createIdentityDomain( String domainName ) {
+		this.sdb.createDomain( new CreateDomainRequest( domainName ) );
+	}
+	
+	/**
+	 * Creates every identity domain, including partitions, that doesnot exist yet
+	 */
+	protected void createMissingDomains() {
+		List<String> required = new ArrayList<String>( identityDomains().getDomains() );
+		if ( null != previousIdentityDomains() ) {
+			required.addAll( previousIdentityDomains().getDomains() );
 		}
-		else {
-			return null;
+		
+		List<String> existing = null;
+		try {
+			existing = this.getAllDomains();
 		}
+		catch ( Exception exception ) {
+			log.log( Level.WARNING, "Exception during createMissingDomains", exception );
+			existing = new ArrayList<String>();
+		}
+		
+		for ( String domainName : required ) {
+			if ( !existing.contains( domainName ) ) {
+				this.createIdentityDomain( domainName );
+			}
+		}
+		domainsCreated.add( Application.current().getName() );
 	}
 	
 	/**
-	 * Used to create the Identity Domain. This function only needs to be called once.
+	 * The Domains of the current app used to store the identities. UIDs are spread over the partitions by hash.
 	 */
-	protected void createIdentityDomain() {
-		this.sdb.createDomain( new CreateDomainRequest( IDENTITY_DOMAIN ) );
+	private static DomainPartitioner identityDomains() {
+		return Application.current().getDeviceDomains();
+	}
+	
+	/**
+	 * The layout of the current app being migrated away from while the domain is resharded, null otherwise. Reads that miss fall back to it.
+	 */
+	private static DomainPartitioner previousIdentityDomains() {
+		return Application.current().getPreviousDeviceDomains();
+	}
+	
+	/**
+	 * The domains that may hold the UID, the current layout first followed by the layout being resharded away from if it differs.
+	 */
+	private List<String> getDomainsFor( String uid ) {
+		List<String> domains = new ArrayList<String>( 2 );
+		domains.add( identityDomains().getDomain( uid ) );
+		if ( null != previousIdentityDomains() ) {
+			String previousDomain = previousIdentityDomains().getDomain( uid );
+			if ( !domains.contains( previousDomain ) ) {
+				domains.add( previousDomain );
+			}
+		}
+		return domains;
 	}
 	
 	/**
@@ -329,8 +559,6 @@ public class DeviceAuthentication {
 	 * @return true if the given UID already exist, false otherwise
 	 */
 	private boolean checkUidExists( String uid ) {
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, uid ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
-		return ( data != null && !data.isEmpty() );
+		return !this.readDevice( uid, ReadConsistency.DEVICE_READ ).isEmpty();
 	}
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.custom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Dependency;
+import com.amazonaws.tvm.EndpointSelector;
+import com.amazonaws.tvm.HedgedCall;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Tracer;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.jfr.FlightEvents;
+import com.amazonaws.tvm.jfr.StoreEvent;
+import com.amazonaws.tvm.local.LocalSimpleDB;
+
+/**
+ * Entry point for every SimpleDB call made by the Token Vending Machine. One client per configured endpoint is shared by all requests, and each
+ * call is sent to the endpoint the EndpointSelector currently considers fastest. Retries and the circuit breaker are handled by the "simpledb"
+ * Dependency, so the clients themselves donot retry. With HEDGED_READS enabled a slow GetAttributes is hedged with a second request. With
+ * WRITE_JOURNAL_FILE set, puts and deletes go through the WriteJournal and reach SimpleDB in the background.
+ */
+public class StoreClient {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static StoreClient instance;
+	
+	private final EndpointSelector endpoints;
+	
+	private final Dependency dependency = new Dependency( "simpledb" );
+	
+	private final HedgedCall hedge = Configuration.HEDGED_READS ? new HedgedCall( "simpledb.getattributes", Configuration.HEDGE_PERCENTILE,
+			Configuration.HEDGE_MIN_DELAY_MILLIS, Configuration.HEDGE_MAX_DELAY_MILLIS, Configuration.HEDGE_BUDGET_PERCENT ) : null;
+	
+	private final Map<String, AmazonSimpleDB> clients = new HashMap<String, AmazonSimpleDB>();
+	
+	/** Set when WRITE_JOURNAL_FILE is configured */
+	private final WriteJournal journal;
+	
+	public synchronized static StoreClient getInstance() {
+		if ( null == instance ) {
+			instance = new StoreClient();
+		}
+		return instance;
+	}
+	
+	private StoreClient() {
+		FlightEvents.register();
+		this.endpoints = new EndpointSelector( Configuration.SIMPLEDB_ENDPOINTS );
+		
+		if ( Configuration.LOCAL_STANDINS ) {
+			for ( String endpoint : this.endpoints.getEndpoints() ) {
+				this.clients.put( endpoint, LocalSimpleDB.getInstance() );
+			}
+			log.warning( "SimpleDB replaced by the local in-memory stand-in" );
+		}
+		else {
+			BasicAWSCredentials credentials = new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY );
+			ClientConfiguration clientConfiguration = new ClientConfiguration();
+			clientConfiguration.setMaxErrorRetry( 0 );
+			clientConfiguration.setMaxConnections( Configuration.SDK_MAX_CONNECTIONS );
+			for ( String endpoint : this.endpoints.getEndpoints() ) {
+				AmazonSimpleDBClient client = new AmazonSimpleDBClient( credentials, clientConfiguration );
+				client.setEndpoint( endpoint );
+				this.clients.put( endpoint, client );
+			}
+			
+			log.info( "SimpleDB region : " + Configuration.SIMPLEDB_REGION + " endpoints : " + this.endpoints.getEndpoints() );
+		}
+		
+		this.journal = this.openJournal();
+	}
+	
+	private WriteJournal openJournal() {
+		if ( Utilities.isEmpty( Configuration.WRITE_JOURNAL_FILE ) ) {
+			return null;
+		}
+		
+		try {
+			WriteJournal writeJournal = new WriteJournal( new File( Configuration.WRITE_JOURNAL_FILE ), Configuration.WRITE_JOURNAL_BYTES, this,
+					Configuration.WRITE_JOURNAL_BATCH_SIZE );
+			log.info( "SimpleDB writes journaled to " + Configuration.WRITE_JOURNAL_FILE );
+			return writeJournal;
+		}
+		catch ( IOException exception ) {
+			throw new IllegalStateException( "Unable to open write journal " + Configuration.WRITE_JOURNAL_FILE, exception );
+		}
+	}
+	
+	public EndpointSelector getEndpoints() {
+		return this.endpoints;
+	}
+	
+	public GetAttributesResult getAttributes( final GetAttributesRequest request ) {
+		if ( null != this.journal ) {
+			GetAttributesResult pending = this.journal.getPendingAttributes( request.getDomainName(), request.getItemName() );
+			if ( null != pending ) {
+				return pending;
+			}
+		}
+		
+		return this.executeHedged( "GetAttributes", new Operation<GetAttributesResult>( request.getDomainName(), request.getConsistentRead() ) {
+			public GetAttributesResult call( AmazonSimpleDB sdb ) {
+				return sdb.getAttributes( request );
+			}
+			
+			int count( GetAttributesResult result ) {
+				return result.getAttributes().size();
+			}
+		} );
+	}
+	
+	/**
+	 * With a write journal, items whose delete is journaled but not yet applied are left out of the result. Puts not yet applied are not seen,
+	 * look them up with findPendingItemNames.
+	 */
+	public SelectResult select( final SelectRequest request ) {
+		final String domain = selectedDomain( request.getSelectExpression() );
+		SelectResult result = this.execute( "Select", new Operation<SelectResult>( domain, request.getConsistentRead() ) {
+			public SelectResult call( AmazonSimpleDB sdb ) {
+				return sdb.select( request );
+			}
+			
+			int count( SelectResult result ) {
+				return result.getItems().size();
+			}
+		} );
+		
+		if ( null != this.journal && null != domain ) {
+			for ( Iterator<Item> items = result.getItems().iterator(); items.hasNext(); ) {
+				if ( this.journal.isPendingDelete( domain, items.next().getName() ) ) {
+					items.remove();
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the names of the items in the domain whose journaled put, not yet applied, sets the attribute to the value, empty without a write
+	 *         journal
+	 */
+	public List<String> findPendingItemNames( String domain, String attributeName, String value ) {
+		if ( null == this.journal ) {
+			return Collections.emptyList();
+		}
+		return this.journal.findPendingItemNames( domain, attributeName, value );
+	}
+	
+	/**
+	 * With a write journal, returns once the write is durable in the journal. Conditional puts need the answer of SimpleDB and are never
+	 * journaled; they wait until the journaled writes of their item have been applied, so the condition is checked against the latest state
+	 * and no older write lands on top of them.
+	 */
+	public void putAttributes( final PutAttributesRequest request ) {
+		if ( null == this.journal ) {
+			this.putAttributesNow( request );
+		}
+		else if ( null == request.getExpected() ) {
+			this.journal.put( request );
+		}
+		else {
+			this.journal.flush( request.getDomainName(), request.getItemName() );
+			this.putAttributesNow( request );
+		}
+	}
+	
+	/**
+	 * With a write journal, returns once the delete is durable in the journal.
+	 */
+	public void deleteAttributes( final DeleteAttributesRequest request ) {
+		if ( null != this.journal ) {
+			this.journal.delete( request );
+		}
+		else {
+			this.deleteAttributesNow( request );
+		}
+	}
+	
+	void putAttributesNow( final PutAttributesRequest request ) {
+		this.execute( "PutAttributes", new Operation<Void>( request.getDomainName(), null ) {
+			public Void call( AmazonSimpleDB sdb ) {
+				sdb.putAttributes( request );
+				return null;
+			}
+		} );
+	}
+	
+	void deleteAttributesNow( final DeleteAttributesRequest request ) {
+		this.execute( "DeleteAttributes", new Operation<Void>( request.getDomainName(), null ) {
+			public Void call( AmazonSimpleDB sdb ) {
+				sdb.deleteAttributes( request );
+				return null;
+			}
+		} );
+	}
+	
+	public void batchPutAttributes( final BatchPutAttributesRequest request ) {
+		this.execute( "BatchPutAttributes", new Operation<Void>( request.getDomainName(), null ) {
+			public Void call( AmazonSimpleDB sdb ) {
+				sdb.batchPutAttributes( request );
+				return null;
+			}
+		} );
+	}
+	
+	public void batchDeleteAttributes( final BatchDeleteAttributesRequest request ) {
+		this.execute( "BatchDeleteAttributes", new Operation<Void>( request.getDomainName(), null ) {
+			public Void call( AmazonSimpleDB sdb ) {
+				sdb.batchDeleteAttributes( request );
+				return null;
+			}
+		} );
+	}
+	
+	public void createDomain( final CreateDomainRequest request ) {
+		this.execute( "CreateDomain", new Operation<Void>( request.getDomainName(), null ) {
+			public Void call( AmazonSimpleDB sdb ) {
+				sdb.createDomain( request );
+				return null;
+			}
+		} );
+	}
+	
+	public ListDomainsResult listDomains( final ListDomainsRequest request ) {
+		return this.execute( "ListDomains", new Operation<ListDomainsResult>( null, null ) {
+			public ListDomainsResult call( AmazonSimpleDB sdb ) {
+				return sdb.listDomains( request );
+			}
+			
+			int count( ListDomainsResult result ) {
+				return result.getDomainNames().size();
+			}
+		} );
+	}
+	
+	private <T> T execute( final String name, final Operation<T> operation ) {
+		return this.dependency.call( new Callable<T>() {
+			public T call() {
+				return attempt( name, operation );
+			}
+		} );
+	}
+	
+	/**
+	 * Same as execute, except that an attempt that is slow to respond is hedged with a second one when hedged reads are enabled. Only idempotent
+	 * reads may be run this way.
+	 */
+	private <T> T executeHedged( final String name, final Operation<T> operation ) {
+		if ( null == this.hedge ) {
+			return this.execute( name, operation );
+		}
+		
+		final Tracer.Context context = Tracer.currentContext();
+		final Callable<T> attempt = new Callable<T>() {
+			public T call() {
+				Tracer.Context previous = Tracer.attach( context );
+				try {
+					return attempt( name, operation );
+				}
+				finally {
+					Tracer.attach( previous );
+				}
+			}
+		};
+		return this.dependency.call( new Callable<T>() {
+			public T call() throws Exception {
+				return hedge.call( attempt );
+			}
+		} );
+	}
+	
+	/**
+	 * Runs the operation against the selected endpoint and reports the outcome back to the selector. Errors caused by the request itself
+	 * (HTTP 4xx) say nothing about the endpoint and count as a response.
+	 */
+	private <T> T attempt( String name, Operation<T> operation ) {
+		String endpoint = this.endpoints.select();
+		Tracer.Span span = Tracer.startSpan( "simpledb." + name ).setAttribute( "endpoint", endpoint );
+		StoreEvent event = FlightEvents.ENABLED ? new StoreEvent() : null;
+		int itemCount = 0;
+		String errorCode = null;
+		long start = System.nanoTime();
+		try {
+			T result = operation.call( this.clients.get( endpoint ) );
+			this.endpoints.recordSuccess( endpoint, System.nanoTime() - start );
+			if ( null != event && null != result ) {
+				itemCount = operation.count( result );
+			}
+			return result;
+		}
+		catch ( AmazonServiceException exception ) {
+			errorCode = exception.getErrorCode();
+			if ( exception.getErrorType() == AmazonServiceException.ErrorType.Client ) {
+				span.setAttribute( "error.code", exception.getErrorCode() );
+				this.endpoints.recordSuccess( endpoint, System.nanoTime() - start );
+			}
+			else {
+				span.setError( exception );
+				this.endpoints.recordFailure( endpoint );
+			}
+			throw exception;
+		}
+		catch ( AmazonClientException exception ) {
+			errorCode = exception.getClass().getSimpleName();
+			span.setError( exception );
+			this.endpoints.recordFailure( endpoint );
+			throw exception;
+		}
+		finally {
+			span.end();
+			if ( null != event ) {
+				event.finish( name, endpoint, operation.domain, itemCount, operation.consistentRead, errorCode );
+			}
+		}
+	}
+	
+	/**
+	 * @return the domain named in a "select ... from `domain`" expression, null if there is none
+	 */
+	private static String selectedDomain( String expression ) {
+		int start = ( null == expression ) ? -1 : expression.indexOf( '`' );
+		int end = ( start < 0 ) ? -1 : expression.indexOf( '`', start + 1 );
+		return ( end < 0 ) ? null : expression.substring( start + 1, end );
+	}
+	
+	/**
+	 * A call to run against whichever endpoint is selected. The domain and read consistency are only used to describe the call.
+	 */
+	private static abstract class Operation<T> {
+		
+		final String domain;
+		
+		final boolean consistentRead;
+		
+		Operation( String domain, Boolean consistentRead ) {
+			this.domain = domain;
+			this.consistentRead = Boolean.TRUE.equals( consistentRead );
+		}
+		
+		abstract T call( AmazonSimpleDB sdb );
+		
+		/**
+		 * @return the number of items or attributes the call returned
+		 */
+		int count( T result ) {
+			return 0;
+		}
+	}
+	
+}
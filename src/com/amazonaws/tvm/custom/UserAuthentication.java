@@ -16,12 +16,17 @@
 package com.amazonaws.tvm.custom;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
 import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
@@ -33,8 +38,15 @@ import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.tvm.Application;
 import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.DomainPartitioner;
+import com.amazonaws.tvm.ReadConsistency;
+import com.amazonaws.tvm.RecordCache;
+import com.amazonaws.tvm.ServiceUnavailableException;
+import com.amazonaws.tvm.SingleFlight;
 import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Tracer;
 import com.amazonaws.tvm.Utilities;
 
 /**
@@ -44,12 +56,12 @@ public class UserAuthentication {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	
-	private final AmazonSimpleDBClient sdb;
+	private final StoreClient sdb;
 	
 	/**
-	 * Constant for the Domain name used to store the identities.
+	 * The apps whose identity domains are known to exist, so the check runs once per app and instance rather than once per request.
 	 */
-	private final static String IDENTITY_DOMAIN = Configuration.USERS_DOMAIN;
+	private static final Set<String> domainsCreated = Collections.synchronizedSet( new HashSet<String>() );
 	
 	/** Constant for the userid attribute */
 	private final static String USER_ID = "userid";
@@ -60,18 +72,29 @@ public class UserAuthentication {
 	/** Constant for the enabled attribute */
 	private final static String IS_ENABLED = "enabled";
 	
-	/** Constant select expression used to list all the identities stored in the Domain. */
-	private final static String SELECT_USERS_EXPRESSION = "select * from `" + IDENTITY_DOMAIN + "`";
+	/** User records keyed by app and username, shared by all requests */
+	private final static RecordCache<Map<String, String>> USERS = new RecordCache<Map<String, String>>( "users",
+			Configuration.RECORD_CACHE_MAX_ENTRIES, Configuration.RECORD_CACHE_TTL_SECONDS * 1000L );
+	
+	/** Whether the latest consistent read of a user found it, keyed by app and username. Entries live for READ_CONFIRM_MILLIS */
+	private final static RecordCache<Boolean> CONFIRMED_USERS = new RecordCache<Boolean>( "users.confirmed",
+			Configuration.RECORD_CACHE_MAX_ENTRIES, Configuration.READ_CONFIRM_MILLIS );
+	
+	/** Usernames keyed by app and userid, shared by all requests */
+	private final static RecordCache<String> USERNAMES = new RecordCache<String>( "usernames", Configuration.RECORD_CACHE_MAX_ENTRIES,
+			Configuration.RECORD_CACHE_TTL_SECONDS * 1000L );
+	
+	/** Username lookups in flight, keyed by app and userid */
+	private final static SingleFlight<String> USERNAME_LOOKUPS = new SingleFlight<String>( Configuration.SINGLE_FLIGHT_TIMEOUT_MILLIS );
 	
 	/**
 	 * Looks up domain name and creates one if it doesnot exist
 	 */
 	public UserAuthentication() {
-		this.sdb = new AmazonSimpleDBClient( new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY ) );
-		this.sdb.setEndpoint( Configuration.SIMPLEDB_ENDPOINT );
+		this.sdb = StoreClient.getInstance();
 		
-		if ( !this.doesDomainExist( IDENTITY_DOMAIN ) ) {
-			this.createIdentityDomain();
+		if ( !domainsCreated.contains( Application.current().getName() ) ) {
+			this.createMissingDomains();
 		}
 	}
 	
@@ -80,19 +103,12 @@ public class UserAuthentication {
 	 * 
 	 * @return list of existing usernames in SimpleDB domain
 	 */
-	public List<String> listUsers() {
+	public List<String> listUsers() throws Exception {
 		List<String> users = new ArrayList<String>( 1000 );
 		
-		SelectResult result = null;
-		do {
-			SelectRequest sr = new SelectRequest( SELECT_USERS_EXPRESSION, Boolean.TRUE );
-			result = this.sdb.select( sr );
-			
-			for ( Item item : result.getItems() ) {
-				users.add( item.getName() );
-			}
+		for ( Item item : selectFromAllDomains( this.sdb, "", ReadConsistency.USER_LIST.getConsistentRead() ) ) {
+			users.add( item.getName() );
 		}
-		while ( result != null && result.getNextToken() != null );
 		
 		return users;
 	}
@@ -115,6 +131,9 @@ public class UserAuthentication {
 			this.storeUser( username, password, uri );
 			return this.authenticateUser( username, password, uri );
 		}
+		catch ( ServiceUnavailableException exception ) {
+			throw exception;
+		}
 		catch ( Exception exception ) {
 			log.log( Level.WARNING, "Exception during registerUser", exception );
 			return false;
@@ -125,8 +144,18 @@ public class UserAuthentication {
 	 * Deletes the specified username from the identity domain.
 	 */
 	public void deleteUser( String username ) {
-		DeleteAttributesRequest dar = new DeleteAttributesRequest( IDENTITY_DOMAIN, username );
-		this.sdb.deleteAttributes( dar );
+		Map<String, String> user = this.getUser( username );
+		
+		for ( String domain : this.getDomainsFor( username ) ) {
+			DeleteAttributesRequest dar = new DeleteAttributesRequest( domain, username );
+			this.sdb.deleteAttributes( dar );
+		}
+		
+		USERS.invalidate( Application.current().key( username ) );
+		CONFIRMED_USERS.invalidate( Application.current().key( username ) );
+		if ( null != user ) {
+			USERNAMES.invalidate( Application.current().key( user.get( USER_ID ) ) );
+		}
 	}
 	
 	/**
@@ -146,10 +175,9 @@ public class UserAuthentication {
 			return false;
 		}
 		
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, username ).withConsistentRead( Boolean.TRUE );
 		String hashedSaltedPassword = Utilities.getSaltedPassword( username, uri, password );
 		
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
+		List<Attribute> data = this.readUser( username, ReadConsistency.USER_VERIFY );
 		if ( data != null && !data.isEmpty() ) {
 			Attribute passwordAttribute = this.findAttributeInList( HASH_SALTED_PASSWORD, data );
 			return passwordAttribute.getValue().equals( hashedSaltedPassword );
@@ -178,6 +206,13 @@ public class UserAuthentication {
 		String computedSignature = Utilities.sign( timestamp, hashSaltedPassword );
 		if ( Utilities.slowStringComparison(signature, computedSignature) )
 			return this.getUserid( username );
+		
+		if ( null != hashSaltedPassword && ReadConsistency.USER_READ.retryOnMismatch() ) {
+			Map<String, String> user = this.readUserConsistently( username );
+			if ( null != user && Utilities.slowStringComparison( signature, Utilities.sign( timestamp, user.get( HASH_SALTED_PASSWORD ) ) ) ) {
+				return user.get( USER_ID );
+			}
+		}
 		return null;
 	}
 	
@@ -210,12 +245,25 @@ public class UserAuthentication {
 		attributes.add( enableAttr );
 		
 		try {
-			PutAttributesRequest par = new PutAttributesRequest( IDENTITY_DOMAIN, username, attributes );
+			List<String> domains = this.getDomainsFor( username );
+			PutAttributesRequest par = new PutAttributesRequest( domains.get( 0 ), username, attributes );
 			this.sdb.putAttributes( par );
+			
+			// Drop the copy in the layout being resharded away from so it cannot shadow or overwrite this write
+			for ( String previousDomain : domains.subList( 1, domains.size() ) ) {
+				this.sdb.deleteAttributes( new DeleteAttributesRequest( previousDomain, username ) );
+			}
+		}
+		catch ( ServiceUnavailableException exception ) {
+			throw exception;
 		}
 		catch ( Exception exception ) {
 			log.log( Level.WARNING, "Exception during storeUser", exception );
 		}
+		finally {
+			USERS.invalidate( Application.current().key( username ) );
+			CONFIRMED_USERS.invalidate( Application.current().key( username ) );
+		}
 	}
 	
 	/**
@@ -238,10 +286,108 @@ public class UserAuthentication {
 	}
 	
 	/**
-	 * Used to create the Identity Domain. This function only needs to be called once.
+	 * Used to create an Identity Domain. This function only needs to be called once per domain.
+	 */
+	protected void createIdentityDomain( String domainName ) {
+		this.sdb.createDomain( new CreateDomainRequest( domainName ) );
+	}
+	
+	/**
+	 * Creates every identity domain, including partitions, that doesnot exist yet
 	 */
-	protected void createIdentityDomain() {
-		this.sdb.createDomain( new CreateDomainRequest( IDENTITY_DOMAIN ) );
+	protected void createMissingDomains() {
+		List<String> required = new ArrayList<String>( identityDomains().getDomains() );
+		if ( null != previousIdentityDomains() ) {
+			required.addAll( previousIdentityDomains().getDomains() );
+		}
+		
+		List<String> existing = null;
+		try {
+			existing = this.getAllDomains();
+		}
+		catch ( Exception exception ) {
+			log.log( Level.WARNING, "Exception during createMissingDomains", exception );
+			existing = new ArrayList<String>();
+		}
+		
+		for ( String domainName : required ) {
+			if ( !existing.contains( domainName ) ) {
+				this.createIdentityDomain( domainName );
+			}
+		}
+		domainsCreated.add( Application.current().getName() );
+	}
+	
+	/**
+	 * The Domains of the current app used to store the identities. Usernames are spread over the partitions by hash.
+	 */
+	private static DomainPartitioner identityDomains() {
+		return Application.current().getUserDomains();
+	}
+	
+	/**
+	 * The layout of the current app being migrated away from while the domain is resharded, null otherwise. Reads that miss fall back to it.
+	 */
+	private static DomainPartitioner previousIdentityDomains() {
+		return Application.current().getPreviousUserDomains();
+	}
+	
+	/**
+	 * The domains that may hold the username, the current layout first followed by the layout being resharded away from if it differs.
+	 */
+	private List<String> getDomainsFor( String username ) {
+		List<String> domains = new ArrayList<String>( 2 );
+		domains.add( identityDomains().getDomain( username ) );
+		if ( null != previousIdentityDomains() ) {
+			String previousDomain = previousIdentityDomains().getDomain( username );
+			if ( !domains.contains( previousDomain ) ) {
+				domains.add( previousDomain );
+			}
+		}
+		return domains;
+	}
+	
+	/**
+	 * Reads the user item with the consistency of the operation, repeating the read consistently if the policy says so and the user wasnot
+	 * read consistently within the last READ_CONFIRM_MILLIS.
+	 * 
+	 * @param username
+	 *            Unique user identifier
+	 * @param consistency
+	 *            The read consistency policy of the calling operation
+	 * @return the attributes of the user, empty if the username doesnot exist
+	 */
+	private List<Attribute> readUser( String username, ReadConsistency consistency ) {
+		List<Attribute> data = this.readUser( username, consistency.getConsistentRead() );
+		if ( consistency.retryOnMiss( data != null && !data.isEmpty() ) && null == CONFIRMED_USERS.get( Application.current().key( username ) ) ) {
+			data = this.readUser( username, Boolean.TRUE );
+		}
+		return data;
+	}
+	
+	/**
+	 * Reads the user item from the first domain that holds it. The outcome of a consistent read is remembered for READ_CONFIRM_MILLIS.
+	 * 
+	 * @param username
+	 *            Unique user identifier
+	 * @param consistentRead
+	 *            Whether the read is consistent
+	 * @return the attributes of the user, empty if the username doesnot exist
+	 */
+	private List<Attribute> readUser( String username, Boolean consistentRead ) {
+		long stamp = CONFIRMED_USERS.stamp( Application.current().key( username ) );
+		List<Attribute> data = null;
+		for ( String domain : this.getDomainsFor( username ) ) {
+			GetAttributesRequest gar = new GetAttributesRequest( domain, username ).withConsistentRead( consistentRead );
+			data = this.sdb.getAttributes( gar ).getAttributes();
+			if ( data != null && !data.isEmpty() ) {
+				break;
+			}
+		}
+		if ( Boolean.TRUE.equals( consistentRead ) ) {
+			CONFIRMED_USERS.putIfCurrent( Application.current().key( username ), Boolean.valueOf( data != null && !data.isEmpty() ), stamp );
+		}
+		return data;
 	}
 	
 	/**
@@ -319,15 +465,75 @@ public class UserAuthentication {
 	 * @throws Exception
 	 */
 	private String getAttribute( String username, String attribute ) throws Exception {
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, username ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
-		if ( data != null && !data.isEmpty() ) {
-			Attribute keyAttribute = this.findAttributeInList( attribute, data );
-			return keyAttribute.getValue();
+		Map<String, String> user = this.getUser( username );
+		return ( null == user ) ? null : user.get( attribute );
+	}
+	
+	/**
+	 * Get the attributes stored for the username. Records are served from the cache while they are fresh, otherwise read from the identity domain.
+	 * Invalidation only reaches this instance, a change made through another instance is seen once the cached record expires after
+	 * RECORD_CACHE_TTL_SECONDS.
+	 * 
+	 * @param username
+	 *            Unique user identifier
+	 * @return map of attribute names to values, null if the username doesnot exist
+	 */
+	private Map<String, String> getUser( String username ) {
+		if ( null == username ) {
+			return null;
 		}
-		else {
+		
+		Map<String, String> user = USERS.get( Application.current().key( username ) );
+		if ( null != user ) {
+			return user;
+		}
+		if ( Boolean.FALSE.equals( CONFIRMED_USERS.get( Application.current().key( username ) ) ) ) {
+			// Read consistently and not found moments ago
 			return null;
 		}
+		
+		long stamp = USERS.stamp( Application.current().key( username ) );
+		return this.cacheUser( username, this.readUser( username, ReadConsistency.USER_READ ), stamp );
+	}
+	
+	/**
+	 * Reads the user consistently, bypassing the cache, after the cached or eventually consistent record didnot match. The cached record is
+	 * replaced once the read returns. A user read consistently within the last READ_CONFIRM_MILLIS is not read again.
+	 * 
+	 * @param username
+	 *            Unique user identifier
+	 * @return map of attribute names to values, null if the username doesnot exist or was already confirmed
+	 */
+	private Map<String, String> readUserConsistently( String username ) {
+		if ( null != CONFIRMED_USERS.get( Application.current().key( username ) ) ) {
+			return null;
+		}
+		long stamp = USERS.stamp( Application.current().key( username ) );
+		Map<String, String> user = this.cacheUser( username, this.readUser( username, Boolean.TRUE ), stamp );
+		if ( null == user ) {
+			USERS.invalidate( Application.current().key( username ) );
+		}
+		return user;
+	}
+	
+	/**
+	 * @param stamp
+	 *            The cache stamp taken before the user was read, the record is not cached if the user was invalidated since
+	 * @return unmodifiable map of attribute names to values, null if there is no data
+	 */
+	private Map<String, String> cacheUser( String username, List<Attribute> data, long stamp ) {
+		if ( data == null || data.isEmpty() ) {
+			return null;
+		}
+		
+		Map<String, String> user = new HashMap<String, String>();
+		for ( Attribute attribute : data ) {
+			user.put( attribute.getName(), attribute.getValue() );
+		}
+		
+		user = Collections.unmodifiableMap( user );
+		USERS.putIfCurrent( Application.current().key( username ), user, stamp );
+		return user;
 	}
 	
 	/**
@@ -338,8 +544,7 @@ public class UserAuthentication {
 	 * @return true if username already exist, false otherwise
 	 */
 	private boolean checkUsernameExists( String username ) {
-		GetAttributesRequest gar = new GetAttributesRequest( IDENTITY_DOMAIN, username ).withConsistentRead( Boolean.TRUE );
-		List<Attribute> data = this.sdb.getAttributes( gar ).getAttributes();
+		List<Attribute> data = this.readUser( username, ReadConsistency.USER_EXISTS );
 		return ( data != null && !data.isEmpty() );
 	}
     
@@ -351,26 +556,123 @@ public class UserAuthentication {
 	 *            Unique device identifier
 	 * @return  the username linked to the devide id, null if no uid found.
 	 */
-    public static String getUsernameFromUID( String uid ) {
-		AmazonSimpleDBClient sdbClient = new AmazonSimpleDBClient( new BasicAWSCredentials( Configuration.AWS_ACCESS_KEY_ID, Configuration.AWS_SECRET_KEY ) );
-		sdbClient.setEndpoint( Configuration.SIMPLEDB_ENDPOINT );
-
-		SelectRequest sr = new SelectRequest( "select * from `" + IDENTITY_DOMAIN + "` WHERE " + USER_ID + " = '" + uid + "'", Boolean.TRUE );
-		SelectResult result = sdbClient.select( sr );
+    public static String getUsernameFromUID( final String uid ) {
+		Tracer.Span span = Tracer.startSpan( "getUsernameFromUID" );
+		try {
+			String username = USERNAMES.get( Application.current().key( uid ) );
+			span.setAttribute( "cache.hit", null != username );
+			if ( null != username ) {
+				return username;
+			}
+			
+			return USERNAME_LOOKUPS.execute( Application.current().key( uid ), new Callable<String>() {
+				public String call() throws Exception {
+					return lookupUsernameFromUID( uid );
+				}
+			} );
+		}
+		finally {
+			span.end();
+		}
+    }
+    
+	/**
+	 * Selects the username associated with the given uid from the identity domain and caches it.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @return  the username linked to the devide id, null if no uid found.
+	 */
+    private static String lookupUsernameFromUID( String uid ) throws Exception {
+		// A user registered while SimpleDB is unavailable is only in the write journal
+		String pending = findPendingUsername( uid );
+		if ( null != pending ) {
+			USERNAMES.put( Application.current().key( uid ), pending );
+			return pending;
+		}
+		
+		String whereClause = " WHERE " + USER_ID + " = '" + uid + "'";
+		List<Item> items = selectFromAllDomains( StoreClient.getInstance(), whereClause, ReadConsistency.USER_SELECT.getConsistentRead() );
+		if ( ReadConsistency.USER_SELECT.retryOnMiss( !items.isEmpty() ) ) {
+			items = selectFromAllDomains( StoreClient.getInstance(), whereClause, Boolean.TRUE );
+		}
 
-        if ( result.getItems().size() == 0  ) {
+        if ( items.size() == 0  ) {
 			log.log( Level.SEVERE, "No username matched for UID [" + uid + "]" );     
             return null;                      
         }
         else {
-            if ( result.getItems().size() != 1  ) {
+            if ( items.size() != 1  ) {
 			    log.log( Level.SEVERE, "More than one username matched." );                               
-    		    for ( Item item : result.getItems() ) {
+    		    for ( Item item : items ) {
 	    		    log.log( Level.WARNING, "\tMatched: " + item.getName() );
 		        }
             }
             
-            return result.getItems().get( 0 ).getName();
+            String username = items.get( 0 ).getName();
+            USERNAMES.put( Application.current().key( uid ), username );
+            return username;
         }                                
-    }	
+    }
+	
+	/**
+	 * @return the user whose journaled write, not yet applied, has the uid, null if there is none
+	 */
+	private static String findPendingUsername( String uid ) {
+		List<String> domains = new ArrayList<String>( identityDomains().getDomains() );
+		if ( null != previousIdentityDomains() ) {
+			domains.addAll( previousIdentityDomains().getDomains() );
+		}
+		for ( String domain : domains ) {
+			List<String> usernames = StoreClient.getInstance().findPendingItemNames( domain, USER_ID, uid );
+			if ( !usernames.isEmpty() ) {
+				return usernames.get( 0 );
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs the select against every identity domain in parallel, following next tokens. Items are unique by name, those in the current layout
+	 * take precedence over copies still in the layout being resharded away from.
+	 * 
+	 * @param sdbClient
+	 *            SimpleDB client to use
+	 * @param whereClause
+	 *            Where clause appended to the select expression, empty to select all items
+	 * @param consistentRead
+	 *            Whether the selects are consistent
+	 * @return items matched in any identity domain
+	 */
+	private static List<Item> selectFromAllDomains( final StoreClient sdbClient, final String whereClause, final Boolean consistentRead )
+			throws Exception {
+		DomainPartitioner.DomainTask<List<Item>> select = new DomainPartitioner.DomainTask<List<Item>>() {
+			public List<Item> run( String domain ) {
+				List<Item> items = new ArrayList<Item>();
+				SelectResult result = null;
+				do {
+					SelectRequest sr = new SelectRequest( "select * from `" + domain + "`" + whereClause, consistentRead );
+					sr.setNextToken( ( result == null ) ? null : result.getNextToken() );
+					result = sdbClient.select( sr );
+					items.addAll( result.getItems() );
+				}
+				while ( result.getNextToken() != null );
+				return items;
+			}
+		};
+		
+		Map<String, Item> items = new LinkedHashMap<String, Item>();
+		List<List<Item>> results = new ArrayList<List<Item>>( identityDomains().forEachDomain( select ) );
+		if ( null != previousIdentityDomains() ) {
+			results.addAll( previousIdentityDomains().forEachDomain( select ) );
+		}
+		for ( List<Item> result : results ) {
+			for ( Item item : result ) {
+				if ( !items.containsKey( item.getName() ) ) {
+					items.put( item.getName(), item );
+				}
+			}
+		}
+		return new ArrayList<Item>( items.values() );
+	}
 }
@@ -0,0 +1,697 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.custom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.ServiceUnavailableException;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+
+/**
+ * Local write-ahead journal in front of the SimpleDB writes, so registering users and devices doesnot depend on SimpleDB being fast or
+ * available. A write is appended to a memory-mapped ring file and the caller returns once the file has been forced to disk; callers arriving
+ * while a force is running share the next one. A single applier thread sends the journaled writes to SimpleDB in order, grouping consecutive
+ * writes to the same domain into batch calls, and retries until SimpleDB accepts them.
+ * 
+ * Every record carries a sequence number and a CRC. The header holds the position and sequence of the oldest write not yet applied, so after a
+ * restart the writes from there on are applied again. Puts that replace attributes and deletes are idempotent, which makes the replay safe.
+ * On start the writes to replay are copied into a new, empty journal file that is forced and then renamed over the old one, so the old file
+ * stays intact until its replacement is complete, and no leftover of an earlier run can be mistaken for a record later.
+ * 
+ * Until it is applied, an item with a journaled write is read from the journal. The Token Vending Machine always writes whole items, so the
+ * journaled attributes are the item. Selects leave out items whose journaled write is a delete, and items with a journaled put can be found by
+ * attribute value through findPendingItemNames.
+ */
+class WriteJournal {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static final int MAGIC = 0x54564d4a;
+	
+	/** Magic, then position and sequence of the oldest write not yet applied */
+	private static final int HEADER_BYTES = 64;
+	
+	/** Payload length, CRC and sequence */
+	private static final int RECORD_HEADER_BYTES = 16;
+	
+	/** Length written where the rest of the file is unused and the next record starts after the header */
+	private static final int WRAP = -1;
+	
+	private static final byte PUT = 1;
+	
+	private static final byte DELETE = 2;
+	
+	private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+	
+	/** Longest a conditional write waits for the journaled writes of its item to be applied */
+	private static final long FLUSH_TIMEOUT_MILLIS = 10000L;
+	
+	private final StoreClient store;
+	
+	private final int batchSize;
+	
+	private final MappedByteBuffer buffer;
+	
+	/** Records not yet applied, in journal order */
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+	
+	/** Latest record not yet applied for each domain and item */
+	private final ConcurrentMap<String, Record> pending = new ConcurrentHashMap<String, Record>();
+	
+	/** Position the next record is written at */
+	private int head;
+	
+	/** Position of the oldest record not yet applied, equal to head when everything is applied */
+	private int tail;
+	
+	private long lastSequence;
+	
+	private final Object syncLock = new Object();
+	
+	/** Notified whenever records have been applied */
+	private final Object appliedLock = new Object();
+	
+	private long durableSequence;
+	
+	private boolean syncing;
+	
+	/**
+	 * Opens the journal, creating the file if needed. Writes left over from a previous run are queued again.
+	 * 
+	 * @param file
+	 *            The journal file
+	 * @param size
+	 *            Size of the file in bytes
+	 * @param store
+	 *            The client the writes are applied with
+	 * @param batchSize
+	 *            Largest number of writes sent in one batch call
+	 */
+	WriteJournal( File file, int size, StoreClient store, int batchSize ) throws IOException {
+		this.store = store;
+		this.batchSize = Math.max( 1, batchSize );
+		
+		List<Record> recovered = file.exists() ? recover( mapReadOnly( file ) ) : Collections.<Record> emptyList();
+		
+		// A new file is all zeros, the old one is only replaced once the writes to replay are on disk in the new one
+		File rebuilt = new File( file.getPath() + ".new" );
+		if ( rebuilt.exists() && !rebuilt.delete() ) {
+			throw new IOException( "Unable to delete " + rebuilt );
+		}
+		this.buffer = map( rebuilt, size );
+		this.buffer.putInt( 0, MAGIC );
+		this.head = HEADER_BYTES;
+		this.tail = HEADER_BYTES;
+		this.lastSequence = recovered.isEmpty() ? 0 : recovered.get( 0 ).sequence - 1;
+		this.checkpoint( HEADER_BYTES, this.lastSequence );
+		for ( Record record : recovered ) {
+			if ( !this.write( record ) ) {
+				throw new IOException( "Write journal " + file + " cannot be shrunk below the writes it holds, size " + size + " is too small" );
+			}
+		}
+		this.buffer.force();
+		Files.move( rebuilt.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		syncDirectory( file );
+		this.durableSequence = this.lastSequence;
+		
+		if ( !recovered.isEmpty() ) {
+			log.warning( "Write journal " + file + " holds " + recovered.size() + " writes not yet applied, applying them again" );
+		}
+		
+		Metrics.registerGauge( "journal.pending", new Metrics.Gauge() {
+			public long getValue() {
+				return queue.size();
+			}
+		} );
+		
+		Thread applier = new Thread( new Runnable() {
+			public void run() {
+				applyForever();
+			}
+		}, "WriteJournal-applier" );
+		applier.setDaemon( true );
+		applier.start();
+	}
+	
+	void put( PutAttributesRequest request ) {
+		this.append( new Record( PUT, request.getDomainName(), request.getItemName(), request.getAttributes() ) );
+	}
+	
+	void delete( DeleteAttributesRequest request ) {
+		this.append( new Record( DELETE, request.getDomainName(), request.getItemName(), Collections.<ReplaceableAttribute> emptyList() ) );
+	}
+	
+	/**
+	 * @return the attributes of the item as journaled, null if the item has no write waiting to be applied
+	 */
+	GetAttributesResult getPendingAttributes( String domain, String itemName ) {
+		Record record = this.pending.get( key( domain, itemName ) );
+		if ( null == record ) {
+			return null;
+		}
+		
+		Metrics.increment( "journal.pending_reads" );
+		List<Attribute> attributes = new ArrayList<Attribute>( record.attributes.size() );
+		for ( ReplaceableAttribute attribute : record.attributes ) {
+			attributes.add( new Attribute( attribute.getName(), attribute.getValue() ) );
+		}
+		return new GetAttributesResult().withAttributes( attributes );
+	}
+	
+	/**
+	 * @return the names of the items in the domain whose journaled put, not yet applied, sets the attribute to the value
+	 */
+	List<String> findPendingItemNames( String domain, String attributeName, String value ) {
+		List<String> itemNames = new ArrayList<String>( 1 );
+		for ( Record record : this.pending.values() ) {
+			if ( record.operation != PUT || !record.domain.equals( domain ) ) {
+				continue;
+			}
+			for ( ReplaceableAttribute attribute : record.attributes ) {
+				if ( attribute.getName().equals( attributeName ) && attribute.getValue().equals( value ) ) {
+					itemNames.add( record.itemName );
+					break;
+				}
+			}
+		}
+		if ( !itemNames.isEmpty() ) {
+			Metrics.increment( "journal.pending_reads" );
+		}
+		return itemNames;
+	}
+	
+	/**
+	 * @return true if the latest write of the item not yet applied is a delete
+	 */
+	boolean isPendingDelete( String domain, String itemName ) {
+		Record record = this.pending.get( key( domain, itemName ) );
+		return null != record && record.operation == DELETE;
+	}
+	
+	/**
+	 * Waits until the item has no journaled write left to apply, so a write sent to SimpleDB directly is not overtaken by an older one.
+	 * 
+	 * @throws ServiceUnavailableException
+	 *             when the writes are not applied within FLUSH_TIMEOUT_MILLIS
+	 */
+	void flush( String domain, String itemName ) {
+		String key = key( domain, itemName );
+		if ( !this.pending.containsKey( key ) ) {
+			return;
+		}
+		
+		Metrics.increment( "journal.flushes" );
+		long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+		boolean interrupted = false;
+		try {
+			synchronized ( this.appliedLock ) {
+				while ( this.pending.containsKey( key ) ) {
+					long remaining = deadline - System.currentTimeMillis();
+					if ( remaining <= 0 ) {
+						throw new ServiceUnavailableException( "Journaled writes to " + domain + " not applied yet", null, 1 );
+					}
+					try {
+						this.appliedLock.wait( remaining );
+					}
+					catch ( InterruptedException exception ) {
+						interrupted = true;
+					}
+				}
+			}
+		}
+		finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the record to the journal and waits until it is on disk.
+	 * 
+	 * @throws ServiceUnavailableException
+	 *             when the journal is full
+	 */
+	private void append( Record record ) {
+		synchronized ( this ) {
+			if ( !this.write( record ) ) {
+				Metrics.increment( "journal.full" );
+				throw new ServiceUnavailableException( "Write journal is full", null, 1 );
+			}
+		}
+		Metrics.increment( "journal.appended" );
+		this.awaitDurable( record.sequence );
+	}
+	
+	/**
+	 * Places the record at the head of the ring and queues it for the applier.
+	 * 
+	 * @return false if there is no room for the record
+	 */
+	private synchronized boolean write( Record record ) {
+		int length = RECORD_HEADER_BYTES + record.payload.length;
+		int position = this.head;
+		if ( this.head >= this.tail ) {
+			if ( this.head + length > this.buffer.capacity() ) {
+				// Continue after the header, leaving the space before the oldest record free
+				if ( HEADER_BYTES + length >= this.tail ) {
+					return false;
+				}
+				if ( this.head + 4 <= this.buffer.capacity() ) {
+					this.buffer.putInt( this.head, WRAP );
+				}
+				position = HEADER_BYTES;
+			}
+		}
+		else if ( this.head + length >= this.tail ) {
+			return false;
+		}
+		
+		record.sequence = ++this.lastSequence;
+		this.buffer.position( position );
+		this.buffer.putInt( record.payload.length );
+		this.buffer.putInt( checksum( record.sequence, record.payload ) );
+		this.buffer.putLong( record.sequence );
+		this.buffer.put( record.payload );
+		record.start = position;
+		record.end = this.buffer.position();
+		this.head = record.end;
+		
+		this.pending.put( key( record.domain, record.itemName ), record );
+		this.queue.add( record );
+		return true;
+	}
+	
+	/**
+	 * Group commit: the first caller to find the records not yet on disk forces the file for everyone who appended so far, the others wait for it.
+	 */
+	private void awaitDurable( long sequence ) {
+		boolean interrupted = false;
+		try {
+			long target;
+			synchronized ( this.syncLock ) {
+				while ( this.durableSequence < sequence ) {
+					if ( !this.syncing ) {
+						break;
+					}
+					try {
+						this.syncLock.wait();
+					}
+					catch ( InterruptedException exception ) {
+						interrupted = true;
+					}
+				}
+				if ( this.durableSequence >= sequence ) {
+					return;
+				}
+				this.syncing = true;
+			}
+			
+			synchronized ( this ) {
+				target = this.lastSequence;
+			}
+			try {
+				this.buffer.force();
+				Metrics.increment( "journal.syncs" );
+			}
+			finally {
+				synchronized ( this.syncLock ) {
+					this.syncing = false;
+					this.durableSequence = Math.max( this.durableSequence, target );
+					this.syncLock.notifyAll();
+				}
+			}
+		}
+		finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private void applyForever() {
+		while ( true ) {
+			List<Record> batch;
+			try {
+				batch = this.nextBatch();
+			}
+			catch ( InterruptedException exception ) {
+				return;
+			}
+			
+			long delay = 100L;
+			while ( !this.apply( batch ) ) {
+				Metrics.increment( "journal.retries" );
+				try {
+					Thread.sleep( delay );
+				}
+				catch ( InterruptedException exception ) {
+					return;
+				}
+				delay = Math.min( delay * 2, MAX_RETRY_DELAY_MILLIS );
+			}
+			
+			// Applied writes stay readable from the journal until SimpleDB has them
+			Record last = batch.get( batch.size() - 1 );
+			for ( Record record : batch ) {
+				this.pending.remove( key( record.domain, record.itemName ), record );
+			}
+			synchronized ( this.appliedLock ) {
+				this.appliedLock.notifyAll();
+			}
+			synchronized ( this ) {
+				Record next = this.queue.peek();
+				this.tail = ( null == next ) ? this.head : next.start;
+				this.checkpoint( this.tail, last.sequence );
+			}
+			Metrics.add( "journal.applied", batch.size() );
+		}
+	}
+	
+	/**
+	 * @return the oldest record followed by the records after it with the same operation and domain, on distinct items
+	 */
+	private List<Record> nextBatch() throws InterruptedException {
+		Record first = this.queue.take();
+		List<Record> batch = new ArrayList<Record>( this.batchSize );
+		batch.add( first );
+		
+		Set<String> items = new HashSet<String>();
+		items.add( first.itemName );
+		while ( batch.size() < this.batchSize ) {
+			Record next = this.queue.peek();
+			if ( null == next || next.operation != first.operation || !next.domain.equals( first.domain ) || !items.add( next.itemName ) ) {
+				break;
+			}
+			batch.add( this.queue.poll() );
+		}
+		return batch;
+	}
+	
+	/**
+	 * @return true once the store has the writes, false if they should be tried again later
+	 */
+	private boolean apply( List<Record> batch ) {
+		try {
+			if ( batch.size() == 1 ) {
+				this.applyOne( batch.get( 0 ) );
+			}
+			else {
+				this.applyBatch( batch );
+				Metrics.increment( "journal.batches" );
+			}
+			return true;
+		}
+		catch ( AmazonServiceException exception ) {
+			if ( exception.getErrorType() != AmazonServiceException.ErrorType.Client ) {
+				log.warning( "Unable to apply journaled writes, retrying : " + exception.getMessage() );
+				return false;
+			}
+			if ( batch.size() > 1 ) {
+				// Find out which write SimpleDB rejects and apply the others
+				for ( Record record : batch ) {
+					this.applyRejectingClientErrors( record );
+				}
+				return true;
+			}
+			this.drop( batch.get( 0 ), exception );
+			return true;
+		}
+		catch ( AmazonClientException exception ) {
+			log.warning( "Unable to apply journaled writes, retrying : " + exception.getMessage() );
+			return false;
+		}
+		catch ( RuntimeException exception ) {
+			log.log( Level.WARNING, "Unable to apply journaled writes, retrying", exception );
+			return false;
+		}
+	}
+	
+	private void applyRejectingClientErrors( Record record ) {
+		try {
+			this.applyOne( record );
+		}
+		catch ( AmazonServiceException exception ) {
+			if ( exception.getErrorType() != AmazonServiceException.ErrorType.Client ) {
+				throw exception;
+			}
+			this.drop( record, exception );
+		}
+	}
+	
+	private void drop( Record record, AmazonServiceException exception ) {
+		log.log( Level.SEVERE, "SimpleDB rejected journaled write " + record.sequence + " to " + record.domain + ", dropping it", exception );
+		Metrics.increment( "journal.dropped" );
+	}
+	
+	private void applyOne( Record record ) {
+		if ( record.operation == PUT ) {
+			this.store.putAttributesNow( new PutAttributesRequest( record.domain, record.itemName, record.attributes ) );
+		}
+		else {
+			this.store.deleteAttributesNow( new DeleteAttributesRequest( record.domain, record.itemName ) );
+		}
+	}
+	
+	private void applyBatch( List<Record> batch ) {
+		String domain = batch.get( 0 ).domain;
+		if ( batch.get( 0 ).operation == PUT ) {
+			List<ReplaceableItem> items = new ArrayList<ReplaceableItem>( batch.size() );
+			for ( Record record : batch ) {
+				items.add( new ReplaceableItem( record.itemName, record.attributes ) );
+			}
+			this.store.batchPutAttributes( new BatchPutAttributesRequest( domain, items ) );
+		}
+		else {
+			List<DeletableItem> items = new ArrayList<DeletableItem>( batch.size() );
+			for ( Record record : batch ) {
+				items.add( new DeletableItem( record.itemName, null ) );
+			}
+			this.store.batchDeleteAttributes( new BatchDeleteAttributesRequest( domain, items ) );
+		}
+	}
+	
+	/**
+	 * Records where replay starts. Not forced, the next group commit takes it along; replaying a write that was already applied is harmless.
+	 */
+	private void checkpoint( int position, long appliedSequence ) {
+		this.buffer.putLong( 8, position );
+		this.buffer.putLong( 16, appliedSequence );
+	}
+	
+	private static MappedByteBuffer mapReadOnly( File file ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			return raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, Math.min( raf.length(), Integer.MAX_VALUE ) );
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	private static MappedByteBuffer map( File file, int size ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( size );
+			return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Makes the rename of the journal durable. Not every platform can open a directory, there the rename is left to the file system.
+	 */
+	private static void syncDirectory( File file ) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		try {
+			FileChannel channel = FileChannel.open( directory.toPath(), StandardOpenOption.READ );
+			try {
+				channel.force( true );
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch ( IOException exception ) {
+			log.fine( "Unable to sync directory " + directory + " : " + exception.getMessage() );
+		}
+	}
+	
+	/**
+	 * @return the records after the checkpoint, up to the first one that is torn, corrupt or out of sequence
+	 */
+	private static List<Record> recover( ByteBuffer buffer ) {
+		List<Record> records = new ArrayList<Record>();
+		if ( buffer.capacity() < HEADER_BYTES || buffer.getInt( 0 ) != MAGIC ) {
+			return records;
+		}
+		
+		int capacity = buffer.capacity();
+		long position = buffer.getLong( 8 );
+		long expected = buffer.getLong( 16 ) + 1;
+		long scanned = 0;
+		while ( position >= HEADER_BYTES && scanned < capacity ) {
+			if ( position + RECORD_HEADER_BYTES > capacity || buffer.getInt( (int) position ) == WRAP ) {
+				scanned += capacity - position;
+				position = HEADER_BYTES;
+				continue;
+			}
+			
+			int offset = (int) position;
+			int length = buffer.getInt( offset );
+			if ( length <= 0 || offset + RECORD_HEADER_BYTES + length > capacity || buffer.getLong( offset + 8 ) != expected ) {
+				break;
+			}
+			
+			byte[] payload = new byte[ length ];
+			for ( int i = 0; i < length; i++ ) {
+				payload[ i ] = buffer.get( offset + RECORD_HEADER_BYTES + i );
+			}
+			if ( checksum( expected, payload ) != buffer.getInt( offset + 4 ) ) {
+				break;
+			}
+			
+			try {
+				Record record = Record.decode( payload );
+				record.sequence = expected;
+				records.add( record );
+			}
+			catch ( IOException exception ) {
+				break;
+			}
+			expected++;
+			position += RECORD_HEADER_BYTES + length;
+			scanned += RECORD_HEADER_BYTES + length;
+		}
+		return records;
+	}
+	
+	private static int checksum( long sequence, byte[] payload ) {
+		CRC32 crc = new CRC32();
+		for ( int shift = 56; shift >= 0; shift -= 8 ) {
+			crc.update( (int) ( sequence >>> shift ) );
+		}
+		crc.update( payload );
+		return (int) crc.getValue();
+	}
+	
+	private static String key( String domain, String itemName ) {
+		return domain + "\u0000" + itemName;
+	}
+	
+	/**
+	 * A single journaled put or delete. The payload is the encoded operation, domain, item and attributes.
+	 */
+	private static class Record {
+		
+		final byte operation;
+		
+		final String domain;
+		
+		final String itemName;
+		
+		final List<ReplaceableAttribute> attributes;
+		
+		final byte[] payload;
+		
+		long sequence;
+		
+		int start;
+		
+		int end;
+		
+		Record( byte operation, String domain, String itemName, List<ReplaceableAttribute> attributes ) {
+			this.operation = operation;
+			this.domain = domain;
+			this.itemName = itemName;
+			this.attributes = attributes;
+			this.payload = this.encode();
+		}
+		
+		private byte[] encode() {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream( 128 );
+				DataOutputStream out = new DataOutputStream( bytes );
+				out.writeByte( this.operation );
+				out.writeUTF( this.domain );
+				out.writeUTF( this.itemName );
+				out.writeShort( this.attributes.size() );
+				for ( ReplaceableAttribute attribute : this.attributes ) {
+					out.writeUTF( attribute.getName() );
+					out.writeUTF( attribute.getValue() );
+					out.writeBoolean( Boolean.TRUE.equals( attribute.getReplace() ) );
+				}
+				out.flush();
+				return bytes.toByteArray();
+			}
+			catch ( IOException exception ) {
+				throw new IllegalStateException( "Unable to encode journal record", exception );
+			}
+		}
+		
+		static Record decode( byte[] payload ) throws IOException {
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) );
+			byte operation = in.readByte();
+			String domain = in.readUTF();
+			String itemName = in.readUTF();
+			int count = in.readUnsignedShort();
+			List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>( count );
+			for ( int i = 0; i < count; i++ ) {
+				attributes.add( new ReplaceableAttribute( in.readUTF(), in.readUTF(), Boolean.valueOf( in.readBoolean() ) ) );
+			}
+			return new Record( operation, domain, itemName, attributes );
+		}
+	}
+	
+}
@@ -28,7 +28,11 @@ import java.util.Map;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.tvm.IssuedCredentials;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.ReadConsistency;
 import com.amazonaws.tvm.TemporaryCredentialManagement;
+import com.amazonaws.tvm.TokenVendingMachine;
 import com.amazonaws.tvm.TokenVendingMachineLogger;
 import com.amazonaws.tvm.Utilities;
 import com.amazonaws.tvm.custom.DeviceAuthentication;
@@ -40,10 +44,20 @@ import com.amazonaws.tvm.custom.UserAuthentication;
  *  and password combination. Registered users can then obtain encryption key after login. This key is used to encrypt tokens in future communication. Since a username 
  *  can have many devices associated with it each login request must explicitly specify the UID. The generated key is then associated to this UID.
  */
-public class IdentityTokenVendingMachine {
+public class IdentityTokenVendingMachine implements TokenVendingMachine {
 	
 	protected static final Logger log = TokenVendingMachineLogger.getLogger();
 	
+	/** The session ticket of the last token request validated by this instance */
+	private SessionTicket ticket;
+	
+	/**
+	 * Devices donot register on their own in Identity mode, they are registered with a new key each time their user logs in.
+	 */
+	public int registerDevice( String uid, String key ) throws Exception {
+		return SC_BAD_REQUEST;
+	}
+	
 	/**
 	 * Verify if the token request is valid. UID is authenticated. The timestamp is checked to see it falls within the valid timestamp window. The
 	 * signature is computed and matched against the given signature. Useful in Anonymous and Identity modes
@@ -68,7 +82,11 @@ public class IdentityTokenVendingMachine {
 		DeviceAuthentication auth = new DeviceAuthentication();
 		String key = auth.getKey( uid );
 		
-		if ( !this.authenticateSignature( key, timestamp, signature ) ) {
+		boolean matched = this.authenticateSignature( key, timestamp, signature );
+		if ( !matched && null != key && ReadConsistency.DEVICE_READ.retryOnMismatch() ) {
+			matched = this.authenticateSignature( auth.getConfirmedKey( uid ), timestamp, signature );
+		}
+		if ( !matched ) {
 			log.warning( "Client signature doesnot match with server generated signature .Setting Http status code " + SC_UNAUTHORIZED );
 			return SC_UNAUTHORIZED;
 		}
@@ -77,6 +95,57 @@ public class IdentityTokenVendingMachine {
 		return SC_OK;
 	}
 	
+	/**
+	 * Verify a token request that carries the session ticket handed out at login. The userid and username are taken from the ticket, and its
+	 * device key is compared with the one of the device record, which SimpleDB is only read for when the record is not cached. A ticket that
+	 * cannot be opened, e.g. because it expired or its server key was rotated out, is ignored and the request is validated like one without a
+	 * ticket. So is a ticket whose key differs from the device's, as the device logged in again and got a new key since. A revoked ticket is
+	 * rejected.
+	 * 
+	 * @param uid
+	 *            Unique device identifier
+	 * @param ticket
+	 *            Session ticket handed out at login
+	 * @param signature
+	 *            HMAC-SHA256 signature derived from key and timestamp
+	 * @param timestamp
+	 *            Timestamp of the request in ISO8601 format
+	 * @return status code indicating if token request is valid or not
+	 * @throws Exception
+	 */
+	public int validateTicketRequest( String uid, String ticket, String signature, String timestamp ) throws Exception {
+		SessionTicket sessionTicket = SessionTicket.open( ticket );
+		if ( null == sessionTicket || !sessionTicket.getUid().equals( uid ) ) {
+			Metrics.increment( "ticket.fallback" );
+			return this.validateTokenRequest( uid, signature, timestamp );
+		}
+		
+		if ( !sessionTicket.getKey().equals( new DeviceAuthentication().getKey( uid ) ) ) {
+			Metrics.increment( "ticket.superseded" );
+			return this.validateTokenRequest( uid, signature, timestamp );
+		}
+		
+		if ( sessionTicket.isRevoked() ) {
+			Metrics.increment( "ticket.revoked" );
+			log.warning( "Ticket of user : " + encode( sessionTicket.getUsername() ) + " revoked. Setting Http status code " + SC_UNAUTHORIZED );
+			return SC_UNAUTHORIZED;
+		}
+		
+		if ( !Utilities.isTimestampValid( timestamp ) ) {
+			log.warning( "Timestamp : " + encode( timestamp ) + " not valid. Setting Http status code " + SC_REQUEST_TIMEOUT );
+			return SC_REQUEST_TIMEOUT;
+		}
+		
+		if ( !this.authenticateSignature( sessionTicket.getKey(), timestamp, signature ) ) {
+			log.warning( "Client signature doesnot match with server generated signature .Setting Http status code " + SC_UNAUTHORIZED );
+			return SC_UNAUTHORIZED;
+		}
+		
+		Metrics.increment( "ticket.accepted" );
+		this.ticket = sessionTicket;
+		return SC_OK;
+	}
+	
 	/**
 	 * Generate tokens for given UID. The tokens are encrypted using the key corresponding to UID. Encrypted tokens are then wrapped in JSON object
 	 * before returning it. Useful in Anonymous and Identity modes
@@ -87,15 +156,23 @@ public class IdentityTokenVendingMachine {
 	 * @throws Exception
 	 */
 	public String getToken( String uid ) throws Exception {
-		DeviceAuthentication auth = new DeviceAuthentication();
-		String key = auth.getKey( uid );
+		String key;
+		String username;
+		if ( null != this.ticket && this.ticket.getUid().equals( uid ) ) {
+			key = this.ticket.getKey();
+			username = this.ticket.getUsername();
+		}
+		else {
+			DeviceAuthentication auth = new DeviceAuthentication();
+			key = auth.getKey( uid );
+			
+			username = UserAuthentication.getUsernameFromUID( auth.getUserId( uid ) );
+			if ( username == null ) {
+				log.severe( "Username not found for: " + username );
+				return null;
+			}
+		}
 		
-        String username = UserAuthentication.getUsernameFromUID( auth.getUserId( uid ) );
-        if ( username == null ) {
-            log.severe( "Username not found for: " + username );            
-            return null;
-        }
-                
 		Credentials sessionCredentials = TemporaryCredentialManagement.getTemporaryCredentials( username );
 		// if unable to create session credentials then return HTTP 500 error code
 		if ( sessionCredentials == null ) {
@@ -108,6 +185,7 @@ public class IdentityTokenVendingMachine {
 				log.severe( "Error generating xml response for token request" );
 				return null;
 			}
+			IssuedCredentials.record( uid, sessionCredentials );
 			return data;
 		}
 		
@@ -225,8 +303,13 @@ public class IdentityTokenVendingMachine {
 		UserAuthentication userAuthenticator = new UserAuthentication();
 		String hashSaltedPassword = userAuthenticator.getHashSaltedPassword( username );
 		
+		String ticket = null;
+		if ( SessionTicket.isEnabled() ) {
+			ticket = SessionTicket.issue( uid, deviceAuthenticator.getUserId( uid ), username, key );
+		}
+		
 		log.info( "Responding with encrypted key for UID : " + encode( uid ) );
-		String data = Utilities.prepareJsonResponseForKey( key, hashSaltedPassword );
+		String data = Utilities.prepareJsonResponseForKey( key, ticket, hashSaltedPassword );
 		if ( null == data ) {
 			log.severe( "Error generating json response for key request" );
 		}
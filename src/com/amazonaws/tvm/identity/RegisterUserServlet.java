@@ -24,6 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.amazonaws.tvm.MissingParameterException;
 import com.amazonaws.tvm.RootServlet;
+import com.amazonaws.tvm.ServiceUnavailableException;
 import com.amazonaws.tvm.Utilities;
 
 /**
@@ -60,6 +61,9 @@ public class RegisterUserServlet extends RootServlet {
 			response.setStatus( HttpServletResponse.SC_BAD_REQUEST );
 			return "/mpe.jsp";
 		}
+		catch ( ServiceUnavailableException exception ) {
+			throw exception;
+		}
 		catch ( Exception exception ) {
 			log.log( Level.SEVERE, "Exception during processRequest", exception );
 			request.setAttribute( "exception", exception );
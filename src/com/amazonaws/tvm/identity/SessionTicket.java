@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.identity;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.tvm.AESEncryption;
+import com.amazonaws.tvm.Application;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.RandomPool;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.jfr.CryptoEvent;
+import com.amazonaws.tvm.jfr.FlightEvents;
+
+/**
+ * A ticket handed to a device at login that lets it get tokens without the Token Vending Machine reading the device and user records again. The
+ * ticket binds app, UID, userid, username and device key to an expiry. It is encrypted with AES-CBC and then authenticated with HMAC-SHA256 under
+ * a server key from TICKET_KEYS, so only a Token Vending Machine can read or forge it. Both keys are derived from the configured secret, whose
+ * id travels in the ticket so that tickets issued before a rotation are still accepted while their secret is listed.
+ * <p>
+ * Layout before URL-safe Base64 encoding: version (1 byte), key id (4 bytes), IV (16 bytes), cipher text, MAC (32 bytes).
+ */
+public class SessionTicket {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	private static final byte VERSION = 1;
+	
+	private static final int HEADER_BYTES = 1 + 4 + 16;
+	
+	private static final int MAC_BYTES = 32;
+	
+	/** How often the revocation file is checked for changes */
+	private static final long REVOCATION_CHECK_MILLIS = 10 * 1000L;
+	
+	private static final List<TicketKey> KEYS = loadKeys( Configuration.TICKET_KEYS );
+	
+	private static volatile Set<String> revokedUsernames = Collections.emptySet();
+	
+	private static long revocationFileModified;
+	
+	private static volatile long revocationCheckedAt;
+	
+	private final String uid;
+	
+	private final String userid;
+	
+	private final String username;
+	
+	private final String key;
+	
+	private final long expiresAt;
+	
+	private SessionTicket( String uid, String userid, String username, String key, long expiresAt ) {
+		this.uid = uid;
+		this.userid = userid;
+		this.username = username;
+		this.key = key;
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * @return true if TICKET_KEYS is set and tickets are handed out at login
+	 */
+	public static boolean isEnabled() {
+		return !KEYS.isEmpty();
+	}
+	
+	/**
+	 * Issues a ticket valid for TICKET_LIFETIME_SECONDS under the first key of TICKET_KEYS.
+	 * 
+	 * @return the ticket, null if tickets are disabled
+	 */
+	public static String issue( String uid, String userid, String username, String key ) throws Exception {
+		if ( KEYS.isEmpty() ) {
+			return null;
+		}
+		
+		CryptoEvent event = FlightEvents.ENABLED ? new CryptoEvent() : null;
+		ByteArrayOutputStream clearText = new ByteArrayOutputStream( 256 );
+		DataOutputStream out = new DataOutputStream( clearText );
+		out.writeUTF( Application.current().getName() );
+		out.writeUTF( uid );
+		out.writeUTF( userid );
+		out.writeUTF( username );
+		out.writeUTF( key );
+		out.writeLong( System.currentTimeMillis() + Configuration.TICKET_LIFETIME_SECONDS * 1000L );
+		out.flush();
+		
+		TicketKey ticketKey = KEYS.get( 0 );
+		byte[] iv = RandomPool.next128();
+		Cipher cipher = Cipher.getInstance( AESEncryption.ENCRYPTION_ALGORITHM );
+		cipher.init( Cipher.ENCRYPT_MODE, ticketKey.encryptionKey, new IvParameterSpec( iv ) );
+		byte[] cipherText = cipher.doFinal( clearText.toByteArray() );
+		
+		byte[] ticket = new byte[ HEADER_BYTES + cipherText.length + MAC_BYTES ];
+		ticket[ 0 ] = VERSION;
+		System.arraycopy( ticketKey.id, 0, ticket, 1, 4 );
+		System.arraycopy( iv, 0, ticket, 5, 16 );
+		System.arraycopy( cipherText, 0, ticket, HEADER_BYTES, cipherText.length );
+		System.arraycopy( ticketKey.mac( ticket, HEADER_BYTES + cipherText.length ), 0, ticket, HEADER_BYTES + cipherText.length, MAC_BYTES );
+		
+		Metrics.increment( "ticket.issued" );
+		if ( null != event ) {
+			event.finish( "ticket.issue", clearText.size() );
+		}
+		return Base64.encodeBase64URLSafeString( ticket );
+	}
+	
+	/**
+	 * Authenticates and decrypts a ticket. The MAC is checked before anything is decrypted.
+	 * 
+	 * @return the ticket, null if it is malformed, forged, issued under a key that is no longer listed, issued for another app or expired
+	 */
+	public static SessionTicket open( String encoded ) {
+		CryptoEvent event = FlightEvents.ENABLED ? new CryptoEvent() : null;
+		try {
+			byte[] ticket = Base64.decodeBase64( encoded );
+			if ( ticket.length < HEADER_BYTES + 16 + MAC_BYTES || ticket[ 0 ] != VERSION ) {
+				return null;
+			}
+			
+			TicketKey ticketKey = findKey( ticket );
+			if ( null == ticketKey ) {
+				return null;
+			}
+			
+			int macOffset = ticket.length - MAC_BYTES;
+			byte[] mac = new byte[ MAC_BYTES ];
+			System.arraycopy( ticket, macOffset, mac, 0, MAC_BYTES );
+			if ( !MessageDigest.isEqual( mac, ticketKey.mac( ticket, macOffset ) ) ) {
+				return null;
+			}
+			
+			Cipher cipher = Cipher.getInstance( AESEncryption.ENCRYPTION_ALGORITHM );
+			cipher.init( Cipher.DECRYPT_MODE, ticketKey.encryptionKey, new IvParameterSpec( ticket, 5, 16 ) );
+			byte[] clearText = cipher.doFinal( ticket, HEADER_BYTES, macOffset - HEADER_BYTES );
+			
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( clearText ) );
+			if ( !Application.current().getName().equals( in.readUTF() ) ) {
+				return null;
+			}
+			SessionTicket sessionTicket = new SessionTicket( in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong() );
+			return ( sessionTicket.expiresAt > System.currentTimeMillis() ) ? sessionTicket : null;
+		}
+		catch ( Exception exception ) {
+			log.log( Level.FINE, "Unable to open ticket", exception );
+			return null;
+		}
+		finally {
+			if ( null != event ) {
+				event.finish( "ticket.open", ( null == encoded ) ? 0 : encoded.length() );
+			}
+		}
+	}
+	
+	public String getUid() {
+		return this.uid;
+	}
+	
+	public String getUserid() {
+		return this.userid;
+	}
+	
+	public String getUsername() {
+		return this.username;
+	}
+	
+	/**
+	 * @return the device key the ticket was issued with
+	 */
+	public String getKey() {
+		return this.key;
+	}
+	
+	public long getExpiresAt() {
+		return this.expiresAt;
+	}
+	
+	/**
+	 * @return true if the user is listed in TICKET_REVOCATION_FILE
+	 */
+	public boolean isRevoked() {
+		refreshRevocations();
+		return revokedUsernames.contains( this.username );
+	}
+	
+	private static TicketKey findKey( byte[] ticket ) {
+		for ( TicketKey ticketKey : KEYS ) {
+			boolean matches = true;
+			for ( int i = 0; i < 4; i++ ) {
+				matches &= ticketKey.id[ i ] == ticket[ 1 + i ];
+			}
+			if ( matches ) {
+				return ticketKey;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Rereads the revocation file if it changed since it was last read. The file holds one username per line.
+	 */
+	private static void refreshRevocations() {
+		if ( Utilities.isEmpty( Configuration.TICKET_REVOCATION_FILE )
+				|| System.currentTimeMillis() - revocationCheckedAt < REVOCATION_CHECK_MILLIS ) {
+			return;
+		}
+		
+		synchronized ( SessionTicket.class ) {
+			long now = System.currentTimeMillis();
+			if ( now - revocationCheckedAt < REVOCATION_CHECK_MILLIS ) {
+				return;
+			}
+			revocationCheckedAt = now;
+			
+			File file = new File( Configuration.TICKET_REVOCATION_FILE );
+			long modified = file.lastModified();
+			if ( modified == revocationFileModified ) {
+				return;
+			}
+			
+			Set<String> usernames = new HashSet<String>();
+			BufferedReader reader = null;
+			try {
+				if ( file.exists() ) {
+					reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), Constants.ENCODING_FORMAT ) );
+					String line;
+					while ( null != ( line = reader.readLine() ) ) {
+						if ( !Utilities.isEmpty( line ) ) {
+							usernames.add( line.trim() );
+						}
+					}
+				}
+				revokedUsernames = usernames;
+				revocationFileModified = modified;
+				Metrics.increment( "ticket.revocations_loaded" );
+				log.info( "Loaded " + usernames.size() + " revoked usernames" );
+			}
+			catch ( Exception exception ) {
+				log.log( Level.WARNING, "Unable to read " + Configuration.TICKET_REVOCATION_FILE + ", keeping previous revocations", exception );
+			}
+			finally {
+				if ( null != reader ) {
+					try {
+						reader.close();
+					}
+					catch ( Exception exception ) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+	
+	private static List<TicketKey> loadKeys( String secrets ) {
+		List<TicketKey> keys = new ArrayList<TicketKey>();
+		for ( String secret : secrets.split( "," ) ) {
+			if ( !Utilities.isEmpty( secret ) ) {
+				keys.add( new TicketKey( secret.trim() ) );
+			}
+		}
+		return Collections.unmodifiableList( keys );
+	}
+	
+	/**
+	 * The encryption key, MAC key and id derived from one configured secret.
+	 */
+	private static class TicketKey {
+		
+		final byte[] id = new byte[ 4 ];
+		
+		final SecretKeySpec encryptionKey;
+		
+		final SecretKeySpec macKey;
+		
+		TicketKey( String secret ) {
+			SecretKeySpec master = new SecretKeySpec( getBytes( secret ), Constants.SIGNATURE_METHOD );
+			byte[] encryption = new byte[ 16 ];
+			System.arraycopy( derive( master, "encryption" ), 0, encryption, 0, 16 );
+			this.encryptionKey = new SecretKeySpec( encryption, "AES" );
+			this.macKey = new SecretKeySpec( derive( master, "mac" ), Constants.SIGNATURE_METHOD );
+			System.arraycopy( derive( master, "id" ), 0, this.id, 0, 4 );
+		}
+		
+		byte[] mac( byte[] data, int length ) throws Exception {
+			Mac mac = Mac.getInstance( Constants.SIGNATURE_METHOD );
+			mac.init( this.macKey );
+			mac.update( data, 0, length );
+			return mac.doFinal();
+		}
+		
+		private static byte[] derive( SecretKeySpec master, String purpose ) {
+			try {
+				Mac mac = Mac.getInstance( Constants.SIGNATURE_METHOD );
+				mac.init( master );
+				return mac.doFinal( getBytes( purpose ) );
+			}
+			catch ( Exception exception ) {
+				throw new IllegalStateException( "Unable to derive ticket key", exception );
+			}
+		}
+		
+		private static byte[] getBytes( String value ) {
+			try {
+				return value.getBytes( Constants.ENCODING_FORMAT );
+			}
+			catch ( Exception exception ) {
+				throw new IllegalStateException( exception );
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A lookup in one of the record, off-heap or credential caches. Its duration includes the wait for the segment lock.
+ */
+@Name( "com.amazonaws.tvm.CacheLookup" )
+@Label( "TVM Cache Lookup" )
+@Category( "Token Vending Machine" )
+@Description( "A lookup in a Token Vending Machine cache" )
+@StackTrace( false )
+public class CacheEvent extends Event {
+	
+	@Label( "Cache" )
+	String cache;
+	
+	@Label( "Hit" )
+	boolean hit;
+	
+	public CacheEvent() {
+		this.begin();
+	}
+	
+	public void finish( String cache, boolean hit ) {
+		this.end();
+		if ( this.shouldCommit() ) {
+			this.cache = cache;
+			this.hit = hit;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An encryption, signature or key derivation done while serving a request.
+ */
+@Name( "com.amazonaws.tvm.Crypto" )
+@Label( "TVM Crypto Operation" )
+@Category( "Token Vending Machine" )
+@Description( "An encryption, signature or key derivation done by the Token Vending Machine" )
+@StackTrace( false )
+public class CryptoEvent extends Event {
+	
+	@Label( "Operation" )
+	String operation;
+	
+	@Label( "Input Size" )
+	@DataAmount
+	int bytes;
+	
+	public CryptoEvent() {
+		this.begin();
+	}
+	
+	public void finish( String operation, int bytes ) {
+		this.end();
+		if ( this.shouldCommit() ) {
+			this.operation = operation;
+			this.bytes = bytes;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A GetFederationToken call to STS.
+ */
+@Name( "com.amazonaws.tvm.Federation" )
+@Label( "TVM STS Federation" )
+@Category( "Token Vending Machine" )
+@Description( "A GetFederationToken call made by the Token Vending Machine" )
+@StackTrace( false )
+public class FederationEvent extends Event {
+	
+	@Label( "Endpoint" )
+	String endpoint;
+	
+	@Label( "Application" )
+	String application;
+	
+	@Label( "Session Duration" )
+	@Timespan( Timespan.SECONDS )
+	long sessionDuration;
+	
+	@Label( "Error Code" )
+	String errorCode;
+	
+	public FederationEvent() {
+		this.begin();
+	}
+	
+	public void finish( String endpoint, String application, long sessionDuration, String errorCode ) {
+		this.end();
+		if ( this.shouldCommit() ) {
+			this.endpoint = endpoint;
+			this.application = application;
+			this.sessionDuration = sessionDuration;
+			this.errorCode = errorCode;
+			this.commit();
+		}
+	}
+}
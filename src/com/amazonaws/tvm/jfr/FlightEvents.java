@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.FlightRecorder;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+
+/**
+ * JDK Flight Recorder events of the Token Vending Machine, so its requests, store and STS calls, cache lookups and crypto operations can be
+ * correlated with GC, lock and I/O events in JDK Mission Control. The events are found under the "Token Vending Machine" category.
+ * 
+ * Event classes extend jdk.jfr.Event, which older runtimes lack. Callers therefore only touch them behind ENABLED, e.g.
+ * <code>StoreEvent event = FlightEvents.ENABLED ? new StoreEvent() : null</code>, so the classes are never loaded where JFR is missing or
+ * disabled by JFR_EVENTS. With JFR present but no recording running, an event is begun and dropped without its fields being set.
+ */
+public class FlightEvents {
+	
+	private static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	public static final boolean ENABLED = Configuration.JFR_EVENTS && isAvailable();
+	
+	private static boolean registered = false;
+	
+	/**
+	 * Registers the event types up front, so they show up in JDK Mission Control and recording settings before the first one is emitted.
+	 * Safe to call more than once.
+	 */
+	public static synchronized void register() {
+		if ( !ENABLED || registered ) {
+			return;
+		}
+		
+		try {
+			FlightRecorder.register( RequestEvent.class );
+			FlightRecorder.register( StoreEvent.class );
+			FlightRecorder.register( FederationEvent.class );
+			FlightRecorder.register( CacheEvent.class );
+			FlightRecorder.register( CryptoEvent.class );
+			registered = true;
+		}
+		catch ( Exception exception ) {
+			log.log( Level.WARNING, "Unable to register Flight Recorder events", exception );
+		}
+	}
+	
+	private static boolean isAvailable() {
+		try {
+			Class.forName( "jdk.jfr.Event" );
+			return true;
+		}
+		catch ( Throwable throwable ) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A request handled by one of the servlets, from the moment it is received until its response is complete.
+ */
+@Name( "com.amazonaws.tvm.Request" )
+@Label( "TVM Request" )
+@Category( "Token Vending Machine" )
+@Description( "A request handled by a Token Vending Machine servlet" )
+@StackTrace( false )
+public class RequestEvent extends Event {
+	
+	@Label( "Endpoint" )
+	String endpoint;
+	
+	@Label( "Application" )
+	String application;
+	
+	@Label( "Status" )
+	int status;
+	
+	@Label( "Trace Id" )
+	String traceId;
+	
+	public RequestEvent() {
+		this.begin();
+	}
+	
+	public void finish( String endpoint, String application, int status, String traceId ) {
+		this.end();
+		if ( this.shouldCommit() ) {
+			this.endpoint = endpoint;
+			this.application = application;
+			this.status = status;
+			this.traceId = traceId;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A single attempt of a SimpleDB call. Retried and hedged calls show up as one event per attempt.
+ */
+@Name( "com.amazonaws.tvm.StoreOperation" )
+@Label( "TVM Store Operation" )
+@Category( "Token Vending Machine" )
+@Description( "A SimpleDB call made by the Token Vending Machine" )
+@StackTrace( false )
+public class StoreEvent extends Event {
+	
+	@Label( "Operation" )
+	String operation;
+	
+	@Label( "Endpoint" )
+	String endpoint;
+	
+	@Label( "Domain" )
+	String domain;
+	
+	@Label( "Item Count" )
+	@Description( "Items or attributes returned by a read" )
+	int itemCount;
+	
+	@Label( "Consistent Read" )
+	boolean consistentRead;
+	
+	@Label( "Error Code" )
+	String errorCode;
+	
+	public StoreEvent() {
+		this.begin();
+	}
+	
+	public void finish( String operation, String endpoint, String domain, int itemCount, boolean consistentRead, String errorCode ) {
+		this.end();
+		if ( this.shouldCommit() ) {
+			this.operation = operation;
+			this.endpoint = endpoint;
+			this.domain = domain;
+			this.itemCount = itemCount;
+			this.consistentRead = consistentRead;
+			this.errorCode = errorCode;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.local;
+
+import com.amazonaws.tvm.Configuration;
+
+/**
+ * The simulated service latency of the local stand-ins.
+ */
+class LocalLatency {
+	
+	static void pause() {
+		if ( Configuration.LOCAL_LATENCY_MILLIS <= 0 ) {
+			return;
+		}
+		
+		try {
+			Thread.sleep( Configuration.LOCAL_LATENCY_MILLIS );
+		}
+		catch ( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.services.securitytoken.model.FederatedUser;
+import com.amazonaws.services.securitytoken.model.GetFederationTokenRequest;
+import com.amazonaws.services.securitytoken.model.GetFederationTokenResult;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Utilities;
+
+/**
+ * Stand-in for STS, used when LOCAL_STANDINS is set. GetFederationToken returns random credentials that are valid for nothing, with the
+ * requested duration. Every call is delayed by LOCAL_LATENCY_MILLIS.
+ */
+public class LocalSecurityTokenService implements InvocationHandler {
+	
+	private static AWSSecurityTokenService instance;
+	
+	public synchronized static AWSSecurityTokenService getInstance() {
+		if ( null == instance ) {
+			instance = (AWSSecurityTokenService) Proxy.newProxyInstance( AWSSecurityTokenService.class.getClassLoader(),
+					new Class<?>[] { AWSSecurityTokenService.class }, new LocalSecurityTokenService() );
+		}
+		return instance;
+	}
+	
+	public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+		String name = method.getName();
+		if ( "setEndpoint".equals( name ) || "setRegion".equals( name ) || "shutdown".equals( name ) ) {
+			return null;
+		}
+		if ( !"getFederationToken".equals( name ) ) {
+			throw new UnsupportedOperationException( "The local STS doesnot support " + name );
+		}
+		
+		LocalLatency.pause();
+		GetFederationTokenRequest request = (GetFederationTokenRequest) args[ 0 ];
+		int durationSeconds = ( null == request.getDurationSeconds() ) ? 43200 : request.getDurationSeconds();
+		
+		Credentials credentials = new Credentials().withAccessKeyId( "ASIA" + Utilities.generateRandomString().substring( 0, 16 ).toUpperCase() )
+				.withSecretAccessKey( Utilities.generateRandomString() + Utilities.generateRandomString() )
+				.withSessionToken( Utilities.generateRandomString() + Utilities.generateRandomString() + Utilities.generateRandomString() )
+				.withExpiration( new Date( System.currentTimeMillis() + durationSeconds * 1000L ) );
+		FederatedUser federatedUser = new FederatedUser().withFederatedUserId( Configuration.AWS_ACCOUNT_ID + ":" + request.getName() ).withArn(
+				"arn:aws:sts::" + Configuration.AWS_ACCOUNT_ID + ":federated-user/" + request.getName() );
+		return new GetFederationTokenResult().withCredentials( credentials ).withFederatedUser( federatedUser );
+	}
+	
+}
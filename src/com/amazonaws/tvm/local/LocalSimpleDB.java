@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.model.UpdateCondition;
+/**
+ * In-memory stand-in for SimpleDB, used by StoreClient when LOCAL_STANDINS is set. It supports the calls the Token Vending Machine makes:
+ * domain creation and listing, conditional and batch puts, deletes of whole items, reads, and selects of the form
+ * "select * from `domain` [where attribute = 'value']". All reads are consistent. Every call is delayed by LOCAL_LATENCY_MILLIS.
+ */
+public class LocalSimpleDB implements InvocationHandler {
+	
+	private static final Pattern SELECT = Pattern.compile( "select \\* from `([^`]+)`(?:\\s+where\\s+(\\w+)\\s*=\\s*'([^']*)')?\\s*",
+			Pattern.CASE_INSENSITIVE );
+	
+	private static AmazonSimpleDB instance;
+	
+	/** Domain name to item name to attribute name to values */
+	private final ConcurrentMap<String, ConcurrentMap<String, Map<String, List<String>>>> domains = new ConcurrentHashMap<String, ConcurrentMap<String, Map<String, List<String>>>>();
+	
+	/**
+	 * @return the store shared by all SimpleDB endpoints of this process
+	 */
+	public synchronized static AmazonSimpleDB getInstance() {
+		if ( null == instance ) {
+			instance = (AmazonSimpleDB) Proxy.newProxyInstance( AmazonSimpleDB.class.getClassLoader(), new Class<?>[] { AmazonSimpleDB.class },
+					new LocalSimpleDB() );
+		}
+		return instance;
+	}
+	
+	public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+		String name = method.getName();
+		if ( "setEndpoint".equals( name ) || "setRegion".equals( name ) || "shutdown".equals( name ) ) {
+			return null;
+		}
+		
+		LocalLatency.pause();
+		if ( "getAttributes".equals( name ) ) {
+			return this.getAttributes( (GetAttributesRequest) args[ 0 ] );
+		}
+		if ( "putAttributes".equals( name ) ) {
+			this.putAttributes( (PutAttributesRequest) args[ 0 ] );
+			return null;
+		}
+		if ( "deleteAttributes".equals( name ) ) {
+			this.deleteAttributes( (DeleteAttributesRequest) args[ 0 ] );
+			return null;
+		}
+		if ( "batchPutAttributes".equals( name ) ) {
+			BatchPutAttributesRequest request = (BatchPutAttributesRequest) args[ 0 ];
+			for ( ReplaceableItem item : request.getItems() ) {
+				this.putAttributes( new PutAttributesRequest( request.getDomainName(), item.getName(), item.getAttributes() ) );
+			}
+			return null;
+		}
+		if ( "batchDeleteAttributes".equals( name ) ) {
+			BatchDeleteAttributesRequest request = (BatchDeleteAttributesRequest) args[ 0 ];
+			for ( DeletableItem item : request.getItems() ) {
+				this.deleteAttributes( new DeleteAttributesRequest( request.getDomainName(), item.getName() ) );
+			}
+			return null;
+		}
+		if ( "select".equals( name ) ) {
+			return this.select( (SelectRequest) args[ 0 ] );
+		}
+		if ( "createDomain".equals( name ) ) {
+			this.domains.putIfAbsent( ( (CreateDomainRequest) args[ 0 ] ).getDomainName(), new ConcurrentHashMap<String, Map<String, List<String>>>() );
+			return null;
+		}
+		if ( "listDomains".equals( name ) ) {
+			return new ListDomainsResult().withDomainNames( new ArrayList<String>( this.domains.keySet() ) );
+		}
+		throw new UnsupportedOperationException( "The local SimpleDB doesnot support " + name );
+	}
+	
+	private GetAttributesResult getAttributes( GetAttributesRequest request ) {
+		Map<String, List<String>> item = this.getDomain( request.getDomainName() ).get( request.getItemName() );
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		if ( null != item ) {
+			synchronized ( item ) {
+				attributes = toAttributes( item );
+			}
+		}
+		return new GetAttributesResult().withAttributes( attributes );
+	}
+	
+	private void putAttributes( PutAttributesRequest request ) {
+		ConcurrentMap<String, Map<String, List<String>>> domain = this.getDomain( request.getDomainName() );
+		Map<String, List<String>> item = domain.get( request.getItemName() );
+		if ( null == item ) {
+			Map<String, List<String>> created = new LinkedHashMap<String, List<String>>();
+			item = domain.putIfAbsent( request.getItemName(), created );
+			if ( null == item ) {
+				item = created;
+			}
+		}
+		
+		synchronized ( item ) {
+			checkCondition( item, request.getExpected() );
+			for ( ReplaceableAttribute attribute : request.getAttributes() ) {
+				List<String> values = item.get( attribute.getName() );
+				if ( null == values || Boolean.TRUE.equals( attribute.getReplace() ) ) {
+					values = new ArrayList<String>( 1 );
+					item.put( attribute.getName(), values );
+				}
+				if ( !values.contains( attribute.getValue() ) ) {
+					values.add( attribute.getValue() );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Only deletes of whole items are supported, as used by the Token Vending Machine.
+	 */
+	private void deleteAttributes( DeleteAttributesRequest request ) {
+		this.getDomain( request.getDomainName() ).remove( request.getItemName() );
+	}
+	
+	private SelectResult select( SelectRequest request ) {
+		Matcher matcher = SELECT.matcher( request.getSelectExpression() );
+		if ( !matcher.matches() ) {
+			throw error( "InvalidQueryExpression", 400, "The local SimpleDB cannot run " + request.getSelectExpression() );
+		}
+		
+		String attributeName = matcher.group( 2 );
+		String value = matcher.group( 3 );
+		List<Item> items = new ArrayList<Item>();
+		for ( Map.Entry<String, Map<String, List<String>>> entry : this.getDomain( matcher.group( 1 ) ).entrySet() ) {
+			Map<String, List<String>> item = entry.getValue();
+			synchronized ( item ) {
+				List<String> values = ( null == attributeName ) ? null : item.get( attributeName );
+				if ( null == attributeName || ( null != values && values.contains( value ) ) ) {
+					items.add( new Item( entry.getKey(), toAttributes( item ) ) );
+				}
+			}
+		}
+		return new SelectResult().withItems( items );
+	}
+	
+	private ConcurrentMap<String, Map<String, List<String>>> getDomain( String name ) {
+		ConcurrentMap<String, Map<String, List<String>>> domain = this.domains.get( name );
+		if ( null == domain ) {
+			throw error( "NoSuchDomain", 400, "The specified domain does not exist." );
+		}
+		return domain;
+	}
+	
+	private static void checkCondition( Map<String, List<String>> item, UpdateCondition expected ) {
+		if ( null == expected || null == expected.getName() ) {
+			return;
+		}
+		
+		List<String> values = item.get( expected.getName() );
+		boolean exists = null != values && !values.isEmpty();
+		if ( Boolean.FALSE.equals( expected.getExists() ) ? exists : !( exists && values.contains( expected.getValue() ) ) ) {
+			throw error( "ConditionalCheckFailed", 409, "Conditional check failed. Attribute (" + expected.getName() + ") value mismatch" );
+		}
+	}
+	
+	private static List<Attribute> toAttributes( Map<String, List<String>> item ) {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		for ( Map.Entry<String, List<String>> entry : item.entrySet() ) {
+			for ( String value : entry.getValue() ) {
+				attributes.add( new Attribute( entry.getKey(), value ) );
+			}
+		}
+		return attributes;
+	}
+	
+	private static AmazonServiceException error( String errorCode, int statusCode, String message ) {
+		AmazonServiceException exception = new AmazonServiceException( message );
+		exception.setErrorCode( errorCode );
+		exception.setErrorType( AmazonServiceException.ErrorType.Client );
+		exception.setStatusCode( statusCode );
+		exception.setServiceName( "AmazonSimpleDB" );
+		return exception;
+	}
+	
+}
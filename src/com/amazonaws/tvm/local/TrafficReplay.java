@@ -0,0 +1,421 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.local;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.TrafficCapture;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.custom.DeviceAuthentication;
+import com.amazonaws.tvm.custom.UserAuthentication;
+import com.amazonaws.tvm.standalone.StandaloneServer;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Replays traffic recorded with CAPTURE_FILE against a Token Vending Machine started in this process on the standalone server, with SimpleDB
+ * and STS replaced by the local stand-ins. Requests are sent at their recorded inter-arrival times, divided by Speed.
+ * 
+ * Only the shape of a request was recorded, so its values are made up to reproduce the recorded outcome. Requests that succeeded use one of the
+ * seeded accounts and a valid signature. Rejected requests use unknown names and random signatures of the recorded length. Timestamps keep
+ * their recorded offset from the clock. Requests that failed on the server side are sent as valid ones.
+ * 
+ * At the end the latency percentiles of every endpoint are printed next to the captured ones. With ResultFile they are also saved, and a result
+ * file passed as Baseline is printed alongside, so two runs can be compared.
+ * 
+ * Usage: java -DCaptureFile=<capture_file> [-DSpeed=<factor>] [-DAccounts=<count>] [-DResultFile=<file>] [-DBaseline=<result_file>]
+ * [-DLOCAL_LATENCY_MILLIS=<ms>] [-DSTANDALONE_PORT=<port>] com.amazonaws.tvm.local.TrafficReplay
+ */
+public class TrafficReplay {
+	
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+	
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+	
+	private final String baseUrl;
+	
+	private final List<Account> accounts = new ArrayList<Account>();
+	
+	private final Random random = new Random();
+	
+	private final AtomicInteger newUsers = new AtomicInteger();
+	
+	private final Map<String, Results> results = new TreeMap<String, Results>();
+	
+	public static void main( String[] args ) throws Exception {
+		String captureFile = System.getProperty( "CaptureFile" );
+		if ( Utilities.isEmpty( captureFile ) ) {
+			System.out.println( "Usage:java -DCaptureFile=<capture_file> [-DSpeed=<factor>] [-DAccounts=<count>] [-DResultFile=<file>] [-DBaseline=<result_file>] [-DLOCAL_LATENCY_MILLIS=<ms>] [-DSTANDALONE_PORT=<port>] com.amazonaws.tvm.local.TrafficReplay" );
+			return;
+		}
+		
+		// Has to happen before Configuration is loaded
+		System.setProperty( "LOCAL_STANDINS", "true" );
+		setDefault( "AWS_ACCESS_KEY_ID", "local" );
+		setDefault( "AWS_SECRET_KEY", "local" );
+		setDefault( "AWS_ACCOUNT_ID", "000000000000" );
+		
+		double speed = Double.parseDouble( System.getProperty( "Speed", "1" ) );
+		int accounts = Integer.parseInt( System.getProperty( "Accounts", "100" ) );
+		
+		List<TrafficCapture.Record> records = TrafficCapture.read( captureFile );
+		System.out.println( "Replaying " + records.size() + " requests at " + speed + "x" );
+		
+		StandaloneServer server = new StandaloneServer( Configuration.STANDALONE_PORT );
+		server.mountEndpoints();
+		server.start();
+		try {
+			TrafficReplay replay = new TrafficReplay( "http://localhost:" + Configuration.STANDALONE_PORT );
+			replay.seed( accounts );
+			replay.run( records, speed );
+			
+			Properties baseline = null;
+			if ( null != System.getProperty( "Baseline" ) ) {
+				baseline = load( System.getProperty( "Baseline" ) );
+			}
+			replay.report( baseline );
+			
+			if ( null != System.getProperty( "ResultFile" ) ) {
+				save( replay.toProperties(), System.getProperty( "ResultFile" ) );
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	public TrafficReplay( String baseUrl ) {
+		this.baseUrl = baseUrl;
+	}
+	
+	/**
+	 * Registers users, each with a device, in the local store.
+	 */
+	public void seed( int count ) throws Exception {
+		UserAuthentication users = new UserAuthentication();
+		DeviceAuthentication devices = new DeviceAuthentication();
+		for ( int i = 0; i < count; i++ ) {
+			String username = "replay_user_" + i;
+			users.registerUser( username, "replay_password_" + i, "localhost" );
+			
+			Account account = new Account( username, users.getHashSaltedPassword( username ), "replay_device_" + i,
+					Utilities.generateRandomString() );
+			devices.registerDevice( account.uid, account.key, users.getUserid( username ) );
+			this.accounts.add( account );
+		}
+	}
+	
+	/**
+	 * Sends the requests at their recorded times and waits for all responses.
+	 */
+	public void run( List<TrafficCapture.Record> records, double speed ) throws InterruptedException {
+		List<TrafficCapture.Record> ordered = new ArrayList<TrafficCapture.Record>( records );
+		Collections.sort( ordered, new Comparator<TrafficCapture.Record>() {
+			public int compare( TrafficCapture.Record a, TrafficCapture.Record b ) {
+				return ( a.getArrivalMicros() < b.getArrivalMicros() ) ? -1 : ( ( a.getArrivalMicros() == b.getArrivalMicros() ) ? 0 : 1 );
+			}
+		} );
+		
+		ExecutorService senders = Executors.newCachedThreadPool( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "TrafficReplay-sender" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		
+		long startNanos = System.nanoTime();
+		long firstArrivalMicros = ordered.isEmpty() ? 0 : ordered.get( 0 ).getArrivalMicros();
+		for ( final TrafficCapture.Record record : ordered ) {
+			long dueNanos = startNanos + (long) ( ( record.getArrivalMicros() - firstArrivalMicros ) * 1000 / speed );
+			long waitNanos = dueNanos - System.nanoTime();
+			if ( waitNanos > 0 ) {
+				TimeUnit.NANOSECONDS.sleep( waitNanos );
+			}
+			
+			senders.execute( new Runnable() {
+				public void run() {
+					replay( record );
+				}
+			} );
+		}
+		
+		senders.shutdown();
+		senders.awaitTermination( 1, TimeUnit.HOURS );
+	}
+	
+	/**
+	 * Prints the percentiles, in milliseconds, of the captured and replayed latencies of every endpoint, and those of the baseline if given.
+	 */
+	public void report( Properties baseline ) {
+		System.out.println( String.format( "%-16s %8s %8s  %-24s %-24s %s", "endpoint", "requests", "matched", "captured p50/p90/p99",
+				"replayed p50/p90/p99", ( null == baseline ) ? "" : "baseline p50/p90/p99" ) );
+		synchronized ( this.results ) {
+			for ( Map.Entry<String, Results> entry : this.results.entrySet() ) {
+				Results endpoint = entry.getValue();
+				String baselinePercentiles = "";
+				if ( null != baseline && null != baseline.getProperty( entry.getKey() + ".p50" ) ) {
+					StringBuilder builder = new StringBuilder();
+					for ( double percentile : PERCENTILES ) {
+						long micros = Long.parseLong( baseline.getProperty( entry.getKey() + ".p" + (int) percentile ) );
+						builder.append( ( builder.length() == 0 ) ? "" : "/" ).append( formatMillis( micros ) );
+					}
+					baselinePercentiles = builder.toString();
+				}
+				System.out.println( String.format( "%-16s %8d %8d  %-24s %-24s %s", entry.getKey(), endpoint.replayed.size(), endpoint.matched,
+						formatPercentiles( endpoint.captured ), formatPercentiles( endpoint.replayed ), baselinePercentiles ) );
+			}
+		}
+	}
+	
+	/**
+	 * @return the replayed latency percentiles in microseconds, as read by report for a baseline
+	 */
+	public Properties toProperties() {
+		Properties properties = new Properties();
+		synchronized ( this.results ) {
+			for ( Map.Entry<String, Results> entry : this.results.entrySet() ) {
+				List<Long> replayed = entry.getValue().replayed;
+				properties.setProperty( entry.getKey() + ".count", String.valueOf( replayed.size() ) );
+				for ( double percentile : PERCENTILES ) {
+					properties.setProperty( entry.getKey() + ".p" + (int) percentile, String.valueOf( percentile( replayed, percentile ) ) );
+				}
+			}
+		}
+		return properties;
+	}
+	
+	private void replay( TrafficCapture.Record record ) {
+		String query = this.buildQuery( record );
+		String url = this.baseUrl + record.getEndpoint();
+		
+		int status;
+		long startNanos = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL( record.isPost() ? url : url + "?" + query ).openConnection();
+			if ( record.isPost() ) {
+				connection.setRequestMethod( "POST" );
+				connection.setDoOutput( true );
+				connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded" );
+				OutputStream out = connection.getOutputStream();
+				out.write( query.getBytes( Constants.ENCODING_FORMAT ) );
+				out.close();
+			}
+			
+			status = connection.getResponseCode();
+			InputStream in = ( status >= 400 ) ? connection.getErrorStream() : connection.getInputStream();
+			if ( null != in ) {
+				byte[] buffer = new byte[ 4096 ];
+				while ( in.read( buffer ) != -1 ) {
+					// Read the whole response so the connection can be reused
+				}
+				in.close();
+			}
+		}
+		catch ( IOException exception ) {
+			status = -1;
+		}
+		long elapsedMicros = ( System.nanoTime() - startNanos ) / 1000;
+		
+		synchronized ( this.results ) {
+			Results endpoint = this.results.get( record.getEndpoint() );
+			if ( null == endpoint ) {
+				endpoint = new Results();
+				this.results.put( record.getEndpoint(), endpoint );
+			}
+			endpoint.captured.add( record.getLatencyMicros() );
+			endpoint.replayed.add( elapsedMicros );
+			if ( status == record.getStatus() ) {
+				endpoint.matched++;
+			}
+		}
+	}
+	
+	private String buildQuery( TrafficCapture.Record record ) {
+		Account account;
+		synchronized ( this.random ) {
+			account = this.accounts.isEmpty() ? null : this.accounts.get( this.random.nextInt( this.accounts.size() ) );
+		}
+		
+		int status = record.getStatus();
+		boolean rejected = null == account || ( status >= 400 && status < 500 );
+		String endpoint = record.getEndpoint();
+		
+		String timestamp = null;
+		if ( record.getParameters().containsKey( "timestamp" ) ) {
+			timestamp = ( null == record.getTimestampSkewSeconds() ) ? this.randomString( record.getParameters().get( "timestamp" ) )
+					: new DateUtils().formatIso8601Date( new Date( System.currentTimeMillis() + record.getTimestampSkewSeconds() * 1000L ) );
+		}
+		
+		StringBuilder query = new StringBuilder();
+		for ( Map.Entry<String, Integer> parameter : record.getParameters().entrySet() ) {
+			String name = parameter.getKey();
+			int length = parameter.getValue();
+			
+			String value;
+			if ( "timestamp".equals( name ) ) {
+				value = timestamp;
+			}
+			else if ( "/registeruser".equals( endpoint ) && "username".equals( name ) ) {
+				if ( status == 406 && null != account ) {
+					value = account.username;
+				}
+				else {
+					value = ( status == 400 ) ? this.randomString( 2 ) : "replay_new_" + this.newUsers.incrementAndGet();
+				}
+			}
+			else if ( "/registeruser".equals( endpoint ) && "password".equals( name ) ) {
+				value = this.randomString( ( status == 400 ) ? length : Math.max( 6, length ) );
+			}
+			else if ( rejected || null == timestamp ) {
+				value = this.randomString( length );
+			}
+			else if ( "username".equals( name ) ) {
+				value = account.username;
+			}
+			else if ( "uid".equals( name ) ) {
+				// Logging in replaces the key of the device, so logins use a device of their own
+				value = "/login".equals( endpoint ) ? account.uid + "_login" : account.uid;
+			}
+			else if ( "signature".equals( name ) ) {
+				value = Utilities.sign( timestamp, "/login".equals( endpoint ) ? account.hashSaltedPassword : account.key );
+			}
+			else {
+				value = this.randomString( length );
+			}
+			
+			try {
+				query.append( ( query.length() == 0 ) ? "" : "&" ).append( name ).append( "=" ).append(
+						URLEncoder.encode( value, Constants.ENCODING_FORMAT ) );
+			}
+			catch ( IOException exception ) {
+				throw new IllegalStateException( exception );
+			}
+		}
+		return query.toString();
+	}
+	
+	private String randomString( int length ) {
+		StringBuilder builder = new StringBuilder( length );
+		synchronized ( this.random ) {
+			for ( int i = 0; i < length; i++ ) {
+				builder.append( ALPHABET.charAt( this.random.nextInt( ALPHABET.length() ) ) );
+			}
+		}
+		return builder.toString();
+	}
+	
+	private static String formatPercentiles( List<Long> latencies ) {
+		StringBuilder builder = new StringBuilder();
+		for ( double percentile : PERCENTILES ) {
+			builder.append( ( builder.length() == 0 ) ? "" : "/" ).append( formatMillis( percentile( latencies, percentile ) ) );
+		}
+		return builder.toString();
+	}
+	
+	private static String formatMillis( long micros ) {
+		return String.format( "%.1f", micros / 1000.0 );
+	}
+	
+	private static long percentile( List<Long> latencies, double percentile ) {
+		if ( latencies.isEmpty() ) {
+			return 0;
+		}
+		
+		List<Long> sorted = new ArrayList<Long>( latencies );
+		Collections.sort( sorted );
+		int index = (int) Math.ceil( percentile / 100 * sorted.size() ) - 1;
+		return sorted.get( Math.max( 0, Math.min( sorted.size() - 1, index ) ) );
+	}
+	
+	private static void setDefault( String name, String value ) {
+		if ( Utilities.isEmpty( System.getProperty( name ) ) ) {
+			System.setProperty( name, value );
+		}
+	}
+	
+	private static Properties load( String fileName ) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream( fileName );
+		try {
+			properties.load( in );
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	private static void save( Properties properties, String fileName ) throws IOException {
+		OutputStream out = new FileOutputStream( fileName );
+		try {
+			properties.store( out, "TrafficReplay latency percentiles in microseconds" );
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static class Account {
+		
+		final String username;
+		
+		final String hashSaltedPassword;
+		
+		final String uid;
+		
+		final String key;
+		
+		Account( String username, String hashSaltedPassword, String uid, String key ) {
+			this.username = username;
+			this.hashSaltedPassword = hashSaltedPassword;
+			this.uid = uid;
+			this.key = key;
+		}
+	}
+	
+	private static class Results {
+		
+		final List<Long> captured = new ArrayList<Long>();
+		
+		final List<Long> replayed = new ArrayList<Long>();
+		
+		int matched;
+	}
+	
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.standalone;
+
+import static com.amazonaws.tvm.Utilities.encode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.tvm.Application;
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.RootServlet;
+import com.amazonaws.tvm.TokenVendingMachine;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Tracer;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.anonymous.AnonymousTokenVendingMachine;
+import com.amazonaws.tvm.identity.IdentityTokenVendingMachine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Server-sent events endpoint that pushes new credentials to a device before its current ones expire, in place of the device polling
+ * /gettoken. The device connects with the parameters of /gettoken and receives the same encrypted payload as a "credentials" event right away,
+ * and again ahead of every expiry. Refreshes are spread at random over STREAM_REFRESH_JITTER_SECONDS, so devices that connected at the same
+ * time, e.g. at a shift start, donot come back to STS at the same time.
+ * 
+ * Once the stream is open the handler returns and the exchange is kept open without a thread. A single scheduler thread triggers refreshes and
+ * heartbeats, the work itself runs on the request executor of the standalone server, so a device stalling its stream holds up no other.
+ * 
+ * Identity mode devices are looked up again on every refresh, so a deleted device or user stops receiving credentials. After three failed
+ * refreshes in a row the stream is closed with an "error" event and the device goes back to polling. In Anonymous mode credentials are
+ * encrypted with the key the device connected with, so the stream is closed with a "rekey" event once that key stops being accepted. The
+ * device then fetches a new key and reconnects, and an expired or rotated out key is never used again.
+ */
+public class CredentialStream implements HttpHandler {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	public static final String PATH = "/refreshstream";
+	
+	private static final int MAX_FAILED_REFRESHES = 3;
+	
+	private final Executor executor;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread( Runnable runnable ) {
+			Thread thread = new Thread( runnable, "CredentialStream-scheduler" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+	
+	private final Set<Stream> streams = Collections.newSetFromMap( new ConcurrentHashMap<Stream, Boolean>() );
+	
+	private final Random random = new Random();
+	
+	/**
+	 * @param executor
+	 *            Runs refreshes and writes, usually the request executor of the standalone server
+	 */
+	public CredentialStream( Executor executor ) {
+		this.executor = executor;
+		
+		Metrics.registerGauge( "stream.connections", new Metrics.Gauge() {
+			public long getValue() {
+				return CredentialStream.this.streams.size();
+			}
+		} );
+		
+		long heartbeatSeconds = Math.max( 1, Configuration.STREAM_HEARTBEAT_SECONDS );
+		this.scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				heartbeat();
+			}
+		}, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS );
+	}
+	
+	public void handle( HttpExchange exchange ) throws IOException {
+		Metrics.increment( "standalone.requests" );
+		boolean opened = false;
+		try {
+			ServletExchange servletExchange = new ServletExchange( exchange, PATH );
+			HttpServletRequest request = servletExchange.getRequest();
+			
+			Application application = Application.forRequest( request );
+			Application previous = Application.attach( application );
+			Tracer.Span span = Tracer.startTrace( this.getClass().getSimpleName(), request.getHeader( "traceparent" ) );
+			span.setAttribute( "app", application.getName() );
+			try {
+				int status = this.open( exchange, request, application );
+				span.setAttribute( "http.status_code", status );
+				if ( status == HttpServletResponse.SC_OK ) {
+					opened = true;
+				}
+				else {
+					HttpServletResponse response = servletExchange.getResponse();
+					if ( status == HttpServletResponse.SC_SERVICE_UNAVAILABLE ) {
+						response.setIntHeader( "Retry-After", Configuration.STREAM_RETRY_SECONDS );
+					}
+					RootServlet.sendErrorResponse( status, response );
+					servletExchange.complete();
+				}
+			}
+			finally {
+				Tracer.endTrace( span );
+				Application.attach( previous );
+			}
+		}
+		catch ( Exception exception ) {
+			log.log( Level.SEVERE, "Exception opening credential stream", exception );
+			Metrics.increment( "standalone.errors" );
+			try {
+				exchange.sendResponseHeaders( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, -1 );
+			}
+			catch ( IOException ignored ) {
+				// Response already started, nothing more can be sent
+			}
+		}
+		finally {
+			if ( !opened ) {
+				exchange.close();
+			}
+		}
+	}
+	
+	/**
+	 * Closes every open stream, the devices reconnect or go back to polling.
+	 */
+	public void shutdown() {
+		this.scheduler.shutdownNow();
+		for ( Stream stream : this.streams ) {
+			this.close( stream );
+		}
+	}
+	
+	/**
+	 * Authenticates the device like /gettoken does and opens the stream with its first credentials.
+	 * 
+	 * @return the HTTP status, SC_OK once the stream is open
+	 */
+	private int open( HttpExchange exchange, HttpServletRequest request, Application application ) throws Exception {
+		String uid = request.getParameter( "uid" );
+		String signature = request.getParameter( "signature" );
+		String timestamp = request.getParameter( "timestamp" );
+		String ticket = request.getParameter( "ticket" );
+		if ( Utilities.isEmpty( uid ) || Utilities.isEmpty( signature ) || Utilities.isEmpty( timestamp ) ) {
+			return HttpServletResponse.SC_BAD_REQUEST;
+		}
+		
+		if ( this.streams.size() >= Configuration.STREAM_MAX_CONNECTIONS ) {
+			Metrics.increment( "stream.rejected" );
+			return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+		}
+		
+		TokenVendingMachine tokenVendingMachine = Configuration.ANONYMOUS_MODE ? new AnonymousTokenVendingMachine()
+				: new IdentityTokenVendingMachine();
+		int responseCode;
+		if ( tokenVendingMachine instanceof IdentityTokenVendingMachine && !Utilities.isEmpty( ticket ) ) {
+			responseCode = ( (IdentityTokenVendingMachine) tokenVendingMachine ).validateTicketRequest( uid, ticket, signature, timestamp );
+		}
+		else {
+			responseCode = tokenVendingMachine.validateTokenRequest( uid, signature, timestamp );
+		}
+		if ( responseCode != HttpServletResponse.SC_OK ) {
+			log.warning( "Credential stream refused for UID : " + encode( uid ) + ". Setting Http status code " + responseCode );
+			return responseCode;
+		}
+		
+		String data = tokenVendingMachine.getToken( uid );
+		if ( null == data ) {
+			return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		}
+		
+		exchange.getResponseHeaders().set( "Content-Type", "text/event-stream; charset=UTF-8" );
+		exchange.getResponseHeaders().set( "Cache-Control", "no-cache" );
+		exchange.sendResponseHeaders( HttpServletResponse.SC_OK, 0 );
+		
+		// The anonymous key is derived per request and kept with the stream until it expires, identity devices are looked up again on each refresh
+		Stream stream;
+		if ( tokenVendingMachine instanceof AnonymousTokenVendingMachine ) {
+			long keyLifetimeMillis = ( (AnonymousTokenVendingMachine) tokenVendingMachine ).getValidatedKeyLifetimeSeconds() * 1000L;
+			stream = new Stream( exchange, uid, application, tokenVendingMachine, System.currentTimeMillis() + keyLifetimeMillis );
+		}
+		else {
+			stream = new Stream( exchange, uid, application, null, Long.MAX_VALUE );
+		}
+		this.streams.add( stream );
+		Metrics.increment( "stream.opened" );
+		log.info( "Credential stream opened for UID : " + encode( uid ) );
+		
+		if ( this.send( stream, "retry: " + ( Configuration.STREAM_RETRY_SECONDS * 1000L ) + "\n\n" ) ) {
+			this.push( stream, data );
+		}
+		return HttpServletResponse.SC_OK;
+	}
+	
+	private void push( Stream stream, String data ) {
+		if ( this.send( stream, "event: credentials\nid: " + ( ++stream.pushes ) + "\ndata: " + data + "\n\n" ) ) {
+			Metrics.increment( "stream.pushed" );
+			this.schedule( stream, Math.min( this.nextRefreshSeconds( stream.application ), stream.getKeyLifetimeSeconds() ) );
+		}
+	}
+	
+	private void refresh( Stream stream ) {
+		if ( !this.streams.contains( stream ) ) {
+			return;
+		}
+		
+		if ( stream.getKeyLifetimeSeconds() <= 0 ) {
+			Metrics.increment( "stream.rekeyed" );
+			this.send( stream, "event: rekey\ndata: " + Constants.getMsg( HttpServletResponse.SC_UNAUTHORIZED ) + "\n\n" );
+			this.close( stream );
+			return;
+		}
+		
+		Application previous = Application.attach( stream.application );
+		Tracer.Span span = Tracer.startTrace( "CredentialStream.refresh", null );
+		try {
+			TokenVendingMachine tokenVendingMachine = ( null == stream.tokenVendingMachine ) ? new IdentityTokenVendingMachine()
+					: stream.tokenVendingMachine;
+			String data = null;
+			try {
+				data = tokenVendingMachine.getToken( stream.uid );
+			}
+			catch ( Exception exception ) {
+				span.setError( exception );
+				log.log( Level.WARNING, "Credential refresh failed for UID : " + encode( stream.uid ), exception );
+			}
+			
+			if ( null != data ) {
+				stream.failures = 0;
+				this.push( stream, data );
+				return;
+			}
+			
+			Metrics.increment( "stream.refresh_failed" );
+			if ( ++stream.failures >= MAX_FAILED_REFRESHES ) {
+				this.send( stream, "event: error\ndata: " + Constants.getMsg( HttpServletResponse.SC_INTERNAL_SERVER_ERROR ) + "\n\n" );
+				this.close( stream );
+			}
+			else {
+				this.schedule( stream, Configuration.STREAM_RETRY_SECONDS + this.random.nextInt( Configuration.STREAM_RETRY_SECONDS + 1 ) );
+			}
+		}
+		finally {
+			Tracer.endTrace( span );
+			Application.attach( previous );
+		}
+	}
+	
+	/**
+	 * The pushed credentials may have been served from the credential cache, so they are only known to last the session duration less
+	 * CREDENTIALS_CACHE_SECONDS. The next push is due STREAM_REFRESH_LEAD_SECONDS before that, less a random part of the jitter window.
+	 * 
+	 * @return seconds until the next refresh
+	 */
+	private long nextRefreshSeconds( Application application ) {
+		long lifetime = application.getSessionDuration() - Math.max( 0, Configuration.CREDENTIALS_CACHE_SECONDS );
+		long deadline = lifetime - Configuration.STREAM_REFRESH_LEAD_SECONDS;
+		if ( deadline <= 1 ) {
+			return Math.max( 1, lifetime / 2 );
+		}
+		
+		long window = Math.min( Math.max( 0, Configuration.STREAM_REFRESH_JITTER_SECONDS ), deadline / 2 );
+		return deadline - (long) ( this.random.nextDouble() * window );
+	}
+	
+	private void schedule( final Stream stream, long delaySeconds ) {
+		try {
+			stream.next = this.scheduler.schedule( new Runnable() {
+				public void run() {
+					execute( stream, new Runnable() {
+						public void run() {
+							refresh( stream );
+						}
+					} );
+				}
+			}, delaySeconds, TimeUnit.SECONDS );
+		}
+		catch ( RejectedExecutionException exception ) {
+			// Shutting down
+			this.close( stream );
+		}
+	}
+	
+	private void heartbeat() {
+		for ( final Stream stream : this.streams ) {
+			this.execute( stream, new Runnable() {
+				public void run() {
+					send( stream, ":\n\n" );
+				}
+			} );
+		}
+	}
+	
+	private void execute( Stream stream, Runnable task ) {
+		try {
+			this.executor.execute( task );
+		}
+		catch ( RejectedExecutionException exception ) {
+			this.close( stream );
+		}
+	}
+	
+	/**
+	 * Writes the event and flushes it to the device. A stream that cannot be written to is closed.
+	 * 
+	 * @return false if the stream is closed
+	 */
+	private boolean send( Stream stream, String event ) {
+		synchronized ( stream ) {
+			if ( !this.streams.contains( stream ) ) {
+				return false;
+			}
+			
+			try {
+				stream.out.write( event.getBytes( Constants.ENCODING_FORMAT ) );
+				stream.out.flush();
+				return true;
+			}
+			catch ( IOException exception ) {
+				log.fine( "Credential stream of UID : " + encode( stream.uid ) + " disconnected" );
+			}
+		}
+		this.close( stream );
+		return false;
+	}
+	
+	private void close( Stream stream ) {
+		if ( !this.streams.remove( stream ) ) {
+			return;
+		}
+		
+		ScheduledFuture<?> next = stream.next;
+		if ( null != next ) {
+			next.cancel( false );
+		}
+		synchronized ( stream ) {
+			stream.exchange.close();
+		}
+		Metrics.increment( "stream.closed" );
+	}
+	
+	private static class Stream {
+		
+		final HttpExchange exchange;
+		
+		final OutputStream out;
+		
+		final String uid;
+		
+		final Application application;
+		
+		final TokenVendingMachine tokenVendingMachine;
+		
+		/** When the key the credentials are encrypted with stops being accepted, Long.MAX_VALUE in Identity mode */
+		final long keyExpiresMillis;
+		
+		long pushes;
+		
+		int failures;
+		
+		volatile ScheduledFuture<?> next;
+		
+		Stream( HttpExchange exchange, String uid, Application application, TokenVendingMachine tokenVendingMachine, long keyExpiresMillis ) {
+			this.exchange = exchange;
+			this.out = exchange.getResponseBody();
+			this.uid = uid;
+			this.application = application;
+			this.tokenVendingMachine = tokenVendingMachine;
+			this.keyExpiresMillis = keyExpiresMillis;
+		}
+		
+		long getKeyLifetimeSeconds() {
+			return ( this.keyExpiresMillis == Long.MAX_VALUE ) ? Long.MAX_VALUE : ( this.keyExpiresMillis - System.currentTimeMillis() ) / 1000L;
+		}
+	}
+	
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.standalone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.tvm.Constants;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Presents an HttpExchange of the JDK HTTP server as the HttpServletRequest and HttpServletResponse the servlets expect. Only the parts of the
+ * servlet API the Token Vending Machine uses are backed, everything else answers null, false or 0. The response is buffered and sent by
+ * complete.
+ */
+class ServletExchange {
+	
+	private final HttpExchange exchange;
+	
+	private final String contextPath;
+	
+	private final Map<String, String[]> parameters;
+	
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	
+	private final ServletOutputStream out = new ServletOutputStream() {
+		@Override
+		public void write( int b ) throws IOException {
+			ServletExchange.this.body.write( b );
+		}
+		
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException {
+			ServletExchange.this.body.write( b, off, len );
+		}
+	};
+	
+	private PrintWriter writer;
+	
+	private int status = HttpServletResponse.SC_OK;
+	
+	private boolean completed = false;
+	
+	ServletExchange( HttpExchange exchange, String contextPath ) throws IOException {
+		this.exchange = exchange;
+		this.contextPath = contextPath;
+		this.parameters = readParameters( exchange );
+	}
+	
+	int getStatus() {
+		return this.status;
+	}
+	
+	HttpServletRequest getRequest() {
+		return (HttpServletRequest) Proxy.newProxyInstance( HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+						return handleRequest( method.getName(), args, method.getReturnType() );
+					}
+				} );
+	}
+	
+	HttpServletResponse getResponse() {
+		return (HttpServletResponse) Proxy.newProxyInstance( HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+						return handleResponse( method.getName(), args, method.getReturnType() );
+					}
+				} );
+	}
+	
+	/**
+	 * Sends the status, headers and buffered body to the client.
+	 */
+	void complete() throws IOException {
+		if ( this.completed ) {
+			return;
+		}
+		this.completed = true;
+		
+		if ( null != this.writer ) {
+			this.writer.flush();
+		}
+		
+		byte[] content = this.body.toByteArray();
+		boolean noBody = content.length == 0 || "HEAD".equals( this.exchange.getRequestMethod() ) || this.status == HttpServletResponse.SC_NOT_MODIFIED;
+		this.exchange.sendResponseHeaders( this.status, noBody ? -1 : content.length );
+		if ( this.status == HttpServletResponse.SC_NOT_MODIFIED ) {
+			// The JDK server completes a 304 with its headers and has no body stream to close, closing the exchange is enough
+			return;
+		}
+		OutputStream responseBody = this.exchange.getResponseBody();
+		try {
+			if ( !noBody ) {
+				responseBody.write( content );
+			}
+		}
+		finally {
+			responseBody.close();
+		}
+	}
+	
+	private Object handleRequest( String name, Object[] args, Class<?> returnType ) throws IOException {
+		if ( "getParameter".equals( name ) ) {
+			String[] values = this.parameters.get( args[ 0 ] );
+			return ( null == values ) ? null : values[ 0 ];
+		}
+		if ( "getParameterValues".equals( name ) ) {
+			return this.parameters.get( args[ 0 ] );
+		}
+		if ( "getParameterMap".equals( name ) ) {
+			return Collections.unmodifiableMap( this.parameters );
+		}
+		if ( "getParameterNames".equals( name ) ) {
+			return Collections.enumeration( this.parameters.keySet() );
+		}
+		if ( "getHeader".equals( name ) ) {
+			return this.exchange.getRequestHeaders().getFirst( (String) args[ 0 ] );
+		}
+		if ( "getHeaders".equals( name ) ) {
+			List<String> values = this.exchange.getRequestHeaders().get( args[ 0 ] );
+			return Collections.enumeration( ( null == values ) ? Collections.<String> emptyList() : values );
+		}
+		if ( "getHeaderNames".equals( name ) ) {
+			return Collections.enumeration( this.exchange.getRequestHeaders().keySet() );
+		}
+		if ( "getDateHeader".equals( name ) ) {
+			String value = this.exchange.getRequestHeaders().getFirst( (String) args[ 0 ] );
+			try {
+				return ( null == value ) ? -1L : newHttpDateFormat().parse( value ).getTime();
+			}
+			catch ( ParseException exception ) {
+				throw new IllegalArgumentException( "Invalid date header " + args[ 0 ] + " : " + value );
+			}
+		}
+		if ( "getMethod".equals( name ) ) {
+			return this.exchange.getRequestMethod();
+		}
+		if ( "getRequestURI".equals( name ) ) {
+			return this.exchange.getRequestURI().getRawPath();
+		}
+		if ( "getRequestURL".equals( name ) ) {
+			return new StringBuffer( "http://" + this.getServerName() + ":" + this.exchange.getLocalAddress().getPort()
+					+ this.exchange.getRequestURI().getRawPath() );
+		}
+		if ( "getQueryString".equals( name ) ) {
+			return this.exchange.getRequestURI().getRawQuery();
+		}
+		if ( "getContextPath".equals( name ) ) {
+			return "";
+		}
+		if ( "getServletPath".equals( name ) ) {
+			return this.contextPath;
+		}
+		if ( "getPathInfo".equals( name ) ) {
+			String path = this.exchange.getRequestURI().getPath();
+			return ( path.length() > this.contextPath.length() ) ? path.substring( this.contextPath.length() ) : null;
+		}
+		if ( "getServerName".equals( name ) ) {
+			return this.getServerName();
+		}
+		if ( "getServerPort".equals( name ) || "getLocalPort".equals( name ) ) {
+			return this.exchange.getLocalAddress().getPort();
+		}
+		if ( "getRemoteAddr".equals( name ) ) {
+			InetSocketAddress remote = this.exchange.getRemoteAddress();
+			return ( null == remote ) ? null : remote.getAddress().getHostAddress();
+		}
+		if ( "getScheme".equals( name ) ) {
+			return "http";
+		}
+		if ( "getProtocol".equals( name ) ) {
+			return this.exchange.getProtocol();
+		}
+		if ( "getContentType".equals( name ) ) {
+			return this.exchange.getRequestHeaders().getFirst( "Content-Type" );
+		}
+		if ( "getAttribute".equals( name ) ) {
+			return this.attributes.get( args[ 0 ] );
+		}
+		if ( "setAttribute".equals( name ) ) {
+			this.attributes.put( (String) args[ 0 ], args[ 1 ] );
+			return null;
+		}
+		if ( "removeAttribute".equals( name ) ) {
+			this.attributes.remove( args[ 0 ] );
+			return null;
+		}
+		return defaultValue( returnType );
+	}
+	
+	private Object handleResponse( String name, Object[] args, Class<?> returnType ) throws IOException {
+		if ( "setStatus".equals( name ) ) {
+			this.status = (Integer) args[ 0 ];
+			return null;
+		}
+		if ( "getStatus".equals( name ) ) {
+			return this.status;
+		}
+		if ( "sendError".equals( name ) ) {
+			this.status = (Integer) args[ 0 ];
+			this.body.reset();
+			String message = ( args.length > 1 ) ? (String) args[ 1 ] : Constants.getMsg( this.status );
+			if ( null != message ) {
+				this.body.write( message.getBytes( "UTF-8" ) );
+			}
+			return null;
+		}
+		if ( "setHeader".equals( name ) ) {
+			this.exchange.getResponseHeaders().set( (String) args[ 0 ], (String) args[ 1 ] );
+			return null;
+		}
+		if ( "addHeader".equals( name ) ) {
+			this.exchange.getResponseHeaders().add( (String) args[ 0 ], (String) args[ 1 ] );
+			return null;
+		}
+		if ( "setIntHeader".equals( name ) ) {
+			this.exchange.getResponseHeaders().set( (String) args[ 0 ], String.valueOf( args[ 1 ] ) );
+			return null;
+		}
+		if ( "setDateHeader".equals( name ) ) {
+			this.exchange.getResponseHeaders().set( (String) args[ 0 ], newHttpDateFormat().format( new Date( (Long) args[ 1 ] ) ) );
+			return null;
+		}
+		if ( "containsHeader".equals( name ) ) {
+			return this.exchange.getResponseHeaders().containsKey( args[ 0 ] );
+		}
+		if ( "setContentType".equals( name ) ) {
+			this.exchange.getResponseHeaders().set( "Content-Type", (String) args[ 0 ] );
+			return null;
+		}
+		if ( "getOutputStream".equals( name ) ) {
+			return this.out;
+		}
+		if ( "getWriter".equals( name ) ) {
+			if ( null == this.writer ) {
+				this.writer = new PrintWriter( new OutputStreamWriter( this.out, "UTF-8" ) );
+			}
+			return this.writer;
+		}
+		if ( "flushBuffer".equals( name ) ) {
+			this.complete();
+			return null;
+		}
+		if ( "isCommitted".equals( name ) ) {
+			return this.completed;
+		}
+		if ( "reset".equals( name ) || "resetBuffer".equals( name ) ) {
+			this.body.reset();
+			return null;
+		}
+		if ( "getCharacterEncoding".equals( name ) ) {
+			return "UTF-8";
+		}
+		return defaultValue( returnType );
+	}
+	
+	private String getServerName() {
+		String host = this.exchange.getRequestHeaders().getFirst( "Host" );
+		if ( null == host ) {
+			return this.exchange.getLocalAddress().getHostName();
+		}
+		int port = host.lastIndexOf( ':' );
+		return ( port > 0 && host.indexOf( ']' ) < port ) ? host.substring( 0, port ) : host;
+	}
+	
+	/**
+	 * Parameters from the query string and, for form posts, the request body.
+	 */
+	private static Map<String, String[]> readParameters( HttpExchange exchange ) throws IOException {
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		addParameters( parameters, exchange.getRequestURI().getRawQuery() );
+		
+		String contentType = exchange.getRequestHeaders().getFirst( "Content-Type" );
+		if ( "POST".equals( exchange.getRequestMethod() ) && null != contentType && contentType.startsWith( "application/x-www-form-urlencoded" ) ) {
+			InputStream in = exchange.getRequestBody();
+			ByteArrayOutputStream form = new ByteArrayOutputStream();
+			byte[] buffer = new byte[ 4096 ];
+			int read;
+			while ( ( read = in.read( buffer ) ) != -1 ) {
+				form.write( buffer, 0, read );
+			}
+			addParameters( parameters, form.toString( "UTF-8" ) );
+		}
+		return parameters;
+	}
+	
+	private static void addParameters( Map<String, String[]> parameters, String encoded ) throws IOException {
+		if ( null == encoded || encoded.length() == 0 ) {
+			return;
+		}
+		
+		for ( String pair : encoded.split( "&" ) ) {
+			if ( pair.length() == 0 ) {
+				continue;
+			}
+			int equals = pair.indexOf( '=' );
+			String name = URLDecoder.decode( ( equals < 0 ) ? pair : pair.substring( 0, equals ), "UTF-8" );
+			String value = ( equals < 0 ) ? "" : URLDecoder.decode( pair.substring( equals + 1 ), "UTF-8" );
+			
+			String[] existing = parameters.get( name );
+			if ( null == existing ) {
+				parameters.put( name, new String[] { value } );
+			}
+			else {
+				String[] values = new String[ existing.length + 1 ];
+				System.arraycopy( existing, 0, values, 0, existing.length );
+				values[ existing.length ] = value;
+				parameters.put( name, values );
+			}
+		}
+	}
+	
+	private static SimpleDateFormat newHttpDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US );
+		format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+		return format;
+	}
+	
+	static Object defaultValue( Class<?> type ) {
+		if ( type == boolean.class ) {
+			return Boolean.FALSE;
+		}
+		if ( type == int.class ) {
+			return Integer.valueOf( 0 );
+		}
+		if ( type == long.class ) {
+			return Long.valueOf( 0 );
+		}
+		return null;
+	}
+	
+}
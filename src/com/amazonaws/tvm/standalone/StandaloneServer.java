@@ -0,0 +1,366 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.standalone;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.tvm.Configuration;
+import com.amazonaws.tvm.Constants;
+import com.amazonaws.tvm.GetTokenServlet;
+import com.amazonaws.tvm.HealthCheckServlet;
+import com.amazonaws.tvm.LoadSheddingFilter;
+import com.amazonaws.tvm.Metrics;
+import com.amazonaws.tvm.MetricsServlet;
+import com.amazonaws.tvm.RoutingFilter;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.anonymous.RegisterDeviceServlet;
+import com.amazonaws.tvm.binary.BinaryProtocolServer;
+import com.amazonaws.tvm.identity.LoginServlet;
+import com.amazonaws.tvm.identity.RegisterUserServlet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the Token Vending Machine without a servlet container, on the HTTP server built into the JDK. The servlets are mounted at the same paths
+ * as in web.xml. On Java 21 and later every request runs on its own virtual thread, so requests blocked on SimpleDB or STS hold no platform
+ * thread. Older runtimes use a pool of STANDALONE_THREADS threads.
+ * 
+ * The endpoints get the same load shedding bulkheads as declared in web.xml. With STREAM_ENABLED devices can also keep a CredentialStream open
+ * at /refreshstream, which has no servlet counterpart as it needs connections that outlive their request thread. With BINARY_PORT set, the
+ * BinaryProtocolServer offers login and token requests over persistent binary connections on that port. Devices still register over HTTPS,
+ * the binary listener is plain TCP.
+ * 
+ * The pages are not available, a servlet forwarding to a page answers with a plain text status message instead. The servlet API jar still needs
+ * to be on the classpath.
+ * 
+ * Usage: java -DAWS_ACCESS_KEY_ID=... -DAWS_SECRET_KEY=... [-DSTANDALONE_PORT=8080] com.amazonaws.tvm.standalone.StandaloneServer
+ */
+public class StandaloneServer {
+	
+	protected static final Logger log = TokenVendingMachineLogger.getLogger();
+	
+	/** Request attribute holding the ServletExchange of the request */
+	static final String EXCHANGE_ATTRIBUTE = StandaloneServer.class.getName() + ".exchange";
+	
+	private final HttpServer server;
+	
+	private final ExecutorService executor;
+	
+	private final ServletContext context = newServletContext();
+	
+	private CredentialStream credentialStream;
+	
+	private BinaryProtocolServer binaryServer;
+	
+	public static void main( String[] args ) throws Exception {
+		long start = System.currentTimeMillis();
+		final StandaloneServer standaloneServer = new StandaloneServer( Configuration.STANDALONE_PORT );
+		standaloneServer.mountEndpoints();
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( "StandaloneServer-shutdown" ) {
+			@Override
+			public void run() {
+				standaloneServer.stop();
+			}
+		} );
+		
+		standaloneServer.start();
+		log.info( "Standalone server listening on port " + Configuration.STANDALONE_PORT + ", started in " + ( System.currentTimeMillis() - start ) + " ms" );
+	}
+	
+	public StandaloneServer( int port ) throws IOException {
+		this.server = HttpServer.create( new InetSocketAddress( port ), 0 );
+		this.executor = newRequestExecutor();
+		this.server.setExecutor( this.executor );
+	}
+	
+	/**
+	 * Mounts the endpoints of web.xml with their load shedding filters.
+	 */
+	public void mountEndpoints() throws Exception {
+		Map<String, String> registerParameters = new HashMap<String, String>();
+		registerParameters.put( "success", "/register-success.jsp" );
+		registerParameters.put( "error", "/register-failure.jsp" );
+		
+		this.mount( "/gettoken", new GetTokenServlet(), null, routed( new LoadSheddingFilter() ), sheddingParameters( "gettoken" ) );
+		this.mount( "/login", new LoginServlet(), null, routed( new LoadSheddingFilter() ), sheddingParameters( "login" ) );
+		this.mount( "/registeruser", new RegisterUserServlet(), registerParameters, new LoadSheddingFilter(), sheddingParameters( "registeruser" ) );
+		this.mount( "/registerdevice", new RegisterDeviceServlet(), null, new LoadSheddingFilter(), sheddingParameters( "registerdevice" ) );
+		this.mount( "/metrics", new MetricsServlet(), null );
+		this.mount( "/healthcheck", new HealthCheckServlet(), null );
+		
+		if ( Configuration.STREAM_ENABLED ) {
+			this.credentialStream = new CredentialStream( this.executor );
+			this.server.createContext( CredentialStream.PATH, this.credentialStream );
+		}
+		
+		if ( Configuration.BINARY_PORT > 0 ) {
+			this.binaryServer = new BinaryProtocolServer( Configuration.BINARY_PORT, this.executor );
+		}
+	}
+	
+	/**
+	 * Initializes the servlet and routes every request below path to it.
+	 * 
+	 * @param path
+	 *            The servlet path, e.g. /gettoken
+	 * @param servlet
+	 *            The servlet
+	 * @param initParameters
+	 *            The servlet init parameters, may be null
+	 */
+	public void mount( String path, HttpServlet servlet, Map<String, String> initParameters ) throws Exception {
+		this.mount( path, servlet, initParameters, null, null );
+	}
+	
+	/**
+	 * Initializes the servlet and the filter in front of it and routes every request below path through both.
+	 * 
+	 * @param path
+	 *            The servlet path, e.g. /gettoken
+	 * @param servlet
+	 *            The servlet
+	 * @param initParameters
+	 *            The servlet init parameters, may be null
+	 * @param filter
+	 *            Filter applied to every request of the servlet, may be null
+	 * @param filterParameters
+	 *            The filter init parameters, may be null
+	 */
+	public void mount( final String path, final HttpServlet servlet, Map<String, String> initParameters, final Filter filter,
+			Map<String, String> filterParameters ) throws Exception {
+		servlet.init( this.newServletConfig( servlet.getClass().getSimpleName(), initParameters ) );
+		if ( null != filter ) {
+			filter.init( this.newFilterConfig( filter.getClass().getSimpleName(), filterParameters ) );
+		}
+		
+		final FilterChain chain = new FilterChain() {
+			public void doFilter( ServletRequest request, ServletResponse response ) throws IOException, ServletException {
+				servlet.service( request, response );
+			}
+		};
+		
+		this.server.createContext( path, new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException {
+				Metrics.increment( "standalone.requests" );
+				try {
+					ServletExchange servletExchange = new ServletExchange( exchange, path );
+					HttpServletRequest request = servletExchange.getRequest();
+					request.setAttribute( EXCHANGE_ATTRIBUTE, servletExchange );
+					if ( null == filter ) {
+						chain.doFilter( request, servletExchange.getResponse() );
+					}
+					else {
+						filter.doFilter( request, servletExchange.getResponse(), chain );
+					}
+					servletExchange.complete();
+				}
+				catch ( Exception exception ) {
+					log.log( Level.SEVERE, "Exception handling " + path, exception );
+					Metrics.increment( "standalone.errors" );
+					try {
+						exchange.sendResponseHeaders( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, -1 );
+					}
+					catch ( IOException ignored ) {
+						// Response already started, nothing more can be sent
+					}
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		} );
+	}
+	
+	public void start() {
+		this.server.start();
+		if ( null != this.binaryServer ) {
+			this.binaryServer.start();
+		}
+	}
+	
+	public void stop() {
+		if ( null != this.credentialStream ) {
+			this.credentialStream.shutdown();
+		}
+		if ( null != this.binaryServer ) {
+			this.binaryServer.stop();
+		}
+		this.server.stop( 1 );
+		this.executor.shutdown();
+	}
+	
+	/**
+	 * @return a virtual thread per task executor where the runtime supports it, a bounded thread pool otherwise
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			log.info( "Running requests on virtual threads" );
+			return (ExecutorService) factory.invoke( null );
+		}
+		catch ( NoSuchMethodException exception ) {
+			log.info( "Virtual threads not available, running requests on " + Configuration.STANDALONE_THREADS + " threads" );
+			return Executors.newFixedThreadPool( Configuration.STANDALONE_THREADS );
+		}
+		catch ( Exception exception ) {
+			log.log( Level.WARNING, "Unable to create virtual thread executor, running requests on " + Configuration.STANDALONE_THREADS + " threads",
+					exception );
+			return Executors.newFixedThreadPool( Configuration.STANDALONE_THREADS );
+		}
+	}
+	
+	/**
+	 * @return a filter that applies the RoutingFilter before the given one, as the filter mappings of web.xml do. Init parameters go to the
+	 *         given filter.
+	 */
+	private static Filter routed( final Filter filter ) {
+		final RoutingFilter routing = new RoutingFilter();
+		return new Filter() {
+			public void init( FilterConfig config ) throws ServletException {
+				routing.init( config );
+				filter.init( config );
+			}
+			
+			public void doFilter( ServletRequest request, ServletResponse response, final FilterChain chain ) throws IOException, ServletException {
+				routing.doFilter( request, response, new FilterChain() {
+					public void doFilter( ServletRequest request, ServletResponse response ) throws IOException, ServletException {
+						filter.doFilter( request, response, chain );
+					}
+				} );
+			}
+			
+			public void destroy() {
+				filter.destroy();
+				routing.destroy();
+			}
+		};
+	}
+	
+	/**
+	 * @return the init parameters of a load shedding filter, its limits come from LoadShedding.properties as for web.xml
+	 */
+	private static Map<String, String> sheddingParameters( String name ) {
+		return Collections.singletonMap( "name", name );
+	}
+	
+	private ServletConfig newServletConfig( String servletName, Map<String, String> initParameters ) {
+		return (ServletConfig) this.newConfig( ServletConfig.class, servletName, initParameters );
+	}
+	
+	private FilterConfig newFilterConfig( String filterName, Map<String, String> initParameters ) {
+		return (FilterConfig) this.newConfig( FilterConfig.class, filterName, initParameters );
+	}
+	
+	/**
+	 * @return a ServletConfig or FilterConfig backed by the given name and init parameters
+	 */
+	private Object newConfig( Class<?> type, final String configName, Map<String, String> initParameters ) {
+		final Map<String, String> parameters = ( null == initParameters ) ? Collections.<String, String> emptyMap() : initParameters;
+		return Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args ) {
+						String name = method.getName();
+						if ( "getInitParameter".equals( name ) ) {
+							return parameters.get( args[ 0 ] );
+						}
+						if ( "getInitParameterNames".equals( name ) ) {
+							return Collections.enumeration( parameters.keySet() );
+						}
+						if ( "getServletContext".equals( name ) ) {
+							return StandaloneServer.this.context;
+						}
+						if ( "getServletName".equals( name ) || "getFilterName".equals( name ) ) {
+							return configName;
+						}
+						return ServletExchange.defaultValue( method.getReturnType() );
+					}
+				} );
+	}
+	
+	private static ServletContext newServletContext() {
+		final Map<String, Object> attributes = Collections.synchronizedMap( new HashMap<String, Object>() );
+		return (ServletContext) Proxy.newProxyInstance( ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args ) {
+						String name = method.getName();
+						if ( "getRequestDispatcher".equals( name ) ) {
+							return newPageDispatcher( (String) args[ 0 ] );
+						}
+						if ( "getAttribute".equals( name ) ) {
+							return attributes.get( args[ 0 ] );
+						}
+						if ( "setAttribute".equals( name ) ) {
+							attributes.put( (String) args[ 0 ], args[ 1 ] );
+							return null;
+						}
+						if ( "getContextPath".equals( name ) ) {
+							return "";
+						}
+						if ( "log".equals( name ) ) {
+							log.info( String.valueOf( args[ 0 ] ) );
+							return null;
+						}
+						return ServletExchange.defaultValue( method.getReturnType() );
+					}
+				} );
+	}
+	
+	/**
+	 * @return a dispatcher that answers with the status message of the response in place of the page
+	 */
+	private static RequestDispatcher newPageDispatcher( final String page ) {
+		return new RequestDispatcher() {
+			public void forward( ServletRequest request, ServletResponse response ) throws IOException {
+				ServletExchange exchange = (ServletExchange) request.getAttribute( EXCHANGE_ATTRIBUTE );
+				String message = ( null == exchange ) ? null : Constants.getMsg( exchange.getStatus() );
+				
+				response.setContentType( "text/plain; charset=UTF-8" );
+				response.getOutputStream().write( ( ( null == message ) ? page : message ).getBytes( "UTF-8" ) );
+			}
+			
+			public void include( ServletRequest request, ServletResponse response ) throws IOException {
+				this.forward( request, response );
+			}
+		};
+	}
+	
+}
@@ -0,0 +1,31 @@
+#!/bin/sh
+#
+# Compiles the Token Vending Machine together with the tools and runs com.amazonaws.tvm.local.AllocationBudget.
+# Exits with the status of the check, 0 if every operation stays within AllocationBudgets.properties and 1 otherwise,
+# so it can gate a build.
+#
+# Usage: TVM_CLASSPATH=<servlet API, aws-java-sdk and its dependencies> tools/check-allocation-budgets.sh [java options]
+# The java options are passed on to the check, e.g. -DResultFile=measured.properties or -DIterations=5000.
+
+set -e
+
+if [ -z "$TVM_CLASSPATH" ]; then
+	echo "TVM_CLASSPATH has to name the libraries the Token Vending Machine is compiled with" >&2
+	exit 2
+fi
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+CLASSES=$(mktemp -d)
+trap 'rm -rf "$CLASSES"' EXIT
+
+find "$ROOT/src" "$ROOT/tools" -name '*.java' > "$CLASSES/sources"
+javac -nowarn -encoding UTF-8 -d "$CLASSES" -cp "$TVM_CLASSPATH" @"$CLASSES/sources"
+cp "$ROOT"/src/*.properties "$ROOT"/src/*.json "$CLASSES"
+
+set +e
+java -cp "$CLASSES:$ROOT/tools:$TVM_CLASSPATH" "$@" com.amazonaws.tvm.local.AllocationBudget
+STATUS=$?
+if [ $STATUS -ne 0 ]; then
+	echo "Allocation budgets exceeded, see tools/AllocationBudgets.properties" >&2
+fi
+exit $STATUS
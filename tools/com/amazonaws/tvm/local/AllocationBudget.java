@@ -0,0 +1,351 @@
+/*
+ * Copyright 2010-2012 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.tvm.local;
+
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_UNAUTHORIZED;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.tvm.RootServlet;
+import com.amazonaws.tvm.TemporaryCredentialManagement;
+import com.amazonaws.tvm.TokenVendingMachineLogger;
+import com.amazonaws.tvm.Utilities;
+import com.amazonaws.tvm.custom.DeviceAuthentication;
+import com.amazonaws.tvm.custom.UserAuthentication;
+import com.amazonaws.tvm.identity.IdentityTokenVendingMachine;
+import com.amazonaws.tvm.identity.SessionTicket;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Checks that the hot paths of the Token Vending Machine stay within their allocation budgets. The Identity mode login and token flows, the
+ * response helpers of RootServlet and the Utilities they use are run in this process against the local stand-ins, and the bytes each operation
+ * allocates are read from the thread allocation counter of the JVM. Every operation is first run Warmup times, so caches are filled and the JIT
+ * has compiled it, and then measured over Iterations runs.
+ * 
+ * The budgets, in bytes per operation, are read from AllocationBudgets.properties on the class path or from BudgetFile. The run exits with
+ * status 1 if an operation exceeds its budget or has none, so it can gate a build. After a deliberate change, ResultFile saves the measured
+ * values as a starting point for new budgets.
+ * 
+ * Only allocations of the calling thread are counted, which covers the whole flow as long as hedged reads are off. Log records still go to
+ * MyLogFile.txt, only the console handler is switched off to keep the report readable.
+ * 
+ * This class and its budget file live in tools/, outside the source tree packaged into the WAR. Compile it with the classes of src/ and the
+ * libraries they use on the class path, and put tools/ on the class path when running it; tools/check-allocation-budgets.sh does both. The budgets hold only for the SDK and JDK versions
+ * named in the budget file.
+ * 
+ * Usage: java [-DBudgetFile=<file>] [-DResultFile=<file>] [-DWarmup=<runs>] [-DIterations=<runs>] com.amazonaws.tvm.local.AllocationBudget
+ */
+public class AllocationBudget {
+	
+	private static final String BUDGET_RESOURCE = "/AllocationBudgets.properties";
+	
+	private static final String USERNAME = "budget_user";
+	
+	private static final String PASSWORD = "budget_password";
+	
+	private static final String UID = "budget_device";
+	
+	private static final String LOGIN_UID = "budget_device_login";
+	
+	private final com.sun.management.ThreadMXBean threads;
+	
+	private final int warmup;
+	
+	private final int iterations;
+	
+	private final List<Operation> operations = new ArrayList<Operation>();
+	
+	private final Properties measured = new Properties();
+	
+	public static void main( String[] args ) throws Exception {
+		// Has to happen before Configuration is loaded
+		System.setProperty( "LOCAL_STANDINS", "true" );
+		setDefault( "AWS_ACCESS_KEY_ID", "local" );
+		setDefault( "AWS_SECRET_KEY", "local" );
+		setDefault( "AWS_ACCOUNT_ID", "000000000000" );
+		setDefault( "TICKET_KEYS", "allocation-budget-ticket-key" );
+		
+		TokenVendingMachineLogger.getLogger().setUseParentHandlers( false );
+		
+		AllocationBudget budget = new AllocationBudget( Integer.parseInt( System.getProperty( "Warmup", "2000" ) ), Integer.parseInt( System
+				.getProperty( "Iterations", "1000" ) ) );
+		budget.seed();
+		budget.run();
+		
+		if ( null != System.getProperty( "ResultFile" ) ) {
+			save( budget.measured, System.getProperty( "ResultFile" ) );
+		}
+		
+		Properties budgets = ( null == System.getProperty( "BudgetFile" ) ) ? loadResource( BUDGET_RESOURCE ) : load( System
+				.getProperty( "BudgetFile" ) );
+		System.exit( budget.report( budgets ) ? 0 : 1 );
+	}
+	
+	public AllocationBudget( int warmup, int iterations ) {
+		this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if ( !this.threads.isThreadAllocatedMemorySupported() ) {
+			throw new IllegalStateException( "This JVM doesnot count allocated bytes per thread" );
+		}
+		this.threads.setThreadAllocatedMemoryEnabled( true );
+		this.warmup = warmup;
+		this.iterations = Math.max( 1, iterations );
+	}
+	
+	/**
+	 * Registers the user and device the flows run with, and defines the operations.
+	 */
+	public void seed() throws Exception {
+		UserAuthentication users = new UserAuthentication();
+		users.registerUser( USERNAME, PASSWORD, "localhost" );
+		final String userid = users.getUserid( USERNAME );
+		final String hashSaltedPassword = users.getHashSaltedPassword( USERNAME );
+		
+		final String key = Utilities.generateRandomString();
+		new DeviceAuthentication().registerDevice( UID, key, userid );
+		
+		final String timestamp = new DateUtils().formatIso8601Date( new Date() );
+		final String signature = Utilities.sign( timestamp, key );
+		final String loginSignature = Utilities.sign( timestamp, hashSaltedPassword );
+		final String ticket = SessionTicket.issue( UID, userid, USERNAME, key );
+		final Credentials credentials = TemporaryCredentialManagement.getTemporaryCredentials( USERNAME );
+		final String tokens = Utilities.prepareJsonResponseForTokens( credentials, key );
+		final HttpServletResponse response = discardingResponse();
+		
+		this.operations.add( new Operation( "identity.login" ) {
+			void run() throws Exception {
+				IdentityTokenVendingMachine tokenVendingMachine = new IdentityTokenVendingMachine();
+				expect( SC_OK, tokenVendingMachine.validateLoginRequest( USERNAME, LOGIN_UID, loginSignature, timestamp ) );
+				expectData( tokenVendingMachine.getKey( USERNAME, LOGIN_UID ) );
+			}
+		} );
+		this.operations.add( new Operation( "identity.gettoken" ) {
+			void run() throws Exception {
+				IdentityTokenVendingMachine tokenVendingMachine = new IdentityTokenVendingMachine();
+				expect( SC_OK, tokenVendingMachine.validateTokenRequest( UID, signature, timestamp ) );
+				expectData( tokenVendingMachine.getToken( UID ) );
+			}
+		} );
+		this.operations.add( new Operation( "identity.gettoken.ticket" ) {
+			void run() throws Exception {
+				IdentityTokenVendingMachine tokenVendingMachine = new IdentityTokenVendingMachine();
+				expect( SC_OK, tokenVendingMachine.validateTicketRequest( UID, ticket, signature, timestamp ) );
+				expectData( tokenVendingMachine.getToken( UID ) );
+			}
+		} );
+		this.operations.add( new Operation( "RootServlet.sendOKResponse" ) {
+			void run() throws Exception {
+				RootServlet.sendOKResponse( response, tokens );
+			}
+		} );
+		this.operations.add( new Operation( "RootServlet.sendErrorResponse" ) {
+			void run() throws Exception {
+				RootServlet.sendErrorResponse( SC_UNAUTHORIZED, response );
+			}
+		} );
+		this.operations.add( new Operation( "Utilities.sign" ) {
+			void run() throws Exception {
+				expectData( Utilities.sign( timestamp, key ) );
+			}
+		} );
+		this.operations.add( new Operation( "Utilities.isTimestampValid" ) {
+			void run() throws Exception {
+				if ( !Utilities.isTimestampValid( timestamp ) ) {
+					throw new IllegalStateException( "Timestamp rejected" );
+				}
+			}
+		} );
+		this.operations.add( new Operation( "Utilities.getSaltedPassword" ) {
+			void run() throws Exception {
+				expectData( Utilities.getSaltedPassword( USERNAME, "localhost", PASSWORD ) );
+			}
+		} );
+		this.operations.add( new Operation( "Utilities.prepareJsonResponseForTokens" ) {
+			void run() throws Exception {
+				expectData( Utilities.prepareJsonResponseForTokens( credentials, key ) );
+			}
+		} );
+		this.operations.add( new Operation( "Utilities.prepareJsonResponseForKey" ) {
+			void run() throws Exception {
+				expectData( Utilities.prepareJsonResponseForKey( key, ticket, hashSaltedPassword ) );
+			}
+		} );
+	}
+	
+	/**
+	 * Measures the bytes allocated per run of every operation.
+	 */
+	public void run() throws Exception {
+		long threadId = Thread.currentThread().getId();
+		for ( Operation operation : this.operations ) {
+			for ( int i = 0; i < this.warmup; i++ ) {
+				operation.run();
+			}
+			
+			long before = this.threads.getThreadAllocatedBytes( threadId );
+			for ( int i = 0; i < this.iterations; i++ ) {
+				operation.run();
+			}
+			long allocated = this.threads.getThreadAllocatedBytes( threadId ) - before;
+			this.measured.setProperty( operation.name, String.valueOf( allocated / this.iterations ) );
+		}
+	}
+	
+	/**
+	 * Prints the measured bytes per operation next to their budgets.
+	 * 
+	 * @return true if every operation has a budget and stays within it
+	 */
+	public boolean report( Properties budgets ) {
+		boolean passed = true;
+		System.out.println( String.format( "%-40s %12s %12s", "operation", "bytes/op", "budget" ) );
+		for ( Operation operation : this.operations ) {
+			long bytes = Long.parseLong( this.measured.getProperty( operation.name ) );
+			String budget = budgets.getProperty( operation.name );
+			
+			String verdict;
+			if ( null == budget ) {
+				verdict = "NO BUDGET";
+				passed = false;
+			}
+			else if ( bytes > Long.parseLong( budget.trim() ) ) {
+				verdict = "OVER BUDGET";
+				passed = false;
+			}
+			else {
+				verdict = "ok";
+			}
+			System.out.println( String.format( "%-40s %12d %12s  %s", operation.name, bytes, ( null == budget ) ? "-" : budget.trim(), verdict ) );
+		}
+		return passed;
+	}
+	
+	private static void expect( int expected, int status ) {
+		if ( status != expected ) {
+			throw new IllegalStateException( "Expected status " + expected + " but got " + status );
+		}
+	}
+	
+	private static void expectData( String data ) {
+		if ( null == data ) {
+			throw new IllegalStateException( "Operation returned no data" );
+		}
+	}
+	
+	/**
+	 * @return a response that accepts everything and throws the body away
+	 */
+	private static HttpServletResponse discardingResponse() {
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write( int b ) {
+				// Discarded
+			}
+			
+			@Override
+			public void write( byte[] b, int off, int len ) {
+				// Discarded
+			}
+		};
+		return (HttpServletResponse) Proxy.newProxyInstance( HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args ) {
+						if ( "getOutputStream".equals( method.getName() ) ) {
+							return out;
+						}
+						if ( method.getReturnType() == boolean.class ) {
+							return Boolean.FALSE;
+						}
+						if ( method.getReturnType() == int.class ) {
+							return Integer.valueOf( 0 );
+						}
+						return null;
+					}
+				} );
+	}
+	
+	private static void setDefault( String name, String value ) {
+		if ( Utilities.isEmpty( System.getProperty( name ) ) ) {
+			System.setProperty( name, value );
+		}
+	}
+	
+	private static Properties loadResource( String resource ) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = AllocationBudget.class.getResourceAsStream( resource );
+		if ( null == in ) {
+			return properties;
+		}
+		
+		try {
+			properties.load( in );
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	private static Properties load( String fileName ) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream( fileName );
+		try {
+			properties.load( in );
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	private static void save( Properties properties, String fileName ) throws IOException {
+		OutputStream out = new FileOutputStream( fileName );
+		try {
+			properties.store( out, "AllocationBudget bytes allocated per operation" );
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static abstract class Operation {
+		
+		final String name;
+		
+		Operation( String name ) {
+			this.name = name;
+		}
+		
+		abstract void run() throws Exception;
+	}
+	
+}
@@ -14,6 +14,7 @@
 -->
 
 <%@page import="com.amazonaws.tvm.Configuration"%>
+<%@page import="com.amazonaws.tvm.StaticResourceServlet"%>
 <%@ page session="true" %>
 
 <html>
@@ -21,9 +22,9 @@
 		<title><%=Configuration.APP_NAME %> - Error</title>
 		<meta http-equiv="Content-Type" content="text/html; charset=UTF-8">
 		<meta name="viewport" content="width=device-width, minimum-scale=1.0, maximum-scale=1.0">
-		<link rel="stylesheet" href="css/styles.css" type="text/css" media="screen" charset="utf-8">
-		<link rel="stylesheet" href="css/styles-mobile.css" type="text/css" media="screen" charset="utf-8">
-		<link rel="stylesheet" href="css/styles-tablet.css" type="text/css" media="screen" title="no title" charset="utf-8">
+		<link rel="stylesheet" href="<%=StaticResourceServlet.getUrl( "css/styles.css" ) %>" type="text/css" media="screen" charset="utf-8">
+		<link rel="stylesheet" href="<%=StaticResourceServlet.getUrl( "css/styles-mobile.css" ) %>" type="text/css" media="screen" charset="utf-8">
+		<link rel="stylesheet" href="<%=StaticResourceServlet.getUrl( "css/styles-tablet.css" ) %>" type="text/css" media="screen" title="no title" charset="utf-8">
 	</head>
 
     <body>